@@ -120,7 +120,15 @@ protected void readLength() throws IOException {
         if (len < 0 || len >= packetLen) {
             throw new IOException("Packet len" + len + " is out of range!");
         }
-        incomingBuffer = ByteBuffer.allocate(len);
+        incomingBuffer = allocateIncomingBuffer(len);
+    }
+
+    /**
+     * Allocate the buffer an incoming packet of the given length is read
+     * into. The buffer's limit must be the length.
+     */
+    protected ByteBuffer allocateIncomingBuffer(int len) {
+        return ByteBuffer.allocate(len);
     }
 
     void readConnectResult() throws IOException {
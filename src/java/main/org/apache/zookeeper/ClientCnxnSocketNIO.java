@@ -35,6 +35,7 @@
 import org.apache.zookeeper.ClientCnxn.Packet;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.common.BufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -93,14 +94,12 @@ void doIO(List<Packet> pendingQueue, ClientCnxn cnxn)
                         // outgoing packets waiting in the outgoingQueue can now be sent.
                         enableWrite();
                     }
-                    lenBuffer.clear();
-                    incomingBuffer = lenBuffer;
+                    resetIncomingBuffer();
                     updateLastHeard();
                     initialized = true;
                 } else {
                     sendThread.readResponse(incomingBuffer);
-                    lenBuffer.clear();
-                    incomingBuffer = lenBuffer;
+                    resetIncomingBuffer();
                     updateLastHeard();
                 }
             }
@@ -232,6 +231,7 @@ void cleanup() {
             }
         }
         sockKey = null;
+        resetIncomingBuffer();
     }
  
     @Override
@@ -293,6 +293,24 @@ void connect(InetSocketAddress addr) throws IOException {
         /*
          * Reset incomingBuffer
          */
+        resetIncomingBuffer();
+    }
+
+    @Override
+    protected ByteBuffer allocateIncomingBuffer(int len) {
+        return BufferPool.HEAP.acquire(len);
+    }
+
+    /**
+     * Go back to reading the length of the next packet, giving the buffer
+     * the previous one was read into back to the buffer pool. Responses are
+     * fully deserialized before this is called, so nothing refers to the
+     * buffer any more.
+     */
+    private void resetIncomingBuffer() {
+        if (incomingBuffer != lenBuffer) {
+            BufferPool.HEAP.release(incomingBuffer);
+        }
         lenBuffer.clear();
         incomingBuffer = lenBuffer;
     }
@@ -84,6 +84,9 @@ public interface OpCode {
 
         public final int closeSession = -11;
 
+        /** Closes many sessions at once; only generated by the server */
+        public final int closeSessions = -12;
+
         public final int error = -1;
     }
 
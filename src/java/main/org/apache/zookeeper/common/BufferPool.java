@@ -0,0 +1,273 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte buffers shared by the client and server I/O paths, one for
+ * heap and one for direct buffers.
+ *
+ * Buffers come in power of two size classes from {@link #MIN_BUFFER_SIZE}
+ * up to {@link #MAX_BUFFER_SIZE}; larger requests are simply allocated.
+ * Each thread keeps a few free buffers of each class for itself, spilling
+ * over into a bounded pool shared by all threads, so buffers released by
+ * one thread are reused by others. A buffer that does not fit anywhere is
+ * left to the garbage collector, as is a buffer that is never released.
+ *
+ * {@link #acquire(int)} returns a cleared buffer whose limit is the requested
+ * size; its capacity may be larger. Only buffers acquired from a pool may be
+ * released to it, once, and must not be used afterwards. When
+ * {@link #TRACK_LEAKS} is set the pool remembers where each outstanding
+ * buffer was acquired, and rejects buffers released twice.
+ *
+ * The pool is disabled unless {@link #ENABLED} is set, in which case buffers
+ * are allocated with exactly the requested size.
+ */
+public class BufferPool {
+    /** Default: false */
+    public static final String ENABLED = "zookeeper.bufferPool.enabled";
+
+    /** Default: 1048576 */
+    public static final String MAX_BUFFER_SIZE = "zookeeper.bufferPool.maxBufferSize";
+
+    /** Default: false */
+    public static final String TRACK_LEAKS = "zookeeper.bufferPool.trackLeaks";
+
+    /** Size of the smallest size class */
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    private static final int MIN_SIZE_SHIFT = 8;
+
+    /** Free buffers of each class kept by a thread */
+    static final int THREAD_CACHE_SIZE = 8;
+
+    /** Bytes of free buffers of each class kept in the shared pool */
+    static final int SHARED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    public static final BufferPool HEAP = new BufferPool(false,
+            Boolean.getBoolean(ENABLED),
+            Integer.getInteger(MAX_BUFFER_SIZE, 1024 * 1024),
+            Boolean.getBoolean(TRACK_LEAKS));
+
+    public static final BufferPool DIRECT = new BufferPool(true,
+            Boolean.getBoolean(ENABLED),
+            Integer.getInteger(MAX_BUFFER_SIZE, 1024 * 1024),
+            Boolean.getBoolean(TRACK_LEAKS));
+
+    private final boolean direct;
+    private final boolean enabled;
+    private final int maxBufferSize;
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> shared;
+    private final AtomicInteger[] sharedCounts;
+    private final int[] sharedLimits;
+
+    private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> threadCaches =
+        new ThreadLocal<List<ArrayDeque<ByteBuffer>>>() {
+            @Override
+            protected List<ArrayDeque<ByteBuffer>> initialValue() {
+                List<ArrayDeque<ByteBuffer>> caches =
+                    new ArrayList<ArrayDeque<ByteBuffer>>(sharedLimits.length);
+                for (int i = 0; i < sharedLimits.length; i++) {
+                    caches.add(new ArrayDeque<ByteBuffer>(THREAD_CACHE_SIZE));
+                }
+                return caches;
+            }
+        };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    /** Where each outstanding buffer was acquired, when tracking leaks */
+    private final Map<ByteBuffer, Throwable> outstanding;
+
+    BufferPool(boolean direct, boolean enabled, int maxBufferSize,
+            boolean trackLeaks) {
+        this.direct = direct;
+        this.enabled = enabled;
+        this.maxBufferSize = Math.max(maxBufferSize, MIN_BUFFER_SIZE);
+        int classes = sizeClass(this.maxBufferSize);
+        if (classSize(classes) > this.maxBufferSize) {
+            classes--;
+        }
+        classes++;
+        shared = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(classes);
+        sharedCounts = new AtomicInteger[classes];
+        sharedLimits = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            shared.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            sharedCounts[i] = new AtomicInteger();
+            sharedLimits[i] = Math.max(4, SHARED_BYTES_PER_CLASS / classSize(i));
+        }
+        outstanding = trackLeaks
+            ? Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>())
+            : null;
+    }
+
+    static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    static int classSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_SHIFT);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Get a buffer of at least the given size.
+     *
+     * @return a cleared buffer whose limit is <code>size</code>
+     */
+    public ByteBuffer acquire(int size) {
+        if (!enabled) {
+            return allocate(size);
+        }
+        ByteBuffer bb = null;
+        int sizeClass = sizeClass(size);
+        if (sizeClass < sharedLimits.length) {
+            bb = threadCaches.get().get(sizeClass).pollLast();
+            if (bb == null) {
+                bb = shared.get(sizeClass).poll();
+                if (bb != null) {
+                    sharedCounts[sizeClass].decrementAndGet();
+                }
+            }
+            if (bb == null) {
+                bb = allocate(classSize(sizeClass));
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            bb.clear();
+            bb.limit(size);
+        } else {
+            bb = allocate(size);
+            misses.incrementAndGet();
+        }
+        outstandingBytes.addAndGet(bb.capacity());
+        if (outstanding != null) {
+            outstanding.put(bb, new Throwable("Buffer of " + size
+                    + " bytes acquired by " + Thread.currentThread().getName()));
+        }
+        return bb;
+    }
+
+    /**
+     * Give back a buffer obtained from {@link #acquire(int)}.
+     *
+     * @throws IllegalStateException when tracking leaks and the buffer is
+     * not outstanding
+     */
+    public void release(ByteBuffer bb) {
+        if (!enabled) {
+            return;
+        }
+        if (outstanding != null && outstanding.remove(bb) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+        }
+        int capacity = bb.capacity();
+        outstandingBytes.addAndGet(-capacity);
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= sharedLimits.length || classSize(sizeClass) != capacity) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> cache = threadCaches.get().get(sizeClass);
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.addLast(bb);
+        } else if (sharedCounts[sizeClass].incrementAndGet() <= sharedLimits[sizeClass]) {
+            shared.get(sizeClass).offer(bb);
+        } else {
+            sharedCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Account for a buffer obtained from {@link #acquire(int)} that may
+     * still be in use elsewhere, so it must not be reused. The buffer is
+     * left to the garbage collector.
+     */
+    public void discard(ByteBuffer bb) {
+        if (!enabled) {
+            return;
+        }
+        if (outstanding != null && outstanding.remove(bb) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+        }
+        outstandingBytes.addAndGet(-bb.capacity());
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * @return the number of buffers acquired that were reused
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of buffers acquired that had to be allocated
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the capacity of the buffers acquired and not released yet
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * @return where each buffer acquired and not released yet was acquired,
+     * empty unless tracking leaks
+     */
+    public List<Throwable> getLeaks() {
+        if (outstanding == null) {
+            return Collections.emptyList();
+        }
+        synchronized (outstanding) {
+            return new ArrayList<Throwable>(outstanding.values());
+        }
+    }
+}
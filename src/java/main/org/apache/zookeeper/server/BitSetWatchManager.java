@@ -0,0 +1,506 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.common.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch manager that keeps, for each path, the ids of its watchers in a
+ * {@link CompactIdSet} rather than a set of watcher references, and keeps no
+ * per-watcher set of paths at all. Every watcher is given a small integer id
+ * when it sets its first watch; ids are handed out lowest first, so when
+ * thousands of connections watch the same znode its watchers take a bit
+ * each.
+ *
+ * Without a per-watcher index, closing a connection cannot find its watches
+ * cheaply. Instead the watcher is marked dead, which immediately stops its
+ * watches from firing, and its ids are purged from all paths in the
+ * background: once {@link #CLEAN_THRESHOLD} watchers are dead, or
+ * {@link #CLEAN_INTERVAL} seconds after the first one died. The id is only
+ * reused after that. Until then the watches of dead watchers still count in
+ * {@link #size()}.
+ *
+ * Reports by connection walk every path and are expensive on large trees.
+ */
+public class BitSetWatchManager implements WatchManager {
+    private static final Logger LOG = LoggerFactory.getLogger(BitSetWatchManager.class);
+
+    /** Default: 1000 */
+    public static final String CLEAN_THRESHOLD = "zookeeper.watcherCleanThreshold";
+
+    /** Default: 600 */
+    public static final String CLEAN_INTERVAL = "zookeeper.watcherCleanIntervalInSeconds";
+
+    private static final ScheduledExecutorService cleaner =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "WatcherCleaner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final int cleanThreshold;
+    private final long cleanIntervalMs;
+
+    private final ConcurrentHashMap<String, PathWatchers> watchTable =
+        new ConcurrentHashMap<String, PathWatchers>();
+
+    private final WatcherIds ids = new WatcherIds();
+
+    /**
+     * Held shared while ids are looked up and used, and exclusively while
+     * marking a watcher dead and while freeing purged ids. No id is added to
+     * a path once the cleaner may have looked at it, and no id changes owner
+     * while it is in use.
+     */
+    private final ReentrantReadWriteLock idLock = new ReentrantReadWriteLock();
+
+    /** Watches on all paths, including those of dead watchers */
+    private final AtomicInteger watchCount = new AtomicInteger();
+
+    /** The pending cleanup, guarded by this */
+    private ScheduledFuture<?> cleanup;
+
+    /**
+     * The watchers of a path, guarded by its own monitor. A set that was
+     * removed from the table is never added to again.
+     */
+    private static class PathWatchers extends CompactIdSet {
+        boolean removed;
+    }
+
+    public BitSetWatchManager() {
+        this(Integer.getInteger(CLEAN_THRESHOLD, 1000),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger(CLEAN_INTERVAL, 600)));
+    }
+
+    BitSetWatchManager(int cleanThreshold, long cleanIntervalMs) {
+        this.cleanThreshold = cleanThreshold;
+        this.cleanIntervalMs = cleanIntervalMs;
+    }
+
+    @Override
+    public int size() {
+        return watchCount.get();
+    }
+
+    @Override
+    public void addWatch(String path, Watcher watcher) {
+        idLock.readLock().lock();
+        try {
+            int id = ids.idOf(watcher);
+            while (true) {
+                PathWatchers set = watchTable.get(path);
+                if (set == null) {
+                    set = new PathWatchers();
+                    PathWatchers existing = watchTable.putIfAbsent(path, set);
+                    if (existing != null) {
+                        set = existing;
+                    }
+                }
+                synchronized (set) {
+                    if (!set.removed) {
+                        if (set.add(id)) {
+                            watchCount.incrementAndGet();
+                        }
+                        return;
+                    }
+                }
+                // the set was triggered or emptied concurrently, retry
+                // with a new one
+            }
+        } finally {
+            idLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        int dead;
+        idLock.writeLock().lock();
+        try {
+            dead = ids.kill(watcher);
+        } finally {
+            idLock.writeLock().unlock();
+        }
+        if (dead > 0) {
+            scheduleCleanup(dead >= cleanThreshold);
+        }
+    }
+
+    private synchronized void scheduleCleanup(boolean now) {
+        if (cleanup != null) {
+            if (!now || cleanup.getDelay(TimeUnit.MILLISECONDS) <= 0
+                    || !cleanup.cancel(false)) {
+                return;
+            }
+        }
+        cleanup = cleaner.schedule(new Runnable() {
+            public void run() {
+                cleanDeadWatchers();
+            }
+        }, now ? 0 : cleanIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Purge the ids of the watchers that are dead so far from all paths and
+     * make them available again.
+     */
+    void cleanDeadWatchers() {
+        synchronized (this) {
+            cleanup = null;
+        }
+        BitSet dead = ids.deadIds();
+        if (dead.isEmpty()) {
+            return;
+        }
+        long start = Time.currentElapsedTime();
+        int removed = 0;
+        for (Entry<String, PathWatchers> e : watchTable.entrySet()) {
+            PathWatchers set = e.getValue();
+            synchronized (set) {
+                if (set.removed) {
+                    continue;
+                }
+                int n = set.removeAll(dead);
+                if (n > 0) {
+                    removed += n;
+                    if (set.isEmpty()) {
+                        set.removed = true;
+                        watchTable.remove(e.getKey(), set);
+                    }
+                }
+            }
+        }
+        watchCount.addAndGet(-removed);
+        int stillDead;
+        idLock.writeLock().lock();
+        try {
+            stillDead = ids.free(dead);
+        } finally {
+            idLock.writeLock().unlock();
+        }
+        LOG.info("Removed {} watches of {} dead watchers in {} ms",
+                removed, dead.cardinality(), Time.currentElapsedTime() - start);
+        if (stillDead > 0) {
+            scheduleCleanup(stillDead >= cleanThreshold);
+        }
+    }
+
+    @Override
+    public Set<Watcher> triggerWatch(String path, EventType type) {
+        return triggerWatch(path, type, null);
+    }
+
+    @Override
+    public Set<Watcher> triggerWatch(String path, EventType type, Set<Watcher> supress) {
+        WatchedEvent e = new NotificationEvent(type, path);
+        Set<Watcher> watchers = null;
+        idLock.readLock().lock();
+        try {
+            PathWatchers set = watchTable.remove(path);
+            if (set != null) {
+                int[] watcherIds;
+                synchronized (set) {
+                    set.removed = true;
+                    watcherIds = set.toArray();
+                }
+                watchCount.addAndGet(-watcherIds.length);
+                watchers = ids.watchersOf(watcherIds);
+            }
+        } finally {
+            idLock.readLock().unlock();
+        }
+        if (watchers == null || watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG,
+                        ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                        "No watchers for " + path);
+            }
+            return null;
+        }
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+        return watchers;
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher) {
+        idLock.readLock().lock();
+        try {
+            int id = ids.liveId(watcher);
+            PathWatchers set = watchTable.get(path);
+            if (id < 0 || set == null) {
+                return false;
+            }
+            synchronized (set) {
+                return !set.removed && set.contains(id);
+            }
+        } finally {
+            idLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher) {
+        idLock.readLock().lock();
+        try {
+            int id = ids.liveId(watcher);
+            PathWatchers set = watchTable.get(path);
+            if (id < 0 || set == null) {
+                return false;
+            }
+            synchronized (set) {
+                if (set.removed || !set.remove(id)) {
+                    return false;
+                }
+                watchCount.decrementAndGet();
+                if (set.isEmpty()) {
+                    set.removed = true;
+                    watchTable.remove(path, set);
+                }
+            }
+            return true;
+        } finally {
+            idLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Brief description of this object.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(ids.liveCount()).append(" connections watching ")
+            .append(watchTable.size()).append(" paths\n");
+        sb.append("Total watches:").append(watchCount.get());
+
+        return sb.toString();
+    }
+
+    @Override
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, Set<Watcher>> e : watchersByPath().entrySet()) {
+                pwriter.println(e.getKey());
+                for (Watcher w : e.getValue()) {
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            for (Entry<Watcher, Set<String>> e : pathsByWatcher().entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public WatchesReport getWatches() {
+        Map<Long, Set<String>> id2paths = new HashMap<Long, Set<String>>();
+        for (Entry<Watcher, Set<String>> e : pathsByWatcher().entrySet()) {
+            id2paths.put(((ServerCnxn) e.getKey()).getSessionId(), e.getValue());
+        }
+        return new WatchesReport(id2paths);
+    }
+
+    @Override
+    public WatchesPathReport getWatchesByPath() {
+        Map<String, Set<Long>> path2ids = new HashMap<String, Set<Long>>();
+        for (Entry<String, Set<Watcher>> e : watchersByPath().entrySet()) {
+            Set<Long> sessionIds = new HashSet<Long>(e.getValue().size());
+            for (Watcher watcher : e.getValue()) {
+                sessionIds.add(((ServerCnxn) watcher).getSessionId());
+            }
+            path2ids.put(e.getKey(), sessionIds);
+        }
+        return new WatchesPathReport(path2ids);
+    }
+
+    @Override
+    public WatchesSummary getWatchesSummary() {
+        return new WatchesSummary(ids.liveCount(), watchTable.size(),
+                                  watchCount.get());
+    }
+
+    /**
+     * The live watchers of each path that has any.
+     */
+    private Map<String, Set<Watcher>> watchersByPath() {
+        Map<String, Set<Watcher>> result = new HashMap<String, Set<Watcher>>();
+        for (Entry<String, PathWatchers> e : watchTable.entrySet()) {
+            int[] watcherIds;
+            Set<Watcher> watchers;
+            PathWatchers set = e.getValue();
+            idLock.readLock().lock();
+            try {
+                synchronized (set) {
+                    if (set.removed) {
+                        continue;
+                    }
+                    watcherIds = set.toArray();
+                }
+                watchers = ids.watchersOf(watcherIds);
+            } finally {
+                idLock.readLock().unlock();
+            }
+            if (!watchers.isEmpty()) {
+                result.put(e.getKey(), watchers);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The paths watched by each live watcher, built by walking every path.
+     */
+    private Map<Watcher, Set<String>> pathsByWatcher() {
+        Map<Watcher, Set<String>> result = new HashMap<Watcher, Set<String>>();
+        for (Entry<String, Set<Watcher>> e : watchersByPath().entrySet()) {
+            for (Watcher w : e.getValue()) {
+                Set<String> paths = result.get(w);
+                if (paths == null) {
+                    paths = new HashSet<String>();
+                    result.put(w, paths);
+                }
+                paths.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Assigns ids to watchers. An id is in use from the first watch of its
+     * watcher until the watcher is dead and the id has been purged from all
+     * paths.
+     */
+    private static class WatcherIds {
+        private final HashMap<Watcher, Integer> watcherIds =
+            new HashMap<Watcher, Integer>();
+        /** Live watcher of each id, null for free and dead ids */
+        private Watcher[] watchers = new Watcher[16];
+        private final BitSet used = new BitSet();
+        private final BitSet dead = new BitSet();
+        private int deadCount;
+
+        synchronized int idOf(Watcher watcher) {
+            Integer id = watcherIds.get(watcher);
+            if (id != null) {
+                return id;
+            }
+            int newId = used.nextClearBit(0);
+            used.set(newId);
+            if (newId >= watchers.length) {
+                watchers = Arrays.copyOf(watchers, watchers.length * 2);
+            }
+            watchers[newId] = watcher;
+            watcherIds.put(watcher, newId);
+            return newId;
+        }
+
+        /**
+         * @return the id of the watcher, or -1 if it has none or is dead
+         */
+        synchronized int liveId(Watcher watcher) {
+            Integer id = watcherIds.get(watcher);
+            return id == null ? -1 : id;
+        }
+
+        /**
+         * Mark the watcher dead.
+         *
+         * @return the number of dead watchers, or 0 if the watcher had no id
+         */
+        synchronized int kill(Watcher watcher) {
+            Integer id = watcherIds.remove(watcher);
+            if (id == null) {
+                return 0;
+            }
+            watchers[id] = null;
+            dead.set(id);
+            return ++deadCount;
+        }
+
+        synchronized BitSet deadIds() {
+            return (BitSet) dead.clone();
+        }
+
+        /**
+         * Make the given dead ids available again.
+         *
+         * @return the number of watchers still dead
+         */
+        synchronized int free(BitSet purged) {
+            dead.andNot(purged);
+            used.andNot(purged);
+            deadCount = dead.cardinality();
+            return deadCount;
+        }
+
+        synchronized Set<Watcher> watchersOf(int[] ids) {
+            Set<Watcher> result = new HashSet<Watcher>(ids.length * 4 / 3 + 1);
+            for (int id : ids) {
+                Watcher w = watchers[id];
+                if (w != null) {
+                    result.add(w);
+                }
+            }
+            return result;
+        }
+
+        synchronized int liveCount() {
+            return watcherIds.size();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+
+/**
+ * Writes records into a {@link ByteBuffer} in the same format as
+ * {@link BinaryOutputArchive}, without the stream, the data output and the
+ * string encoding buffer that archive goes through. Together with
+ * {@link #size(Record)}, which measures a record without serializing it,
+ * this lets a record be written into a buffer of exactly the right size.
+ */
+public class ByteBufferOutputArchive implements OutputArchive {
+    private final ByteBuffer bb;
+
+    public ByteBufferOutputArchive(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    /**
+     * @return the number of bytes the record takes when serialized
+     */
+    public static int size(Record r) throws IOException {
+        SizingArchive sizer = new SizingArchive();
+        r.serialize(sizer, "");
+        return sizer.size;
+    }
+
+    public void writeByte(byte b, String tag) {
+        bb.put(b);
+    }
+
+    public void writeBool(boolean b, String tag) {
+        bb.put(b ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeInt(int i, String tag) {
+        bb.putInt(i);
+    }
+
+    public void writeLong(long l, String tag) {
+        bb.putLong(l);
+    }
+
+    public void writeFloat(float f, String tag) {
+        bb.putFloat(f);
+    }
+
+    public void writeDouble(double d, String tag) {
+        bb.putDouble(d);
+    }
+
+    public void writeString(String s, String tag) {
+        if (s == null) {
+            bb.putInt(-1);
+            return;
+        }
+        int lenPosition = bb.position();
+        bb.putInt(0);
+        // same encoding as BinaryOutputArchive, which is not quite utf8 for
+        // surrogate pairs
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bb.put((byte) c);
+            } else if (c < 0x800) {
+                bb.put((byte) (0xc0 | (c >> 6)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                bb.put((byte) (0xe0 | (c >> 12)));
+                bb.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        bb.putInt(lenPosition, bb.position() - lenPosition - 4);
+    }
+
+    public void writeBuffer(byte barr[], String tag) {
+        if (barr == null) {
+            bb.putInt(-1);
+            return;
+        }
+        bb.putInt(barr.length);
+        bb.put(barr);
+    }
+
+    public void writeRecord(Record r, String tag) throws IOException {
+        r.serialize(this, tag);
+    }
+
+    public void startRecord(Record r, String tag) {}
+
+    public void endRecord(Record r, String tag) {}
+
+    public void startVector(List<?> v, String tag) {
+        bb.putInt(v == null ? -1 : v.size());
+    }
+
+    public void endVector(List<?> v, String tag) {}
+
+    public void startMap(TreeMap<?,?> v, String tag) {
+        bb.putInt(v.size());
+    }
+
+    public void endMap(TreeMap<?,?> v, String tag) {}
+
+    /**
+     * Adds up the size of what is written to it.
+     */
+    private static class SizingArchive implements OutputArchive {
+        int size;
+
+        public void writeByte(byte b, String tag) {
+            size += 1;
+        }
+
+        public void writeBool(boolean b, String tag) {
+            size += 1;
+        }
+
+        public void writeInt(int i, String tag) {
+            size += 4;
+        }
+
+        public void writeLong(long l, String tag) {
+            size += 8;
+        }
+
+        public void writeFloat(float f, String tag) {
+            size += 4;
+        }
+
+        public void writeDouble(double d, String tag) {
+            size += 8;
+        }
+
+        public void writeString(String s, String tag) {
+            size += 4;
+            if (s == null) {
+                return;
+            }
+            final int len = s.length();
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                size += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            }
+        }
+
+        public void writeBuffer(byte barr[], String tag) {
+            size += 4;
+            if (barr != null) {
+                size += barr.length;
+            }
+        }
+
+        public void writeRecord(Record r, String tag) throws IOException {
+            r.serialize(this, tag);
+        }
+
+        public void startRecord(Record r, String tag) {}
+
+        public void endRecord(Record r, String tag) {}
+
+        public void startVector(List<?> v, String tag) {
+            size += 4;
+        }
+
+        public void endVector(List<?> v, String tag) {}
+
+        public void startMap(TreeMap<?,?> v, String tag) {
+            size += 4;
+        }
+
+        public void endMap(TreeMap<?,?> v, String tag) {}
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The set of children of a {@link DataNode}.
+ *
+ * Most znodes have no or only a few children, so the names are kept in a
+ * plain array, which costs a fraction of a HashSet and its table and
+ * entries. Past {@link #MAX_ARRAY_SIZE} children the array is replaced by
+ * a HashSet, and once a large set shrinks to half of that it goes back to
+ * an array.
+ *
+ * Not thread safe, DataNode synchronizes access.
+ */
+final class ChildSet extends AbstractSet<String> {
+    static final int MAX_ARRAY_SIZE = 8;
+
+    /** The children while there are few of them, null otherwise */
+    private String[] array = new String[2];
+    private int size;
+    /** The children once there are too many for the array */
+    private HashSet<String> set;
+
+    @Override
+    public int size() {
+        return set != null ? set.size() : size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (set != null) {
+            return set.contains(o);
+        }
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean add(String child) {
+        if (set != null) {
+            return set.add(child);
+        }
+        if (indexOf(child) >= 0) {
+            return false;
+        }
+        if (size == MAX_ARRAY_SIZE) {
+            set = new HashSet<String>(MAX_ARRAY_SIZE * 4);
+            set.addAll(Arrays.asList(array).subList(0, size));
+            set.add(child);
+            array = null;
+            size = 0;
+            return true;
+        }
+        if (size == array.length) {
+            array = Arrays.copyOf(array, Math.min(size * 2, MAX_ARRAY_SIZE));
+        }
+        array[size++] = child;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (set != null) {
+            if (!set.remove(o)) {
+                return false;
+            }
+            if (set.size() <= MAX_ARRAY_SIZE / 2) {
+                array = set.toArray(new String[MAX_ARRAY_SIZE]);
+                size = set.size();
+                set = null;
+            }
+            return true;
+        }
+        int i = indexOf(o);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        set = null;
+        array = new String[2];
+        size = 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        if (set != null) {
+            return set.iterator();
+        }
+        return new Iterator<String>() {
+            private int next;
+            private boolean canRemove;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                canRemove = true;
+                return array[next++];
+            }
+
+            @Override
+            public void remove() {
+                if (!canRemove) {
+                    throw new IllegalStateException();
+                }
+                canRemove = false;
+                removeAt(--next);
+            }
+        };
+    }
+
+    private int indexOf(Object o) {
+        for (int i = 0; i < size; i++) {
+            if (array[i].equals(o)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int i) {
+        size--;
+        System.arraycopy(array, i + 1, array, i, size - i);
+        array[size] = null;
+    }
+}
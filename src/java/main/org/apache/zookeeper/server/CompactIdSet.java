@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A set of small non-negative integers that takes the less memory of a
+ * sorted array and a bitmap. A set starts as an array and switches to a
+ * {@link BitSet} once the bitmap covering its largest element is smaller
+ * than the array would be; it does not switch back. Meant for ids handed out
+ * lowest first, which keeps them dense.
+ *
+ * Not thread safe.
+ */
+class CompactIdSet {
+    private static final int[] EMPTY = new int[0];
+
+    /** Smallest set that may be turned into a bitmap */
+    static final int MIN_BITMAP_SIZE = 8;
+
+    /** Sorted elements while the set is an array, the first size are used */
+    private int[] ids = EMPTY;
+    /** The elements once the set is a bitmap */
+    private BitSet bits;
+    private int size;
+
+    boolean add(int id) {
+        if (bits != null) {
+            if (bits.get(id)) {
+                return false;
+            }
+            bits.set(id);
+            size++;
+            return true;
+        }
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 1;
+        if (size == ids.length) {
+            int max = Math.max(id, size > 0 ? ids[size - 1] : 0);
+            // a bitmap takes max / 8 bytes, the array 4 bytes an element;
+            // small sets stay arrays as the bitmap grows with later ids
+            if (size >= MIN_BITMAP_SIZE && (size + 1) * 32 >= max) {
+                bits = new BitSet(max + 1);
+                for (int j = 0; j < size; j++) {
+                    bits.set(ids[j]);
+                }
+                bits.set(id);
+                ids = EMPTY;
+                size++;
+                return true;
+            }
+            ids = Arrays.copyOf(ids, size < 2 ? 2 : size + (size >> 1));
+        }
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        ids[i] = id;
+        size++;
+        return true;
+    }
+
+    boolean remove(int id) {
+        if (bits != null) {
+            if (!bits.get(id)) {
+                return false;
+            }
+            bits.clear(id);
+            size--;
+            return true;
+        }
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        if (i < 0) {
+            return false;
+        }
+        System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * Remove all the elements that are set in the given bitmap.
+     *
+     * @return the number of elements removed
+     */
+    int removeAll(BitSet toRemove) {
+        int removed;
+        if (bits != null) {
+            int before = size;
+            bits.andNot(toRemove);
+            size = bits.cardinality();
+            removed = before - size;
+        } else {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!toRemove.get(ids[i])) {
+                    ids[kept++] = ids[i];
+                }
+            }
+            removed = size - kept;
+            size = kept;
+        }
+        return removed;
+    }
+
+    boolean contains(int id) {
+        if (bits != null) {
+            return bits.get(id);
+        }
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the elements in ascending order
+     */
+    int[] toArray() {
+        if (bits == null) {
+            return Arrays.copyOf(ids, size);
+        }
+        int[] result = new int[size];
+        int i = 0;
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /** Whether the elements are kept in a bitmap, for testing */
+    boolean isBitmap() {
+        return bits != null;
+    }
+}
@@ -37,13 +37,19 @@
  * 
  */
 public class DataNode implements Record {
-    /** the data for this datanode */
+    /** the data for this datanode, null if it is stored off heap */
     byte data[];
 
+    /**
+     * the handle of the data in the {@link OffHeapDataStore} of the
+     * datatree, 0 if the data is on the heap
+     */
+    long dataRef;
+
     /**
      * the acl map long for this datanode. the datatree has the map
      */
-    Long acl;
+    long acl;
 
     /**
      * the stat for this node that is persisted to disk.
@@ -54,6 +60,7 @@ public class DataNode implements Record {
      * the list of children for this node. note that the list of children string
      * does not contain the parent path -- just the last part of the path. This
      * should be synchronized on except deserializing (for speed up issues).
+     * A compact {@link ChildSet} unless set through setChildren.
      */
     private Set<String> children = null;
 
@@ -78,7 +85,7 @@ public class DataNode implements Record {
      * @param stat
      *            the stat for this node.
      */
-    public DataNode(byte data[], Long acl, StatPersisted stat) {
+    public DataNode(byte data[], long acl, StatPersisted stat) {
         this.data = data;
         this.acl = acl;
         this.stat = stat;
@@ -93,8 +100,7 @@ public DataNode(byte data[], Long acl, StatPersisted stat) {
      */
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<String>(8);
+            children = new ChildSet();
         }
         return children.add(child);
     }
@@ -136,8 +142,17 @@ public synchronized Set<String> getChildren() {
     }
 
     public synchronized long getApproximateDataSize() {
-        if(null==data) return 0;
-        return data.length;
+        return getDataLength();
+    }
+
+    /**
+     * @return the length of the data of this node, wherever it is stored
+     */
+    synchronized int getDataLength() {
+        if (dataRef != 0) {
+            return OffHeapDataStore.length(dataRef);
+        }
+        return data == null ? 0 : data.length;
     }
 
     synchronized public void copyStat(Stat to) {
@@ -149,7 +164,7 @@ synchronized public void copyStat(Stat to) {
         to.setPzxid(stat.getPzxid());
         to.setVersion(stat.getVersion());
         to.setEphemeralOwner(getClientEphemeralOwner(stat));
-        to.setDataLength(data == null ? 0 : data.length);
+        to.setDataLength(getDataLength());
         int numChildren = 0;
         if (this.children != null) {
             numChildren = children.size();
@@ -40,12 +40,14 @@
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.data.StatPersisted;
 import org.apache.zookeeper.txn.CheckVersionTxn;
+import org.apache.zookeeper.txn.CloseSessionsTxn;
 import org.apache.zookeeper.txn.CreateContainerTxn;
 import org.apache.zookeeper.txn.CreateTTLTxn;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.DeleteTxn;
 import org.apache.zookeeper.txn.ErrorTxn;
 import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SessionIdTxn;
 import org.apache.zookeeper.txn.SetACLTxn;
 import org.apache.zookeeper.txn.SetDataTxn;
 import org.apache.zookeeper.txn.Txn;
@@ -66,6 +68,7 @@
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class maintains the tree data structure. It doesn't have any networking
@@ -82,13 +85,18 @@ public class DataTree {
     /**
      * This hashtable provides a fast lookup to the datanodes. The tree is the
      * source of truth and is where all the locking occurs
+     *
+     * The path keys and the child names are not interned: every key is a
+     * distinct full path, and the child names that do repeat across parents
+     * are too few in most trees to pay for the entry an interner keeps per
+     * name. Sequential nodes, the bulk of many trees, never repeat.
      */
     private final ConcurrentHashMap<String, DataNode> nodes =
         new ConcurrentHashMap<String, DataNode>();
 
-    private final WatchManager dataWatches = new WatchManager();
+    private final WatchManager dataWatches = WatchManagerFactory.createWatchManager();
 
-    private final WatchManager childWatches = new WatchManager();
+    private final WatchManager childWatches = WatchManagerFactory.createWatchManager();
 
     /** the root of zookeeper tree */
     private static final String rootZookeeper = "/";
@@ -144,6 +152,29 @@ public class DataTree {
 
     private final ReferenceCountedACLCache aclCache = new ReferenceCountedACLCache();
 
+    /**
+     * Holds the data of nodes off heap, null if all data is on the heap.
+     * Data in the store is only read, replaced or released with the lock
+     * of its node held, see getNodeData and setNodeData.
+     */
+    private final OffHeapDataStore dataStore =
+        OffHeapDataStore.fromSystemProperties();
+
+    /**
+     * Hands out the stamps in subtreeStamps. It is shared by all trees so
+     * that a stamp never identifies more than one version of a subtree.
+     */
+    private static final AtomicLong subtreeStampCounter = new AtomicLong();
+
+    /**
+     * The stamp of the latest change to each subtree hanging off the root,
+     * keyed by the name of the subtree's top node. A subtree whose stamp did
+     * not change between two snapshots can be copied from the previous
+     * snapshot instead of being serialized again.
+     */
+    private final ConcurrentHashMap<String, Long> subtreeStamps =
+        new ConcurrentHashMap<String, Long>();
+
     @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
         HashSet<String> retv = ephemerals.get(sessionId);
@@ -251,6 +282,7 @@ public void addConfigNode() {
         }
 
         nodes.put(configZookeeper, new DataNode(new byte[0], -1L, new StatPersisted()));
+        markSubtreeModified(configZookeeper);
         try {
             // Reconfig node is access controlled by default (ZOOKEEPER-2014).
             setACL(configZookeeper, ZooDefs.Ids.READ_ACL_UNSAFE, -1);
@@ -319,10 +351,11 @@ public void updateCount(String lastPrefix, int diff) {
             return;
         }
         synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
+            updatedStat = new StatsTrack(new String(getNodeData(node)));
             updatedStat.setCount(updatedStat.getCount() + diff);
-            node.data = updatedStat.toString().getBytes();
+            setNodeData(node, updatedStat.toString().getBytes());
         }
+        markSubtreeModified(statNode);
         // now check if the counts match the quota
         String quotaNode = Quotas.quotaPath(lastPrefix);
         node = nodes.get(quotaNode);
@@ -333,7 +366,7 @@ public void updateCount(String lastPrefix, int diff) {
             return;
         }
         synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+            thisStats = new StatsTrack(new String(getNodeData(node)));
         }
         if (thisStats.getCount() > -1 && (thisStats.getCount() < updatedStat.getCount())) {
             LOG
@@ -364,10 +397,11 @@ public void updateBytes(String lastPrefix, long diff) {
         }
         StatsTrack updatedStat = null;
         synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
+            updatedStat = new StatsTrack(new String(getNodeData(node)));
             updatedStat.setBytes(updatedStat.getBytes() + diff);
-            node.data = updatedStat.toString().getBytes();
+            setNodeData(node, updatedStat.toString().getBytes());
         }
+        markSubtreeModified(statNode);
         // now check if the bytes match the quota
         String quotaNode = Quotas.quotaPath(lastPrefix);
         node = nodes.get(quotaNode);
@@ -379,7 +413,7 @@ public void updateBytes(String lastPrefix, long diff) {
         }
         StatsTrack thisStats = null;
         synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+            thisStats = new StatsTrack(new String(getNodeData(node)));
         }
         if (thisStats.getBytes() > -1 && (thisStats.getBytes() < updatedStat.getBytes())) {
             LOG
@@ -466,7 +500,8 @@ public void createNode(final String path, byte data[], List<ACL> acl,
             parent.stat.setCversion(parentCVersion);
             parent.stat.setPzxid(zxid);
             Long longval = aclCache.convertAcls(acl);
-            DataNode child = new DataNode(data, longval, stat);
+            DataNode child = new DataNode(null, longval, stat);
+            setNodeData(child, data);
             parent.addChild(childName);
             nodes.put(path, child);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
@@ -488,6 +523,7 @@ public void createNode(final String path, byte data[], List<ACL> acl,
             	child.copyStat(outputStat);
             }
         }
+        markSubtreeModified(path);
         // now check if its one of the zookeeper node child
         if (parentName.startsWith(quotaZookeeper)) {
             // now check if its the limit node
@@ -534,6 +570,13 @@ public void deleteNode(String path, long zxid)
         nodes.remove(path);
         synchronized (node) {
             aclCache.removeUsage(node.acl);
+            // whoever looked the node up before it was removed may still
+            // read its data
+            if (node.dataRef != 0) {
+                node.data = dataStore.read(node.dataRef);
+                dataStore.release(node.dataRef);
+                node.dataRef = 0;
+            }
         }
         DataNode parent = nodes.get(parentName);
         if (parent == null) {
@@ -557,6 +600,7 @@ public void deleteNode(String path, long zxid)
                 }
             }
         }
+        markSubtreeModified(path);
         if (parentName.startsWith(procZookeeper) && Quotas.limitNode.equals(childName)) {
             // delete the node in the trie.
             // we need to update the trie as well
@@ -570,7 +614,7 @@ public void deleteNode(String path, long zxid)
             updateCount(lastPrefix, -1);
             int bytes = 0;
             synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
+                bytes = -node.getDataLength();
             }
             updateBytes(lastPrefix, bytes);
         }
@@ -594,20 +638,21 @@ public Stat setData(String path, byte data[], int version, long zxid,
         if (n == null) {
             throw new KeeperException.NoNodeException();
         }
-        byte lastdata[] = null;
+        int lastLength;
         synchronized (n) {
-            lastdata = n.data;
-            n.data = data;
+            lastLength = n.getDataLength();
+            setNodeData(n, data);
             n.stat.setMtime(time);
             n.stat.setMzxid(zxid);
             n.stat.setVersion(version);
             n.copyStat(s);
         }
+        markSubtreeModified(path);
         // now update if the path is in a quota subtree.
         String lastPrefix = getMaxPrefixWithQuota(path);
         if(lastPrefix != null) {
           this.updateBytes(lastPrefix, (data == null ? 0 : data.length)
-              - (lastdata == null ? 0 : lastdata.length));
+              - lastLength);
         }
         dataWatches.triggerWatch(path, EventType.NodeDataChanged);
         return s;
@@ -644,10 +689,47 @@ public byte[] getData(String path, Stat stat, Watcher watcher)
             if (watcher != null) {
                 dataWatches.addWatch(path, watcher);
             }
-            return n.data;
+            return getNodeData(n);
         }
     }
 
+    /**
+     * @return the data of a node, the caller holds the lock of the node
+     */
+    private byte[] getNodeData(DataNode n) {
+        if (n.dataRef != 0) {
+            return dataStore.read(n.dataRef);
+        }
+        return n.data;
+    }
+
+    /**
+     * Replace the data of a node, moving it off heap if the store takes it.
+     * The caller holds the lock of the node, or the node is not in the
+     * tree yet.
+     */
+    private void setNodeData(DataNode n, byte[] data) {
+        if (n.dataRef != 0) {
+            dataStore.release(n.dataRef);
+            n.dataRef = 0;
+        }
+        n.data = data;
+        if (dataStore != null) {
+            long ref = dataStore.store(data);
+            if (ref != 0) {
+                n.dataRef = ref;
+                n.data = null;
+            }
+        }
+    }
+
+    /**
+     * @return the off heap store of node data, null if data is on the heap
+     */
+    public OffHeapDataStore getDataStore() {
+        return dataStore;
+    }
+
     public Stat statNode(String path, Watcher watcher)
             throws KeeperException.NoNodeException {
         Stat stat = new Stat();
@@ -695,8 +777,9 @@ public Stat setACL(String path, List<ACL> acl, int version)
             n.stat.setAversion(version);
             n.acl = aclCache.convertAcls(acl);
             n.copyStat(stat);
-            return stat;
         }
+        markSubtreeModified(path);
+        return stat;
     }
 
     public List<ACL> getACL(String path, Stat stat)
@@ -853,6 +936,11 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn)
                 case OpCode.closeSession:
                     killSession(header.getClientId(), header.getZxid());
                     break;
+                case OpCode.closeSessions:
+                    for (SessionIdTxn s : ((CloseSessionsTxn) txn).getSessions()) {
+                        killSession(s.getSessionId(), header.getZxid());
+                    }
+                    break;
                 case OpCode.error:
                     ErrorTxn errTxn = (ErrorTxn) txn;
                     rc.err = errTxn.getErr();
@@ -1048,7 +1136,7 @@ private void getCounts(String path, Counts counts) {
         synchronized (node) {
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -1078,8 +1166,9 @@ private void updateQuotaForPath(String path) {
             return;
         }
         synchronized (node) {
-            node.data = strack.toString().getBytes();
+            setNodeData(node, strack.toString().getBytes());
         }
+        markSubtreeModified(statPath);
     }
 
     /**
@@ -1139,10 +1228,32 @@ private void setupQuota() {
      * @throws InterruptedException
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
-        String pathString = path.toString();
+        String children[] = serializeNodeOnly(oa, path.toString());
+        if (children == null) {
+            return;
+        }
+        path.append('/');
+        int off = path.length();
+        for (String child : children) {
+            // since this is single buffer being resused
+            // we need
+            // to truncate the previous bytes of string.
+            path.delete(off, Integer.MAX_VALUE);
+            path.append(child);
+            serializeNode(oa, path);
+        }
+    }
+
+    /**
+     * Serialize a single node, but not its children.
+     * @return the names of the children of the node, or null if there is
+     *         no node at the path
+     */
+    String[] serializeNodeOnly(OutputArchive oa, String pathString)
+            throws IOException {
         DataNode node = getNode(pathString);
         if (node == null) {
-            return;
+            return null;
         }
         String children[] = null;
         DataNode nodeCopy;
@@ -1151,27 +1262,20 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             copyStatPersisted(node.stat, statCopy);
             //we do not need to make a copy of node.data because the contents
             //are never changed
-            nodeCopy = new DataNode(node.data, node.acl, statCopy);
+            nodeCopy = new DataNode(getNodeData(node), node.acl, statCopy);
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
         }
         oa.writeString(pathString, "path");
         oa.writeRecord(nodeCopy, "node");
-        path.append('/');
-        int off = path.length();
-        for (String child : children) {
-            // since this is single buffer being resused
-            // we need
-            // to truncate the previous bytes of string.
-            path.delete(off, Integer.MAX_VALUE);
-            path.append(child);
-            serializeNode(oa, path);
-        }
+        return children;
     }
 
-    public void serialize(OutputArchive oa, String tag) throws IOException {
+    void serializeAcls(OutputArchive oa) throws IOException {
         aclCache.serialize(oa);
-        serializeNode(oa, new StringBuilder(""));
+    }
+
+    void serializeEndMarker(OutputArchive oa) throws IOException {
         // / marks end of stream
         // we need to check if clear had been called in between the snapshot.
         if (root != null) {
@@ -1179,45 +1283,30 @@ public void serialize(OutputArchive oa, String tag) throws IOException {
         }
     }
 
+    public void serialize(OutputArchive oa, String tag) throws IOException {
+        serializeAcls(oa);
+        serializeNode(oa, new StringBuilder(""));
+        serializeEndMarker(oa);
+    }
+
     public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.deserialize(ia);
         nodes.clear();
         pTrie.clear();
-        String path = ia.readString("path");
-        while (!"/".equals(path)) {
-            DataNode node = new DataNode();
-            ia.readRecord(node, "node");
-            nodes.put(path, node);
-            synchronized (node) {
-                aclCache.addUsage(node.acl);
-            }
-            int lastSlash = path.lastIndexOf('/');
-            if (lastSlash == -1) {
-                root = node;
-            } else {
-                String parentPath = path.substring(0, lastSlash);
-                DataNode parent = nodes.get(parentPath);
-                if (parent == null) {
-                    throw new IOException("Invalid Datatree, unable to find " +
-                            "parent " + parentPath + " of path " + path);
-                }
-                parent.addChild(path.substring(lastSlash + 1));
-                long eowner = node.stat.getEphemeralOwner();
-                EphemeralType ephemeralType = EphemeralType.get(eowner);
-                if (ephemeralType == EphemeralType.CONTAINER) {
-                    containers.add(path);
-                } else if (ephemeralType == EphemeralType.TTL) {
-                    ttls.add(path);
-                } else if (eowner != 0) {
-                    HashSet<String> list = ephemerals.get(eowner);
-                    if (list == null) {
-                        list = new HashSet<String>();
-                        ephemerals.put(eowner, list);
-                    }
-                    list.add(path);
-                }
+        subtreeStamps.clear();
+        if (dataStore != null) {
+            dataStore.clear();
+        }
+        if (SnapshotDeserializer.isPipelined()) {
+            SnapshotDeserializer.deserializeNodes(this, ia);
+        } else {
+            String path = ia.readString("path");
+            while (!"/".equals(path)) {
+                DataNode node = new DataNode();
+                ia.readRecord(node, "node");
+                addDeserializedNode(path, node);
+                path = ia.readString("path");
             }
-            path = ia.readString("path");
         }
         nodes.put("/", root);
         // we are done with deserializing the
@@ -1229,6 +1318,47 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.purgeUnused();
     }
 
+    /**
+     * Link a node read from a snapshot into the tree. Nodes are added in
+     * the order they appear in the snapshot, so the parent of a node is
+     * always added before the node itself.
+     */
+    void addDeserializedNode(String path, DataNode node) throws IOException {
+        if (dataStore != null) {
+            setNodeData(node, node.data);
+        }
+        nodes.put(path, node);
+        synchronized (node) {
+            aclCache.addUsage(node.acl);
+        }
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1) {
+            root = node;
+        } else {
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException("Invalid Datatree, unable to find " +
+                        "parent " + parentPath + " of path " + path);
+            }
+            parent.addChild(path.substring(lastSlash + 1));
+            long eowner = node.stat.getEphemeralOwner();
+            EphemeralType ephemeralType = EphemeralType.get(eowner);
+            if (ephemeralType == EphemeralType.CONTAINER) {
+                containers.add(path);
+            } else if (ephemeralType == EphemeralType.TTL) {
+                ttls.add(path);
+            } else if (eowner != 0) {
+                HashSet<String> list = ephemerals.get(eowner);
+                if (list == null) {
+                    list = new HashSet<String>();
+                    ephemerals.put(eowner, list);
+                }
+                list.add(path);
+            }
+        }
+    }
+
     /**
      * Summary of the watches on the datatree.
      * @param pwriter the output to write to
@@ -1390,6 +1520,7 @@ public void setCversionPzxid(String path, int newCversion, long zxid)
                 node.stat.setPzxid(zxid);
             }
         }
+        markSubtreeModified(path);
     }
 
     public boolean containsWatcher(String path, WatcherType type, Watcher watcher) {
@@ -1434,6 +1565,48 @@ public boolean removeWatch(String path, WatcherType type, Watcher watcher) {
         return removed;
     }
 
+    /**
+     * Record that the subtree holding the given path has changed. Must be
+     * called once the change is complete: a snapshot that read the stamp
+     * after this call is guaranteed to have seen the change.
+     */
+    private void markSubtreeModified(String path) {
+        String name = topLevelName(path);
+        if (name != null) {
+            subtreeStamps.put(name, subtreeStampCounter.incrementAndGet());
+        }
+    }
+
+    /**
+     * Get the stamp of the latest change to the subtree hanging off the root
+     * at the given child. Two calls return the same stamp only if the subtree
+     * was not modified in between.
+     * @param name name of a child of the root
+     */
+    long getSubtreeStamp(String name) {
+        Long stamp = subtreeStamps.get(name);
+        if (stamp == null) {
+            long newStamp = subtreeStampCounter.incrementAndGet();
+            stamp = subtreeStamps.putIfAbsent(name, newStamp);
+            if (stamp == null) {
+                return newStamp;
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * @return the name of the child of the root on the way to the path, or
+     *         null for the root itself
+     */
+    static String topLevelName(String path) {
+        if (path.length() < 2) {
+            return null;
+        }
+        int slash = path.indexOf('/', 1);
+        return slash == -1 ? path.substring(1) : path.substring(1, slash);
+    }
+
     // visible for testing
     public ReferenceCountedACLCache getReferenceCountedAclCache() {
         return aclCache;
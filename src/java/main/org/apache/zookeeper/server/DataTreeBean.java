@@ -46,6 +46,21 @@ public int getWatchCount() {
         return dataTree.getWatchCount();
     }
 
+    public long getOffHeapDataSize() {
+        OffHeapDataStore store = dataTree.getDataStore();
+        return store == null ? 0 : store.getDataBytes();
+    }
+
+    public long getOffHeapAllocatedSize() {
+        OffHeapDataStore store = dataTree.getDataStore();
+        return store == null ? 0 : store.getAllocatedBytes();
+    }
+
+    public long getOffHeapCapacity() {
+        OffHeapDataStore store = dataTree.getDataStore();
+        return store == null ? 0 : store.getCapacityBytes();
+    }
+
     public String getName() {
         return "InMemoryDataTree";
     }
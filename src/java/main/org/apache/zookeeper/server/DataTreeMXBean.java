@@ -44,4 +44,16 @@ public interface DataTreeMXBean {
      * @return number of ephemeral nodes in the data tree
      */
     public int countEphemerals();
+    /**
+     * @return bytes of znode data stored off heap
+     */
+    public long getOffHeapDataSize();
+    /**
+     * @return bytes of the off heap chunks holding znode data
+     */
+    public long getOffHeapAllocatedSize();
+    /**
+     * @return bytes of off heap memory taken for znode data
+     */
+    public long getOffHeapCapacity();
 }
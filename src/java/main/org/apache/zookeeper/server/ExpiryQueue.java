@@ -34,7 +34,7 @@
  * It's used by SessionTrackerImpl to expire sessions and NIOServerCnxnFactory
  * to expire connections.
  */
-public class ExpiryQueue<E> {
+public class ExpiryQueue<E> implements ExpiryTracker<E> {
     private final ConcurrentHashMap<E, Long> elemMap =
         new ConcurrentHashMap<E, Long>();
     /**
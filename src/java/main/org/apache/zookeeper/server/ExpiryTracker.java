@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks elements that expire unless they are updated in time. Expiration
+ * times are rounded up to a fixed interval, so elements expire in batches.
+ * Used by SessionTrackerImpl to expire sessions and NIOServerCnxnFactory to
+ * expire connections.
+ *
+ * @see ExpiryQueue
+ * @see TimerWheelExpiryQueue
+ */
+public interface ExpiryTracker<E> {
+    /**
+     * Removes element from the queue.
+     * @param elem  element to remove
+     * @return      time at which the element was set to expire, or null if
+     *              it wasn't present
+     */
+    public Long remove(E elem);
+
+    /**
+     * Adds or updates expiration time for element in queue, rounding the
+     * timeout to the expiry interval bucketed used by this queue.
+     * @param elem     element to add/update
+     * @param timeout  timout in milliseconds
+     * @return         time at which the element is now set to expire if
+     *                 changed, or null if unchanged
+     */
+    public Long update(E elem, int timeout);
+
+    /**
+     * @return milliseconds until next expiration time, or 0 if has already past
+     */
+    public long getWaitTime();
+
+    /**
+     * Remove the next expired set of elements. This method needs to be called
+     * frequently enough by checking getWaitTime().
+     *
+     * @return next set of expired elements, or an empty set if none are
+     *         ready
+     */
+    public Set<E> poll();
+
+    public void dump(PrintWriter pwriter);
+
+    /**
+     * Returns an unmodifiable view of the expiration time -> elements mapping.
+     */
+    public Map<Long, Set<E>> getExpiryMap();
+}
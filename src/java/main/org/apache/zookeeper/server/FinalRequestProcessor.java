@@ -58,7 +58,9 @@
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
 import org.apache.zookeeper.server.quorum.QuorumZooKeeperServer;
+import org.apache.zookeeper.txn.CloseSessionsTxn;
 import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.SessionIdTxn;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,6 +89,16 @@ public FinalRequestProcessor(ZooKeeperServer zks) {
     }
 
     public void processRequest(Request request) {
+        request.finalStartTime = System.nanoTime();
+        try {
+            applyAndRespond(request);
+        } finally {
+            zks.serverStats().getRequestStages().record(request,
+                    System.nanoTime());
+        }
+    }
+
+    private void applyAndRespond(Request request) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("Processing request:: " + request);
         }
@@ -143,6 +155,16 @@ public void processRequest(Request request) {
             }
         }
 
+        if (request.type == OpCode.closeSessions
+                && request.getTxn() instanceof CloseSessionsTxn) {
+            for (SessionIdTxn s
+                    : ((CloseSessionsTxn) request.getTxn()).getSessions()) {
+                if (!closeSession(zks.serverCnxnFactory, s.getSessionId())) {
+                    closeSession(zks.secureServerCnxnFactory, s.getSessionId());
+                }
+            }
+        }
+
         if (request.cnxn == null) {
             return;
         }
@@ -187,6 +209,7 @@ public void processRequest(Request request) {
 
                 cnxn.sendResponse(new ReplyHeader(-2,
                         zks.getZKDatabase().getDataTreeLastProcessedZxid(), 0), null, "response");
+                cnxn.decInProcess();
                 return;
             }
             case OpCode.createSession: {
@@ -197,6 +220,7 @@ public void processRequest(Request request) {
                         request.createTime, Time.currentElapsedTime());
 
                 zks.finishSessionInit(request.cnxn, true);
+                cnxn.decInProcess();
                 return;
             }
             case OpCode.multi: {
@@ -430,6 +454,7 @@ public void processRequest(Request request) {
             // the client and leader disagree on where the client is most
             // recently attached (and therefore invalid SESSION MOVED generated)
             cnxn.sendCloseSession();
+            cnxn.decInProcess();
             return;
         } catch (KeeperException e) {
             err = e.code();
@@ -462,6 +487,10 @@ public void processRequest(Request request) {
             }
         } catch (IOException e) {
             LOG.error("FIXMSG",e);
+        } finally {
+            // only once the response is queued, so that a read answered
+            // right away on receipt cannot overtake it
+            cnxn.decInProcess();
         }
     }
 
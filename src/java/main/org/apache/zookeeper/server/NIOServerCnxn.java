@@ -19,7 +19,6 @@
 package org.apache.zookeeper.server;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -30,19 +29,21 @@
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.common.BufferPool;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.NIOServerCnxnFactory.SelectorThread;
 import org.apache.zookeeper.server.command.CommandExecutor;
 import org.apache.zookeeper.server.command.FourLetterCommands;
@@ -75,6 +76,22 @@ public class NIOServerCnxn extends ServerCnxn {
     private final Queue<ByteBuffer> outgoingBuffers =
         new LinkedBlockingQueue<ByteBuffer>();
 
+    /**
+     * Whether write interest was last computed as set, or was requested
+     * since. Guarded by outgoingBuffers.
+     */
+    private boolean writeInterest;
+
+    /**
+     * The queued outgoing buffers that were acquired from the buffer pool,
+     * to be given back once sent.
+     */
+    private final Set<ByteBuffer> pooledBuffers = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+
+    /** Set once close() gave up the pooled buffers. Guarded by pooledBuffers. */
+    private boolean pooledBuffersClosed;
+
     private int sessionTimeout;
 
     private final ZooKeeperServer zkServer;
@@ -150,14 +167,27 @@ void sendBufferSync(ByteBuffer bb) {
     /**
      * sendBuffer pushes a byte buffer onto the outgoing buffer queue for
      * asynchronous writes.
+     *
+     * Only a buffer queued while write interest is not set asks the
+     * selector for it. Otherwise write interest is either already set,
+     * requested, or recomputed at the end of the I/O in progress, so the
+     * buffers queued meanwhile go out together in the next write without
+     * waking up the selector again.
      */
     public void sendBuffer(ByteBuffer bb) {
         if (LOG.isTraceEnabled()) {
             LOG.trace("Add a buffer to outgoingBuffers, sk " + sk
                       + " is valid: " + sk.isValid());
         }
-        outgoingBuffers.add(bb);
-        requestInterestOpsUpdate();
+        boolean update;
+        synchronized (outgoingBuffers) {
+            outgoingBuffers.add(bb);
+            update = !writeInterest;
+            writeInterest = true;
+        }
+        if (update) {
+            requestInterestOpsUpdate();
+        }
     }
 
     /** Read the request payload (everything following the length prefix) */
@@ -240,6 +270,7 @@ void handleWrite(SelectionKey k) throws IOException, CloseRequestException {
                 }
                 packetSent();
                 outgoingBuffers.remove();
+                releaseBuffer(bb);
             }
          } else {
             directBuffer.clear();
@@ -295,10 +326,21 @@ void handleWrite(SelectionKey k) throws IOException, CloseRequestException {
                 /* We've sent the whole buffer, so drop the buffer */
                 sent -= bb.remaining();
                 outgoingBuffers.remove();
+                releaseBuffer(bb);
             }
         }
     }
 
+    /**
+     * Give a buffer that has been sent back to the buffer pool, if it came
+     * from there.
+     */
+    private void releaseBuffer(ByteBuffer bb) {
+        if (BufferPool.HEAP.isEnabled() && pooledBuffers.remove(bb)) {
+            BufferPool.HEAP.release(bb);
+        }
+    }
+
     /**
      * Only used in order to allow testing
      */
@@ -398,7 +440,10 @@ protected void incrOutstandingRequests(RequestHeader h) {
     // returns whether we are interested in writing, which is determined
     // by whether we have any pending buffers on the output queue or not
     private boolean getWriteInterest() {
-        return !outgoingBuffers.isEmpty();
+        synchronized (outgoingBuffers) {
+            writeInterest = !outgoingBuffers.isEmpty();
+            return writeInterest;
+        }
     }
 
     // returns whether we are interested in taking new requests, which is
@@ -614,6 +659,16 @@ public void close() {
         }
 
         closeSock();
+
+        // a write may still be in progress, so the buffers left unsent are
+        // not reused
+        synchronized (pooledBuffers) {
+            pooledBuffersClosed = true;
+            for (ByteBuffer bb : pooledBuffers) {
+                BufferPool.HEAP.discard(bb);
+            }
+            pooledBuffers.clear();
+        }
     }
 
     /**
@@ -678,8 +733,6 @@ public static void closeSock(SocketChannel sock) {
         }
     }
 
-    private final static byte fourBytes[] = new byte[4];
-
     /*
      * (non-Javadoc)
      *
@@ -689,22 +742,21 @@ public static void closeSock(SocketChannel sock) {
     @Override
     public void sendResponse(ReplyHeader h, Record r, String tag) {
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            // Make space for length
-            BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-            try {
-                baos.write(fourBytes);
-                bos.writeRecord(h, "header");
-                if (r != null) {
-                    bos.writeRecord(r, tag);
+            ByteBuffer bb;
+            if (BufferPool.HEAP.isEnabled()) {
+                bb = serializeResponse(h, r, tag, BufferPool.HEAP);
+                synchronized (pooledBuffers) {
+                    if (pooledBuffersClosed) {
+                        // the connection is closed, so the response is
+                        // never sent
+                        BufferPool.HEAP.release(bb);
+                        return;
+                    }
+                    pooledBuffers.add(bb);
                 }
-                baos.close();
-            } catch (IOException e) {
-                LOG.error("Error serializing response");
+            } else {
+                bb = serializeResponse(h, r, tag);
             }
-            byte b[] = baos.toByteArray();
-            ByteBuffer bb = ByteBuffer.wrap(b);
-            bb.putInt(b.length - 4).rewind();
             sendBuffer(bb);
             if (h.getXid() > 0) {
                 // check throttling
@@ -725,7 +777,6 @@ public void sendResponse(ReplyHeader h, Record r, String tag) {
      */
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(-1, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
                                      "Deliver event " + event + " to 0x"
@@ -733,10 +784,7 @@ public void process(WatchedEvent event) {
                                      + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
-
-        sendResponse(h, e, "notification");
+        sendBuffer(getNotificationBuffer(event));
     }
 
     /*
@@ -85,6 +85,9 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     /** Default worker pool shutdown timeout in ms: 5000 (5s) */
     public static final String ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT =
         "zookeeper.nio.shutdownTimeout";
+    /** Default: false */
+    public static final String ZOOKEEPER_NIO_CNXN_EXPIRY_TIMER_WHEEL =
+        "zookeeper.nio.cnxnExpiryTimerWheel";
 
     static {
         Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
@@ -614,7 +617,7 @@ public static ByteBuffer getDirectBuffer() {
     protected int maxClientCnxns = 60;
 
     int sessionlessCnxnTimeout;
-    private ExpiryQueue<NIOServerCnxn> cnxnExpiryQueue;
+    private ExpiryTracker<NIOServerCnxn> cnxnExpiryQueue;
 
 
     protected WorkerService workerPool;
@@ -652,8 +655,13 @@ public void configure(InetSocketAddress addr, int maxcc, boolean secure) throws
         // cnxnExpiryQueue. These don't need to be the same, but the expiring
         // interval passed into the ExpiryQueue() constructor below should be
         // less than or equal to the timeout.
-        cnxnExpiryQueue =
-            new ExpiryQueue<NIOServerCnxn>(sessionlessCnxnTimeout);
+        if (Boolean.getBoolean(ZOOKEEPER_NIO_CNXN_EXPIRY_TIMER_WHEEL)) {
+            cnxnExpiryQueue =
+                new TimerWheelExpiryQueue<NIOServerCnxn>(sessionlessCnxnTimeout);
+        } else {
+            cnxnExpiryQueue =
+                new ExpiryQueue<NIOServerCnxn>(sessionlessCnxnTimeout);
+        }
         expirerThread = new ConnectionExpirerThread();
 
         int numCores = Runtime.getRuntime().availableProcessors();
@@ -21,7 +21,6 @@
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -34,11 +33,10 @@
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.common.BufferPool;
 import org.apache.zookeeper.proto.ReplyHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.command.CommandExecutor;
 import org.apache.zookeeper.server.command.FourLetterCommands;
 import org.apache.zookeeper.server.command.NopCommand;
@@ -47,6 +45,7 @@
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.MessageEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -131,7 +130,6 @@ public int getSessionTimeout() {
 
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(-1, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
                                      "Deliver event " + event + " to 0x"
@@ -139,20 +137,11 @@ public void process(WatchedEvent event) {
                                      + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
-
-        try {
-            sendResponse(h, e, "notification");
-        } catch (IOException e1) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Problem sending to " + getRemoteSocketAddress(), e1);
-            }
-            close();
+        if (channel.isOpen()) {
+            sendBuffer(getNotificationBuffer(event));
         }
     }
 
-    private static final byte[] fourBytes = new byte[4];
     static class ResumeMessageEvent implements MessageEvent {
         Channel channel;
         ResumeMessageEvent(Channel channel) {
@@ -174,23 +163,22 @@ public void sendResponse(ReplyHeader h, Record r, String tag)
         if (!channel.isOpen()) {
             return;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        // Make space for length
-        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-        try {
-            baos.write(fourBytes);
-            bos.writeRecord(h, "header");
-            if (r != null) {
-                bos.writeRecord(r, tag);
-            }
-            baos.close();
-        } catch (IOException e) {
-            LOG.error("Error serializing response");
+        if (BufferPool.DIRECT.isEnabled()) {
+            final ByteBuffer bb =
+                serializeResponse(h, r, tag, BufferPool.DIRECT);
+            // the buffer is written straight to the socket and given back
+            // once the write is done, whether or not it succeeded
+            channel.write(wrappedBuffer(bb)).addListener(
+                    new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) {
+                            BufferPool.DIRECT.release(bb);
+                        }
+                    });
+            packetSent();
+        } else {
+            sendBuffer(serializeResponse(h, r, tag));
         }
-        byte b[] = baos.toByteArray();
-        ByteBuffer bb = ByteBuffer.wrap(b);
-        bb.putInt(b.length - 4).rewind();
-        sendBuffer(bb);
         if (h.getXid() > 0) {
             // zks cannot be null otherwise we would not have gotten here!
             if (!zkServer.shouldThrottle(outstandingCount.decrementAndGet())) {
@@ -347,26 +335,10 @@ public void receiveMessage(ChannelBuffer message) {
                                         ChannelBuffers.copiedBuffer(dat)));
                     }
                     if (bb.remaining() == 0) {
-                        packetReceived();
                         bb.flip();
-
-                        ZooKeeperServer zks = this.zkServer;
-                        if (zks == null || !zks.isRunning()) {
-                            throw new IOException("ZK down");
-                        }
-                        if (initialized) {
-                            zks.processPacket(this, bb);
-
-                            if (zks.shouldThrottle(outstandingCount.incrementAndGet())) {
-                                disableRecvNoWait();
-                            }
-                        } else {
-                            LOG.debug("got conn req request from "
-                                    + getRemoteSocketAddress());
-                            zks.processConnectRequest(this, bb);
-                            initialized = true;
-                        }
+                        ByteBuffer packet = bb;
                         bb = null;
+                        receivePacket(packet);
                     }
                 } else {
                     if (LOG.isTraceEnabled()) {
@@ -410,7 +382,14 @@ public void receiveMessage(ChannelBuffer message) {
                         if (len < 0 || len > BinaryInputArchive.maxBuffer) {
                             throw new IOException("Len error " + len);
                         }
-                        bb = ByteBuffer.allocate(len);
+                        if (canReceiveInPlace(message, len)) {
+                            ByteBuffer packet = message.toByteBuffer(
+                                    message.readerIndex(), len).slice();
+                            message.skipBytes(len);
+                            receivePacket(packet);
+                        } else {
+                            bb = ByteBuffer.allocate(len);
+                        }
                     }
                 }
             }
@@ -420,6 +399,45 @@ public void receiveMessage(ChannelBuffer message) {
         }
     }
 
+    /**
+     * Whether a packet of the given length can be handed over as a view of
+     * the message it was received in rather than copied out.
+     *
+     * Netty allocates a new buffer, sized to the bytes read, for every
+     * message it passes up and never writes to it again, nor do we write
+     * over the bytes already read from a queued buffer. So once a whole
+     * packet has arrived its request can refer to the array backing the
+     * message, which it keeps alive along with the other packets that
+     * arrived in the same read.
+     */
+    private static boolean canReceiveInPlace(ChannelBuffer message, int len) {
+        return message.hasArray() && message.readableBytes() >= len;
+    }
+
+    /**
+     * Process a complete packet, the length prefix excluded.
+     */
+    private void receivePacket(ByteBuffer packet) throws IOException {
+        packetReceived();
+
+        ZooKeeperServer zks = this.zkServer;
+        if (zks == null || !zks.isRunning()) {
+            throw new IOException("ZK down");
+        }
+        if (initialized) {
+            zks.processPacket(this, packet);
+
+            if (zks.shouldThrottle(outstandingCount.incrementAndGet())) {
+                disableRecvNoWait();
+            }
+        } else {
+            LOG.debug("got conn req request from "
+                    + getRemoteSocketAddress());
+            zks.processConnectRequest(this, packet);
+            initialized = true;
+        }
+    }
+
     @Override
     public void disableRecv() {
         disableRecvNoWait().awaitUninterruptibly();
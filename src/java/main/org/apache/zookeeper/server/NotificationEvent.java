@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+/**
+ * A watch event fired by a {@link WatchManager}. A trigger delivers the same
+ * event to every watcher of the path, so the notification packet is
+ * serialized once, by the first connection to send it, and the bytes are
+ * shared by all the others.
+ */
+class NotificationEvent extends WatchedEvent {
+    private volatile ByteBuffer packet;
+
+    NotificationEvent(EventType eventType, String path) {
+        super(eventType, KeeperState.SyncConnected, path);
+    }
+
+    /**
+     * @return a new buffer over the shared, length prefixed notification
+     * packet; its content must not be modified
+     */
+    ByteBuffer getPacket() {
+        ByteBuffer p = packet;
+        if (p == null) {
+            // racing threads serialize the same bytes, any copy will do
+            p = ServerCnxn.serializeNotification(this);
+            packet = p;
+        }
+        return p.duplicate();
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps znode data outside of the Java heap.
+ *
+ * Memory is taken from the OS in slabs, either direct buffers or mappings
+ * of deleted temporary files, and cut into chunks. Chunk sizes grow by a
+ * quarter from one size class to the next, and each slab serves a single
+ * size class, as in memcached. A freed chunk is reused for data of the same
+ * size class; slabs are not returned until the store is cleared.
+ *
+ * Stored data is referred to by a handle that packs the slab, the offset in
+ * the slab and the length of the data, so a DataNode needs a single long
+ * to find its data and knows its length without looking it up. A handle is
+ * never 0, which stands for no data in the store.
+ *
+ * Allocation and release are synchronized; reading is not, the caller must
+ * make sure the handle is not released while it reads, see
+ * {@link DataTree}.
+ */
+public class OffHeapDataStore {
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapDataStore.class);
+
+    /** Default: false */
+    public static final String ENABLED = "zookeeper.offHeapData.enabled";
+    /** Default: 1024, smaller data stays on the heap */
+    public static final String MIN_SIZE = "zookeeper.offHeapData.minSize";
+    /** Default: 4MB, at most 16MB */
+    public static final String SLAB_SIZE = "zookeeper.offHeapData.slabSize";
+    /** Default: unset, slabs are direct buffers */
+    public static final String DIR = "zookeeper.offHeapData.dir";
+
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final int MAX_SLAB_SIZE = 1 << 24;
+    private static final int MAX_LENGTH = (1 << 24) - 1;
+    private static final int MAX_SLABS = (1 << 16) - 1;
+
+    private final int minSize;
+    private final int slabSize;
+    private final File dir;
+    /** Chunk size of each size class, ascending */
+    private final int[] chunkSizes;
+
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private SizeClass[] classes;
+
+    private volatile long allocatedBytes;
+    private volatile long dataBytes;
+    private volatile long chunkCount;
+
+    private static class SizeClass {
+        /** Slab chunks are currently carved from, -1 if none */
+        int slab = -1;
+        int nextOffset;
+        long[] free = new long[16];
+        int freeCount;
+    }
+
+    public OffHeapDataStore(int minSize, int slabSize, File dir) {
+        this.minSize = Math.max(1, minSize);
+        this.slabSize = Math.max(MIN_CHUNK_SIZE, Math.min(slabSize, MAX_SLAB_SIZE));
+        this.dir = dir;
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int size = MIN_CHUNK_SIZE; size < this.slabSize;
+                size = (size + size / 4 + 7) & ~7) {
+            sizes.add(size);
+        }
+        sizes.add(this.slabSize);
+        chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+        }
+        classes = newClasses();
+    }
+
+    /**
+     * @return a store configured through system properties, or null if
+     *         znode data is kept on the heap
+     */
+    public static OffHeapDataStore fromSystemProperties() {
+        if (!Boolean.getBoolean(ENABLED)) {
+            return null;
+        }
+        int minSize = Integer.getInteger(MIN_SIZE, 1024);
+        int slabSize = Integer.getInteger(SLAB_SIZE, 4 * 1024 * 1024);
+        String dir = System.getProperty(DIR);
+        LOG.info("Znode data of at least {} bytes is stored off heap in {} byte slabs{}",
+                minSize, slabSize, dir == null ? "" : " mapped from " + dir);
+        return new OffHeapDataStore(minSize, slabSize,
+                dir == null ? null : new File(dir));
+    }
+
+    /**
+     * Copy data into the store.
+     *
+     * @return the handle of the stored data, or 0 if the data is too small
+     *         or too large to be stored
+     */
+    public synchronized long store(byte[] data) {
+        if (data == null || data.length < minSize
+                || data.length > Math.min(slabSize, MAX_LENGTH)) {
+            return 0;
+        }
+        int sizeClass = sizeClass(data.length);
+        long handle;
+        try {
+            handle = allocate(sizeClass, data.length);
+        } catch (IOException e) {
+            LOG.warn("Unable to allocate a slab, keeping data on the heap", e);
+            return 0;
+        }
+        ByteBuffer slab = slabs[slab(handle)].duplicate();
+        slab.position(offset(handle));
+        slab.put(data);
+        allocatedBytes += chunkSizes[sizeClass];
+        dataBytes += data.length;
+        chunkCount++;
+        return handle;
+    }
+
+    /**
+     * @return a copy of the data of a handle returned by {@link #store}
+     */
+    public byte[] read(long handle) {
+        byte[] data = new byte[length(handle)];
+        ByteBuffer slab = slabs[slab(handle)].duplicate();
+        slab.position(offset(handle));
+        slab.get(data);
+        return data;
+    }
+
+    /**
+     * Free the data of a handle. The handle must not be used afterwards.
+     */
+    public synchronized void release(long handle) {
+        int length = length(handle);
+        int sizeClass = sizeClass(length);
+        SizeClass c = classes[sizeClass];
+        if (c.freeCount == c.free.length) {
+            c.free = Arrays.copyOf(c.free, c.freeCount * 2);
+        }
+        c.free[c.freeCount++] = handle & ~0xffffffL;
+        allocatedBytes -= chunkSizes[sizeClass];
+        dataBytes -= length;
+        chunkCount--;
+    }
+
+    /**
+     * Free all data. Handles returned before must not be used afterwards.
+     */
+    public synchronized void clear() {
+        slabs = new ByteBuffer[0];
+        classes = newClasses();
+        allocatedBytes = 0;
+        dataBytes = 0;
+        chunkCount = 0;
+    }
+
+    /** @return the length of the data of a handle */
+    public static int length(long handle) {
+        return (int) (handle & 0xffffff);
+    }
+
+    /** @return bytes of data stored */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /** @return bytes of the chunks holding the data stored */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** @return bytes of all slabs taken from the OS */
+    public long getCapacityBytes() {
+        return (long) slabs.length * slabSize;
+    }
+
+    /** @return number of data chunks stored */
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    private SizeClass[] newClasses() {
+        SizeClass[] result = new SizeClass[chunkSizes.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new SizeClass();
+        }
+        return result;
+    }
+
+    private int sizeClass(int length) {
+        int i = Arrays.binarySearch(chunkSizes, length);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private long allocate(int sizeClass, int length) throws IOException {
+        SizeClass c = classes[sizeClass];
+        long chunk;
+        if (c.freeCount > 0) {
+            chunk = c.free[--c.freeCount];
+        } else {
+            int chunkSize = chunkSizes[sizeClass];
+            if (c.slab < 0 || c.nextOffset + chunkSize > slabSize) {
+                c.slab = newSlab();
+                c.nextOffset = 0;
+            }
+            chunk = handle(c.slab, c.nextOffset, 0);
+            c.nextOffset += chunkSize;
+        }
+        return chunk | length;
+    }
+
+    private int newSlab() throws IOException {
+        if (slabs.length == MAX_SLABS) {
+            throw new IOException("Reached the maximum of " + MAX_SLABS + " slabs");
+        }
+        ByteBuffer slab;
+        if (dir == null) {
+            slab = ByteBuffer.allocateDirect(slabSize);
+        } else {
+            File file = File.createTempFile("zookeeper-data", ".slab", dir);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(slabSize);
+                slab = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        0, slabSize);
+            } finally {
+                if (!file.delete()) {
+                    LOG.warn("Unable to delete {}", file);
+                }
+            }
+        }
+        ByteBuffer[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+        newSlabs[slabs.length] = slab;
+        slabs = newSlabs;
+        return slabs.length - 1;
+    }
+
+    /**
+     * Bits 63-48 hold the slab, 47-24 the offset and 23-0 the length. The
+     * first slab is numbered 1 so that no handle is 0.
+     */
+    private static long handle(int slab, int offset, int length) {
+        return ((long) (slab + 1) << 48) | ((long) offset << 24) | length;
+    }
+
+    private static int slab(long handle) {
+        return (int) (handle >>> 48) - 1;
+    }
+
+    private static int offset(long handle) {
+        return (int) ((handle >>> 24) & 0xffffff);
+    }
+}
@@ -52,6 +52,7 @@
 import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.apache.zookeeper.txn.CheckVersionTxn;
+import org.apache.zookeeper.txn.CloseSessionsTxn;
 import org.apache.zookeeper.txn.CreateContainerTxn;
 import org.apache.zookeeper.txn.CreateSessionTxn;
 import org.apache.zookeeper.txn.CreateTTLTxn;
@@ -59,6 +60,7 @@
 import org.apache.zookeeper.txn.DeleteTxn;
 import org.apache.zookeeper.txn.ErrorTxn;
 import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SessionIdTxn;
 import org.apache.zookeeper.txn.SetACLTxn;
 import org.apache.zookeeper.txn.SetDataTxn;
 import org.apache.zookeeper.txn.Txn;
@@ -70,7 +72,10 @@
 import java.io.IOException;
 import java.io.StringReader;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -87,6 +92,16 @@
  * state of the system. It counts on ZooKeeperServer to update
  * outstandingRequests, so that it can take into account transactions that are
  * in the queue to be applied when generating a transaction.
+ *
+ * If zookeeper.prepRequestProcessor.numWorkerThreads is positive, requests
+ * are prepared by a pool of worker threads. The processor thread still
+ * assigns zxids in submission order and prepared requests are handed to the
+ * next processor in that same order, together with their change records.
+ * A request is only dispatched once no earlier request touching the same
+ * paths (or their parents) is still in flight, so every request sees the
+ * outstanding changes it depends on. Requests that are not keyed by a single
+ * path, such as multi, reconfig and session creation or close, wait for all
+ * in-flight requests and are prepared on the processor thread.
  */
 public class PrepRequestProcessor extends ZooKeeperCriticalThread implements
         RequestProcessor {
@@ -106,6 +121,39 @@ public class PrepRequestProcessor extends ZooKeeperCriticalThread implements
      */
     private static  boolean failCreate = false;
 
+    /** Default: 0 (requests are prepared on the processor thread) */
+    public static final String ZOOKEEPER_PREP_PROC_NUM_WORKER_THREADS =
+        "zookeeper.prepRequestProcessor.numWorkerThreads";
+
+    /** Worker pool shutdown timeout in ms */
+    private static final long WORKER_SHUTDOWN_TIMEOUT_MS = 5000;
+
+    /**
+     * Pool preparing independent requests concurrently; null when requests
+     * are prepared serially.
+     */
+    protected WorkerService workerPool;
+
+    /**
+     * Requests being prepared by the worker pool, in submission order. Also
+     * guards inFlightKeys and emitException.
+     */
+    private final ArrayDeque<PrepWorkRequest> inFlight =
+        new ArrayDeque<PrepWorkRequest>();
+
+    /** Reference counts of the keys held by in-flight requests */
+    private final Map<String, Integer> inFlightKeys =
+        new HashMap<String, Integer>();
+
+    /** Failure of the next processor while handing on a prepared request */
+    private RequestProcessorException emitException;
+
+    /** Work request being prepared by the current worker thread */
+    private final ThreadLocal<PrepWorkRequest> currentWork =
+        new ThreadLocal<PrepWorkRequest>();
+
+    private volatile boolean stopped = false;
+
     LinkedBlockingQueue<Request> submittedRequests = new LinkedBlockingQueue<Request>();
 
     private final RequestProcessor nextProcessor;
@@ -127,6 +175,21 @@ public PrepRequestProcessor(ZooKeeperServer zks,
     public static void setFailCreate(boolean b) {
         failCreate = b;
     }
+
+    @Override
+    public void start() {
+        int numWorkerThreads = Integer.getInteger(
+            ZOOKEEPER_PREP_PROC_NUM_WORKER_THREADS, 0);
+        LOG.info("Configuring PrepRequestProcessor with "
+                 + (numWorkerThreads > 0 ? numWorkerThreads : "no")
+                 + " worker threads.");
+        if (numWorkerThreads > 0 && workerPool == null) {
+            workerPool = new WorkerService(
+                "PrepRequestWork", numWorkerThreads, false);
+        }
+        super.start();
+    }
+
     @Override
     public void run() {
         try {
@@ -184,6 +247,12 @@ private ChangeRecord getOutstandingChange(String path) {
     }
 
     private void addChangeRecord(ChangeRecord c) {
+        PrepWorkRequest work = currentWork.get();
+        if (work != null) {
+            // published in zxid order once the request is handed on
+            work.changes.add(c);
+            return;
+        }
         synchronized (zks.outstandingChanges) {
             zks.outstandingChanges.add(c);
             zks.outstandingChangesForPath.put(c.path, c);
@@ -348,6 +417,47 @@ private String validatePathForCreate(String path, long sessionId)
         return path.substring(0, lastSlash);
     }
 
+    /**
+     * Delete the ephemeral nodes of closing sessions, including those with
+     * outstanding creates, and mark the sessions as closing. The outstanding
+     * changes are gone through once however many sessions are closed.
+     */
+    private void addCloseSessionChanges(List<Long> sessionIds, long zxid) {
+        Map<Long, Set<String>> ephemerals = new HashMap<Long, Set<String>>();
+        Map<String, Long> owners = new HashMap<String, Long>();
+        for (long sessionId : sessionIds) {
+            Set<String> es = zks.getZKDatabase().getEphemerals(sessionId);
+            ephemerals.put(sessionId, es);
+            for (String path : es) {
+                owners.put(path, sessionId);
+            }
+        }
+        synchronized (zks.outstandingChanges) {
+            for (ChangeRecord c : zks.outstandingChanges) {
+                if (c.stat == null) {
+                    // Doing a delete
+                    Long owner = owners.remove(c.path);
+                    if (owner != null) {
+                        ephemerals.get(owner).remove(c.path);
+                    }
+                } else {
+                    long owner = c.stat.getEphemeralOwner();
+                    Set<String> es = ephemerals.get(owner);
+                    if (es != null) {
+                        es.add(c.path);
+                        owners.put(c.path, owner);
+                    }
+                }
+            }
+            for (long sessionId : sessionIds) {
+                for (String path2Delete : ephemerals.get(sessionId)) {
+                    addChangeRecord(new ChangeRecord(zxid, path2Delete, null, 0, null));
+                }
+                zks.sessionTracker.setSessionClosing(sessionId);
+            }
+        }
+    }
+
     /**
      * This method will be called inside the ProcessRequestThread, which is a
      * singleton, so there will be a single thread calling this code.
@@ -593,27 +703,27 @@ protected void pRequest2Txn(int type, long zxid, Request request,
                 // queues up this operation without being the session owner.
                 // this request is the last of the session so it should be ok
                 //zks.sessionTracker.checkSession(request.sessionId, request.getOwner());
-                Set<String> es = zks.getZKDatabase()
-                        .getEphemerals(request.sessionId);
-                synchronized (zks.outstandingChanges) {
-                    for (ChangeRecord c : zks.outstandingChanges) {
-                        if (c.stat == null) {
-                            // Doing a delete
-                            es.remove(c.path);
-                        } else if (c.stat.getEphemeralOwner() == request.sessionId) {
-                            es.add(c.path);
-                        }
-                    }
-                    for (String path2Delete : es) {
-                        addChangeRecord(new ChangeRecord(request.getHdr().getZxid(), path2Delete, null, 0, null));
-                    }
-
-                    zks.sessionTracker.setSessionClosing(request.sessionId);
-                }
+                addCloseSessionChanges(Collections.singletonList(request.sessionId),
+                        request.getHdr().getZxid());
 
                 LOG.info("Processed session termination for sessionid: 0x"
                         + Long.toHexString(request.sessionId));
                 break;
+            case OpCode.closeSessions: {
+                CloseSessionsTxn closeSessionsTxn = new CloseSessionsTxn();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        closeSessionsTxn);
+                List<Long> sessionIds = new ArrayList<Long>();
+                for (SessionIdTxn s : closeSessionsTxn.getSessions()) {
+                    sessionIds.add(s.getSessionId());
+                }
+                addCloseSessionChanges(sessionIds, request.getHdr().getZxid());
+                request.setTxn(closeSessionsTxn);
+
+                LOG.info("Processed termination of " + sessionIds.size()
+                        + " sessions");
+                break;
+            }
             case OpCode.check:
                 zks.sessionTracker.checkSession(request.sessionId, request.getOwner());
                 CheckVersionRequest checkVersionRequest = (CheckVersionRequest)record;
@@ -736,6 +846,23 @@ private static int checkAndIncVersion(int currentVersion, int expectedVersion, S
      * @param request
      */
     protected void pRequest(Request request) throws RequestProcessorException {
+        if (workerPool != null) {
+            dispatch(request);
+            return;
+        }
+        prepRequest(request);
+        request.zxid = zks.getZxid();
+        request.prepEndTime = System.nanoTime();
+        nextProcessor.processRequest(request);
+    }
+
+    /**
+     * Sets up the transaction of a request. Runs on the processor thread, or
+     * on a worker thread for requests dispatched to the worker pool.
+     *
+     * @param request
+     */
+    private void prepRequest(Request request) {
         // LOG.info("Prep>>> cxid = " + request.cxid + " type = " +
         // request.type + " id = 0x" + Long.toHexString(request.sessionId));
         request.setHdr(null);
@@ -747,46 +874,46 @@ protected void pRequest(Request request) throws RequestProcessorException {
             case OpCode.create:
             case OpCode.create2:
                 CreateRequest create2Request = new CreateRequest();
-                pRequest2Txn(request.type, zks.getNextZxid(), request, create2Request, true);
+                pRequest2Txn(request.type, nextZxid(), request, create2Request, true);
                 break;
             case OpCode.createTTL:
                 CreateTTLRequest createTtlRequest = new CreateTTLRequest();
-                pRequest2Txn(request.type, zks.getNextZxid(), request, createTtlRequest, true);
+                pRequest2Txn(request.type, nextZxid(), request, createTtlRequest, true);
                 break;
             case OpCode.deleteContainer:
             case OpCode.delete:
                 DeleteRequest deleteRequest = new DeleteRequest();
-                pRequest2Txn(request.type, zks.getNextZxid(), request, deleteRequest, true);
+                pRequest2Txn(request.type, nextZxid(), request, deleteRequest, true);
                 break;
             case OpCode.setData:
                 SetDataRequest setDataRequest = new SetDataRequest();                
-                pRequest2Txn(request.type, zks.getNextZxid(), request, setDataRequest, true);
+                pRequest2Txn(request.type, nextZxid(), request, setDataRequest, true);
                 break;
             case OpCode.reconfig:
                 ReconfigRequest reconfigRequest = new ReconfigRequest();
                 ByteBufferInputStream.byteBuffer2Record(request.request, reconfigRequest);
-                pRequest2Txn(request.type, zks.getNextZxid(), request, reconfigRequest, true);
+                pRequest2Txn(request.type, nextZxid(), request, reconfigRequest, true);
                 break;
             case OpCode.setACL:
                 SetACLRequest setAclRequest = new SetACLRequest();                
-                pRequest2Txn(request.type, zks.getNextZxid(), request, setAclRequest, true);
+                pRequest2Txn(request.type, nextZxid(), request, setAclRequest, true);
                 break;
             case OpCode.check:
                 CheckVersionRequest checkRequest = new CheckVersionRequest();              
-                pRequest2Txn(request.type, zks.getNextZxid(), request, checkRequest, true);
+                pRequest2Txn(request.type, nextZxid(), request, checkRequest, true);
                 break;
             case OpCode.multi:
                 MultiTransactionRecord multiRequest = new MultiTransactionRecord();
                 try {
                     ByteBufferInputStream.byteBuffer2Record(request.request, multiRequest);
                 } catch(IOException e) {
-                    request.setHdr(new TxnHeader(request.sessionId, request.cxid, zks.getNextZxid(),
+                    request.setHdr(new TxnHeader(request.sessionId, request.cxid, nextZxid(),
                             Time.currentWallTime(), OpCode.multi));
                     throw e;
                 }
                 List<Txn> txns = new ArrayList<Txn>();
                 //Each op in a multi-op must have the same zxid!
-                long zxid = zks.getNextZxid();
+                long zxid = nextZxid();
                 KeeperException ke = null;
 
                 //Store off current pending change records in case we need to rollback
@@ -850,11 +977,15 @@ protected void pRequest(Request request) throws RequestProcessorException {
             case OpCode.createSession:
             case OpCode.closeSession:
                 if (!request.isLocalSession()) {
-                    pRequest2Txn(request.type, zks.getNextZxid(), request,
+                    pRequest2Txn(request.type, nextZxid(), request,
                                  null, true);
                 }
                 break;
 
+            case OpCode.closeSessions:
+                pRequest2Txn(request.type, nextZxid(), request, null, true);
+                break;
+
             //All the rest don't need to create a Txn - just verify session
             case OpCode.sync:
             case OpCode.exists:
@@ -905,8 +1036,15 @@ protected void pRequest(Request request) throws RequestProcessorException {
                 request.setTxn(new ErrorTxn(Code.MARSHALLINGERROR.intValue()));
             }
         }
-        request.zxid = zks.getZxid();
-        nextProcessor.processRequest(request);
+    }
+
+    /**
+     * Returns the zxid of the request being prepared: the one assigned at
+     * dispatch on a worker thread, a newly allocated one otherwise.
+     */
+    private long nextZxid() {
+        PrepWorkRequest work = currentWork.get();
+        return work == null ? zks.getNextZxid() : work.zxid;
     }
 
     private List<ACL> removeDuplicates(List<ACL> acl) {
@@ -1000,7 +1138,290 @@ private List<ACL> fixupACL(String path, List<Id> authInfo, List<ACL> acls)
         return rv;
     }
 
+    /**
+     * Hands a request to the worker pool once no earlier in-flight request
+     * conflicts with it. Requests that cannot be prepared concurrently wait
+     * for the pool to drain and are prepared inline.
+     */
+    private void dispatch(Request request) throws RequestProcessorException {
+        PrepKeys keys = getPrepKeys(request);
+        PrepWorkRequest work = null;
+        synchronized (inFlight) {
+            try {
+                while (!stopped && emitException == null
+                        && (keys == null ? !inFlight.isEmpty()
+                                         : conflicts(keys))) {
+                    inFlight.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (emitException != null) {
+                throw emitException;
+            }
+            if (stopped) {
+                return;
+            }
+            if (keys != null && (keys.txn || !inFlight.isEmpty())) {
+                work = new PrepWorkRequest(request, keys);
+                if (keys.txn) {
+                    work.zxid = zks.getNextZxid();
+                }
+                work.lastZxid = zks.getZxid();
+                for (String key : keys.holds) {
+                    Integer count = inFlightKeys.get(key);
+                    inFlightKeys.put(key, count == null ? 1 : count + 1);
+                }
+                inFlight.add(work);
+            }
+        }
+        if (work != null) {
+            workerPool.schedule(work);
+        } else {
+            prepRequest(request);
+            request.zxid = zks.getZxid();
+            request.prepEndTime = System.nanoTime();
+            nextProcessor.processRequest(request);
+        }
+    }
+
+    private boolean conflicts(PrepKeys keys) {
+        for (String key : keys.checks) {
+            if (inFlightKeys.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands on prepared requests at the head of the in-flight queue, in
+     * submission order, publishing their change records on the way.
+     */
+    private void emitPrepared() {
+        synchronized (inFlight) {
+            PrepWorkRequest work;
+            while ((work = inFlight.peek()) != null && work.prepared) {
+                inFlight.poll();
+                for (String key : work.keys.holds) {
+                    Integer count = inFlightKeys.remove(key);
+                    if (count > 1) {
+                        inFlightKeys.put(key, count - 1);
+                    }
+                }
+                if (!work.changes.isEmpty()) {
+                    synchronized (zks.outstandingChanges) {
+                        for (ChangeRecord c : work.changes) {
+                            zks.outstandingChanges.add(c);
+                            zks.outstandingChangesForPath.put(c.path, c);
+                        }
+                    }
+                }
+                work.request.zxid = work.lastZxid;
+                work.request.prepEndTime = System.nanoTime();
+                if (emitException == null && !stopped) {
+                    try {
+                        nextProcessor.processRequest(work.request);
+                    } catch (RequestProcessorException e) {
+                        emitException = e;
+                    }
+                }
+            }
+            inFlight.notifyAll();
+        }
+    }
+
+    /**
+     * Work request preparing a single request on a worker thread.
+     */
+    private class PrepWorkRequest extends WorkerService.WorkRequest {
+        private final Request request;
+        private final PrepKeys keys;
+        private final List<ChangeRecord> changes = new ArrayList<ChangeRecord>(2);
+        /** zxid assigned at dispatch for transactions */
+        private long zxid;
+        /** value of request.zxid once handed on */
+        private long lastZxid;
+        /** guarded by inFlight */
+        private boolean prepared;
+
+        PrepWorkRequest(Request request, PrepKeys keys) {
+            this.request = request;
+            this.keys = keys;
+        }
+
+        @Override
+        public void doWork() {
+            currentWork.set(this);
+            try {
+                prepRequest(request);
+            } finally {
+                currentWork.remove();
+                synchronized (inFlight) {
+                    prepared = true;
+                }
+                emitPrepared();
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            // only called once the pool is stopped; release the dispatcher
+            synchronized (inFlight) {
+                inFlight.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Keys guarding a request prepared on the worker pool. A request holds
+     * its keys while in flight and may only be dispatched once none of its
+     * check keys is held. For each path a request reads or updates it holds
+     * "p" + path and "c" + parent, and checks "p" + path and "s" + parent.
+     * A sequential create cannot know its node name up front, so it also
+     * holds "s" + parent and checks "c" + parent, ordering it against every
+     * in-flight request on a sibling.
+     */
+    static class PrepKeys {
+        final String[] holds;
+        final String[] checks;
+        /** whether the request is assigned a zxid */
+        final boolean txn;
+
+        static final PrepKeys NONE = new PrepKeys(new String[0], new String[0], false);
+
+        PrepKeys(String[] holds, String[] checks, boolean txn) {
+            this.holds = holds;
+            this.checks = checks;
+            this.txn = txn;
+        }
+
+        static PrepKeys forPaths(String... paths) {
+            String[] holds = new String[paths.length * 2];
+            String[] checks = new String[paths.length * 2];
+            for (int i = 0; i < paths.length; i++) {
+                String parent = parentOf(paths[i]);
+                holds[2 * i] = "p" + paths[i];
+                holds[2 * i + 1] = "c" + parent;
+                checks[2 * i] = "p" + paths[i];
+                checks[2 * i + 1] = "s" + parent;
+            }
+            return new PrepKeys(holds, checks, true);
+        }
+
+        static PrepKeys forSequentialCreate(String parent) {
+            String grandParent = parentOf(parent);
+            return new PrepKeys(
+                    new String[] { "p" + parent, "c" + grandParent, "s" + parent },
+                    new String[] { "p" + parent, "s" + grandParent, "c" + parent },
+                    true);
+        }
+
+        private static String parentOf(String path) {
+            int lastSlash = path.lastIndexOf('/');
+            return lastSlash == -1 ? "" : path.substring(0, lastSlash);
+        }
+    }
+
+    /**
+     * Returns the keys of a request, PrepKeys.NONE for requests that only
+     * verify the session, or null if the request has to be prepared on the
+     * processor thread.
+     */
+    static PrepKeys getPrepKeys(Request request) {
+        try {
+            switch (request.type) {
+            case OpCode.create:
+            case OpCode.create2:
+            case OpCode.createTTL:
+            case OpCode.createContainer: {
+                ByteBuffer bb = request.request.duplicate();
+                bb.rewind();
+                String path = readString(bb);
+                if (path == null || path.lastIndexOf('/') == -1) {
+                    return null;
+                }
+                String parent = path.substring(0, path.lastIndexOf('/'));
+                // skip data and acl to get to the create flags
+                skipBuffer(bb);
+                int numAcls = bb.getInt();
+                for (int i = 0; i < numAcls; i++) {
+                    bb.getInt();
+                    skipBuffer(bb);
+                    skipBuffer(bb);
+                }
+                if (CreateMode.fromFlag(bb.getInt()).isSequential()) {
+                    return PrepKeys.forSequentialCreate(parent);
+                }
+                return PrepKeys.forPaths(path, parent);
+            }
+            case OpCode.deleteContainer: {
+                String path = new String(request.request.array());
+                if (path.lastIndexOf('/') == -1) {
+                    return null;
+                }
+                return PrepKeys.forPaths(path, path.substring(0, path.lastIndexOf('/')));
+            }
+            case OpCode.delete: {
+                ByteBuffer bb = request.request.duplicate();
+                bb.rewind();
+                String path = readString(bb);
+                if (path == null || path.lastIndexOf('/') == -1) {
+                    return null;
+                }
+                return PrepKeys.forPaths(path, path.substring(0, path.lastIndexOf('/')));
+            }
+            case OpCode.setData:
+            case OpCode.setACL:
+            case OpCode.check: {
+                ByteBuffer bb = request.request.duplicate();
+                bb.rewind();
+                String path = readString(bb);
+                return path == null ? null : PrepKeys.forPaths(path);
+            }
+            case OpCode.sync:
+            case OpCode.exists:
+            case OpCode.getData:
+            case OpCode.getACL:
+            case OpCode.getChildren:
+            case OpCode.getChildren2:
+            case OpCode.ping:
+            case OpCode.setWatches:
+            case OpCode.checkWatches:
+            case OpCode.removeWatches:
+                return PrepKeys.NONE;
+            default:
+                return null;
+            }
+        } catch (KeeperException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // malformed requests, e.g. BufferUnderflowException, are
+            // reported when prepared on the processor thread
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer bb) {
+        int len = bb.getInt();
+        if (len < 0 || len > bb.remaining()) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        bb.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void skipBuffer(ByteBuffer bb) {
+        int len = bb.getInt();
+        if (len > 0) {
+            bb.position(bb.position() + len);
+        }
+    }
+
     public void processRequest(Request request) {
+        request.prepStartTime = System.nanoTime();
         submittedRequests.add(request);
     }
 
@@ -1008,6 +1429,14 @@ public void shutdown() {
         LOG.info("Shutting down");
         submittedRequests.clear();
         submittedRequests.add(Request.requestOfDeath);
+        if (workerPool != null) {
+            stopped = true;
+            synchronized (inFlight) {
+                inFlight.notifyAll();
+            }
+            workerPool.stop();
+            workerPool.join(WORKER_SHUTDOWN_TIMEOUT_MS);
+        }
         nextProcessor.shutdown();
     }
 }
@@ -78,6 +78,24 @@ public Request(long sessionId, int xid, int type, TxnHeader hdr, Record txn, lon
 
     public final long createTime = Time.currentElapsedTime();
 
+    /*
+     * System.nanoTime() when the request entered and left the stages of the
+     * pipeline, or -1 if it did not go through them. See RequestStageStats.
+     */
+    public long prepStartTime = -1;
+    public long prepEndTime = -1;
+    public long syncStartTime = -1;
+    public long syncEndTime = -1;
+    public long proposeTime = -1;
+    public long quorumAckTime = -1;
+    public long finalStartTime = -1;
+
+    /** System.nanoTime() when queued in the CommitProcessor, or -1 */
+    public long commitProcQueueStartTime = -1;
+
+    /** System.nanoTime() when the commit reached the CommitProcessor, or -1 */
+    public long commitRecvTime = -1;
+
     private Object owner;
 
     private KeeperException e;
@@ -186,6 +204,8 @@ public boolean isQuorum() {
         case OpCode.closeSession:
         case OpCode.createSession:
             return !this.isLocalSession;
+        case OpCode.closeSessions:
+            return true;
         default:
             return false;
         }
@@ -235,6 +255,8 @@ static String op2String(int op) {
             return "createSession";
         case OpCode.closeSession:
             return "closeSession";
+        case OpCode.closeSessions:
+            return "closeSessions";
         case OpCode.error:
             return "error";
         case OpCode.reconfig:
@@ -264,6 +286,7 @@ public String toString() {
         if (type != OpCode.createSession
                 && type != OpCode.setWatches
                 && type != OpCode.closeSession
+                && type != OpCode.closeSessions
                 && request != null
                 && request.remaining() >= 4)
         {
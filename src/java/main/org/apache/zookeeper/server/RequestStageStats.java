@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.zookeeper.server.metric.Histogram;
+
+/**
+ * Latency of requests broken down by request type and processing stage.
+ *
+ * Request processors stamp each request with System.nanoTime() as it enters
+ * and leaves their stage. When the FinalRequestProcessor is done with a
+ * request, the time spent in every stage the request went through is added
+ * to a histogram, in microseconds. Which stages a request goes through
+ * depends on the server: a standalone server preps, syncs and applies
+ * requests, a leader also waits for a quorum of acks and for the commit,
+ * and a follower only sees its local requests in the commit and final
+ * stages.
+ */
+public class RequestStageStats {
+    public enum Stage {
+        /** queued for and processed by the PrepRequestProcessor */
+        PREP,
+        /** queued for and written by the SyncRequestProcessor */
+        SYNC,
+        /** from proposal to a quorum of acks, on the leader */
+        PROPOSAL,
+        /** queued in the CommitProcessor until handed on */
+        COMMIT,
+        /** applied and answered by the FinalRequestProcessor */
+        FINAL,
+        /** from the first stage stamped to the end of the final stage */
+        TOTAL
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final ConcurrentHashMap<String, Histogram[]> histograms =
+        new ConcurrentHashMap<String, Histogram[]>();
+
+    /**
+     * Record the stages of a request.
+     * @param request the request, stamped by the processors it went through
+     * @param endTime System.nanoTime() when the final stage was done
+     */
+    public void record(Request request, long endTime) {
+        Histogram[] stages = getHistograms(Request.op2String(request.type));
+        add(stages, Stage.PREP, request.prepStartTime, request.prepEndTime);
+        add(stages, Stage.SYNC, request.syncStartTime, request.syncEndTime);
+        add(stages, Stage.PROPOSAL, request.proposeTime, request.quorumAckTime);
+        add(stages, Stage.COMMIT, request.commitProcQueueStartTime,
+                request.finalStartTime);
+        add(stages, Stage.FINAL, request.finalStartTime, endTime);
+        add(stages, Stage.TOTAL, firstStamp(request), endTime);
+    }
+
+    private static void add(Histogram[] stages, Stage stage, long start,
+            long end) {
+        if (start != -1 && end != -1) {
+            stages[stage.ordinal()].add((end - start) / 1000);
+        }
+    }
+
+    private static long firstStamp(Request request) {
+        long[] stamps = { request.prepStartTime, request.commitProcQueueStartTime,
+                request.syncStartTime, request.finalStartTime };
+        long first = -1;
+        for (long stamp : stamps) {
+            if (stamp != -1 && (first == -1 || stamp - first < 0)) {
+                first = stamp;
+            }
+        }
+        return first;
+    }
+
+    private Histogram[] getHistograms(String type) {
+        Histogram[] stages = histograms.get(type);
+        if (stages == null) {
+            stages = new Histogram[STAGES.length];
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new Histogram();
+            }
+            Histogram[] prev = histograms.putIfAbsent(type, stages);
+            if (prev != null) {
+                stages = prev;
+            }
+        }
+        return stages;
+    }
+
+    /**
+     * @return the request types recorded so far, sorted
+     */
+    public Set<String> getRequestTypes() {
+        return new TreeSet<String>(histograms.keySet());
+    }
+
+    /**
+     * @return the latencies in us of a stage for a request type, or null if
+     *         no request of that type was recorded
+     */
+    public Histogram getHistogram(String type, Stage stage) {
+        Histogram[] stages = histograms.get(type);
+        return stages == null ? null : stages[stage.ordinal()];
+    }
+
+    /**
+     * @return the histograms of a request type keyed by lower case stage
+     *         name, in stage order, leaving out the stages no request went
+     *         through
+     */
+    public Map<String, Histogram> getStageHistograms(String type) {
+        Map<String, Histogram> result = new LinkedHashMap<String, Histogram>();
+        Histogram[] stages = histograms.get(type);
+        if (stages != null) {
+            for (Stage stage : STAGES) {
+                Histogram h = stages[stage.ordinal()];
+                if (h.getCount() > 0) {
+                    result.put(stage.name().toLowerCase(Locale.ENGLISH), h);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void reset() {
+        for (Histogram[] stages : histograms.values()) {
+            for (Histogram h : stages) {
+                h.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.zookeeper.jmx.ZKMBeanInfo;
+import org.apache.zookeeper.server.metric.Histogram;
+
+/**
+ * This class implements the request stages MBean.
+ */
+public class RequestStagesBean implements RequestStagesMXBean, ZKMBeanInfo {
+    private final RequestStageStats stages;
+
+    public RequestStagesBean(RequestStageStats stages) {
+        this.stages = stages;
+    }
+
+    public String getName() {
+        return "RequestStages";
+    }
+
+    public boolean isHidden() {
+        return false;
+    }
+
+    public Map<String, Long> getCount() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (String type : stages.getRequestTypes()) {
+            for (Map.Entry<String, Histogram> e
+                    : stages.getStageHistograms(type).entrySet()) {
+                result.put(type + "." + e.getKey(), e.getValue().getCount());
+            }
+        }
+        return result;
+    }
+
+    public Map<String, Long> getAvgLatency() {
+        return getPercentiles(-1);
+    }
+
+    public Map<String, Long> getP50Latency() {
+        return getPercentiles(0.5);
+    }
+
+    public Map<String, Long> getP99Latency() {
+        return getPercentiles(0.99);
+    }
+
+    public Map<String, Long> getMaxLatency() {
+        return getPercentiles(1);
+    }
+
+    public void reset() {
+        stages.reset();
+    }
+
+    /**
+     * @param fraction the percentile to report, 1 for the max or -1 for the
+     *        average
+     */
+    private Map<String, Long> getPercentiles(double fraction) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (String type : stages.getRequestTypes()) {
+            for (Map.Entry<String, Histogram> e
+                    : stages.getStageHistograms(type).entrySet()) {
+                Histogram h = e.getValue();
+                long value;
+                if (fraction < 0) {
+                    value = h.getAvg();
+                } else if (fraction >= 1) {
+                    value = h.getMax();
+                } else {
+                    value = h.getPercentile(fraction);
+                }
+                result.put(type + "." + e.getKey(), value);
+            }
+        }
+        return result;
+    }
+}
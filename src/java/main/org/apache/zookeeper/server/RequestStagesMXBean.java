@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Map;
+
+/**
+ * Latency of requests per request type and processing stage. The maps are
+ * keyed by "type.stage", e.g. "setData.proposal", and the latencies are in
+ * microseconds.
+ */
+public interface RequestStagesMXBean {
+    /**
+     * @return number of requests that went through each stage
+     */
+    public Map<String, Long> getCount();
+    /**
+     * @return average time spent in each stage
+     */
+    public Map<String, Long> getAvgLatency();
+    /**
+     * @return median time spent in each stage
+     */
+    public Map<String, Long> getP50Latency();
+    /**
+     * @return 99th percentile of the time spent in each stage
+     */
+    public Map<String, Long> getP99Latency();
+    /**
+     * @return max time spent in each stage
+     */
+    public Map<String, Long> getMaxLatency();
+    /**
+     * Reset the latencies of all stages.
+     */
+    public void reset();
+}
@@ -26,11 +26,13 @@
 import java.security.cert.Certificate;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jute.Record;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.common.BufferPool;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
@@ -87,6 +89,64 @@ public boolean removeAuthInfo(Id id) {
 
     abstract void sendBuffer(ByteBuffer closeConn);
 
+    /**
+     * The length prefixed notification packet for a watch event. The packet
+     * of a {@link NotificationEvent} is shared by all the connections it is
+     * delivered to, so the content of the buffer must not be modified.
+     */
+    static ByteBuffer getNotificationBuffer(WatchedEvent event) {
+        if (event instanceof NotificationEvent) {
+            return ((NotificationEvent) event).getPacket();
+        }
+        return serializeNotification(event);
+    }
+
+    static ByteBuffer serializeNotification(WatchedEvent event) {
+        ReplyHeader h = new ReplyHeader(-1, -1L, 0);
+        try {
+            // Convert WatchedEvent to a type that can be sent over the wire
+            return serializeResponse(h, event.getWrapper(), "notification");
+        } catch (IOException e) {
+            // not thrown when writing to a buffer
+            throw new IllegalStateException("Error serializing notification", e);
+        }
+    }
+
+    /**
+     * Serialize a response, behind its length, into a buffer of exactly the
+     * right size. The record is measured first and then written straight
+     * into the buffer, with no intermediate copies.
+     *
+     * @return the buffer, ready to be sent
+     */
+    static ByteBuffer serializeResponse(ReplyHeader h, Record r, String tag)
+            throws IOException {
+        return serializeResponse(h, r, tag, null);
+    }
+
+    /**
+     * Serialize a response as {@link #serializeResponse(ReplyHeader, Record,
+     * String)} does, into a buffer acquired from the given pool, or a new
+     * buffer if the pool is null.
+     */
+    static ByteBuffer serializeResponse(ReplyHeader h, Record r, String tag,
+            BufferPool pool) throws IOException {
+        int len = ByteBufferOutputArchive.size(h);
+        if (r != null) {
+            len += ByteBufferOutputArchive.size(r);
+        }
+        ByteBuffer bb = pool == null
+            ? ByteBuffer.allocate(4 + len) : pool.acquire(4 + len);
+        bb.putInt(len);
+        ByteBufferOutputArchive oa = new ByteBufferOutputArchive(bb);
+        oa.writeRecord(h, "header");
+        if (r != null) {
+            oa.writeRecord(r, tag);
+        }
+        bb.flip();
+        return bb;
+    }
+
     abstract void enableRecv();
 
     abstract void disableRecv();
@@ -171,6 +231,24 @@ protected long incrPacketsReceived() {
     protected void incrOutstandingRequests(RequestHeader h) {
     }
 
+    /**
+     * Requests of this connection submitted to the request processors
+     * whose response has not been sent yet.
+     */
+    private final AtomicInteger requestsInProcess = new AtomicInteger();
+
+    void incInProcess() {
+        requestsInProcess.incrementAndGet();
+    }
+
+    void decInProcess() {
+        requestsInProcess.decrementAndGet();
+    }
+
+    int getInProcess() {
+        return requestsInProcess.get();
+    }
+
     protected long incrPacketsSent() {
         return packetsSent.incrementAndGet();
     }
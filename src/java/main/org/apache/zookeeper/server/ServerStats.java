@@ -18,20 +18,42 @@
 
 package org.apache.zookeeper.server;
 
+import java.util.concurrent.atomic.AtomicLong;
 
-
+import org.apache.zookeeper.common.BufferPool;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.metric.Counter;
+import org.apache.zookeeper.server.metric.Histogram;
 
 /**
  * Basic Server Statistics
+ *
+ * Updated by every request, so none of the counters take a lock.
  */
 public class ServerStats {
-    private long packetsSent;
-    private long packetsReceived;
-    private long maxLatency;
-    private long minLatency = Long.MAX_VALUE;
-    private long totalLatency = 0;
-    private long count = 0;
+    private final Counter packetsSent = new Counter();
+    private final Counter packetsReceived = new Counter();
+    /** Time in ms between a request being received and answered */
+    private final Histogram requestLatency = new Histogram();
+    /** Kept apart from the histogram so that it can be reset on its own */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /** Number of requests made durable by each txn log flush */
+    private final Histogram syncBatchSize = new Histogram();
+    /** Time in ms each txn log flush waited for fsync to complete */
+    private final Histogram fsyncWaitTime = new Histogram();
+
+    /** Time in us requests waited in the CommitProcessor queue */
+    private final Histogram commitProcQueueWaitTime = new Histogram();
+    /** Time in us commits waited before the CommitProcessor applied them */
+    private final Histogram commitWaitTime = new Histogram();
+    /** Time in us CommitProcessor workers took to run a request */
+    private final Histogram commitProcWorkerTime = new Histogram();
+    /** Requests taken from the CommitProcessor queue between commits */
+    private final Histogram commitProcReadBatchSize = new Histogram();
+    /** Commits applied by the CommitProcessor in a row */
+    private final Histogram commitProcCommitBatchSize = new Histogram();
+    private final RequestStageStats requestStages = new RequestStageStats();
 
     private final Provider provider;
 
@@ -49,19 +71,20 @@ public ServerStats(Provider provider) {
     }
     
     // getters
-    synchronized public long getMinLatency() {
-        return minLatency == Long.MAX_VALUE ? 0 : minLatency;
+    public long getMinLatency() {
+        return requestLatency.getMin();
     }
 
-    synchronized public long getAvgLatency() {
-        if (count != 0) {
-            return totalLatency / count;
-        }
-        return 0;
+    public long getAvgLatency() {
+        return requestLatency.getAvg();
     }
 
-    synchronized public long getMaxLatency() {
-        return maxLatency;
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    public Histogram getRequestLatency() {
+        return requestLatency;
     }
 
     public long getOutstandingRequests() {
@@ -80,12 +103,60 @@ public long getLogDirSize() {
         return provider.getLogDirSize();
     }
     
-    synchronized public long getPacketsReceived() {
-        return packetsReceived;
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public Histogram getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    public Histogram getFsyncWaitTime() {
+        return fsyncWaitTime;
+    }
+
+    public Histogram getCommitProcQueueWaitTime() {
+        return commitProcQueueWaitTime;
+    }
+
+    public Histogram getCommitWaitTime() {
+        return commitWaitTime;
+    }
+
+    public Histogram getCommitProcWorkerTime() {
+        return commitProcWorkerTime;
     }
 
-    synchronized public long getPacketsSent() {
-        return packetsSent;
+    public Histogram getCommitProcReadBatchSize() {
+        return commitProcReadBatchSize;
+    }
+
+    public Histogram getCommitProcCommitBatchSize() {
+        return commitProcCommitBatchSize;
+    }
+
+    public RequestStageStats getRequestStages() {
+        return requestStages;
+    }
+
+    /** Buffers acquired from the heap and direct buffer pools reused */
+    public long getBufferPoolHits() {
+        return BufferPool.HEAP.getHits() + BufferPool.DIRECT.getHits();
+    }
+
+    /** Buffers acquired from the heap and direct buffer pools allocated */
+    public long getBufferPoolMisses() {
+        return BufferPool.HEAP.getMisses() + BufferPool.DIRECT.getMisses();
+    }
+
+    /** Bytes acquired from the heap and direct buffer pools not released */
+    public long getBufferPoolOutstandingBytes() {
+        return BufferPool.HEAP.getOutstandingBytes()
+            + BufferPool.DIRECT.getOutstandingBytes();
     }
 
     public String getServerState() {
@@ -118,39 +189,90 @@ public String toString(){
         return sb.toString();
     }
     // mutators
-    synchronized void updateLatency(long requestCreateTime) {
+    void updateLatency(long requestCreateTime) {
         long latency = Time.currentElapsedTime() - requestCreateTime;
-        totalLatency += latency;
-        count++;
-        if (latency < minLatency) {
-            minLatency = latency;
+        requestLatency.add(latency);
+        long current;
+        while (latency > (current = maxLatency.get())) {
+            if (maxLatency.compareAndSet(current, latency)) {
+                break;
+            }
         }
-        if (latency > maxLatency) {
-            maxLatency = latency;
+    }
+    /**
+     * Record a flush of the txn log.
+     * @param batchSize number of requests made durable by the flush
+     * @param fsyncWaitMs time spent waiting for the log to hit the disk
+     */
+    void updateSyncBatch(int batchSize, long fsyncWaitMs) {
+        syncBatchSize.add(batchSize);
+        fsyncWaitTime.add(fsyncWaitMs);
+    }
+    /**
+     * Record the time a request waited in the CommitProcessor queue.
+     */
+    public void updateCommitProcQueueWait(long waitUs) {
+        commitProcQueueWaitTime.add(waitUs);
+    }
+    /**
+     * Record the time a commit waited to be applied by the CommitProcessor.
+     */
+    public void updateCommitWait(long waitUs) {
+        commitWaitTime.add(waitUs);
+    }
+    /**
+     * Record the time a CommitProcessor worker took to run a request.
+     */
+    public void updateCommitProcWorkerTime(long timeUs) {
+        commitProcWorkerTime.add(timeUs);
+    }
+    /**
+     * Record a round of the CommitProcessor main loop.
+     * @param readBatchSize requests taken from the queue
+     * @param commitBatchSize commits applied
+     */
+    public void updateCommitProcBatch(int readBatchSize, int commitBatchSize) {
+        if (readBatchSize > 0) {
+            commitProcReadBatchSize.add(readBatchSize);
+        }
+        if (commitBatchSize > 0) {
+            commitProcCommitBatchSize.add(commitBatchSize);
         }
     }
-    synchronized public void resetLatency(){
-        totalLatency = 0;
-        count = 0;
-        maxLatency = 0;
-        minLatency = Long.MAX_VALUE;
+    public void resetLatency(){
+        requestLatency.reset();
+        maxLatency.set(0);
+    }
+    public void resetMaxLatency(){
+        maxLatency.set(getMinLatency());
+    }
+    public void incrementPacketsReceived() {
+        packetsReceived.increment();
     }
-    synchronized public void resetMaxLatency(){
-        maxLatency = getMinLatency();
+    public void incrementPacketsSent() {
+        packetsSent.increment();
     }
-    synchronized public void incrementPacketsReceived() {
-        packetsReceived++;
+    public void resetRequestCounters(){
+        packetsReceived.reset();
+        packetsSent.reset();
     }
-    synchronized public void incrementPacketsSent() {
-        packetsSent++;
+    public void resetSyncStats() {
+        syncBatchSize.reset();
+        fsyncWaitTime.reset();
     }
-    synchronized public void resetRequestCounters(){
-        packetsReceived = 0;
-        packetsSent = 0;
+    public void resetCommitProcStats() {
+        commitProcQueueWaitTime.reset();
+        commitWaitTime.reset();
+        commitProcWorkerTime.reset();
+        commitProcReadBatchSize.reset();
+        commitProcCommitBatchSize.reset();
     }
-    synchronized public void reset() {
+    public void reset() {
         resetLatency();
         resetRequestCounters();
+        resetSyncStats();
+        resetCommitProcStats();
+        requestStages.reset();
     }
 
 }
@@ -19,6 +19,7 @@
 package org.apache.zookeeper.server;
 
 import java.io.PrintWriter;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 
@@ -44,6 +45,14 @@ public static interface SessionExpirer {
         long getServerId();
     }
 
+    /**
+     * A SessionExpirer which can expire the sessions that timed out in the
+     * same tick together.
+     */
+    public static interface BatchSessionExpirer extends SessionExpirer {
+        void expire(Collection<? extends Session> sessions);
+    }
+
     long createSession(int sessionTimeout);
 
     /**
@@ -49,7 +49,11 @@ public class SessionTrackerImpl extends ZooKeeperCriticalThread implements
     protected final ConcurrentHashMap<Long, SessionImpl> sessionsById =
         new ConcurrentHashMap<Long, SessionImpl>();
 
-    private final ExpiryQueue<SessionImpl> sessionExpiryQueue;
+    /** Default: false */
+    public static final String SESSION_EXPIRY_TIMER_WHEEL =
+        "zookeeper.sessionExpiryTimerWheel";
+
+    private final ExpiryTracker<SessionImpl> sessionExpiryQueue;
 
     private final ConcurrentMap<Long, Integer> sessionsWithTimeout;
     private final AtomicLong nextSessionId = new AtomicLong();
@@ -95,7 +99,12 @@ public SessionTrackerImpl(SessionExpirer expirer,
     {
         super("SessionTracker", listener);
         this.expirer = expirer;
-        this.sessionExpiryQueue = new ExpiryQueue<SessionImpl>(tickTime);
+        if (Boolean.getBoolean(SESSION_EXPIRY_TIMER_WHEEL)) {
+            this.sessionExpiryQueue =
+                new TimerWheelExpiryQueue<SessionImpl>(tickTime);
+        } else {
+            this.sessionExpiryQueue = new ExpiryQueue<SessionImpl>(tickTime);
+        }
         this.sessionsWithTimeout = sessionsWithTimeout;
         this.nextSessionId.set(initializeNextSession(serverId));
         for (Entry<Long, Integer> e : sessionsWithTimeout.entrySet()) {
@@ -147,7 +156,16 @@ public void run() {
                     continue;
                 }
 
-                for (SessionImpl s : sessionExpiryQueue.poll()) {
+                Set<SessionImpl> expired = sessionExpiryQueue.poll();
+                if (expired.size() > 1
+                        && expirer instanceof BatchSessionExpirer) {
+                    for (SessionImpl s : expired) {
+                        setSessionClosing(s.sessionId);
+                    }
+                    ((BatchSessionExpirer) expirer).expire(expired);
+                    continue;
+                }
+                for (SessionImpl s : expired) {
                     setSessionClosing(s.sessionId);
                     expirer.expire(s);
                 }
@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.jute.InputArchive;
+
+/**
+ * Loads the nodes of a snapshot into a DataTree with two threads.
+ *
+ * The thread restoring the snapshot reads and decodes the nodes, which is
+ * where the checksum, the copying and most of the allocation happen. A
+ * second thread links the decoded nodes into the tree: the node table, the
+ * child lists of the parents, the acl reference counts and the ephemeral,
+ * container and ttl sets. Decoded nodes are handed over in batches, in
+ * snapshot order, so parents are still linked before their children.
+ *
+ * The snapshot format is unchanged, so snapshots loaded this way remain
+ * readable by servers that load them serially.
+ */
+public class SnapshotDeserializer {
+    /** Default: false */
+    public static final String PIPELINED = "zookeeper.snapshot.pipelinedLoad";
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int MAX_PENDING_BATCHES = 64;
+
+    private static final Batch END = new Batch(0);
+
+    private static class Batch {
+        final String[] paths;
+        final DataNode[] nodes;
+        int size;
+
+        Batch(int capacity) {
+            paths = new String[capacity];
+            nodes = new DataNode[capacity];
+        }
+
+        boolean isFull() {
+            return size == paths.length;
+        }
+
+        void add(String path, DataNode node) {
+            paths[size] = path;
+            nodes[size] = node;
+            size++;
+        }
+    }
+
+    private SnapshotDeserializer() {
+    }
+
+    public static boolean isPipelined() {
+        return Boolean.getBoolean(PIPELINED);
+    }
+
+    /**
+     * Read the nodes of a snapshot, up to and including the "/" end marker,
+     * and add them to the tree.
+     */
+    static void deserializeNodes(DataTree dt, InputArchive ia)
+            throws IOException {
+        BlockingQueue<Batch> queue =
+            new ArrayBlockingQueue<Batch>(MAX_PENDING_BATCHES);
+        Linker linker = new Linker(dt, queue);
+        linker.start();
+        boolean interrupted = false;
+        try {
+            Batch batch = new Batch(BATCH_SIZE);
+            String path = ia.readString("path");
+            while (!"/".equals(path)) {
+                DataNode node = new DataNode();
+                ia.readRecord(node, "node");
+                batch.add(path, node);
+                if (batch.isFull()) {
+                    if (linker.failure != null) {
+                        break;
+                    }
+                    queue.put(batch);
+                    batch = new Batch(BATCH_SIZE);
+                }
+                path = ia.readString("path");
+            }
+            if (batch.size > 0) {
+                queue.put(batch);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            // the linker drains the queue even after a failure, so it
+            // always gets to the end marker
+            while (true) {
+                try {
+                    queue.put(END);
+                    linker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (linker.failure != null) {
+            throw linker.failure;
+        }
+        if (interrupted) {
+            throw new InterruptedIOException("Interrupted while loading snapshot");
+        }
+    }
+
+    private static class Linker extends ZooKeeperThread {
+        private final DataTree dt;
+        private final BlockingQueue<Batch> queue;
+        volatile IOException failure;
+
+        Linker(DataTree dt, BlockingQueue<Batch> queue) {
+            super("SnapshotLoader");
+            this.dt = dt;
+            this.queue = queue;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Batch batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (batch == END) {
+                    return;
+                }
+                if (failure != null) {
+                    continue;
+                }
+                try {
+                    for (int i = 0; i < batch.size; i++) {
+                        dt.addDeserializedNode(batch.paths[i], batch.nodes[i]);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException("Failed to load snapshot", e);
+                }
+            }
+        }
+    }
+}
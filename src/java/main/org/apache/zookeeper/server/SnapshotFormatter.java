@@ -89,8 +89,8 @@ private void printZnode(DataTree dataTree, String name) {
         synchronized(n) { // keep findbugs happy
             System.out.println(name);
             printStat(n.stat);
-            if (n.data != null) {
-                System.out.println("  dataLength = " + n.data.length);
+            if (n.data != null || n.dataRef != 0) {
+                System.out.println("  dataLength = " + n.getDataLength());
             } else {
                 System.out.println("  no data");
             }
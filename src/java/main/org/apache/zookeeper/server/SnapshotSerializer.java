@@ -0,0 +1,447 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.common.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serializes a DataTree into a snapshot using several threads, and
+ * optionally reuses the parts of the previous snapshot that did not change.
+ *
+ * The output is byte for byte what {@link DataTree#serialize} would write.
+ * The tree is split into the subtrees hanging off the root. The snapshot
+ * thread writes them out in order; worker threads serialize the subtrees
+ * ahead of it into memory, and stop taking on new subtrees while more than
+ * maxBufferedBytes are waiting to be written. A subtree no worker has
+ * started on is serialized by the snapshot thread itself, straight into the
+ * snapshot.
+ *
+ * In incremental mode the offset, length and change stamp of every subtree
+ * is remembered. A subtree whose stamp has not changed since the previous
+ * snapshot is copied from the previous snapshot file rather than walked
+ * again, which saves both the tree walk and the garbage it creates.
+ *
+ * Like the single threaded serialization, the result is a fuzzy snapshot:
+ * transactions applied while it is taken may or may not be included.
+ */
+public class SnapshotSerializer {
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotSerializer.class);
+
+    /** Default: 0, snapshots are serialized by a single thread */
+    public static final String NUM_WORKER_THREADS =
+        "zookeeper.snapshot.numWorkerThreads";
+    /** Default: 64MB */
+    public static final String MAX_BUFFERED_BYTES =
+        "zookeeper.snapshot.maxBufferedBytes";
+    /** Default: false */
+    public static final String INCREMENTAL = "zookeeper.snapshot.incremental";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final int numWorkerThreads;
+    private final long maxBufferedBytes;
+    private final boolean incremental;
+
+    /** Layout of the last snapshot written, if it may be reused */
+    private SnapshotLayout previous;
+    /** Layout of the snapshot being written, until it is complete */
+    private SnapshotLayout pending;
+
+    public SnapshotSerializer(int numWorkerThreads, long maxBufferedBytes,
+            boolean incremental) {
+        this.numWorkerThreads = Math.max(0, numWorkerThreads);
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.incremental = incremental;
+    }
+
+    /**
+     * @param allowIncremental false if the snapshots written cannot be
+     *        reused, because the file offsets of their subtrees are unknown
+     * @return a serializer configured through system properties, or null if
+     *         neither parallel nor incremental snapshots are enabled
+     */
+    public static SnapshotSerializer fromSystemProperties(
+            boolean allowIncremental) {
+        int threads = Integer.getInteger(NUM_WORKER_THREADS, 0);
+        boolean incremental = Boolean.getBoolean(INCREMENTAL);
+        if (incremental && !allowIncremental) {
+            LOG.warn("{} is ignored, snapshots cannot be reused", INCREMENTAL);
+            incremental = false;
+        }
+        if (threads <= 0 && !incremental) {
+            return null;
+        }
+        long maxBuffered = Long.getLong(MAX_BUFFERED_BYTES, 64L * 1024 * 1024);
+        LOG.info("Snapshots use {} worker threads, incremental={}, maxBufferedBytes={}",
+                threads, incremental, maxBuffered);
+        return new SnapshotSerializer(threads, maxBuffered, incremental);
+    }
+
+    /**
+     * Serialize the tree.
+     *
+     * @param dt the tree
+     * @param out the stream that oa writes to; serialized subtrees are
+     *        written to it directly
+     * @param oa the archive to write the tree to
+     * @param snapFile the file being written, used to find the subtrees in
+     *        it for the next incremental snapshot
+     */
+    public void serialize(DataTree dt, PositionOutputStream out,
+            OutputArchive oa, File snapFile) throws IOException {
+        long start = Time.currentElapsedTime();
+        pending = null;
+        SnapshotLayout layout = new SnapshotLayout(snapFile);
+        RandomAccessFile reuseFrom = openPrevious(snapFile);
+        Writer writer = null;
+        try {
+            dt.serializeAcls(oa);
+            String children[] = dt.serializeNodeOnly(oa, "");
+            if (children != null) {
+                writer = new Writer(dt, children, reuseFrom);
+                writer.write(out, oa, layout);
+            }
+            dt.serializeEndMarker(oa);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing snapshot", e);
+        } finally {
+            if (writer != null) {
+                writer.stop();
+            }
+            if (reuseFrom != null) {
+                reuseFrom.close();
+            }
+        }
+        if (incremental) {
+            pending = layout;
+        }
+        if (writer != null) {
+            LOG.info("Serialized {} subtrees ({} walked, {} copied from {}) in {}ms",
+                    writer.segments.length, writer.walked, writer.copied,
+                    previous == null ? "no previous snapshot" : previous.file,
+                    Time.currentElapsedTime() - start);
+        }
+    }
+
+    /**
+     * Tell the serializer that the last snapshot was completely written and
+     * may be reused by the next one.
+     */
+    public void snapshotWritten(File snapFile) {
+        if (pending != null && pending.file.equals(snapFile)) {
+            pending.fileLength = snapFile.length();
+            previous = pending;
+        }
+        pending = null;
+    }
+
+    private RandomAccessFile openPrevious(File snapFile) {
+        if (!incremental || previous == null) {
+            return null;
+        }
+        // the previous file is about to be overwritten if it has the same name
+        if (previous.file.equals(snapFile)
+                || previous.file.length() != previous.fileLength) {
+            previous = null;
+            return null;
+        }
+        try {
+            return new RandomAccessFile(previous.file, "r");
+        } catch (IOException e) {
+            LOG.info("Unable to reuse previous snapshot {}: {}",
+                    previous.file, e.getMessage());
+            previous = null;
+            return null;
+        }
+    }
+
+    /** Where each subtree was written in a snapshot file */
+    private static class SnapshotLayout {
+        final File file;
+        long fileLength = -1;
+        final Map<String, SubtreeLocation> subtrees =
+            new HashMap<String, SubtreeLocation>();
+
+        SnapshotLayout(File file) {
+            this.file = file;
+        }
+    }
+
+    private static class SubtreeLocation {
+        final long offset;
+        final long length;
+        final long stamp;
+
+        SubtreeLocation(long offset, long length, long stamp) {
+            this.offset = offset;
+            this.length = length;
+            this.stamp = stamp;
+        }
+    }
+
+    /** A subtree hanging off the root */
+    private static class Segment {
+        final String name;
+        /** Where to copy the subtree from, null if it has to be walked */
+        final SubtreeLocation reuse;
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        private boolean done;
+        private ByteArrayOutputStream bytes;
+        private Throwable error;
+        private long stampBefore;
+        private long stampAfter;
+
+        Segment(String name, SubtreeLocation reuse) {
+            this.name = name;
+            this.reuse = reuse;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        synchronized void complete(ByteArrayOutputStream bytes,
+                long stampBefore, long stampAfter) {
+            this.bytes = bytes;
+            this.stampBefore = stampBefore;
+            this.stampAfter = stampAfter;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable t) {
+            error = t;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized ByteArrayOutputStream await()
+            throws InterruptedException, IOException
+        {
+            while (!done) {
+                wait();
+            }
+            if (error != null) {
+                throw new IOException("Failed to serialize /" + name, error);
+            }
+            return bytes;
+        }
+    }
+
+    /** Writes the subtrees of one snapshot */
+    private class Writer implements Runnable {
+        final DataTree dt;
+        final Segment segments[];
+        final RandomAccessFile reuseFrom;
+        final AtomicInteger nextSegment = new AtomicInteger();
+        final Object bufferLock = new Object();
+        long bufferedBytes;
+        volatile boolean stopped;
+        ExecutorService workers;
+        int walked;
+        int copied;
+
+        Writer(DataTree dt, String children[], RandomAccessFile reuseFrom) {
+            this.dt = dt;
+            this.reuseFrom = reuseFrom;
+            segments = new Segment[children.length];
+            int toWalk = 0;
+            for (int i = 0; i < children.length; i++) {
+                SubtreeLocation reuse = null;
+                if (reuseFrom != null) {
+                    reuse = previous.subtrees.get(children[i]);
+                    if (reuse != null
+                            && reuse.stamp != dt.getSubtreeStamp(children[i])) {
+                        reuse = null;
+                    }
+                }
+                segments[i] = new Segment(children[i], reuse);
+                if (reuse == null) {
+                    toWalk++;
+                }
+            }
+            // the snapshot thread walks one subtree itself
+            int threads = Math.min(numWorkerThreads, toWalk - 1);
+            if (threads > 0) {
+                workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SnapshotWorker-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                for (int i = 0; i < threads; i++) {
+                    workers.execute(this);
+                }
+            }
+        }
+
+        void write(PositionOutputStream out, OutputArchive oa,
+                SnapshotLayout layout) throws IOException, InterruptedException {
+            byte copyBuffer[] = null;
+            for (Segment segment : segments) {
+                long offset = out.getPosition();
+                long stamp;
+                if (segment.reuse != null) {
+                    if (copyBuffer == null) {
+                        copyBuffer = new byte[COPY_BUFFER_SIZE];
+                    }
+                    copy(segment.reuse, out, copyBuffer);
+                    stamp = segment.reuse.stamp;
+                    copied++;
+                } else if (segment.claim()) {
+                    long stampBefore = dt.getSubtreeStamp(segment.name);
+                    dt.serializeNode(oa, new StringBuilder("/" + segment.name));
+                    long stampAfter = dt.getSubtreeStamp(segment.name);
+                    stamp = stampBefore == stampAfter ? stampBefore : -1;
+                    walked++;
+                } else {
+                    ByteArrayOutputStream bytes = segment.await();
+                    bytes.writeTo(out);
+                    synchronized (bufferLock) {
+                        bufferedBytes -= bytes.size();
+                        bufferLock.notifyAll();
+                    }
+                    stamp = segment.stampBefore == segment.stampAfter
+                        ? segment.stampBefore : -1;
+                    walked++;
+                }
+                // a subtree that changed while it was written may only be
+                // partially up to date, so it can't be reused
+                if (stamp != -1) {
+                    layout.subtrees.put(segment.name, new SubtreeLocation(
+                            offset, out.getPosition() - offset, stamp));
+                }
+            }
+        }
+
+        private void copy(SubtreeLocation location, OutputStream out,
+                byte buffer[]) throws IOException {
+            reuseFrom.seek(location.offset);
+            long remaining = location.length;
+            while (remaining > 0) {
+                int read = reuseFrom.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + previous.file);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        /**
+         * Worker loop: serialize subtrees ahead of the snapshot thread.
+         */
+        @Override
+        public void run() {
+            while (!stopped) {
+                synchronized (bufferLock) {
+                    while (bufferedBytes >= maxBufferedBytes && !stopped) {
+                        try {
+                            bufferLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                int i = nextSegment.getAndIncrement();
+                if (i >= segments.length || stopped) {
+                    return;
+                }
+                Segment segment = segments[i];
+                if (segment.reuse != null || !segment.claim()) {
+                    continue;
+                }
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    long stampBefore = dt.getSubtreeStamp(segment.name);
+                    dt.serializeNode(BinaryOutputArchive.getArchive(bytes),
+                            new StringBuilder("/" + segment.name));
+                    long stampAfter = dt.getSubtreeStamp(segment.name);
+                    synchronized (bufferLock) {
+                        bufferedBytes += bytes.size();
+                    }
+                    segment.complete(bytes, stampBefore, stampAfter);
+                } catch (Throwable t) {
+                    segment.fail(t);
+                }
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            synchronized (bufferLock) {
+                bufferLock.notifyAll();
+            }
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * An output stream that keeps track of the number of bytes written
+     * through it.
+     */
+    public static class PositionOutputStream extends FilterOutputStream {
+        private long position;
+
+        public PositionOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+    }
+}
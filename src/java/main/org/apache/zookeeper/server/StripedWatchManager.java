@@ -0,0 +1,347 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch manager that lets operations on different paths and different
+ * connections proceed in parallel, instead of serializing all of them on a
+ * single monitor as {@link DefaultWatchManager} does.
+ *
+ * The watchers of a path are guarded by one of {@link #STRIPES} locks chosen
+ * by the hash of the path. The paths watched by a connection live in a
+ * per-watcher set guarded by its own monitor, so closing a connection only
+ * contends with operations on the paths it was watching. Locks are always
+ * taken in the order path stripe, then watcher set; removing a watcher takes
+ * them one at a time.
+ *
+ * Reports by path lock every stripe and therefore see a consistent view;
+ * reports by connection and the summary are assembled without blocking
+ * writers.
+ */
+public class StripedWatchManager implements WatchManager {
+    private static final Logger LOG = LoggerFactory.getLogger(StripedWatchManager.class);
+
+    /** Number of path lock stripes, a power of two */
+    static final int STRIPES = 64;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    /** Watchers of each path, each set guarded by the stripe of its path */
+    private final ConcurrentHashMap<String, HashSet<Watcher>> watchTable =
+        new ConcurrentHashMap<String, HashSet<Watcher>>();
+
+    private final ConcurrentHashMap<Watcher, WatcherPaths> watch2Paths =
+        new ConcurrentHashMap<Watcher, WatcherPaths>();
+
+    private final AtomicInteger watchCount = new AtomicInteger();
+
+    /**
+     * The paths watched by a watcher, guarded by its own monitor.
+     */
+    private static class WatcherPaths {
+        // cnxns typically have many watches, so use default cap here
+        final HashSet<String> paths = new HashSet<String>();
+        /** Set once the watcher has been removed, no path may be added after */
+        boolean dead;
+    }
+
+    public StripedWatchManager() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private ReentrantLock lockFor(String path) {
+        int h = path.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (STRIPES - 1)];
+    }
+
+    @Override
+    public int size() {
+        return watchCount.get();
+    }
+
+    @Override
+    public void addWatch(String path, Watcher watcher) {
+        ReentrantLock lock = lockFor(path);
+        lock.lock();
+        try {
+            HashSet<Watcher> list = watchTable.get(path);
+            if (list == null) {
+                list = new HashSet<Watcher>(4);
+                watchTable.put(path, list);
+            }
+            if (!list.add(watcher)) {
+                return;
+            }
+            while (true) {
+                WatcherPaths wp = watch2Paths.get(watcher);
+                if (wp == null) {
+                    wp = new WatcherPaths();
+                    WatcherPaths existing = watch2Paths.putIfAbsent(watcher, wp);
+                    if (existing != null) {
+                        wp = existing;
+                    }
+                }
+                synchronized (wp) {
+                    if (!wp.dead) {
+                        wp.paths.add(path);
+                        break;
+                    }
+                }
+                // the watcher was removed concurrently, its set is no longer
+                // mapped so the next attempt registers a new one
+            }
+            watchCount.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        WatcherPaths wp = watch2Paths.remove(watcher);
+        if (wp == null) {
+            return;
+        }
+        String[] paths;
+        synchronized (wp) {
+            wp.dead = true;
+            paths = wp.paths.toArray(new String[wp.paths.size()]);
+        }
+        for (String p : paths) {
+            ReentrantLock lock = lockFor(p);
+            lock.lock();
+            try {
+                HashSet<Watcher> list = watchTable.get(p);
+                if (list != null && list.remove(watcher)) {
+                    watchCount.decrementAndGet();
+                    if (list.isEmpty()) {
+                        watchTable.remove(p);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<Watcher> triggerWatch(String path, EventType type) {
+        return triggerWatch(path, type, null);
+    }
+
+    @Override
+    public Set<Watcher> triggerWatch(String path, EventType type, Set<Watcher> supress) {
+        WatchedEvent e = new NotificationEvent(type, path);
+        HashSet<Watcher> watchers;
+        ReentrantLock lock = lockFor(path);
+        lock.lock();
+        try {
+            watchers = watchTable.remove(path);
+            if (watchers == null || watchers.isEmpty()) {
+                if (LOG.isTraceEnabled()) {
+                    ZooTrace.logTraceMessage(LOG,
+                            ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                            "No watchers for " + path);
+                }
+                return null;
+            }
+            for (Watcher w : watchers) {
+                WatcherPaths wp = watch2Paths.get(w);
+                if (wp != null) {
+                    synchronized (wp) {
+                        wp.paths.remove(path);
+                    }
+                }
+            }
+            watchCount.addAndGet(-watchers.size());
+        } finally {
+            lock.unlock();
+        }
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+        return watchers;
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher) {
+        WatcherPaths wp = watch2Paths.get(watcher);
+        if (wp == null) {
+            return false;
+        }
+        synchronized (wp) {
+            return !wp.dead && wp.paths.contains(path);
+        }
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher) {
+        ReentrantLock lock = lockFor(path);
+        lock.lock();
+        try {
+            WatcherPaths wp = watch2Paths.get(watcher);
+            if (wp == null) {
+                return false;
+            }
+            synchronized (wp) {
+                if (!wp.paths.remove(path)) {
+                    return false;
+                }
+            }
+
+            HashSet<Watcher> list = watchTable.get(path);
+            if (list == null || !list.remove(watcher)) {
+                return false;
+            }
+            watchCount.decrementAndGet();
+            if (list.isEmpty()) {
+                watchTable.remove(path);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Brief description of this object.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(watch2Paths.size()).append(" connections watching ")
+            .append(watchTable.size()).append(" paths\n");
+        sb.append("Total watches:").append(watchCount.get());
+
+        return sb.toString();
+    }
+
+    @Override
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            lockAll();
+            try {
+                for (Entry<String, HashSet<Watcher>> e : watchTable.entrySet()) {
+                    pwriter.println(e.getKey());
+                    for (Watcher w : e.getValue()) {
+                        pwriter.print("\t0x");
+                        pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
+                        pwriter.print("\n");
+                    }
+                }
+            } finally {
+                unlockAll();
+            }
+        } else {
+            for (Entry<Watcher, Set<String>> e : copyWatch2Paths().entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public WatchesReport getWatches() {
+        Map<Long, Set<String>> id2paths = new HashMap<Long, Set<String>>();
+        for (Entry<Watcher, Set<String>> e : copyWatch2Paths().entrySet()) {
+            Long id = ((ServerCnxn) e.getKey()).getSessionId();
+            id2paths.put(id, e.getValue());
+        }
+        return new WatchesReport(id2paths);
+    }
+
+    @Override
+    public WatchesPathReport getWatchesByPath() {
+        Map<String, Set<Long>> path2ids = new HashMap<String, Set<Long>>();
+        lockAll();
+        try {
+            for (Entry<String, HashSet<Watcher>> e : watchTable.entrySet()) {
+                Set<Long> ids = new HashSet<Long>(e.getValue().size());
+                path2ids.put(e.getKey(), ids);
+                for (Watcher watcher : e.getValue()) {
+                    ids.add(((ServerCnxn) watcher).getSessionId());
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+        return new WatchesPathReport(path2ids);
+    }
+
+    @Override
+    public WatchesSummary getWatchesSummary() {
+        return new WatchesSummary(watch2Paths.size(), watchTable.size(),
+                                  watchCount.get());
+    }
+
+    /**
+     * Copy the paths watched by each live watcher.
+     */
+    private Map<Watcher, Set<String>> copyWatch2Paths() {
+        Map<Watcher, Set<String>> copy = new HashMap<Watcher, Set<String>>();
+        for (Entry<Watcher, WatcherPaths> e : watch2Paths.entrySet()) {
+            WatcherPaths wp = e.getValue();
+            synchronized (wp) {
+                if (!wp.dead) {
+                    copy.put(e.getKey(), new HashSet<String>(wp.paths));
+                }
+            }
+        }
+        return copy;
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.unlock();
+        }
+    }
+}
@@ -24,6 +24,7 @@
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import org.apache.zookeeper.common.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,10 +44,26 @@
  *             It never send ack back to the leader, so the nextProcessor will
  *             be null. This change the semantic of txnlog on the observer
  *             since it only contains committed txns.
+ *
+ * By default the thread that appends to the log also syncs it, so appending
+ * stops while the disk is busy. With group commit enabled
+ * (zookeeper.syncGroupCommit=true) a separate flush thread syncs the log and
+ * hands the synced requests to the next processor, while this thread keeps
+ * appending the requests that make up the next batch. A batch holds at most
+ * zookeeper.syncMaxBatchSize requests, and the flush thread waits up to
+ * zookeeper.syncMaxBatchDelayMs for a batch to fill up before syncing it.
  */
 public class SyncRequestProcessor extends ZooKeeperCriticalThread implements
         RequestProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(SyncRequestProcessor.class);
+
+    /** Default: false */
+    public static final String GROUP_COMMIT = "zookeeper.syncGroupCommit";
+    /** Default: 1000 */
+    public static final String MAX_BATCH_SIZE = "zookeeper.syncMaxBatchSize";
+    /** Default: 0 (ms) */
+    public static final String MAX_BATCH_DELAY = "zookeeper.syncMaxBatchDelayMs";
+
     private final ZooKeeperServer zks;
     private final LinkedBlockingQueue<Request> queuedRequests =
         new LinkedBlockingQueue<Request>();
@@ -69,12 +86,28 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements
 
     private final Request requestOfDeath = Request.requestOfDeath;
 
+    /** The number of requests after which the log is synced */
+    private final int maxBatchSize;
+    private final long maxBatchDelayMS;
+
+    /** Syncs the log in group commit mode, null otherwise */
+    private final GroupCommitThread groupCommitThread;
+
     public SyncRequestProcessor(ZooKeeperServer zks,
             RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks
                 .getZooKeeperServerListener());
         this.zks = zks;
         this.nextProcessor = nextProcessor;
+        maxBatchSize = Math.max(1, Integer.getInteger(MAX_BATCH_SIZE, 1000));
+        maxBatchDelayMS = Math.max(0, Long.getLong(MAX_BATCH_DELAY, 0));
+        if (Boolean.getBoolean(GROUP_COMMIT)) {
+            LOG.info("Group commit enabled, maxBatchSize={}, maxBatchDelayMs={}",
+                    maxBatchSize, maxBatchDelayMS);
+            groupCommitThread = new GroupCommitThread();
+        } else {
+            groupCommitThread = null;
+        }
         running = true;
     }
 
@@ -95,6 +128,14 @@ public static int getSnapCount() {
         return snapCount;
     }
 
+    @Override
+    public synchronized void start() {
+        if (groupCommitThread != null) {
+            groupCommitThread.start();
+        }
+        super.start();
+    }
+
     @Override
     public void run() {
         try {
@@ -142,12 +183,14 @@ public void run() {
                             }
                             logCount = 0;
                         }
-                    } else if (toFlush.isEmpty()) {
+                    } else if (toFlush.isEmpty() && (groupCommitThread == null
+                            || groupCommitThread.isIdle())) {
                         // optimization for read heavy workloads
                         // iff this is a read, and there are no pending
                         // flushes (writes), then just pass this to the next
                         // processor
                         if (nextProcessor != null) {
+                            si.syncEndTime = System.nanoTime();
                             nextProcessor.processRequest(si);
                             if (nextProcessor instanceof Flushable) {
                                 ((Flushable)nextProcessor).flush();
@@ -155,8 +198,12 @@ public void run() {
                         }
                         continue;
                     }
+                    if (groupCommitThread != null) {
+                        groupCommitThread.add(si);
+                        continue;
+                    }
                     toFlush.add(si);
-                    if (toFlush.size() > 1000) {
+                    if (toFlush.size() >= maxBatchSize) {
                         flush(toFlush);
                     }
                 }
@@ -175,9 +222,14 @@ private void flush(LinkedList<Request> toFlush)
         if (toFlush.isEmpty())
             return;
 
+        long startTime = Time.currentElapsedTime();
         zks.getZKDatabase().commit();
+        zks.serverStats().updateSyncBatch(toFlush.size(),
+                Time.currentElapsedTime() - startTime);
+        long syncEndTime = System.nanoTime();
         while (!toFlush.isEmpty()) {
             Request i = toFlush.remove();
+            i.syncEndTime = syncEndTime;
             if (nextProcessor != null) {
                 nextProcessor.processRequest(i);
             }
@@ -194,6 +246,9 @@ public void shutdown() {
             if(running){
                 this.join();
             }
+            if (groupCommitThread != null) {
+                groupCommitThread.shutdown();
+            }
             if (!toFlush.isEmpty()) {
                 flush(toFlush);
             }
@@ -211,7 +266,112 @@ public void shutdown() {
 
     public void processRequest(Request request) {
         // request.addRQRec(">sync");
+        request.syncStartTime = System.nanoTime();
         queuedRequests.add(request);
     }
 
+    /**
+     * Syncs the log and passes the synced requests on to the next processor.
+     * Requests appended to the log while a sync is in progress accumulate
+     * in the pending batch, which is synced as a whole once the previous
+     * sync has completed.
+     */
+    private class GroupCommitThread extends ZooKeeperCriticalThread {
+        private LinkedList<Request> pending = new LinkedList<Request>();
+        private long pendingSince;
+        private boolean syncing = false;
+        private boolean stopping = false;
+        private boolean stopped = false;
+
+        GroupCommitThread() {
+            super("SyncFlushThread:" + zks.getServerId(),
+                    zks.getZooKeeperServerListener());
+        }
+
+        /**
+         * @return true if there are no requests waiting to be synced
+         */
+        synchronized boolean isIdle() {
+            return pending.isEmpty() && !syncing;
+        }
+
+        /**
+         * Add a request to the pending batch. Blocks while the batch is
+         * full, which only happens if the disk cannot keep up.
+         */
+        synchronized void add(Request request)
+            throws InterruptedException, IOException
+        {
+            while (pending.size() >= maxBatchSize && !stopped) {
+                wait();
+            }
+            if (stopped) {
+                throw new IOException(getName() + " is not running");
+            }
+            if (pending.isEmpty()) {
+                pendingSince = Time.currentElapsedTime();
+            }
+            pending.add(request);
+            notifyAll();
+        }
+
+        /**
+         * Wait for the next batch to be ready.
+         * @return the batch, or null if shutting down and nothing is left
+         */
+        private synchronized LinkedList<Request> nextBatch()
+            throws InterruptedException
+        {
+            syncing = false;
+            while (pending.isEmpty() && !stopping) {
+                wait();
+            }
+            if (pending.isEmpty()) {
+                return null;
+            }
+            long deadline = pendingSince + maxBatchDelayMS;
+            long now;
+            while (!stopping && pending.size() < maxBatchSize
+                    && (now = Time.currentElapsedTime()) < deadline) {
+                wait(deadline - now);
+            }
+            LinkedList<Request> batch = pending;
+            pending = new LinkedList<Request>();
+            syncing = true;
+            // wake up the sync thread if it is waiting for room
+            notifyAll();
+            return batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                LinkedList<Request> batch;
+                while ((batch = nextBatch()) != null) {
+                    flush(batch);
+                }
+            } catch (Throwable t) {
+                handleException(getName(), t);
+            } finally {
+                synchronized (this) {
+                    stopped = true;
+                    notifyAll();
+                }
+            }
+            LOG.info("{} exited!", getName());
+        }
+
+        /**
+         * Sync whatever is still pending and stop.
+         */
+        void shutdown() throws InterruptedException {
+            synchronized (this) {
+                stopping = true;
+                notifyAll();
+            }
+            if (isAlive()) {
+                join();
+            }
+        }
+    }
 }
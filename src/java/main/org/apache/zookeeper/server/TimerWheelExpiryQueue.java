@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.common.Time;
+
+/**
+ * An {@link ExpiryTracker} backed by a hashed timer wheel.
+ *
+ * The wheel has a fixed number of slots, one per expiry interval. An element
+ * sits in the slot of the tick it expires at, or in the last slot of the
+ * wheel if it expires further away than the wheel reaches. Updating an
+ * element only records its new expiration time; it is moved to another slot
+ * when its slot comes up and it turns out to expire later. As elements are
+ * usually updated long before they expire, an update is a map lookup and a
+ * volatile write, and elements are moved at most once per expiration time
+ * rather than on every update.
+ */
+public class TimerWheelExpiryQueue<E> implements ExpiryTracker<E> {
+    /** Number of slots of the wheel if not given */
+    public static final int DEFAULT_WHEEL_SIZE = 64;
+
+    private static class Node<E> {
+        final E elem;
+        /** Time at which the element expires */
+        volatile long expiryTime;
+        /** Tick of the slot the node is in, or -1 if in none */
+        volatile long slotTick = -1;
+        volatile boolean removed;
+
+        Node(E elem) {
+            this.elem = elem;
+        }
+    }
+
+    private static class Slot<E> {
+        /**
+         * Nodes scheduled for this slot. Nodes which moved to another slot
+         * since are left behind and skipped when the slot comes up.
+         */
+        List<Node<E>> nodes = new ArrayList<Node<E>>();
+    }
+
+    private final ConcurrentHashMap<E, Node<E>> elemMap =
+        new ConcurrentHashMap<E, Node<E>>();
+    private final List<Slot<E>> slots;
+
+    private final AtomicLong nextExpirationTime = new AtomicLong();
+    private final int expirationInterval;
+
+    public TimerWheelExpiryQueue(int expirationInterval) {
+        this(expirationInterval, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param expirationInterval length of a tick of the wheel in ms
+     * @param wheelSize number of slots of the wheel, at least 2
+     */
+    public TimerWheelExpiryQueue(int expirationInterval, int wheelSize) {
+        if (wheelSize < 2) {
+            throw new IllegalArgumentException(
+                    "Wheel size must be at least 2: " + wheelSize);
+        }
+        this.expirationInterval = expirationInterval;
+        slots = new ArrayList<Slot<E>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new Slot<E>());
+        }
+        nextExpirationTime.set(roundToNextInterval(Time.currentElapsedTime()));
+    }
+
+    private long roundToNextInterval(long time) {
+        return (time / expirationInterval + 1) * expirationInterval;
+    }
+
+    public Long remove(E elem) {
+        Node<E> node = elemMap.remove(elem);
+        if (node == null) {
+            return null;
+        }
+        // left in its slot until the slot comes up
+        node.removed = true;
+        return node.expiryTime;
+    }
+
+    public Long update(E elem, int timeout) {
+        Node<E> node = elemMap.get(elem);
+        if (node == null) {
+            node = new Node<E>(elem);
+            Node<E> existing = elemMap.putIfAbsent(elem, node);
+            if (existing != null) {
+                node = existing;
+            }
+        }
+        long now = Time.currentElapsedTime();
+        long newExpiryTime = roundToNextInterval(now + timeout);
+        if (node.expiryTime == newExpiryTime) {
+            // No change, so nothing to update
+            return null;
+        }
+        node.expiryTime = newExpiryTime;
+
+        // Only move the node if its current slot comes up too late
+        long tick = newExpiryTime / expirationInterval;
+        long slotTick = node.slotTick;
+        if (slotTick == -1 || tick < slotTick) {
+            schedule(node, tick);
+        }
+        return newExpiryTime;
+    }
+
+    /**
+     * Put a node in the slot of the given tick, or of the furthest tick the
+     * wheel reaches.
+     */
+    private void schedule(Node<E> node, long tick) {
+        int wheelSize = slots.size();
+        while (true) {
+            long nextTick = nextExpirationTime.get() / expirationInterval;
+            // The slot of nextTick - 1 may still be being emptied by poll(),
+            // so stop short of it
+            long slotTick = Math.max(nextTick,
+                    Math.min(tick, nextTick + wheelSize - 2));
+            Slot<E> slot = slots.get((int) (slotTick % wheelSize));
+            synchronized (slot) {
+                if (nextExpirationTime.get() / expirationInterval == nextTick) {
+                    node.slotTick = slotTick;
+                    slot.nodes.add(node);
+                    return;
+                }
+            }
+            // The wheel turned in the meantime, try again
+        }
+    }
+
+    public long getWaitTime() {
+        long now = Time.currentElapsedTime();
+        long expirationTime = nextExpirationTime.get();
+        return now < expirationTime ? (expirationTime - now) : 0L;
+    }
+
+    /**
+     * Turn the wheel by one tick if it is due, returning the elements of the
+     * slot that expired and moving the others to the slot they expire at.
+     */
+    public Set<E> poll() {
+        long now = Time.currentElapsedTime();
+        long expirationTime = nextExpirationTime.get();
+        if (now < expirationTime) {
+            return Collections.emptySet();
+        }
+        if (!nextExpirationTime.compareAndSet(
+                expirationTime, expirationTime + expirationInterval)) {
+            return Collections.emptySet();
+        }
+
+        long tick = expirationTime / expirationInterval;
+        Slot<E> slot = slots.get((int) (tick % slots.size()));
+        List<Node<E>> nodes;
+        synchronized (slot) {
+            nodes = slot.nodes;
+            slot.nodes = new ArrayList<Node<E>>();
+        }
+
+        Set<E> expired = new HashSet<E>();
+        for (Node<E> node : nodes) {
+            if (node.removed || node.slotTick != tick) {
+                continue;
+            }
+            long expiryTick = node.expiryTime / expirationInterval;
+            if (expiryTick > tick) {
+                schedule(node, expiryTick);
+                continue;
+            }
+            node.slotTick = -1;
+            expired.add(node.elem);
+            // Like ExpiryQueue, an element updated while it expires is
+            // tracked again
+            expiryTick = node.expiryTime / expirationInterval;
+            if (expiryTick > tick && node.slotTick == -1) {
+                schedule(node, expiryTick);
+            }
+        }
+        return expired;
+    }
+
+    public void dump(PrintWriter pwriter) {
+        Map<Long, Set<E>> expiryMap = getExpiryMap();
+        pwriter.print("Sets (");
+        pwriter.print(expiryMap.size());
+        pwriter.print(")/(");
+        pwriter.print(elemMap.size());
+        pwriter.println("):");
+        for (Map.Entry<Long, Set<E>> e : expiryMap.entrySet()) {
+            pwriter.print(e.getValue().size());
+            pwriter.print(" expire at ");
+            pwriter.print(Time.elapsedTimeToDate(e.getKey()));
+            pwriter.println(":");
+            for (E elem : e.getValue()) {
+                pwriter.print("\t");
+                pwriter.println(elem.toString());
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the expiration time -> elements mapping, sorted
+     * by time. Unlike ExpiryQueue, this is built on every call.
+     */
+    public Map<Long, Set<E>> getExpiryMap() {
+        Map<Long, Set<E>> expiryMap = new TreeMap<Long, Set<E>>();
+        for (Node<E> node : elemMap.values()) {
+            if (node.slotTick == -1) {
+                continue;
+            }
+            Set<E> set = expiryMap.get(node.expiryTime);
+            if (set == null) {
+                set = new HashSet<E>();
+                expiryMap.put(node.expiryTime, set);
+            }
+            set.add(node.elem);
+        }
+        return Collections.unmodifiableMap(expiryMap);
+    }
+}
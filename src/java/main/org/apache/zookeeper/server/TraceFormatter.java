@@ -67,6 +67,8 @@ public static String op2String(int op) {
             return "createSession";
         case OpCode.closeSession:
             return "closeSession";
+        case OpCode.closeSessions:
+            return "closeSessions";
         case OpCode.error:
             return "error";
         case OpCode.reconfig:
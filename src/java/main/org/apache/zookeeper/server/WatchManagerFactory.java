@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the {@link WatchManager} instances used by the {@link DataTree}.
+ */
+public class WatchManagerFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerFactory.class);
+
+    /**
+     * Class name of the watch manager implementation.
+     * Default: {@link DefaultWatchManager}
+     */
+    public static final String ZOOKEEPER_WATCH_MANAGER_NAME = "zookeeper.watchManagerName";
+
+    private WatchManagerFactory() {
+    }
+
+    /**
+     * Create a watch manager of the class named by
+     * {@link #ZOOKEEPER_WATCH_MANAGER_NAME}.
+     *
+     * @throws IllegalArgumentException if the class can't be instantiated
+     */
+    public static WatchManager createWatchManager() {
+        String watchManagerName = System.getProperty(ZOOKEEPER_WATCH_MANAGER_NAME);
+        if (watchManagerName == null) {
+            return new DefaultWatchManager();
+        }
+        try {
+            WatchManager watchManager = (WatchManager) Class.forName(watchManagerName).newInstance();
+            LOG.debug("Using {} as watch manager", watchManagerName);
+            return watchManager;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Couldn't instantiate "
+                    + watchManagerName, e);
+        }
+    }
+}
@@ -28,6 +28,7 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -84,8 +85,19 @@ public class ZKDatabase {
     private double snapshotSizeFactor;
 
     public static final int commitLogCount = 500;
+    /** Default: 500 */
+    public static final String COMMIT_LOG_COUNT = "zookeeper.commitLogCount";
+    /** Default: 0, i.e. the committed log is only bounded by its count */
+    public static final String COMMIT_LOG_BYTES = "zookeeper.commitLogBytes";
     protected static int commitLogBuffer = 700;
     protected LinkedList<Proposal> committedLog = new LinkedList<Proposal>();
+    /**
+     * Sum of the txn bytes of the proposals in the committed log and of
+     * their packets serialized for learners
+     */
+    protected final AtomicLong committedLogBytes = new AtomicLong();
+    private final int maxCommitLogCount;
+    private final long maxCommitLogBytes;
     protected ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
     volatile private boolean initialized = false;
 
@@ -116,6 +128,12 @@ public ZKDatabase(FileTxnSnapLog snapLog) {
             snapshotSizeFactor = DEFAULT_SNAPSHOT_SIZE_FACTOR;
         }
         LOG.info("{} = {}", SNAPSHOT_SIZE_FACTOR, snapshotSizeFactor);
+
+        maxCommitLogCount = Math.max(1,
+                Integer.getInteger(COMMIT_LOG_COUNT, commitLogCount));
+        maxCommitLogBytes = Long.getLong(COMMIT_LOG_BYTES, 0);
+        LOG.info("{} = {}, {} = {}", COMMIT_LOG_COUNT, maxCommitLogCount,
+                COMMIT_LOG_BYTES, maxCommitLogBytes);
     }
 
     /**
@@ -144,7 +162,11 @@ public void clear() {
         WriteLock lock = logLock.writeLock();
         try {
             lock.lock();
+            for (Proposal p : committedLog) {
+                p.setSerializedBytesCounter(null);
+            }
             committedLog.clear();
+            committedLogBytes.set(0);
         } finally {
             lock.unlock();
         }
@@ -240,29 +262,51 @@ public void onTxnLoaded(TxnHeader hdr,Record txn){
             }
         };
 
+        long start = Time.currentElapsedTime();
         long zxid = snapLog.restore(dataTree,sessionsWithTimeouts,listener);
         initialized = true;
+        LOG.info("Loaded database up to zxid 0x{} in {} ms: snapshot loaded"
+                + " in {} ms, {} txns replayed in {} ms",
+                Long.toHexString(zxid), Time.currentElapsedTime() - start,
+                snapLog.getSnapLoadTime(), snapLog.getTxnReplayCount(),
+                snapLog.getTxnReplayTime());
         return zxid;
     }
 
+    /**
+     * @return time in milliseconds the last load took to read the snapshot
+     */
+    public long getSnapLoadTime() {
+        return snapLog.getSnapLoadTime();
+    }
+
+    /**
+     * @return time in milliseconds the last load took to replay the txn log
+     */
+    public long getTxnReplayTime() {
+        return snapLog.getTxnReplayTime();
+    }
+
+    /**
+     * @return number of transactions replayed by the last load
+     */
+    public long getTxnReplayCount() {
+        return snapLog.getTxnReplayCount();
+    }
+
     /**
      * maintains a list of last <i>committedLog</i>
-     *  or so committed requests. This is used for
-     * fast follower synchronization.
+     *  or so committed requests, bounded by zookeeper.commitLogCount
+     * proposals and, if set, zookeeper.commitLogBytes bytes of txns,
+     * including their packets serialized for learners. The log is trimmed
+     * for those serializations when the next proposal is added. This is
+     * used for fast follower synchronization.
      * @param request committed request
      */
     public void addCommittedProposal(Request request) {
         WriteLock wl = logLock.writeLock();
         try {
             wl.lock();
-            if (committedLog.size() > commitLogCount) {
-                committedLog.removeFirst();
-                minCommittedLog = committedLog.getFirst().packet.getZxid();
-            }
-            if (committedLog.isEmpty()) {
-                minCommittedLog = request.zxid;
-                maxCommittedLog = request.zxid;
-            }
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
@@ -280,8 +324,20 @@ public void addCommittedProposal(Request request) {
             Proposal p = new Proposal();
             p.packet = pp;
             p.request = request;
+            p.setSerializedBytesCounter(committedLogBytes);
             committedLog.add(p);
+            committedLogBytes.addAndGet(pp.getData().length);
             maxCommittedLog = p.packet.getZxid();
+            while (committedLog.size() > maxCommitLogCount + 1
+                    || (maxCommitLogBytes > 0 && committedLog.size() > 1
+                        && committedLogBytes.get() > maxCommitLogBytes)) {
+                Proposal removed = committedLog.removeFirst();
+                // stop counting a serialization made from here on
+                removed.setSerializedBytesCounter(null);
+                committedLogBytes.addAndGet(-(removed.packet.getData().length
+                        + removed.getSerializedSize()));
+            }
+            minCommittedLog = committedLog.getFirst().packet.getZxid();
         } finally {
             wl.unlock();
         }
@@ -26,6 +26,7 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -33,6 +34,7 @@
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.Set;
 
 import javax.security.sasl.SaslException;
@@ -60,12 +62,14 @@
 import org.apache.zookeeper.server.RequestProcessor.RequestProcessorException;
 import org.apache.zookeeper.server.ServerCnxn.CloseRequestException;
 import org.apache.zookeeper.server.SessionTracker.Session;
-import org.apache.zookeeper.server.SessionTracker.SessionExpirer;
+import org.apache.zookeeper.server.SessionTracker.BatchSessionExpirer;
 import org.apache.zookeeper.server.auth.ProviderRegistry;
 import org.apache.zookeeper.server.auth.ServerAuthenticationProvider;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.quorum.ReadOnlyZooKeeperServer;
+import org.apache.zookeeper.txn.CloseSessionsTxn;
 import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.SessionIdTxn;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,7 +80,7 @@
  * following chain of RequestProcessors to process requests:
  * PrepRequestProcessor -> SyncRequestProcessor -> FinalRequestProcessor
  */
-public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
+public class ZooKeeperServer implements BatchSessionExpirer, ServerStats.Provider {
     protected static final Logger LOG;
 
     static {
@@ -87,6 +91,13 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
 
     protected ZooKeeperServerBean jmxServerBean;
     protected DataTreeBean jmxDataTreeBean;
+    protected RequestStagesBean jmxRequestStagesBean;
+
+    /** Default: false */
+    public static final String READ_FAST_PATH = "zookeeper.readFastPath";
+    /** Default: 1, i.e. one closeSession transaction per expired session */
+    public static final String CLOSE_SESSIONS_BATCH_SIZE =
+        "zookeeper.closeSessionsBatchSize";
 
     public static final int DEFAULT_TICK_TIME = 3000;
     protected int tickTime = DEFAULT_TICK_TIME;
@@ -113,6 +124,20 @@ protected enum State {
     static final private long superSecret = 0XB3415C00L;
 
     private final AtomicInteger requestsInProcess = new AtomicInteger(0);
+
+    private final boolean readFastPath = Boolean.getBoolean(READ_FAST_PATH);
+    private final int closeSessionsBatchSize =
+        Integer.getInteger(CLOSE_SESSIONS_BATCH_SIZE, 1);
+    /** Answers the reads taking the fast path, see {@link #processRead} */
+    private final FinalRequestProcessor readProcessor =
+        new FinalRequestProcessor(this);
+    private final AtomicLong fastPathReads = new AtomicLong();
+    /**
+     * Keeps the reads taking the fast path from running while a txn is
+     * applied to the data tree
+     */
+    final ReentrantReadWriteLock fastReadGate =
+        new ReentrantReadWriteLock();
     final List<ChangeRecord> outstandingChanges = new ArrayList<ChangeRecord>();
     // this data structure must be accessed under the outstandingChanges lock
     final HashMap<String, ChangeRecord> outstandingChangesForPath =
@@ -393,6 +418,61 @@ public void expire(Session session) {
         close(sessionId);
     }
 
+    /**
+     * Expire sessions which timed out together. Unless
+     * zookeeper.closeSessionsBatchSize is above 1, this is the same as
+     * expiring them one by one. Otherwise global sessions are closed by
+     * closeSessions transactions of up to that many sessions each, so that
+     * sessions expiring in bulk, e.g. after a network partition, take a
+     * fraction of the proposals.
+     */
+    public void expire(Collection<? extends Session> sessions) {
+        List<Long> batch = new ArrayList<Long>();
+        for (Session session : sessions) {
+            long sessionId = session.getSessionId();
+            if (closeSessionsBatchSize <= 1 || isLocalSession(sessionId)) {
+                expire(session);
+                continue;
+            }
+            LOG.info("Expiring session 0x" + Long.toHexString(sessionId)
+                    + ", timeout of " + session.getTimeout() + "ms exceeded");
+            batch.add(sessionId);
+            if (batch.size() == closeSessionsBatchSize) {
+                closeSessions(batch);
+                batch = new ArrayList<Long>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            closeSessions(batch);
+        }
+    }
+
+    private void closeSessions(List<Long> sessionIds) {
+        List<SessionIdTxn> sessions = new ArrayList<SessionIdTxn>();
+        for (long sessionId : sessionIds) {
+            sessions.add(new SessionIdTxn(sessionId));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            new CloseSessionsTxn(sessions).serialize(
+                    BinaryOutputArchive.getArchive(baos), "request");
+        } catch (IOException e) {
+            // cannot happen writing to memory
+            throw new RuntimeException(e);
+        }
+        LOG.info("Closing " + sessionIds.size() + " sessions together");
+        submitRequest(new Request(null, 0, 0, OpCode.closeSessions,
+                ByteBuffer.wrap(baos.toByteArray()), null));
+    }
+
+    /**
+     * @return true if the session is local to this server, in which case
+     *         closing it does not need a transaction
+     */
+    protected boolean isLocalSession(long sessionId) {
+        return false;
+    }
+
     public static class MissingSessionException extends IOException {
         private static final long serialVersionUID = 7467414635467261007L;
 
@@ -427,6 +507,7 @@ protected void registerJMX() {
                 LOG.warn("Failed to register with JMX", e);
                 jmxDataTreeBean = null;
             }
+            registerRequestStagesJMX();
         } catch (Exception e) {
             LOG.warn("Failed to register with JMX", e);
             jmxServerBean = null;
@@ -564,8 +645,35 @@ public synchronized void shutdown(boolean fullyShutDown) {
         unregisterJMX();
     }
 
+    /**
+     * Register the request stages bean as a child of the server bean.
+     */
+    protected void registerRequestStagesJMX() {
+        try {
+            jmxRequestStagesBean =
+                new RequestStagesBean(serverStats().getRequestStages());
+            MBeanRegistry.getInstance().register(jmxRequestStagesBean,
+                    jmxServerBean);
+        } catch (Exception e) {
+            LOG.warn("Failed to register with JMX", e);
+            jmxRequestStagesBean = null;
+        }
+    }
+
+    protected void unregisterRequestStagesJMX() {
+        try {
+            if (jmxRequestStagesBean != null) {
+                MBeanRegistry.getInstance().unregister(jmxRequestStagesBean);
+            }
+        } catch (Exception e) {
+            LOG.warn("Failed to unregister with JMX", e);
+        }
+        jmxRequestStagesBean = null;
+    }
+
     protected void unregisterJMX() {
         // unregister from JMX
+        unregisterRequestStagesJMX();
         try {
             if (jmxDataTreeBean != null) {
                 MBeanRegistry.getInstance().unregister(jmxDataTreeBean);
@@ -785,8 +893,13 @@ public void submitRequest(Request si) {
         }
         try {
             touch(si.cnxn);
-            boolean validpacket = Request.isValid(si.type);
+            // closeSessions is only ever generated by the server itself
+            boolean validpacket = Request.isValid(si.type)
+                || (si.cnxn == null && si.type == OpCode.closeSessions);
             if (validpacket) {
+                if (si.cnxn != null) {
+                    si.cnxn.incInProcess();
+                }
                 firstProcessor.processRequest(si);
                 if (si.cnxn != null) {
                     incInProcess();
@@ -1107,12 +1220,78 @@ public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOE
                 // Always treat packet from the client as a possible
                 // local request.
                 setLocalSessionFlag(si);
-                submitRequest(si);
+                if (!processRead(si)) {
+                    submitRequest(si);
+                }
             }
         }
         cnxn.incrOutstandingRequests(h);
     }
 
+    /**
+     * Answer a read request right away, on the thread that received it,
+     * rather than passing it down the request processors.
+     *
+     * This is only done when the connection has no other request being
+     * processed: the processors would then hand the read straight to the
+     * final processor anyway, and the client sees the responses in the
+     * order it sent the requests. Like the reads CommitProcessor lets
+     * through, it is also only done while no txn is being applied, so the
+     * read neither sees a change before its watches were triggered nor
+     * replies with a zxid older than the data. Anything unusual about the
+     * session is left to the processors to deal with.
+     *
+     * @return whether the request was answered
+     */
+    private boolean processRead(Request si) {
+        if (!readFastPath || state != State.RUNNING) {
+            return false;
+        }
+        switch (si.type) {
+        case OpCode.exists:
+        case OpCode.getData:
+        case OpCode.getChildren:
+        case OpCode.getChildren2:
+            break;
+        default:
+            return false;
+        }
+        ServerCnxn cnxn = si.cnxn;
+        if (cnxn.getInProcess() != 0) {
+            return false;
+        }
+        // let a txn waiting to be applied go first
+        if (fastReadGate.hasQueuedThreads()
+                || !fastReadGate.readLock().tryLock()) {
+            return false;
+        }
+        try {
+            try {
+                touch(cnxn);
+                sessionTracker.checkSession(si.sessionId, si.getOwner());
+            } catch (MissingSessionException e) {
+                return false;
+            } catch (KeeperException e) {
+                return false;
+            }
+            cnxn.incInProcess();
+            incInProcess();
+            readProcessor.processRequest(si);
+        } finally {
+            fastReadGate.readLock().unlock();
+        }
+        fastPathReads.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the number of reads answered without going through the
+     * request processors
+     */
+    long getFastPathReadCount() {
+        return fastPathReads.get();
+    }
+
     private Record processSasl(ByteBuffer incomingBuffer, ServerCnxn cnxn) throws IOException {
         LOG.debug("Responding to client SASL token.");
         GetSASLRequest clientTokenRecord = new GetSASLRequest();
@@ -1174,7 +1353,14 @@ private ProcessTxnResult processTxn(Request request, TxnHeader hdr,
         ProcessTxnResult rc;
         int opCode = request != null ? request.type : hdr.getType();
         long sessionId = request != null ? request.sessionId : hdr.getClientId();
-        if (hdr != null) {
+        if (hdr != null && readFastPath) {
+            fastReadGate.writeLock().lock();
+            try {
+                rc = getZKDatabase().processTxn(hdr, txn);
+            } finally {
+                fastReadGate.writeLock().unlock();
+            }
+        } else if (hdr != null) {
             rc = getZKDatabase().processTxn(hdr, txn);
         } else {
             rc = new ProcessTxnResult();
@@ -1195,6 +1381,11 @@ private ProcessTxnResult processTxn(Request request, TxnHeader hdr,
             }
         } else if (opCode == OpCode.closeSession) {
             sessionTracker.removeSession(sessionId);
+        } else if (opCode == OpCode.closeSessions
+                && txn instanceof CloseSessionsTxn) {
+            for (SessionIdTxn s : ((CloseSessionsTxn) txn).getSessions()) {
+                sessionTracker.removeSession(s.getSessionId());
+            }
         }
         return rc;
     }
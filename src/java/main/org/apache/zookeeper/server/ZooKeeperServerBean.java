@@ -69,6 +69,22 @@ public long getMaxRequestLatency() {
     public long getMinRequestLatency() {
         return zks.serverStats().getMinLatency();
     }
+
+    public long getRequestLatencyP50() {
+        return zks.serverStats().getRequestLatency().getPercentile(0.5);
+    }
+
+    public long getRequestLatencyP95() {
+        return zks.serverStats().getRequestLatency().getPercentile(0.95);
+    }
+
+    public long getRequestLatencyP99() {
+        return zks.serverStats().getRequestLatency().getPercentile(0.99);
+    }
+
+    public long getRequestLatencyP999() {
+        return zks.serverStats().getRequestLatency().getPercentile(0.999);
+    }
     
     public long getOutstandingRequests() {
         return zks.serverStats().getOutstandingRequests();
@@ -139,6 +155,7 @@ public void resetStatistics() {
         ServerStats serverStats = zks.serverStats();
         serverStats.resetRequestCounters();
         serverStats.resetLatency();
+        serverStats.resetSyncStats();
     }
 
     public long getNumAliveConnections() {
@@ -167,4 +184,114 @@ public String getSecureClientAddress() {
     public long getTxnLogElapsedSyncTime() {
         return zks.getTxnLogElapsedSyncTime();
     }
+
+    @Override
+    public long getAvgSyncBatchSize() {
+        return zks.serverStats().getSyncBatchSize().getAvg();
+    }
+
+    @Override
+    public long getMaxSyncBatchSize() {
+        return zks.serverStats().getSyncBatchSize().getMax();
+    }
+
+    @Override
+    public long getAvgFsyncWaitTime() {
+        return zks.serverStats().getFsyncWaitTime().getAvg();
+    }
+
+    @Override
+    public long getMaxFsyncWaitTime() {
+        return zks.serverStats().getFsyncWaitTime().getMax();
+    }
+
+    @Override
+    public long getFsyncWaitTimeP99() {
+        return zks.serverStats().getFsyncWaitTime().getPercentile(0.99);
+    }
+
+    @Override
+    public long getSnapshotLoadTime() {
+        return zks.getZKDatabase().getSnapLoadTime();
+    }
+
+    @Override
+    public long getTxnReplayTime() {
+        return zks.getZKDatabase().getTxnReplayTime();
+    }
+
+    @Override
+    public long getTxnReplayCount() {
+        return zks.getZKDatabase().getTxnReplayCount();
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return zks.serverStats().getBufferPoolHits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return zks.serverStats().getBufferPoolMisses();
+    }
+
+    @Override
+    public long getBufferPoolOutstandingBytes() {
+        return zks.serverStats().getBufferPoolOutstandingBytes();
+    }
+
+    @Override
+    public long getAvgCommitProcQueueWaitTime() {
+        return zks.serverStats().getCommitProcQueueWaitTime().getAvg();
+    }
+
+    @Override
+    public long getMaxCommitProcQueueWaitTime() {
+        return zks.serverStats().getCommitProcQueueWaitTime().getMax();
+    }
+
+    @Override
+    public long getCommitProcQueueWaitTimeP99() {
+        return zks.serverStats().getCommitProcQueueWaitTime().getPercentile(0.99);
+    }
+
+    @Override
+    public long getAvgCommitWaitTime() {
+        return zks.serverStats().getCommitWaitTime().getAvg();
+    }
+
+    @Override
+    public long getMaxCommitWaitTime() {
+        return zks.serverStats().getCommitWaitTime().getMax();
+    }
+
+    @Override
+    public long getCommitWaitTimeP99() {
+        return zks.serverStats().getCommitWaitTime().getPercentile(0.99);
+    }
+
+    @Override
+    public long getAvgCommitProcWorkerTime() {
+        return zks.serverStats().getCommitProcWorkerTime().getAvg();
+    }
+
+    @Override
+    public long getMaxCommitProcWorkerTime() {
+        return zks.serverStats().getCommitProcWorkerTime().getMax();
+    }
+
+    @Override
+    public long getCommitProcWorkerTimeP99() {
+        return zks.serverStats().getCommitProcWorkerTime().getPercentile(0.99);
+    }
+
+    @Override
+    public long getAvgCommitProcReadBatchSize() {
+        return zks.serverStats().getCommitProcReadBatchSize().getAvg();
+    }
+
+    @Override
+    public long getAvgCommitProcCommitBatchSize() {
+        return zks.serverStats().getCommitProcCommitBatchSize().getAvg();
+    }
 }
@@ -46,6 +46,22 @@ public interface ZooKeeperServerMXBean {
      * @return max request latency in ms
      */
     public long getMaxRequestLatency();
+    /**
+     * @return median request latency in ms
+     */
+    public long getRequestLatencyP50();
+    /**
+     * @return 95th percentile of the request latency in ms
+     */
+    public long getRequestLatencyP95();
+    /**
+     * @return 99th percentile of the request latency in ms
+     */
+    public long getRequestLatencyP99();
+    /**
+     * @return 99.9th percentile of the request latency in ms
+     */
+    public long getRequestLatencyP999();
     /**
      * @return number of packets received so far
      */
@@ -130,4 +146,101 @@ public interface ZooKeeperServerMXBean {
      * Returns the elapsed sync of time of transaction log in milliseconds.
      */
     public long getTxnLogElapsedSyncTime();
+    /**
+     * @return average number of requests made durable by a txn log flush
+     */
+    public long getAvgSyncBatchSize();
+    /**
+     * @return max number of requests made durable by a txn log flush
+     */
+    public long getMaxSyncBatchSize();
+    /**
+     * @return average time in ms a txn log flush waited for fsync
+     */
+    public long getAvgFsyncWaitTime();
+    /**
+     * @return max time in ms a txn log flush waited for fsync
+     */
+    public long getMaxFsyncWaitTime();
+    /**
+     * @return 99th percentile of the time in ms a txn log flush waited
+     * for fsync
+     */
+    public long getFsyncWaitTimeP99();
+    /**
+     * @return time in ms the last database load took to read the snapshot
+     */
+    public long getSnapshotLoadTime();
+    /**
+     * @return time in ms the last database load took to replay the txn log
+     */
+    public long getTxnReplayTime();
+    /**
+     * @return number of txns replayed by the last database load
+     */
+    public long getTxnReplayCount();
+    /**
+     * @return number of buffers acquired from the buffer pools that were
+     * reused
+     */
+    public long getBufferPoolHits();
+    /**
+     * @return number of buffers acquired from the buffer pools that had to
+     * be allocated
+     */
+    public long getBufferPoolMisses();
+    /**
+     * @return bytes acquired from the buffer pools and not released yet
+     */
+    public long getBufferPoolOutstandingBytes();
+    /**
+     * @return average time in us a request waited in the commit processor
+     * queue
+     */
+    public long getAvgCommitProcQueueWaitTime();
+    /**
+     * @return max time in us a request waited in the commit processor queue
+     */
+    public long getMaxCommitProcQueueWaitTime();
+    /**
+     * @return 99th percentile of the time in us a request waited in the
+     * commit processor queue
+     */
+    public long getCommitProcQueueWaitTimeP99();
+    /**
+     * @return average time in us a commit waited to be applied
+     */
+    public long getAvgCommitWaitTime();
+    /**
+     * @return max time in us a commit waited to be applied
+     */
+    public long getMaxCommitWaitTime();
+    /**
+     * @return 99th percentile of the time in us a commit waited to be applied
+     */
+    public long getCommitWaitTimeP99();
+    /**
+     * @return average time in us a commit processor worker took to run a
+     * request
+     */
+    public long getAvgCommitProcWorkerTime();
+    /**
+     * @return max time in us a commit processor worker took to run a request
+     */
+    public long getMaxCommitProcWorkerTime();
+    /**
+     * @return 99th percentile of the time in us a commit processor worker
+     * took to run a request
+     */
+    public long getCommitProcWorkerTimeP99();
+    /**
+     * @return average number of requests the commit processor took from its
+     * queue between commits
+     */
+    public long getAvgCommitProcReadBatchSize();
+    /**
+     * @return average number of commits the commit processor applied in a
+     * row
+     */
+    public long getAvgCommitProcCommitBatchSize();
 }
@@ -21,6 +21,7 @@
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -29,12 +30,15 @@
 import org.apache.zookeeper.Environment.Entry;
 import org.apache.zookeeper.Version;
 import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.RequestStageStats;
 import org.apache.zookeeper.server.ServerStats;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperServer;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.metric.Histogram;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.LeaderZooKeeperServer;
+import org.apache.zookeeper.server.quorum.QuorumZooKeeperServer;
 import org.apache.zookeeper.server.quorum.ReadOnlyZooKeeperServer;
 import org.apache.zookeeper.server.util.OSMXBean;
 import org.slf4j.Logger;
@@ -117,6 +121,7 @@ public static Command getCommand(String cmdName) {
         registerCommand(new GetTraceMaskCommand());
         registerCommand(new IsroCommand());
         registerCommand(new MonitorCommand());
+        registerCommand(new RequestStagesCommand());
         registerCommand(new RuokCommand());
         registerCommand(new SetTraceMaskCommand());
         registerCommand(new SrvrCommand());
@@ -278,6 +283,10 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
      *   - "avg_latency": Long
      *   - "max_latency": Long
      *   - "min_latency": Long
+     *   - "p50_latency": Long
+     *   - "p95_latency": Long
+     *   - "p99_latency": Long
+     *   - "p999_latency": Long
      *   - "packets_received": Long
      *   - "packets_sents": Long
      *   - "num_alive_connections": Integer
@@ -290,6 +299,17 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
      *   - "approximate_data_size": Long
      *   - "open_file_descriptor_count": Long (unix only)
      *   - "max_file_descritpor_count": Long (unix only)
+     *   - "commit_proc_queue_wait_us_{avg,max,p99}": Long
+     *                             time requests waited in the commit processor
+     *                             queue (quorum only)
+     *   - "commit_wait_us_{avg,max,p99}": Long
+     *                             time commits waited to be applied
+     *                             (quorum only)
+     *   - "commit_proc_worker_time_us_{avg,max,p99}": Long
+     *                             time commit processor workers took to run
+     *                             a request (quorum only)
+     *   - "commit_proc_read_batch_size_{avg,max}": Long (quorum only)
+     *   - "commit_proc_commit_batch_size_{avg,max}": Long (quorum only)
      *   - "followers": Integer (leader only)
      *   - "synced_followers": Integer (leader only)
      *   - "pending_syncs": Integer (leader only)
@@ -311,6 +331,10 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
             response.put("avg_latency", stats.getAvgLatency());
             response.put("max_latency", stats.getMaxLatency());
             response.put("min_latency", stats.getMinLatency());
+            response.put("p50_latency", stats.getRequestLatency().getPercentile(0.5));
+            response.put("p95_latency", stats.getRequestLatency().getPercentile(0.95));
+            response.put("p99_latency", stats.getRequestLatency().getPercentile(0.99));
+            response.put("p999_latency", stats.getRequestLatency().getPercentile(0.999));
 
             response.put("packets_received", stats.getPacketsReceived());
             response.put("packets_sent", stats.getPacketsSent());
@@ -329,6 +353,19 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
             response.put("open_file_descriptor_count", osMbean.getOpenFileDescriptorCount());
             response.put("max_file_descriptor_count", osMbean.getMaxFileDescriptorCount());
 
+            if (zkServer instanceof QuorumZooKeeperServer) {
+                putHistogram(response, "commit_proc_queue_wait_us",
+                        stats.getCommitProcQueueWaitTime(), true);
+                putHistogram(response, "commit_wait_us",
+                        stats.getCommitWaitTime(), true);
+                putHistogram(response, "commit_proc_worker_time_us",
+                        stats.getCommitProcWorkerTime(), true);
+                putHistogram(response, "commit_proc_read_batch_size",
+                        stats.getCommitProcReadBatchSize(), false);
+                putHistogram(response, "commit_proc_commit_batch_size",
+                        stats.getCommitProcCommitBatchSize(), false);
+            }
+
             if (zkServer instanceof LeaderZooKeeperServer) {
                 Leader leader = ((LeaderZooKeeperServer) zkServer).getLeader();
 
@@ -339,7 +376,56 @@ public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs)
 
             return response;
 
-        }}
+        }
+
+        private static void putHistogram(CommandResponse response, String name,
+                                         Histogram histogram, boolean p99) {
+            response.put(name + "_avg", histogram.getAvg());
+            response.put(name + "_max", histogram.getMax());
+            if (p99) {
+                response.put(name + "_p99", histogram.getPercentile(0.99));
+            }
+        }
+    }
+
+    /**
+     * Latency of requests per request type and processing stage, in
+     * microseconds. Returned map contains an entry per request type, mapping
+     * each stage the requests went through to:
+     *   - "count": Long
+     *   - "avg_us": Long
+     *   - "p50_us": Long
+     *   - "p99_us": Long
+     *   - "max_us": Long
+     * @see RequestStageStats
+     */
+    public static class RequestStagesCommand extends CommandBase {
+        public RequestStagesCommand() {
+            super(Arrays.asList("request_stages", "stages"));
+        }
+
+        @Override
+        public CommandResponse run(ZooKeeperServer zkServer, Map<String, String> kwargs) {
+            CommandResponse response = initializeResponse();
+            RequestStageStats stages = zkServer.serverStats().getRequestStages();
+            for (String type : stages.getRequestTypes()) {
+                Map<String, Object> byStage = new LinkedHashMap<String, Object>();
+                for (Map.Entry<String, Histogram> e
+                        : stages.getStageHistograms(type).entrySet()) {
+                    Histogram h = e.getValue();
+                    Map<String, Long> latency = new LinkedHashMap<String, Long>();
+                    latency.put("count", h.getCount());
+                    latency.put("avg_us", h.getAvg());
+                    latency.put("p50_us", h.getPercentile(0.5));
+                    latency.put("p99_us", h.getPercentile(0.99));
+                    latency.put("max_us", h.getMax());
+                    byStage.put(e.getKey(), latency);
+                }
+                response.put(type, byStage);
+            }
+            return response;
+        }
+    }
 
     /**
      * No-op command, check if the server is running
@@ -48,6 +48,10 @@ public void commandRun() {
         print("avg_latency", stats.getAvgLatency());
         print("max_latency", stats.getMaxLatency());
         print("min_latency", stats.getMinLatency());
+        print("p50_latency", stats.getRequestLatency().getPercentile(0.5));
+        print("p95_latency", stats.getRequestLatency().getPercentile(0.95));
+        print("p99_latency", stats.getRequestLatency().getPercentile(0.99));
+        print("p999_latency", stats.getRequestLatency().getPercentile(0.999));
 
         print("packets_received", stats.getPacketsReceived());
         print("packets_sent", stats.getPacketsSent());
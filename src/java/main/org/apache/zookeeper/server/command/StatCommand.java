@@ -22,6 +22,7 @@
 
 import org.apache.zookeeper.Version;
 import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.metric.Histogram;
 import org.apache.zookeeper.server.quorum.ReadOnlyZooKeeperServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +58,13 @@ public void commandRun() {
             pw.print(zkServer.serverStats().toString());
             pw.print("Node count: ");
             pw.println(zkServer.getZKDatabase().getNodeCount());
+            // after the lines above, which clients may parse by position
+            Histogram latency = zkServer.serverStats().getRequestLatency();
+            pw.println("Latency p50/p95/p99/p999: "
+                    + latency.getPercentile(0.5) + "/"
+                    + latency.getPercentile(0.95) + "/"
+                    + latency.getPercentile(0.99) + "/"
+                    + latency.getPercentile(0.999));
         }
     }
 }
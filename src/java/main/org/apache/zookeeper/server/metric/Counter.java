@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.metric;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter for values updated by many threads and read rarely.
+ *
+ * Updates are spread over a number of cells, each on its own cache line, and
+ * a thread always updates the same cell, so threads counting at the same
+ * time seldom touch the same memory. Reading the counter sums the cells and
+ * is weakly consistent with concurrent updates.
+ */
+public class Counter {
+    private static final int STRIPES;
+    static {
+        int n = 1;
+        while (n < 2 * Runtime.getRuntime().availableProcessors() && n < 64) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+    /** Longs per cell, so that two cells never share a 64 byte cache line */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(cellIndex(), delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    private static int cellIndex() {
+        // thread ids are handed out sequentially, so this spreads the
+        // threads of a pool evenly over the cells
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.metric;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values.
+ *
+ * Values are counted in log-linear buckets: every power of two is split into
+ * {@link #SUB_BUCKETS} equally sized buckets, so a percentile is reported
+ * with a relative error of at most 1/{@link #SUB_BUCKETS}. Recording a value
+ * is a handful of atomic increments and never blocks, which makes it safe to
+ * call from request processing threads. The count and total are striped
+ * {@link Counter}s, so threads recording at the same time mostly update
+ * different cache lines.
+ *
+ * Readers see a weakly consistent view: a percentile computed while values
+ * are being added may not include the most recent ones.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final Counter count = new Counter();
+    private final Counter total = new Counter();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     * @param value the value to record
+     */
+    public void add(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        total.add(value);
+
+        long current;
+        while (value < (current = min.get())) {
+            if (min.compareAndSet(current, value)) {
+                break;
+            }
+        }
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMin() {
+        long value = min.get();
+        return value == Long.MAX_VALUE ? 0 : value;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getAvg() {
+        long c = count.get();
+        return c == 0 ? 0 : total.get() / c;
+    }
+
+    /**
+     * Estimate the value below which the given fraction of the recorded
+     * values fall.
+     * @param fraction a number between 0 and 1, e.g. 0.99 for the 99th
+     *        percentile
+     * @return the upper bound of the bucket holding the percentile, never
+     *         more than the largest value recorded; 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * c);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /**
+     * Fold the counts of another histogram into this one.
+     */
+    public void merge(Histogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long n = other.buckets.get(i);
+            if (n != 0) {
+                buckets.addAndGet(i, n);
+            }
+        }
+        count.add(other.getCount());
+        total.add(other.getTotal());
+        if (other.getCount() > 0) {
+            long current;
+            long otherMin = other.getMin();
+            while (otherMin < (current = min.get())) {
+                if (min.compareAndSet(current, otherMin)) {
+                    break;
+                }
+            }
+            long otherMax = other.getMax();
+            while (otherMax > (current = max.get())) {
+                if (max.compareAndSet(current, otherMax)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getMin() + "/" + getAvg() + "/" + getMax()
+            + " p50/p95/p99/p999: " + getPercentile(0.5) + "/"
+            + getPercentile(0.95) + "/" + getPercentile(0.99) + "/"
+            + getPercentile(0.999);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
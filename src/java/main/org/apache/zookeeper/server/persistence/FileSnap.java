@@ -40,6 +40,10 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.SnapshotSerializer;
+import org.apache.zookeeper.server.SnapshotSerializer.PositionOutputStream;
+import org.apache.zookeeper.server.persistence.SnapshotCompression.BlockInputStream;
+import org.apache.zookeeper.server.persistence.SnapshotCompression.BlockOutputStream;
 import org.apache.zookeeper.server.util.SerializeUtils;
 
 /**
@@ -56,9 +60,20 @@ public class FileSnap implements SnapShot {
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public final static int SNAP_MAGIC
             = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
+    /** Magic of snapshots written with a {@link SnapshotCodec} */
+    public final static int SNAP_COMPRESSED_MAGIC
+            = ByteBuffer.wrap("ZKSC".getBytes()).getInt();
+
+    /** Compresses snapshots, null if they are written uncompressed */
+    private final SnapshotCodec codec;
+    /** Serializes the tree in parallel or incrementally, if enabled */
+    private final SnapshotSerializer serializer;
 
     public FileSnap(File snapDir) {
         this.snapDir = snapDir;
+        this.codec = SnapshotCompression.fromSystemProperties();
+        // the subtrees of a compressed snapshot cannot be copied from it
+        this.serializer = SnapshotSerializer.fromSystemProperties(codec == null);
     }
 
     /**
@@ -112,12 +127,20 @@ public void deserialize(DataTree dt, Map<Long, Integer> sessions,
             InputArchive ia) throws IOException {
         FileHeader header = new FileHeader();
         header.deserialize(ia, "fileheader");
-        if (header.getMagic() != SNAP_MAGIC) {
+        if (header.getMagic() == SNAP_MAGIC) {
+            SerializeUtils.deserializeSnapshot(dt,ia,sessions);
+        } else if (header.getMagic() == SNAP_COMPRESSED_MAGIC) {
+            SnapshotCodec snapCodec =
+                SnapshotCompression.getCodec(ia.readString("codec"));
+            BlockInputStream blockIn = new BlockInputStream(ia, snapCodec);
+            SerializeUtils.deserializeSnapshot(dt,
+                    BinaryInputArchive.getArchive(blockIn), sessions);
+            blockIn.skipToEnd();
+        } else {
             throw new IOException("mismatching magic headers "
                     + header.getMagic() +
                     " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt,ia,sessions);
     }
 
     /**
@@ -221,13 +244,45 @@ public synchronized void serialize(DataTree dt, Map<Long, Integer> sessions, Fil
                  CheckedOutputStream crcOut = new CheckedOutputStream(sessOS, new Adler32())) {
                 //CheckedOutputStream cout = new CheckedOutputStream()
                 OutputArchive oa = BinaryOutputArchive.getArchive(crcOut);
-                FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
-                serialize(dt, sessions, oa, header);
+                OutputStream bodyOut = crcOut;
+                BlockOutputStream blockOut = null;
+                if (codec != null) {
+                    FileHeader header = new FileHeader(SNAP_COMPRESSED_MAGIC,
+                            VERSION, dbId);
+                    header.serialize(oa, "fileheader");
+                    oa.writeString(codec.getName(), "codec");
+                    blockOut = new BlockOutputStream(oa, codec);
+                    bodyOut = blockOut;
+                }
+                if (serializer == null) {
+                    if (blockOut == null) {
+                        FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+                        serialize(dt, sessions, oa, header);
+                    } else {
+                        SerializeUtils.serializeSnapshot(dt,
+                                BinaryOutputArchive.getArchive(blockOut), sessions);
+                    }
+                } else {
+                    PositionOutputStream posOut = new PositionOutputStream(bodyOut);
+                    OutputArchive posOa = BinaryOutputArchive.getArchive(posOut);
+                    if (blockOut == null) {
+                        FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+                        header.serialize(posOa, "fileheader");
+                    }
+                    SerializeUtils.serializeSessions(posOa, sessions);
+                    serializer.serialize(dt, posOut, posOa, snapShot);
+                }
+                if (blockOut != null) {
+                    blockOut.finish();
+                }
                 long val = crcOut.getChecksum().getValue();
                 oa.writeLong(val, "val");
                 oa.writeString("/", "path");
                 sessOS.flush();
             }
+            if (serializer != null) {
+                serializer.snapshotWritten(snapShot);
+            }
         }
     }
 
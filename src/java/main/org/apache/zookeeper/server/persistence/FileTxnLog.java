@@ -98,7 +98,7 @@ public class FileTxnLog implements TxnLog {
     public final static int VERSION = 2;
 
     /** Maximum time we allow for elapsed fsync before WARNing */
-    private final static long fsyncWarningThresholdMS;
+    final static long fsyncWarningThresholdMS;
 
     static {
         LOG = LoggerFactory.getLogger(FileTxnLog.class);
@@ -133,6 +133,9 @@ public class FileTxnLog implements TxnLog {
 
     private volatile long syncElapsedMS = -1L;
 
+    /** Serializes commits, which do not hold the log lock while syncing */
+    private final Object commitLock = new Object();
+
     /**
      * constructor for FileTxnLog. Take the directory
      * where the txnlogs are stored
@@ -197,13 +200,7 @@ public synchronized boolean append(TxnHeader hdr, Record txn)
         if (hdr == null) {
             return false;
         }
-        if (hdr.getZxid() <= lastZxidSeen) {
-            LOG.warn("Current zxid " + hdr.getZxid()
-                    + " is <= " + lastZxidSeen + " for "
-                    + hdr.getType());
-        } else {
-            lastZxidSeen = hdr.getZxid();
-        }
+        trackZxid(hdr);
         if (logStream==null) {
            if(LOG.isInfoEnabled()){
                 LOG.info("Creating new log file: log." +
@@ -236,6 +233,21 @@ public synchronized boolean append(TxnHeader hdr, Record txn)
         return true;
     }
 
+    /**
+     * remember the highest zxid appended, warning about zxids that go
+     * backwards
+     * @param hdr the header of the transaction being appended
+     */
+    void trackZxid(TxnHeader hdr) {
+        if (hdr.getZxid() <= lastZxidSeen) {
+            LOG.warn("Current zxid " + hdr.getZxid()
+                    + " is <= " + lastZxidSeen + " for "
+                    + hdr.getType());
+        } else {
+            lastZxidSeen = hdr.getZxid();
+        }
+    }
+
     /**
      * pad the current file to increase its size
      * @param out the outputstream to be padded
@@ -323,32 +335,63 @@ private void close(TxnIterator itr) {
 
     /**
      * commit the logs. make sure that everything hits the
-     * disk
+     * disk.
+     *
+     * The log is flushed to the file system under the lock, but the fsync
+     * itself is done without holding it so that new transactions can be
+     * appended while the previous ones are being forced to disk.
      */
-    public synchronized void commit() throws IOException {
-        if (logStream != null) {
-            logStream.flush();
-        }
-        for (FileOutputStream log : streamsToFlush) {
-            log.flush();
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            List<FileOutputStream> streams;
+            // the stream being appended to, which may be rolled over while
+            // it is forced, with entries appended after it was flushed
+            FileOutputStream current;
+            synchronized (this) {
+                if (logStream != null) {
+                    logStream.flush();
+                }
+                for (FileOutputStream log : streamsToFlush) {
+                    log.flush();
+                }
+                streams = new ArrayList<FileOutputStream>(streamsToFlush);
+                current = logStream != null ? fos : null;
+            }
             if (forceSync) {
-                long startSyncNS = System.nanoTime();
-
-                log.getChannel().force(false);
-
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    LOG.warn("fsync-ing the write ahead log in "
-                            + Thread.currentThread().getName()
-                            + " took " + syncElapsedMS
-                            + "ms which will adversely effect operation latency. "
-                            + "See the ZooKeeper troubleshooting guide");
+                for (FileOutputStream log : streams) {
+                    long startSyncNS = System.nanoTime();
+
+                    force(log);
+
+                    syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+                    if (syncElapsedMS > fsyncWarningThresholdMS) {
+                        LOG.warn("fsync-ing the write ahead log in "
+                                + Thread.currentThread().getName()
+                                + " took " + syncElapsedMS
+                                + "ms which will adversely effect operation latency. "
+                                + "See the ZooKeeper troubleshooting guide");
+                    }
+                }
+            }
+            synchronized (this) {
+                // the streams which had been rolled over before they were
+                // flushed above are now fully on disk, the current one is
+                // left for the next commit even if rolled over since
+                for (FileOutputStream log : streams) {
+                    if (log != current && streamsToFlush.size() > 1
+                            && streamsToFlush.getFirst() == log) {
+                        streamsToFlush.removeFirst().close();
+                    }
                 }
             }
         }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.removeFirst().close();
-        }
+    }
+
+    /**
+     * Force the data written to a log file to disk.
+     */
+    protected void force(FileOutputStream log) throws IOException {
+        log.getChannel().force(false);
     }
 
     /**
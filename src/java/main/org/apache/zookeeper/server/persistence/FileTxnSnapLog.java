@@ -29,12 +29,15 @@
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.ZooTrace;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.txn.CloseSessionsTxn;
 import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.SessionIdTxn;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +72,25 @@ public class FileTxnSnapLog {
 
     private static final String ZOOKEEPER_DB_AUTOCREATE_DEFAULT = "true";
 
+    /**
+     * Append to the txn log through a memory mapped region, see
+     * {@link MappedFileTxnLog}. Default: false
+     */
+    public static final String ZOOKEEPER_TXNLOG_MMAP = "zookeeper.txnLogMmap";
+
+    /**
+     * Number of transactions to read and decode ahead of the one being
+     * applied while restoring, see {@link ReadAheadTxnIterator}.
+     * Default: 0, the log is read by the restoring thread
+     */
+    public static final String ZOOKEEPER_TXNLOG_READ_AHEAD =
+            "zookeeper.txnLogReadAhead";
+
+    // time taken by the last restore, see restore()
+    private volatile long snapLoadTime = -1L;
+    private volatile long txnReplayTime = -1L;
+    private volatile long txnReplayCount = 0L;
+
     /**
      * This listener helps
      * the external apis calling
@@ -136,13 +158,25 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
             throw new DatadirException("Cannot write to snap directory " + this.snapDir);
         }
 
-        txnLog = new FileTxnLog(this.dataDir);
+        txnLog = createTxnLog(this.dataDir);
         snapLog = new FileSnap(this.snapDir);
 
         autoCreateDB = Boolean.parseBoolean(System.getProperty(ZOOKEEPER_DB_AUTOCREATE,
                 ZOOKEEPER_DB_AUTOCREATE_DEFAULT));
     }
 
+    /**
+     * create the txn log that transactions are appended to
+     * @param dir the transaction directory
+     * @return the txn log
+     */
+    private static TxnLog createTxnLog(File dir) {
+        if (Boolean.getBoolean(ZOOKEEPER_TXNLOG_MMAP)) {
+            return new MappedFileTxnLog(dir);
+        }
+        return new FileTxnLog(dir);
+    }
+
     /**
      * get the datadir used by this filetxn
      * snap log
@@ -174,7 +208,11 @@ public File getSnapDir() {
      */
     public long restore(DataTree dt, Map<Long, Integer> sessions,
             PlayBackListener listener) throws IOException {
+        long start = Time.currentElapsedTime();
+        txnReplayTime = -1L;
+        txnReplayCount = 0L;
         long deserializeResult = snapLog.deserialize(dt, sessions);
+        snapLoadTime = Time.currentElapsedTime() - start;
         FileTxnLog txnLog = new FileTxnLog(dataDir);
         boolean trustEmptyDB;
         File initFile = new File(dataDir.getParent(), "initialize");
@@ -207,8 +245,14 @@ public long restore(DataTree dt, Map<Long, Integer> sessions,
                 return -1L;
             }
         }
+        start = Time.currentElapsedTime();
         TxnIterator itr = txnLog.read(dt.lastProcessedZxid+1);
+        int readAhead = Integer.getInteger(ZOOKEEPER_TXNLOG_READ_AHEAD, 0);
+        if (readAhead > 0) {
+            itr = new ReadAheadTxnIterator(itr, readAhead);
+        }
         long highestZxid = dt.lastProcessedZxid;
+        long count = 0;
         TxnHeader hdr;
         try {
             while (true) {
@@ -232,6 +276,7 @@ public long restore(DataTree dt, Map<Long, Integer> sessions,
                          hdr.getType() + " error: " + e.getMessage(), e);
                 }
                 listener.onTxnLoaded(hdr, itr.getTxn());
+                count++;
                 if (!itr.next())
                     break;
             }
@@ -239,10 +284,35 @@ public long restore(DataTree dt, Map<Long, Integer> sessions,
             if (itr != null) {
                 itr.close();
             }
+            txnReplayTime = Time.currentElapsedTime() - start;
+            txnReplayCount = count;
         }
         return highestZxid;
     }
 
+    /**
+     * @return time in milliseconds the last restore took to load the
+     *         snapshot, or -1 if nothing was restored yet
+     */
+    public long getSnapLoadTime() {
+        return snapLoadTime;
+    }
+
+    /**
+     * @return time in milliseconds the last restore took to replay the txn
+     *         log on top of the snapshot, or -1 if the log was not replayed
+     */
+    public long getTxnReplayTime() {
+        return txnReplayTime;
+    }
+
+    /**
+     * @return number of transactions replayed by the last restore
+     */
+    public long getTxnReplayCount() {
+        return txnReplayCount;
+    }
+
     /**
      * Get TxnIterator for iterating through txnlog starting at a given zxid
      *
@@ -304,6 +374,17 @@ public void processTransaction(TxnHeader hdr,DataTree dt,
             }
             rc = dt.processTxn(hdr, txn);
             break;
+        case OpCode.closeSessions:
+            for (SessionIdTxn s : ((CloseSessionsTxn) txn).getSessions()) {
+                sessions.remove(s.getSessionId());
+                if (LOG.isTraceEnabled()) {
+                    ZooTrace.logTraceMessage(LOG,ZooTrace.SESSION_TRACE_MASK,
+                            "playLog --- close session in log: 0x"
+                                    + Long.toHexString(s.getSessionId()));
+                }
+            }
+            rc = dt.processTxn(hdr, txn);
+            break;
         default:
             rc = dt.processTxn(hdr, txn);
         }
@@ -368,7 +449,7 @@ public boolean truncateLog(long zxid) throws IOException {
         // I'd rather just close/reopen this object itself, however that 
         // would have a big impact outside ZKDatabase as there are other
         // objects holding a reference to this object.
-        txnLog = new FileTxnLog(dataDir);
+        txnLog = createTxnLog(dataDir);
         snapLog = new FileSnap(snapDir);
 
         return truncated;
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses snapshot blocks with the gzip implementation of the JDK.
+ * Slower than {@link LzSnapshotCodec} but gives smaller snapshots.
+ */
+public class GzipSnapshotCodec implements SnapshotCodec {
+    public static final String NAME = "gzip";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int off, int len) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(baos)) {
+            gzip.write(src, off, len);
+        }
+        return baos.toByteArray();
+    }
+
+    @Override
+    public void decompress(byte[] src, byte[] dst) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new ByteArrayInputStream(src)))) {
+            in.readFully(dst);
+            if (in.read() != -1) {
+                throw new IOException("Block is longer than " + dst.length
+                        + " bytes");
+            }
+        }
+    }
+}
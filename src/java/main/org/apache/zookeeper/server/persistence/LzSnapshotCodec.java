@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast, pure Java LZ77 codec for snapshot blocks, using the sequence
+ * layout of the LZ4 block format.
+ *
+ * A block is a series of sequences, each made of a token byte, the literal
+ * bytes to copy and the offset and length of a match to copy from the bytes
+ * already decompressed. The high nibble of the token is the number of
+ * literals and the low nibble the match length minus 4; a nibble of 15 is
+ * followed by bytes that are added to it until a byte other than 255. The
+ * offset is two bytes, little endian. The last sequence has no match and
+ * ends the block.
+ *
+ * Matches are found through a hash table of the last position each 4 byte
+ * sequence was seen at, so compression trades ratio for speed: it is
+ * several times faster than gzip and is meant for snapshots whose data
+ * compresses well.
+ */
+public class LzSnapshotCodec implements SnapshotCodec {
+    public static final String NAME = "lz";
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    /** The last bytes of a block are always literals */
+    private static final int LAST_LITERALS = 5;
+    /** No match starts closer than this to the end of a block */
+    private static final int MATCH_START_LIMIT = 12;
+    private static final int HASH_LOG = 14;
+    /** Look for matches less often after this many misses in a row */
+    private static final int SKIP_TRIGGER = 6;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /** @return the most bytes a block of the given length compresses to */
+    static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[maxCompressedLength(len)];
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+
+        int end = off + len;
+        int matchLimit = end - LAST_LITERALS;
+        int startLimit = end - MATCH_START_LIMIT;
+        int anchor = off;
+        int ip = off;
+        int dp = 0;
+        int misses = 0;
+        while (ip < startLimit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < matchLimit
+                    && src[ref + matchLen] == src[ip + matchLen]) {
+                matchLen++;
+            }
+            dp = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen,
+                    dst, dp);
+            ip += matchLen;
+            anchor = ip;
+        }
+        dp = writeLiterals(src, anchor, end - anchor, dst, dp);
+        return Arrays.copyOf(dst, dp);
+    }
+
+    @Override
+    public void decompress(byte[] src, byte[] dst) throws IOException {
+        int sp = 0;
+        int dp = 0;
+        try {
+            while (true) {
+                int token = src[sp++] & 0xff;
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        litLen += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, sp, dst, dp, litLen);
+                sp += litLen;
+                dp += litLen;
+                if (sp == src.length) {
+                    break;
+                }
+                int offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+                sp += 2;
+                int matchLen = token & 0x0f;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = dp - offset;
+                if (offset == 0 || ref < 0 || dp + matchLen > dst.length) {
+                    throw new IOException("Corrupt block, bad match at " + sp);
+                }
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, dp, matchLen);
+                    dp += matchLen;
+                } else {
+                    // the match overlaps the bytes it produces
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[dp++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt block", e);
+        }
+        if (dp != dst.length) {
+            throw new IOException("Block is " + dp + " bytes, expected "
+                    + dst.length);
+        }
+    }
+
+    private static int writeSequence(byte[] src, int litOff, int litLen,
+            int offset, int matchLen, byte[] dst, int dp) {
+        int matchCode = matchLen - MIN_MATCH;
+        int token = Math.min(litLen, 15) << 4 | Math.min(matchCode, 15);
+        dst[dp++] = (byte) token;
+        dp = writeLength(litLen, dst, dp);
+        System.arraycopy(src, litOff, dst, dp, litLen);
+        dp += litLen;
+        dst[dp++] = (byte) offset;
+        dst[dp++] = (byte) (offset >>> 8);
+        return writeLength(matchCode, dst, dp);
+    }
+
+    private static int writeLiterals(byte[] src, int litOff, int litLen,
+            byte[] dst, int dp) {
+        dst[dp++] = (byte) (Math.min(litLen, 15) << 4);
+        dp = writeLength(litLen, dst, dp);
+        System.arraycopy(src, litOff, dst, dp, litLen);
+        return dp + litLen;
+    }
+
+    /** Write the part of a length that does not fit in its token nibble */
+    private static int writeLength(int len, byte[] dst, int dp) {
+        if (len < 15) {
+            return dp;
+        }
+        len -= 15;
+        while (len >= 255) {
+            dst[dp++] = (byte) 255;
+            len -= 255;
+        }
+        dst[dp++] = (byte) len;
+        return dp;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+            | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.ByteBufferOutputStream;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A transaction log that appends through a memory mapped, preallocated
+ * region of the log file instead of a buffered stream.
+ *
+ * Each entry is serialized straight into the mapped region and its checksum
+ * is computed over the mapped bytes, so an append costs neither a copy into
+ * a stream buffer nor a write system call. A commit forces the mapped
+ * regions that have been written to since the previous commit; only their
+ * dirty pages reach the disk. Rolling the log just drops the current
+ * mapping.
+ *
+ * The files written are identical to those of {@link FileTxnLog}: the unused
+ * tail of a preallocated region reads back as zeros, which the log reader
+ * treats as the end of the log. Reading, truncating and the other read-side
+ * operations are inherited from {@link FileTxnLog}.
+ */
+public class MappedFileTxnLog extends FileTxnLog {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileTxnLog.class);
+
+    /** Size of the crc and length fields preceding each entry */
+    private static final int ENTRY_HEADER_SIZE = 8 + 4;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    /** Mapped region of the current log file being appended to */
+    private MappedByteBuffer region;
+    /** Offset of the mapped region in the current log file */
+    private long regionOffset;
+    /** Whether the current region was written since the last commit */
+    private boolean regionDirty;
+    /** Regions of previous files or mappings not yet forced to disk */
+    private final List<MappedByteBuffer> unsyncedRegions =
+        new ArrayList<MappedByteBuffer>();
+
+    private final Object commitLock = new Object();
+    private volatile long syncElapsedMS = -1L;
+
+    public MappedFileTxnLog(File logDir) {
+        super(logDir);
+    }
+
+    @Override
+    public synchronized void rollLog() throws IOException {
+        if (region != null) {
+            if (regionDirty) {
+                unsyncedRegions.add(region);
+            }
+            region = null;
+            regionDirty = false;
+            closeFile();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        region = null;
+        regionDirty = false;
+        unsyncedRegions.clear();
+        closeFile();
+    }
+
+    @Override
+    public synchronized boolean append(TxnHeader hdr, Record txn)
+        throws IOException
+    {
+        if (hdr == null) {
+            return false;
+        }
+        trackZxid(hdr);
+        if (region == null) {
+            openLog(hdr.getZxid());
+        }
+        int start = region.position();
+        while (true) {
+            try {
+                writeEntry(region, start, hdr, txn);
+                break;
+            } catch (BufferOverflowException e) {
+                // not enough room left, map a larger region starting at
+                // this entry and try again
+                long minSize = (long) (region.capacity() - start) * 2;
+                remap(regionOffset + start, Math.max(preAllocSize, minSize));
+                start = 0;
+            }
+        }
+        regionDirty = true;
+        return true;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            List<MappedByteBuffer> regions;
+            synchronized (this) {
+                regions = new ArrayList<MappedByteBuffer>(unsyncedRegions);
+                unsyncedRegions.clear();
+                if (region != null && regionDirty) {
+                    regions.add(region);
+                    regionDirty = false;
+                }
+            }
+            if (!isForceSync() || regions.isEmpty()) {
+                return;
+            }
+            long startSyncNS = System.nanoTime();
+            for (MappedByteBuffer r : regions) {
+                r.force();
+            }
+            syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+            if (syncElapsedMS > fsyncWarningThresholdMS) {
+                LOG.warn("fsync-ing the write ahead log in "
+                        + Thread.currentThread().getName()
+                        + " took " + syncElapsedMS
+                        + "ms which will adversely effect operation latency. "
+                        + "See the ZooKeeper troubleshooting guide");
+            }
+        }
+    }
+
+    @Override
+    public long getTxnLogSyncElapsedTime() {
+        return syncElapsedMS;
+    }
+
+    /**
+     * Create a new log file and map its first region.
+     */
+    private void openLog(long zxid) throws IOException {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Creating new log file: log." + Long.toHexString(zxid));
+        }
+        logFileWrite = new File(logDir, "log." + Long.toHexString(zxid));
+        raf = new RandomAccessFile(logFileWrite, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        remap(0, preAllocSize);
+
+        FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, VERSION, dbId);
+        fhdr.serialize(BinaryOutputArchive.getArchive(
+                new ByteBufferOutputStream(region)), "fileheader");
+        regionDirty = true;
+    }
+
+    /**
+     * Map a new region of the current log file, growing the file as needed.
+     */
+    private void remap(long offset, long size) throws IOException {
+        if (region != null && regionDirty) {
+            unsyncedRegions.add(region);
+        }
+        size = Math.min(Math.max(size, 4096), Integer.MAX_VALUE);
+        region = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+        regionOffset = offset;
+        regionDirty = false;
+    }
+
+    private void closeFile() throws IOException {
+        channel = null;
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * Serialize an entry into the buffer at the given position, in the same
+     * layout as {@link Util#writeTxnBytes}: checksum, length, the serialized
+     * header and txn, and an end of record marker. The checksum is written
+     * last, once the rest of the entry is in place.
+     *
+     * @throws BufferOverflowException if the entry does not fit
+     */
+    static void writeEntry(ByteBuffer buf, int start, TxnHeader hdr,
+            Record txn) throws IOException {
+        buf.position(start + ENTRY_HEADER_SIZE);
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(
+                new ByteBufferOutputStream(buf));
+        hdr.serialize(boa, "hdr");
+        if (txn != null) {
+            txn.serialize(boa, "txn");
+        }
+        int length = buf.position() - start - ENTRY_HEADER_SIZE;
+        if (length == 0) {
+            throw new IOException("Faulty serialization for header " +
+                    "and txn");
+        }
+        buf.put((byte) 0x42); // 'B'
+        int end = buf.position();
+        buf.putInt(start + 8, length);
+        buf.putLong(start, adler32(buf, start + ENTRY_HEADER_SIZE, length));
+        buf.position(end);
+    }
+
+    /** Largest n such that 255n(n+1)/2 + (n+1)(65520) fits in 32 bits */
+    private static final int ADLER_NMAX = 5552;
+    private static final int ADLER_BASE = 65521;
+
+    /**
+     * Compute the Adler-32 checksum of a region of a buffer without copying
+     * it out first. Gives the same value as {@link java.util.zip.Adler32}.
+     */
+    static long adler32(ByteBuffer buf, int offset, int length) {
+        long a = 1;
+        long b = 0;
+        int end = offset + length;
+        while (offset < end) {
+            int chunkEnd = Math.min(end, offset + ADLER_NMAX);
+            for (; offset < chunkEnd; offset++) {
+                a += buf.get(offset) & 0xff;
+                b += a;
+            }
+            a %= ADLER_BASE;
+            b %= ADLER_BASE;
+        }
+        return (b << 16) | a;
+    }
+}
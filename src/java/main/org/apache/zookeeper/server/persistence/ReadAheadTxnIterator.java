@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * A TxnIterator that reads, checks and decodes the transactions of another
+ * iterator on a separate thread, ahead of the caller. While the caller
+ * applies a transaction to the tree, the following ones are being read from
+ * the log.
+ *
+ * Like the underlying iterator it starts positioned on the first
+ * transaction. A read error is reported by the call to {@link #next()}
+ * that would have returned the failed transaction.
+ */
+public class ReadAheadTxnIterator implements TxnIterator {
+    private static final Entry END = new Entry(null, null, null);
+
+    private static class Entry {
+        final TxnHeader hdr;
+        final Record txn;
+        final IOException failure;
+
+        Entry(TxnHeader hdr, Record txn, IOException failure) {
+            this.hdr = hdr;
+            this.txn = txn;
+            this.failure = failure;
+        }
+    }
+
+    private final TxnIterator itr;
+    private final BlockingQueue<Entry> queue;
+    private final Reader reader;
+    private TxnHeader hdr;
+    private Record txn;
+
+    public ReadAheadTxnIterator(TxnIterator itr, int maxReadAhead) {
+        this.itr = itr;
+        this.queue = new ArrayBlockingQueue<Entry>(Math.max(1, maxReadAhead));
+        this.hdr = itr.getHeader();
+        this.txn = itr.getTxn();
+        if (hdr == null) {
+            reader = null;
+        } else {
+            reader = new Reader();
+            reader.start();
+        }
+    }
+
+    public TxnHeader getHeader() {
+        return hdr;
+    }
+
+    public Record getTxn() {
+        return txn;
+    }
+
+    public boolean next() throws IOException {
+        if (hdr == null) {
+            return false;
+        }
+        Entry entry;
+        try {
+            entry = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading txn log");
+        }
+        if (entry.failure != null) {
+            hdr = null;
+            txn = null;
+            throw entry.failure;
+        }
+        hdr = entry.hdr;
+        txn = entry.txn;
+        return hdr != null;
+    }
+
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.stopping = true;
+            // unblock the reader if it is waiting for room in the queue
+            while (reader.isAlive()) {
+                queue.clear();
+                try {
+                    reader.join(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        itr.close();
+    }
+
+    public long getStorageSize() throws IOException {
+        return itr.getStorageSize();
+    }
+
+    private class Reader extends ZooKeeperThread {
+        volatile boolean stopping;
+
+        Reader() {
+            super("TxnLogReader");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Entry last = END;
+            try {
+                while (!stopping && itr.next()) {
+                    queue.put(new Entry(itr.getHeader(), itr.getTxn(), null));
+                }
+            } catch (IOException e) {
+                last = new Entry(null, null, e);
+            } catch (RuntimeException e) {
+                last = new Entry(null, null,
+                        new IOException("Failed to read txn log", e));
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!stopping) {
+                try {
+                    queue.put(last);
+                } catch (InterruptedException e) {
+                    // nobody is waiting for it
+                }
+            }
+        }
+    }
+}
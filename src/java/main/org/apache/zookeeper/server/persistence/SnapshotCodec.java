@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+
+/**
+ * Compresses the blocks of a compressed snapshot, see
+ * {@link SnapshotCompression}.
+ *
+ * Implementations must be thread safe and have a public no argument
+ * constructor if they are configured by class name.
+ */
+public interface SnapshotCodec {
+    /**
+     * @return the name stored in snapshots written with this codec, used to
+     *         find the codec again when the snapshot is read
+     */
+    String getName();
+
+    /**
+     * Compress a block.
+     *
+     * @param src the buffer holding the block
+     * @param off offset of the block in src
+     * @param len length of the block
+     * @return the compressed block
+     */
+    byte[] compress(byte[] src, int off, int len) throws IOException;
+
+    /**
+     * Decompress a block.
+     *
+     * @param src the compressed block
+     * @param dst receives the block, sized to its uncompressed length
+     * @throws IOException if src does not decompress to exactly dst.length
+     *         bytes
+     */
+    void decompress(byte[] src, byte[] dst) throws IOException;
+}
@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compression of snapshot files.
+ *
+ * A compressed snapshot starts with a {@link FileHeader} whose magic is
+ * {@link FileSnap#SNAP_COMPRESSED_MAGIC}, followed by the name of the codec
+ * it was written with. The sessions and the tree, which an uncompressed
+ * snapshot holds as they are, are then cut into blocks of at most
+ * {@link #BLOCK_SIZE} bytes. Each block is written as its uncompressed
+ * length followed by the compressed bytes; a length of 0 marks the last
+ * block. The checksum and the end marker that close a snapshot are not
+ * compressed, so finding and validating snapshots works as before.
+ *
+ * Snapshots are compressed when {@link #COMPRESSION} names a codec: "gzip",
+ * "lz", or the class name of a {@link SnapshotCodec}. The codec recorded in
+ * a snapshot is used to read it, so the setting can be changed at any time
+ * and uncompressed snapshots can always be read.
+ */
+public class SnapshotCompression {
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotCompression.class);
+
+    /** Default: none */
+    public static final String COMPRESSION = "zookeeper.snapshot.compression";
+
+    public static final String NONE = "none";
+
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    private SnapshotCompression() {
+    }
+
+    /**
+     * @return the codec configured through system properties, or null if
+     *         snapshots are not compressed
+     */
+    public static SnapshotCodec fromSystemProperties() {
+        String name = System.getProperty(COMPRESSION, NONE).trim();
+        if (name.isEmpty() || NONE.equals(name)) {
+            return null;
+        }
+        try {
+            SnapshotCodec codec = getCodec(name);
+            LOG.info("Snapshots are compressed with {}", codec.getName());
+            return codec;
+        } catch (IOException e) {
+            LOG.error("Invalid {}, snapshots are not compressed", COMPRESSION, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param name a codec name as returned by {@link SnapshotCodec#getName()}
+     * @return the codec
+     * @throws IOException if there is no such codec
+     */
+    public static SnapshotCodec getCodec(String name) throws IOException {
+        if (GzipSnapshotCodec.NAME.equals(name)) {
+            return new GzipSnapshotCodec();
+        }
+        if (LzSnapshotCodec.NAME.equals(name)) {
+            return new LzSnapshotCodec();
+        }
+        try {
+            Class<?> clazz = Class.forName(name);
+            return (SnapshotCodec) clazz.newInstance();
+        } catch (Exception e) {
+            throw new IOException("Unknown snapshot codec " + name, e);
+        }
+    }
+
+    /**
+     * Cuts what is written to it into compressed blocks, written to an
+     * archive. {@link #finish()} writes the last block.
+     */
+    public static class BlockOutputStream extends OutputStream {
+        private final OutputArchive oa;
+        private final SnapshotCodec codec;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int count;
+        private long compressedBytes;
+
+        public BlockOutputStream(OutputArchive oa, SnapshotCodec codec) {
+            this.oa = oa;
+            this.codec = codec;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == block.length) {
+                writeBlock();
+            }
+            block[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == block.length) {
+                    writeBlock();
+                }
+                int n = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Write the pending block and the end marker. Does not close the
+         * archive.
+         */
+        public void finish() throws IOException {
+            writeBlock();
+            oa.writeInt(0, "len");
+        }
+
+        /** @return the number of compressed bytes written so far */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        private void writeBlock() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            byte[] compressed = codec.compress(block, 0, count);
+            oa.writeInt(count, "len");
+            oa.writeBuffer(compressed, "block");
+            compressedBytes += compressed.length + 8;
+            count = 0;
+        }
+    }
+
+    /**
+     * Reads the blocks written by a {@link BlockOutputStream}. Blocks are
+     * only read from the archive as they are needed, so after the last
+     * block the archive is positioned right after the end marker.
+     */
+    public static class BlockInputStream extends InputStream {
+        private final InputArchive ia;
+        private final SnapshotCodec codec;
+        private byte[] block = new byte[0];
+        private int pos;
+        private boolean eof;
+
+        public BlockInputStream(InputArchive ia, SnapshotCodec codec) {
+            this.ia = ia;
+            this.codec = codec;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, block.length - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * Skip whatever is left, up to and including the end marker.
+         */
+        public void skipToEnd() throws IOException {
+            while (fill()) {
+                pos = block.length;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            while (pos == block.length) {
+                if (eof) {
+                    return false;
+                }
+                int len = ia.readInt("len");
+                if (len == 0) {
+                    eof = true;
+                    return false;
+                }
+                if (len < 0 || len > BLOCK_SIZE) {
+                    throw new IOException("Invalid block length " + len);
+                }
+                byte[] compressed = ia.readBuffer("block");
+                if (block.length != len) {
+                    block = new byte[len];
+                }
+                codec.decompress(compressed, block);
+                pos = 0;
+            }
+            return true;
+        }
+    }
+}
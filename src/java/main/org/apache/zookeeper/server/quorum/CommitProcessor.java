@@ -29,6 +29,7 @@
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ServerStats;
 import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZooKeeperCriticalThread;
 import org.apache.zookeeper.server.ZooKeeperServerListener;
@@ -65,7 +66,17 @@
  *     trigger a watch being set by a read request in another session
  *
  * The current implementation solves the third constraint by simply allowing no
- * read requests to be processed in parallel with write requests.
+ * read requests to be processed in parallel with write requests. The reads
+ * ZooKeeperServer answers on its fast path are likewise kept from running
+ * while a write is applied.
+ *
+ * By default each round of the main loop takes every request queued when the
+ * round started and then applies a single commit. The number of requests
+ * taken and of commits applied in a round can be bounded with
+ * zookeeper.commitProcessor.maxReadBatchSize and maxCommitBatchSize. With
+ * zookeeper.commitProcessor.adaptiveBatching the bounds in effect move
+ * between 1 and those maximums, favouring whichever of the request queue and
+ * the committed queue has recently made requests wait longer.
  */
 public class CommitProcessor extends ZooKeeperCriticalThread implements
         RequestProcessor {
@@ -77,6 +88,21 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements
     /** Default worker pool shutdown timeout in ms: 5000 (5s) */
     public static final String ZOOKEEPER_COMMIT_PROC_SHUTDOWN_TIMEOUT =
         "zookeeper.commitProcessor.shutdownTimeout";
+    /** Default: -1 (no limit, or 1000 with adaptive batching) */
+    public static final String ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE =
+        "zookeeper.commitProcessor.maxReadBatchSize";
+    /** Default: 1 */
+    public static final String ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE =
+        "zookeeper.commitProcessor.maxCommitBatchSize";
+    /** Default: false */
+    public static final String ZOOKEEPER_COMMIT_PROC_ADAPTIVE_BATCHING =
+        "zookeeper.commitProcessor.adaptiveBatching";
+
+    /** Max read batch size used for adaptive batching if none is set */
+    static final int DEFAULT_ADAPTIVE_MAX_READ_BATCH_SIZE = 1000;
+
+    /** How often adaptive batching revisits the batch sizes */
+    private static final long ADAPT_INTERVAL_NS = 100 * 1000 * 1000;
 
     /**
      * Incoming requests.
@@ -100,6 +126,14 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements
     /** The number of requests currently being processed */
     protected final AtomicInteger numRequestsProcessing = new AtomicInteger(0);
 
+    /**
+     * The number of requests needing a commit in queuedRequests. Incremented
+     * before a request is queued and decremented after it is taken, so a zero
+     * read after a commit was seen means the commit does not belong to a
+     * request that is still queued.
+     */
+    protected final AtomicInteger numQueuedWriteRequests = new AtomicInteger(0);
+
     RequestProcessor nextProcessor;
 
     /** For testing purposes, we use a separated stopping condition for the
@@ -110,6 +144,26 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements
     protected WorkerService workerPool;
     private Object emptyPoolSync = new Object();
 
+    private final ServerStats stats;
+
+    /**
+     * Requests taken from queuedRequests per round, -1 for all queued when
+     * the round starts. Only changed by the main thread.
+     */
+    private volatile int readBatchSize = -1;
+    /** Commits applied per round. Only changed by the main thread. */
+    private volatile int commitBatchSize = 1;
+    private int maxReadBatchSize = -1;
+    private int maxCommitBatchSize = 1;
+    private boolean adaptiveBatching = false;
+
+    /* Waits observed by the main thread since batch sizes were last adapted */
+    private long adaptStartTime = System.nanoTime();
+    private long queueWaitTotal;
+    private long queueWaitCount;
+    private long commitWaitTotal;
+    private long commitWaitCount;
+
     /**
      * This flag indicates whether we need to wait for a response to come back
      * from the leader or we just let the sync operation flow through like a
@@ -120,9 +174,34 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements
 
     public CommitProcessor(RequestProcessor nextProcessor, String id,
                            boolean matchSyncs, ZooKeeperServerListener listener) {
+        this(nextProcessor, id, matchSyncs, listener, null);
+    }
+
+    /**
+     * @param stats where queue, commit and worker times are recorded; may be
+     *              null
+     */
+    public CommitProcessor(RequestProcessor nextProcessor, String id,
+                           boolean matchSyncs, ZooKeeperServerListener listener,
+                           ServerStats stats) {
         super("CommitProcessor:" + id, listener);
         this.nextProcessor = nextProcessor;
         this.matchSyncs = matchSyncs;
+        this.stats = stats == null ? new ServerStats(null) : stats;
+    }
+
+    /**
+     * @return the number of queued requests taken per round, -1 for no limit
+     */
+    public int getReadBatchSize() {
+        return readBatchSize;
+    }
+
+    /**
+     * @return the number of commits applied per round
+     */
+    public int getCommitBatchSize() {
+        return commitBatchSize;
     }
 
     private boolean isProcessingRequest() {
@@ -141,6 +220,7 @@ protected boolean needCommit(Request request) {
             case OpCode.reconfig:
             case OpCode.multi:
             case OpCode.setACL:
+            case OpCode.closeSessions:
                 return true;
             case OpCode.sync:
                 return matchSyncs;    
@@ -178,6 +258,10 @@ public void run() {
                 if (requestsToProcess == 0 && !commitIsWaiting){
                     // Waiting for requests to process
                     synchronized (this) {
+                        // Check again, a wakeup before we took the lock
+                        // would be lost
+                        commitIsWaiting = !committedRequests.isEmpty();
+                        requestsToProcess = queuedRequests.size();
                         while (!stopped && requestsToProcess == 0
                                 && !commitIsWaiting) {
                             wait();
@@ -189,13 +273,28 @@ public void run() {
                 /*
                  * Processing up to requestsToProcess requests from the incoming
                  * queue (queuedRequests), possibly less if a committed request
-                 * is present along with a pending local write. After the loop,
-                 * we process one committed request if commitIsWaiting.
+                 * is present along with a pending local write or the read
+                 * batch size is reached. After the loop, we process committed
+                 * requests if commitIsWaiting.
                  */
+                int maxReads = readBatchSize;
+                int reads = 0;
                 Request request = null;
                 while (!stopped && requestsToProcess > 0
+                        && (maxReads < 0 || reads < maxReads)
                         && (request = queuedRequests.poll()) != null) {
                     requestsToProcess--;
+                    reads++;
+                    if (needCommit(request)) {
+                        numQueuedWriteRequests.decrementAndGet();
+                    }
+                    if (request.commitProcQueueStartTime != -1) {
+                        long waitUs = (System.nanoTime()
+                                - request.commitProcQueueStartTime) / 1000;
+                        stats.updateCommitProcQueueWait(waitUs);
+                        queueWaitTotal += waitUs;
+                        queueWaitCount++;
+                    }
                     if (needCommit(request)
                             || pendingRequests.containsKey(request.sessionId)) {
                         // Add request to pending
@@ -231,8 +330,18 @@ public void run() {
                     }
                 }
 
-                // Handle a single committed request
-                if (commitIsWaiting && !stopped){
+                /*
+                 * If requests are left in the queue, the head commit may
+                 * belong to one of them and can only be processed once it is
+                 * known not to.
+                 */
+                if (requestsToProcess > 0) {
+                    commitIsWaiting = canProcessCommit();
+                }
+
+                // Handle committed requests
+                int commits = 0;
+                while (commitIsWaiting && !stopped){
                     waitForEmptyPool();
 
                     if (stopped){
@@ -243,6 +352,14 @@ public void run() {
                     if ((request = committedRequests.poll()) == null) {
                         throw new IOException("Error: committed head is null");
                     }
+                    commits++;
+                    if (request.commitRecvTime != -1) {
+                        long waitUs = (System.nanoTime()
+                                - request.commitRecvTime) / 1000;
+                        stats.updateCommitWait(waitUs);
+                        commitWaitTotal += waitUs;
+                        commitWaitCount++;
+                    }
 
                     /*
                      * Check if request is pending, if so, update it with the
@@ -292,6 +409,14 @@ public void run() {
                             pendingRequests.remove(request.sessionId);
                         }
                     }
+
+                    commitIsWaiting = commits < commitBatchSize
+                            && canProcessCommit();
+                }
+
+                stats.updateCommitProcBatch(reads, commits);
+                if (adaptiveBatching) {
+                    adaptBatchSizes();
                 }
             } while (!stoppedMainLoop);
         } catch (Throwable e) {
@@ -300,6 +425,44 @@ public void run() {
         LOG.info("CommitProcessor exited loop!");
     }
 
+    /**
+     * Whether the head of committedRequests can be processed before the
+     * requests still in queuedRequests. It can if a local write is pending,
+     * as commits arrive in the order writes were queued, or if no write is
+     * queued, in which case the commit cannot belong to a queued request.
+     */
+    private boolean canProcessCommit() {
+        return !committedRequests.isEmpty()
+            && (!pendingRequests.isEmpty() || numQueuedWriteRequests.get() == 0);
+    }
+
+    /**
+     * Every ADAPT_INTERVAL_NS, compare the average time requests waited in
+     * queuedRequests with the time commits waited in committedRequests, and
+     * shift the batch sizes towards the queue that waited over twice as
+     * long.
+     */
+    private void adaptBatchSizes() {
+        long now = System.nanoTime();
+        if (now - adaptStartTime < ADAPT_INTERVAL_NS) {
+            return;
+        }
+        long queueWait = queueWaitCount == 0 ? 0 : queueWaitTotal / queueWaitCount;
+        long commitWait = commitWaitCount == 0 ? 0 : commitWaitTotal / commitWaitCount;
+        if (commitWait > 2 * queueWait) {
+            commitBatchSize = Math.min(commitBatchSize * 2, maxCommitBatchSize);
+            readBatchSize = Math.max(readBatchSize / 2, 1);
+        } else if (queueWait > 2 * commitWait) {
+            readBatchSize = Math.min(readBatchSize * 2, maxReadBatchSize);
+            commitBatchSize = Math.max(commitBatchSize / 2, 1);
+        }
+        adaptStartTime = now;
+        queueWaitTotal = 0;
+        queueWaitCount = 0;
+        commitWaitTotal = 0;
+        commitWaitCount = 0;
+    }
+
     private void waitForEmptyPool() throws InterruptedException {
         synchronized(emptyPoolSync) {
             while ((!stopped) && isProcessingRequest()) {
@@ -315,10 +478,17 @@ public void start() {
             ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS, numCores);
         workerShutdownTimeoutMS = Long.getLong(
             ZOOKEEPER_COMMIT_PROC_SHUTDOWN_TIMEOUT, 5000);
+        setBatchSizes(
+            Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE, -1),
+            Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE, 1),
+            Boolean.getBoolean(ZOOKEEPER_COMMIT_PROC_ADAPTIVE_BATCHING));
 
         LOG.info("Configuring CommitProcessor with "
                  + (numWorkerThreads > 0 ? numWorkerThreads : "no")
-                 + " worker threads.");
+                 + " worker threads, read batch size "
+                 + (maxReadBatchSize > 0 ? maxReadBatchSize : "unlimited")
+                 + ", commit batch size " + maxCommitBatchSize
+                 + (adaptiveBatching ? " (adaptive)." : "."));
         if (workerPool == null) {
             workerPool = new WorkerService(
                 "CommitProcWork", numWorkerThreads, true);
@@ -328,6 +498,32 @@ public void start() {
         super.start();
     }
 
+    /**
+     * Set the batch sizes of the main loop. Must be called before the main
+     * loop runs.
+     *
+     * @param maxReadBatchSize requests taken from the queue per round, -1 for
+     *                         no limit
+     * @param maxCommitBatchSize commits applied per round
+     * @param adaptive whether to adapt the batch sizes to the observed waits
+     */
+    void setBatchSizes(int maxReadBatchSize, int maxCommitBatchSize,
+                       boolean adaptive) {
+        if (maxReadBatchSize == 0 || maxReadBatchSize < -1) {
+            LOG.warn("Invalid " + ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE
+                     + " " + maxReadBatchSize + ", using no limit");
+            maxReadBatchSize = -1;
+        }
+        if (adaptive && maxReadBatchSize < 0) {
+            maxReadBatchSize = DEFAULT_ADAPTIVE_MAX_READ_BATCH_SIZE;
+        }
+        this.adaptiveBatching = adaptive;
+        this.maxReadBatchSize = maxReadBatchSize;
+        this.maxCommitBatchSize = Math.max(1, maxCommitBatchSize);
+        this.readBatchSize = this.maxReadBatchSize;
+        this.commitBatchSize = adaptive ? 1 : this.maxCommitBatchSize;
+    }
+
     /**
      * Schedule final request processing; if a worker thread pool is not being
      * used, processing is done directly by this thread.
@@ -358,9 +554,12 @@ public void cleanup() {
         }
 
         public void doWork() throws RequestProcessorException {
+            long start = System.nanoTime();
             try {
                 nextProcessor.processRequest(request);
             } finally {
+                stats.updateCommitProcWorkerTime(
+                        (System.nanoTime() - start) / 1000);
                 if (numRequestsProcessing.decrementAndGet() == 0){
                     wakeupOnEmpty();
                 }
@@ -385,6 +584,7 @@ public void commit(Request request) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("Committing request:: " + request);
         }
+        request.commitRecvTime = System.nanoTime();
         committedRequests.add(request);
         wakeup();
     }
@@ -396,6 +596,10 @@ public void processRequest(Request request) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("Processing request:: " + request);
         }
+        request.commitProcQueueStartTime = System.nanoTime();
+        if (needCommit(request)) {
+            numQueuedWriteRequests.incrementAndGet();
+        }
         queuedRequests.add(request);
         wakeup();
     }
@@ -406,6 +610,7 @@ private void halt() {
         wakeupOnEmpty();
         wakeup();
         queuedRequests.clear();
+        numQueuedWriteRequests.set(0);
         if (workerPool != null) {
             workerPool.stop();
         }
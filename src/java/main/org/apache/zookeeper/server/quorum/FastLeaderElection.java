@@ -228,10 +228,14 @@ class WorkerReceiver extends ZooKeeperThread  {
 
             public void run() {
 
-                Message response;
+                Message response = null;
                 while (!stop) {
                     // Sleeps on receive
                     try {
+                        if (response != null) {
+                            // done with the previous message
+                            response.release();
+                        }
                         response = manager.pollRecvQueue(3000, TimeUnit.MILLISECONDS);
                         if(response == null) continue;
 
@@ -437,6 +441,9 @@ public void run() {
                                 e.toString());
                     }
                 }
+                if (response != null) {
+                    response.release();
+                }
                 LOG.info("WorkerReceiver is down");
             }
         }
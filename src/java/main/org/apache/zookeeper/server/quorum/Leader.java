@@ -66,6 +66,38 @@ public class Leader {
     static public class Proposal  extends SyncedLearnerTracker {
         public QuorumPacket packet;
         public Request request;
+        private ProposalBatcher.Batch serializedPacket;
+        private AtomicLong serializedBytesCounter;
+
+        /**
+         * Have the size of the serialized packet added to the given counter
+         * once it is made.
+         */
+        public synchronized void setSerializedBytesCounter(AtomicLong counter) {
+            serializedBytesCounter = counter;
+        }
+
+        /**
+         * The packet serialized as written to learners. It is kept with the
+         * proposal, so the learners synced from the committed log share a
+         * single serialization of it.
+         */
+        synchronized QuorumPacket getSerializedPacket() {
+            if (serializedPacket == null) {
+                serializedPacket = ProposalBatcher.Batch.of(packet);
+                if (serializedBytesCounter != null) {
+                    serializedBytesCounter.addAndGet(serializedPacket.bytes.length);
+                }
+            }
+            return serializedPacket;
+        }
+
+        /**
+         * @return the size of the serialized packet, 0 until it is made
+         */
+        public synchronized int getSerializedSize() {
+            return serializedPacket == null ? 0 : serializedPacket.bytes.length;
+        }
 
         @Override
         public String toString() {
@@ -88,6 +120,11 @@ public String toString() {
     private final LearnerSnapshotThrottler learnerSnapshotThrottler = 
         new LearnerSnapshotThrottler(maxConcurrentSnapshots, maxConcurrentSnapshotTimeout);
 
+    private final ProposalBatcher proposalBatcher = new ProposalBatcher(this);
+
+    private final Object learnerSnapshotImageLock = new Object();
+    private LearnerSnapshotImage learnerSnapshotImage;
+
     final LeaderZooKeeperServer zk;
 
     final QuorumPeer self;
@@ -123,6 +160,20 @@ public List<LearnerHandler> getForwardingFollowers() {
         }
     }
 
+    /**
+     * @return true if a forwarding follower has nothing left to send
+     */
+    boolean hasIdleForwardingFollower() {
+        synchronized (forwardingFollowers) {
+            for (LearnerHandler f : forwardingFollowers) {
+                if (f.queuedPackets.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     private void addForwardingFollower(LearnerHandler lh) {
         synchronized (forwardingFollowers) {
             forwardingFollowers.add(lh);
@@ -147,12 +198,20 @@ private void addObserverLearnerHandler(LearnerHandler lh) {
         }
     }
 
-    // Pending sync requests. Must access under 'this' lock.
+    /**
+     * Serializes committing proposals, so acks are counted without holding
+     * the leader lock. Taken before the leader lock when both are needed.
+     */
+    private final Object commitLock = new Object();
+
+    // Pending sync requests. Must access under 'commitLock'.
     private final HashMap<Long,List<LearnerSyncRequest>> pendingSyncs =
         new HashMap<Long,List<LearnerSyncRequest>>();
 
-    synchronized public int getNumPendingSyncs() {
-        return pendingSyncs.size();
+    public int getNumPendingSyncs() {
+        synchronized (commitLock) {
+            return pendingSyncs.size();
+        }
     }
 
     //Follower counter
@@ -341,6 +400,12 @@ public boolean isQuorumSynced(QuorumVerifier qv) {
      * Similar to INFORM, only for a reconfig operation.
      */
     final static int INFORMANDACTIVATE = 19;
+
+    /**
+     * Like ACK, for every proposal up to and including its zxid. Sent by
+     * followers in cumulative ack mode, see SendAckRequestProcessor.
+     */
+    final static int CUMULATIVEACK = 20;
     
     final ConcurrentMap<Long, Proposal> outstandingProposals = new ConcurrentHashMap<Long, Proposal>();
 
@@ -400,7 +465,7 @@ public void halt() {
 
     // when a reconfig occurs where the leader is removed or becomes an observer, 
    // it does not commit ops after committing the reconfig
-    boolean allowedToCommit = true;     
+    volatile boolean allowedToCommit = true;
     /**
      * This method is main function that is called to lead
      *
@@ -421,6 +486,7 @@ void lead() throws IOException, InterruptedException {
         try {
             self.tick.set(0);
             zk.loadData();
+            LearnerSnapshotImage.deleteImages(self.getTxnFactory().getSnapDir());
 
             leaderStateSummary = new StateSummary(self.getCurrentEpoch(), zk.getLastProcessedZxid());
 
@@ -645,6 +711,7 @@ void shutdown(String reason) {
             LOG.warn("Ignoring unexpected exception during close",e);
         }
         self.closeAllConnections();
+        releaseLearnerSnapshotImage();
         // shutdown the previous zk
         if (zk != null) {
             zk.shutdown();
@@ -683,7 +750,11 @@ private long getDesignatedLeader(Proposal reconfigProposal, long zxid) {
        // start with an initial set of candidates that are voters from new config that 
        // acknowledged the reconfig op (there must be a quorum). Choose one of them as 
        // current leader candidate
-       HashSet<Long> candidates = new HashSet<Long>(newQVAcksetPair.getAckset());
+       // acks are added concurrently under the lock of the proposal
+       HashSet<Long> candidates;
+       synchronized (reconfigProposal) {
+           candidates = new HashSet<Long>(newQVAcksetPair.getAckset());
+       }
        candidates.remove(self.getId()); // if we're here, I shouldn't be the leader
        long curCandidate = candidates.iterator().next();
        
@@ -696,7 +767,9 @@ private long getDesignatedLeader(Proposal reconfigProposal, long zxid) {
        while (p!=null && !candidates.isEmpty()) {                              
            for (Proposal.QuorumVerifierAcksetPair qvAckset: p.qvAcksetPairs){ 
                //reduce the set of candidates to those that acknowledged p
-               candidates.retainAll(qvAckset.getAckset());
+               synchronized (p) {
+                   candidates.retainAll(qvAckset.getAckset());
+               }
                //no candidate acked p, return the best candidate found so far
                if (candidates.isEmpty()) return curCandidate;
                //update the current candidate, and if it is the only one remaining, return it
@@ -714,7 +787,16 @@ private long getDesignatedLeader(Proposal reconfigProposal, long zxid) {
      * @return True if committed, otherwise false.
      * @param a proposal p
      **/
-    synchronized public boolean tryToCommit(Proposal p, long zxid, SocketAddress followerAddr) {       
+    public boolean tryToCommit(Proposal p, long zxid, SocketAddress followerAddr) {
+        synchronized (commitLock) {
+            return tryToCommitLocked(p, zxid, followerAddr);
+        }
+    }
+
+    private boolean tryToCommitLocked(Proposal p, long zxid, SocketAddress followerAddr) {
+       // the ack of another learner may have committed it already
+       if (outstandingProposals.get(zxid) != p) return false;
+
        // make sure that ops are committed in order. With reconfigurations it is now possible
        // that different operations wait for different sets of acks, and we still want to enforce
        // that they are committed in order. Currently we only permit one outstanding reconfiguration
@@ -742,6 +824,7 @@ synchronized public boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
         outstandingProposals.remove(zxid);
         
         if (p.request != null) {
+             p.request.quorumAckTime = System.nanoTime();
              toBeApplied.add(p);
         }
 
@@ -754,6 +837,8 @@ synchronized public boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
             //then it will remain the leader
             //otherwise an up-to-date follower will be designated as leader. This saves
             //leader election time, unless the designated leader fails                             
+            // not concurrently with propose(), which reads the quorum verifiers
+            synchronized (this) {
             Long designatedLeader = getDesignatedLeader(p, zxid);
             //LOG.warn("designated leader is: " + designatedLeader);
 
@@ -771,6 +856,7 @@ synchronized public boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
             commitAndActivate(zxid, designatedLeader);
             informAndActivate(p, designatedLeader);
             //turnOffFollowers();
+            }
         } else {
             commit(zxid);
             inform(p);
@@ -787,13 +873,15 @@ synchronized public boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
     
     /**
      * Keep a count of acks that are received by the leader for a particular
-     * proposal
+     * proposal. Acks are counted without holding the leader lock, only the
+     * ack completing a quorum takes the commit lock to commit the proposal
+     * and any proposals following it which have a quorum already.
      *
      * @param zxid, the zxid of the proposal sent out
      * @param sid, the id of the server that sent the ack
      * @param followerAddr
      */
-    synchronized public void processAck(long sid, long zxid, SocketAddress followerAddr) {        
+    public void processAck(long sid, long zxid, SocketAddress followerAddr) {        
         if (!allowedToCommit) return; // last op committed was a leader change - from now on 
                                      // the new leader should commit        
         if (LOG.isTraceEnabled()) {
@@ -832,6 +920,10 @@ synchronized public void processAck(long sid, long zxid, SocketAddress followerA
         }
         Proposal p = outstandingProposals.get(zxid);
         if (p == null) {
+            if (lastCommitted >= zxid) {
+                // committed in the meantime on the ack of another learner
+                return;
+            }
             LOG.warn("Trying to commit future proposal: zxid 0x{} from {}",
                     Long.toHexString(zxid), followerAddr);
             return;
@@ -843,27 +935,48 @@ synchronized public void processAck(long sid, long zxid, SocketAddress followerA
                     Long.toHexString(zxid), p.ackSet.size());
         }*/
         
-        boolean hasCommitted = tryToCommit(p, zxid, followerAddr);
+        if (!p.hasAllQuorums()) {
+            return;
+        }
 
-        // If p is a reconfiguration, multiple other operations may be ready to be committed,
-        // since operations wait for different sets of acks.
-       // Currently we only permit one outstanding reconfiguration at a time
-       // such that the reconfiguration and subsequent outstanding ops proposed while the reconfig is
-       // pending all wait for a quorum of old and new config, so its not possible to get enough acks
-       // for an operation without getting enough acks for preceding ops. But in the future if multiple
-       // concurrent reconfigs are allowed, this can happen and then we need to check whether some pending
-        // ops may already have enough acks and can be committed, which is what this code does.
-
-        if (hasCommitted && p.request!=null && p.request.getHdr().getType() == OpCode.reconfig){
-               long curZxid = zxid;
-           while (allowedToCommit && hasCommitted && p!=null){
-               curZxid++;
-               p = outstandingProposals.get(curZxid);
-               if (p !=null) hasCommitted = tryToCommit(p, curZxid, null);             
-           }
+        synchronized (commitLock) {
+            boolean hasCommitted = tryToCommitLocked(p, zxid, followerAddr);
+
+            // Acks are counted concurrently, so the proposals following this one
+            // may have reached a quorum while waiting for it to be committed.
+            // Also, if p is a reconfiguration, multiple other operations may be
+            // ready to be committed, since operations wait for different sets of
+            // acks. Commit all of them in order.
+            long curZxid = zxid;
+            while (allowedToCommit && hasCommitted) {
+                curZxid++;
+                p = outstandingProposals.get(curZxid);
+                hasCommitted = p != null && tryToCommitLocked(p, curZxid, null);
+            }
         }
     }
     
+    /**
+     * Acknowledge every outstanding proposal up to and including zxid on
+     * behalf of the given server, in a single pass.
+     *
+     * @param sid the id of the server that sent the ack
+     * @param zxid the highest zxid the server has logged
+     * @param followerAddr
+     */
+    public void processCumulativeAck(long sid, long zxid,
+            SocketAddress followerAddr) {
+        if (ZxidUtils.getEpochFromZxid(zxid) != getEpoch()) {
+            return;
+        }
+        long first = Math.max(lastCommitted + 1,
+                ZxidUtils.makeZxid(getEpoch(), 1));
+        long last = Math.min(zxid, lastProposed);
+        for (long z = first; z <= last && allowedToCommit; z++) {
+            processAck(sid, z, followerAddr);
+        }
+    }
+
     static class ToBeAppliedRequestProcessor implements RequestProcessor {
         private final RequestProcessor next;
 
@@ -936,6 +1049,14 @@ public void shutdown() {
      *                the packet to be sent
      */
     void sendPacket(QuorumPacket qp) {
+        if (proposalBatcher.isEnabled()) {
+            proposalBatcher.add(qp);
+        } else {
+            queueToForwardingFollowers(qp);
+        }
+    }
+
+    void queueToForwardingFollowers(QuorumPacket qp) {
         synchronized (forwardingFollowers) {
             for (LearnerHandler f : forwardingFollowers) {
                 f.queuePacket(qp);
@@ -943,6 +1064,15 @@ void sendPacket(QuorumPacket qp) {
         }
     }
 
+    /**
+     * Queue the packets batched up for the forwarding followers, if any.
+     */
+    void flushProposalBatch() {
+        if (proposalBatcher.isEnabled()) {
+            proposalBatcher.flushIfPending();
+        }
+    }
+
     /**
      * send a packet to all observers
      */
@@ -952,7 +1082,7 @@ void sendObserverPacket(QuorumPacket qp) {
         }
     }
 
-    long lastCommitted = -1;
+    volatile long lastCommitted = -1;
 
     /**
      * Create a commit packet and send it to all the members of the quorum
@@ -960,18 +1090,14 @@ void sendObserverPacket(QuorumPacket qp) {
      * @param zxid
      */
     public void commit(long zxid) {
-        synchronized(this){
-            lastCommitted = zxid;
-        }
+        lastCommitted = zxid;
         QuorumPacket qp = new QuorumPacket(Leader.COMMIT, zxid, null, null);
         sendPacket(qp);
     }
 
     //commit and send some info
     public void commitAndActivate(long zxid, long designatedLeader) {
-        synchronized(this){
-            lastCommitted = zxid;
-        }
+        lastCommitted = zxid;
         
         byte data[] = new byte[8];
         ByteBuffer buffer = ByteBuffer.wrap(data);                            
@@ -1009,7 +1135,7 @@ public void informAndActivate(Proposal proposal, long designatedLeader) {
         sendObserverPacket(qp);
     }
 
-    long lastProposed;
+    volatile long lastProposed;
 
 
     /**
@@ -1035,6 +1161,7 @@ public XidRolloverException(String message) {
      * @return the proposal that is queued to send to all the members
      */
     public Proposal propose(Request request) throws XidRolloverException {
+        request.proposeTime = System.nanoTime();
         /**
          * Address the rollover issue. All lower 32bits set indicate a new leader
          * election. Force a re-election instead. See ZOOKEEPER-1277
@@ -1090,22 +1217,86 @@ public LearnerSnapshotThrottler getLearnerSnapshotThrottler() {
         return learnerSnapshotThrottler;
     }
 
+    /**
+     * @return the latest snapshot image taken for learners, retained for
+     *         the caller, or null if there is none
+     */
+    LearnerSnapshotImage retainLearnerSnapshotImage() {
+        synchronized (learnerSnapshotImageLock) {
+            if (learnerSnapshotImage != null && learnerSnapshotImage.retain()) {
+                return learnerSnapshotImage;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get a snapshot image of the database as of minZxid or later for a
+     * learner, taking a new one unless the latest one is recent enough.
+     *
+     * The image is serialized without holding any lock, then published as
+     * the latest one unless another learner handler published a more recent
+     * one meanwhile.
+     *
+     * @return the image, retained for the caller
+     */
+    LearnerSnapshotImage getLearnerSnapshotImage(long minZxid)
+            throws IOException, InterruptedException {
+        LearnerSnapshotImage latest = retainLearnerSnapshotImage();
+        if (latest != null) {
+            if (latest.getZxid() >= minZxid) {
+                return latest;
+            }
+            latest.release();
+        }
+        LearnerSnapshotImage image = LearnerSnapshotImage.take(
+                zk.getZKDatabase(), self.getTxnFactory().getSnapDir());
+        // the reference of the caller, the one image was created with is
+        // the leader's as long as it is the latest image
+        image.retain();
+        LearnerSnapshotImage replaced = image;
+        synchronized (learnerSnapshotImageLock) {
+            if (learnerSnapshotImage == null
+                    || learnerSnapshotImage.getZxid() < image.getZxid()) {
+                replaced = learnerSnapshotImage;
+                learnerSnapshotImage = image;
+            }
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+        return image;
+    }
+
+    private void releaseLearnerSnapshotImage() {
+        LearnerSnapshotImage image;
+        synchronized (learnerSnapshotImageLock) {
+            image = learnerSnapshotImage;
+            learnerSnapshotImage = null;
+        }
+        if (image != null) {
+            image.release();
+        }
+    }
+
     /**
      * Process sync requests
      *
      * @param r the request
      */
 
-    synchronized public void processSync(LearnerSyncRequest r){
-        if(outstandingProposals.isEmpty()){
-            sendSync(r);
-        } else {
-            List<LearnerSyncRequest> l = pendingSyncs.get(lastProposed);
-            if (l == null) {
-                l = new ArrayList<LearnerSyncRequest>();
+    public void processSync(LearnerSyncRequest r){
+        synchronized (commitLock) {
+            if(outstandingProposals.isEmpty()){
+                sendSync(r);
+            } else {
+                List<LearnerSyncRequest> l = pendingSyncs.get(lastProposed);
+                if (l == null) {
+                    l = new ArrayList<LearnerSyncRequest>();
+                }
+                l.add(r);
+                pendingSyncs.put(lastProposed, l);
             }
-            l.add(r);
-            pendingSyncs.put(lastProposed, l);
         }
     }
 
@@ -1117,6 +1308,8 @@ synchronized public void processSync(LearnerSyncRequest r){
      */
 
     public void sendSync(LearnerSyncRequest r){
+        // the sync must not overtake the commits still batched up
+        flushProposalBatch();
         QuorumPacket qp = new QuorumPacket(Leader.SYNC, 0, null, null);
         r.fh.queuePacket(qp);
     }
@@ -1129,41 +1322,50 @@ public void sendSync(LearnerSyncRequest r){
      * @return last proposed zxid
      * @throws InterruptedException 
      */
-    synchronized public long startForwarding(LearnerHandler handler,
+    public long startForwarding(LearnerHandler handler,
             long lastSeenZxid) {
-        // Queue up any outstanding requests enabling the receipt of
-        // new requests
-        if (lastProposed > lastSeenZxid) {
-            for (Proposal p : toBeApplied) {
-                if (p.packet.getZxid() <= lastSeenZxid) {
-                    continue;
-                }
-                handler.queuePacket(p.packet);
-                // Since the proposal has been committed we need to send the
-                // commit message also
-                QuorumPacket qp = new QuorumPacket(Leader.COMMIT, p.packet
-                        .getZxid(), null, null);
-                handler.queuePacket(qp);
-            }
-            // Only participant need to get outstanding proposals
-            if (handler.getLearnerType() == LearnerType.PARTICIPANT) {
-                List<Long>zxids = new ArrayList<Long>(outstandingProposals.keySet());
-                Collections.sort(zxids);
-                for (Long zxid: zxids) {
-                    if (zxid <= lastSeenZxid) {
-                        continue;
+        // Neither proposals nor commits may be sent while the handler is
+        // being caught up and added
+        synchronized (commitLock) {
+            synchronized (this) {
+                // What is batched up goes to the followers forwarding already, the
+                // handler is sent the same proposals and commits below
+                flushProposalBatch();
+                // Queue up any outstanding requests enabling the receipt of
+                // new requests
+                if (lastProposed > lastSeenZxid) {
+                    for (Proposal p : toBeApplied) {
+                        if (p.packet.getZxid() <= lastSeenZxid) {
+                            continue;
+                        }
+                        handler.queuePacket(p.packet);
+                        // Since the proposal has been committed we need to send the
+                        // commit message also
+                        QuorumPacket qp = new QuorumPacket(Leader.COMMIT, p.packet
+                                .getZxid(), null, null);
+                        handler.queuePacket(qp);
+                    }
+                    // Only participant need to get outstanding proposals
+                    if (handler.getLearnerType() == LearnerType.PARTICIPANT) {
+                        List<Long>zxids = new ArrayList<Long>(outstandingProposals.keySet());
+                        Collections.sort(zxids);
+                        for (Long zxid: zxids) {
+                            if (zxid <= lastSeenZxid) {
+                                continue;
+                            }
+                            handler.queuePacket(outstandingProposals.get(zxid).packet);
+                        }
                     }
-                    handler.queuePacket(outstandingProposals.get(zxid).packet);
                 }
+                if (handler.getLearnerType() == LearnerType.PARTICIPANT) {
+                    addForwardingFollower(handler);
+                } else {
+                    addObserverLearnerHandler(handler);
+                }
+
+                return lastProposed;
             }
         }
-        if (handler.getLearnerType() == LearnerType.PARTICIPANT) {
-            addForwardingFollower(handler);
-        } else {
-            addObserverLearnerHandler(handler);
-        }
-
-        return lastProposed;
     }
     private final HashSet<Long> connectingFollowers = new HashSet<Long>();
     public long getEpochToPropose(long sid, long lastAcceptedEpoch) throws InterruptedException, IOException {
@@ -50,6 +50,14 @@ public String followerInfo() {
         return sb.toString();
     }
 
+    public String learnerSyncInfo() {
+        StringBuilder sb = new StringBuilder();
+        for (LearnerHandler handler : leader.getLearners()) {
+            sb.append(handler.getSyncInfo()).append("\n");
+        }
+        return sb.toString();
+    }
+
     @Override
     public long getElectionTimeTaken() {
         return leader.self.getElectionTimeTaken();
@@ -34,6 +34,12 @@ public interface LeaderMXBean extends ZooKeeperServerMXBean {
      */
     public String followerInfo();
 
+    /**
+     * @return how each learner was synchronized: DIFF, TRUNC or SNAP, the
+     * time it took and, for a snapshot, the bytes sent and bytes per second
+     */
+    public String learnerSyncInfo();
+
     /**
      * @return time taken for leader election in milliseconds.
      */
@@ -67,7 +67,7 @@ protected void setupRequestProcessors() {
         RequestProcessor toBeAppliedProcessor = new Leader.ToBeAppliedRequestProcessor(finalProcessor, getLeader());
         commitProcessor = new CommitProcessor(toBeAppliedProcessor,
                 Long.toString(getServerId()), false,
-                getZooKeeperServerListener());
+                getZooKeeperServerListener(), serverStats());
         commitProcessor.start();
         ProposalRequestProcessor proposalProcessor = new ProposalRequestProcessor(this,
                 commitProcessor);
@@ -160,6 +160,7 @@ protected void registerJMX() {
             LOG.warn("Failed to register with JMX", e);
             jmxDataTreeBean = null;
         }
+        registerRequestStagesJMX();
     }
 
     public void registerJMX(LeaderBean leaderBean,
@@ -187,6 +188,7 @@ public void registerJMX(LeaderBean leaderBean,
     @Override
     protected void unregisterJMX() {
         // unregister from JMX
+        unregisterRequestStagesJMX();
         try {
             if (jmxDataTreeBean != null) {
                 MBeanRegistry.getInstance().unregister(jmxDataTreeBean);
@@ -23,7 +23,10 @@
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -87,6 +90,13 @@ public Socket getSocket() {
     static {
         LOG.info("TCP NoDelay set to: " + nodelay);
     }   
+
+    /**
+     * Keep the snapshot image received from the leader in the snapshot
+     * directory as it arrives, so that the transfer is resumed if the
+     * connection drops, see LearnerSnapshotImage. Default: false
+     */
+    public static final String RESUMABLE_SNAP_SYNC = "zookeeper.learner.resumableSnapshotSync";
     
     final ConcurrentHashMap<Long, ServerCnxn> pendingRevalidations =
         new ConcurrentHashMap<Long, ServerCnxn>();
@@ -308,6 +318,14 @@ protected long registerWithLeader(int pktType) throws IOException{
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
+        if (Boolean.getBoolean(RESUMABLE_SNAP_SYNC)) {
+            // the snapshot image we have received part of, if any
+            File partial = LearnerSnapshotImage.findPartial(
+                    self.getTxnFactory().getSnapDir());
+            boa.writeLong(partial == null ? -1 : LearnerSnapshotImage.getZxid(partial),
+                    "snapZxid");
+            boa.writeLong(partial == null ? 0 : partial.length(), "snapOffset");
+        }
         qp.setData(bsid.toByteArray());
         
         writePacket(qp, true);
@@ -351,6 +369,23 @@ protected long registerWithLeader(int pktType) throws IOException{
      * @throws IOException
      * @throws InterruptedException
      */
+    private void deserializeSnapshot(InputArchive ia) throws IOException {
+        // db is clear as part of deserializeSnapshot()
+        zk.getZKDatabase().deserializeSnapshot(ia);
+        // ZOOKEEPER-2819: overwrite config node content extracted
+        // from leader snapshot with local config, to avoid potential
+        // inconsistency of config node content during rolling restart.
+        if (!QuorumPeerConfig.isReconfigEnabled()) {
+            LOG.debug("Reset config node content from local config after deserialization of snapshot.");
+            zk.getZKDatabase().initConfigInZKDatabase(self.getQuorumVerifier());
+        }
+        String signature = ia.readString("signature");
+        if (!signature.equals("BenWasHere")) {
+            LOG.error("Missing signature. Got " + signature);
+            throw new IOException("Missing signature");                   
+        }
+    }
+
     protected void syncWithLeader(long newLeaderZxid) throws Exception{
         QuorumPacket ack = new QuorumPacket(Leader.ACK, 0, null, null);
         QuorumPacket qp = new QuorumPacket();
@@ -371,20 +406,22 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception{
             }
             else if (qp.getType() == Leader.SNAP) {
                 LOG.info("Getting a snapshot from leader 0x" + Long.toHexString(qp.getZxid()));
-                // The leader is going to dump the database
-                // db is clear as part of deserializeSnapshot()
-                zk.getZKDatabase().deserializeSnapshot(leaderIs);
-                // ZOOKEEPER-2819: overwrite config node content extracted
-                // from leader snapshot with local config, to avoid potential
-                // inconsistency of config node content during rolling restart.
-                if (!QuorumPeerConfig.isReconfigEnabled()) {
-                    LOG.debug("Reset config node content from local config after deserialization of snapshot.");
-                    zk.getZKDatabase().initConfigInZKDatabase(self.getQuorumVerifier());
-                }
-                String signature = leaderIs.readString("signature");
-                if (!signature.equals("BenWasHere")) {
-                    LOG.error("Missing signature. Got " + signature);
-                    throw new IOException("Missing signature");                   
+                if (qp.getData() != null && qp.getData().length > 0) {
+                    // The leader is sending a snapshot image in chunks
+                    File image = LearnerSnapshotImage.receive(qp, leaderIs,
+                            self.getTxnFactory().getSnapDir());
+                    InputStream in = new BufferedInputStream(new FileInputStream(image));
+                    try {
+                        deserializeSnapshot(BinaryInputArchive.getArchive(in));
+                    } finally {
+                        in.close();
+                    }
+                    if (!image.delete()) {
+                        LOG.warn("Unable to delete {}", image);
+                    }
+                } else {
+                    // The leader is going to dump the database
+                    deserializeSnapshot(leaderIs);
                 }
                 zk.getZKDatabase().setlastProcessedZxid(qp.getZxid());
             } else if (qp.getType() == Leader.TRUNC) {
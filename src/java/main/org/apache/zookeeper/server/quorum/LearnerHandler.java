@@ -38,6 +38,7 @@
 import org.apache.jute.Record;
 import org.apache.zookeeper.KeeperException.SessionExpiredException;
 import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.TxnLogProposalIterator;
 import org.apache.zookeeper.server.ZKDatabase;
@@ -139,6 +140,20 @@ public synchronized void updateAck(long zxid) {
              }
         }
 
+        public synchronized void updateCumulativeAck(long zxid) {
+            if (nextZxid != 0 && nextZxid <= zxid) {
+                currentTime = 0;
+                currentZxid = 0;
+                nextTime = 0;
+                nextZxid = 0;
+            } else if (currentZxid != 0 && currentZxid <= zxid) {
+                currentTime = nextTime;
+                currentZxid = nextZxid;
+                nextTime = 0;
+                nextZxid = 0;
+            }
+        }
+
         public synchronized boolean check(long time) {
             if (currentTime == 0) {
                 return true;
@@ -168,6 +183,34 @@ public synchronized boolean check(long time) {
     public static final String FORCE_SNAP_SYNC = "zookeeper.forceSnapshotSync";
     private boolean forceSnapSync = false;
 
+    /** Default: 0, i.e. no limit */
+    public static final String SNAP_TRANSFER_RATE = "zookeeper.leader.snapshotTransferRate";
+    /** Default: 524288 */
+    public static final String SNAP_CHUNK_SIZE = "zookeeper.leader.snapshotChunkSize";
+    private final long snapTransferRate;
+    private final int snapChunkSize;
+
+    /**
+     * Whether the learner takes resumable snapshots, see
+     * LearnerSnapshotImage, and the zxid and length of the image it has
+     * received part of, if any
+     */
+    private boolean snapResumable = false;
+    private long learnerSnapZxid = -1;
+    private long learnerSnapOffset = 0;
+
+    /**
+     * The snapshot image chosen for the learner by syncFollower, along with
+     * the proposals committed after it, if the learner needs a snapshot
+     */
+    private LearnerSnapshotImage snapImage;
+
+    // Statistics of how the learner was synchronized, for LeaderMXBean
+    private volatile String syncMode;
+    private volatile long syncTime = -1;
+    private volatile long snapBytesSent;
+    private volatile long snapTransferTime;
+
     /**
      * Keep track of whether we need to queue TRUNC or DIFF into packet queue
      * that we are going to blast it to the learner
@@ -183,6 +226,8 @@ public synchronized boolean check(long time) {
         super("LearnerHandler-" + sock.getRemoteSocketAddress());
         this.sock = sock;
         this.leader = leader;
+        this.snapTransferRate = Long.getLong(SNAP_TRANSFER_RATE, 0);
+        this.snapChunkSize = Integer.getInteger(SNAP_CHUNK_SIZE, 524288);
         leader.addLearnerHandler(this);
     }
 
@@ -218,6 +263,10 @@ private void sendPackets() throws InterruptedException {
             try {
                 QuorumPacket p;
                 p = queuedPackets.poll();
+                if (p == null) {
+                    leader.flushProposalBatch();
+                    p = queuedPackets.poll();
+                }
                 if (p == null) {
                     bufferedOutput.flush();
                     p = queuedPackets.take();
@@ -227,6 +276,10 @@ private void sendPackets() throws InterruptedException {
                     // Packet of death!
                     break;
                 }
+                if (p instanceof ProposalBatcher.Batch) {
+                    sendBatch((ProposalBatcher.Batch) p);
+                    continue;
+                }
                 if (p.getType() == Leader.PING) {
                     traceMask = ZooTrace.SERVER_PING_TRACE_MASK;
                 }
@@ -254,6 +307,20 @@ private void sendPackets() throws InterruptedException {
         }
     }
 
+    private void sendBatch(ProposalBatcher.Batch batch) throws IOException {
+        long now = System.nanoTime();
+        for (QuorumPacket p : batch.packets) {
+            if (p.getType() == Leader.PROPOSAL) {
+                syncLimitCheck.updateProposal(p.getZxid(), now);
+            }
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logQuorumPacket(LOG,
+                        ZooTrace.SERVER_PACKET_TRACE_MASK, 'o', p);
+            }
+        }
+        bufferedOutput.write(batch.bytes);
+    }
+
     static public String packetToString(QuorumPacket p) {
         String type;
         String mess = null;
@@ -262,6 +329,9 @@ static public String packetToString(QuorumPacket p) {
         case Leader.ACK:
             type = "ACK";
             break;
+        case Leader.CUMULATIVEACK:
+            type = "CUMULATIVEACK";
+            break;
         case Leader.COMMIT:
             type = "COMMIT";
             break;
@@ -374,6 +444,11 @@ public void run() {
                         throw new IOException("Follower is ahead of the leader (has a later activated configuration)");
                     }
                 }
+                if (learnerInfoData.length >= 36) {
+                    snapResumable = true;
+                    learnerSnapZxid = bbsid.getLong();
+                    learnerSnapOffset = bbsid.getLong();
+                }
             } else {
                 this.sid = leader.followerCounter.getAndDecrement();
             }
@@ -422,6 +497,7 @@ public void run() {
             }
             peerLastZxid = ss.getLastZxid();
            
+            long syncStartTime = Time.currentElapsedTime();
             // Take any necessary action if we need to send TRUNC or DIFF
             // startForwarding() will be called in all cases
             boolean needSnap = syncFollower(peerLastZxid, leader.zk.getZKDatabase(), leader);
@@ -448,24 +524,40 @@ public void run() {
                 LearnerSnapshot snapshot = 
                         leader.getLearnerSnapshotThrottler().beginSnapshot(exemptFromThrottle);
                 try {
-                    long zxidToSend = leader.zk.getZKDatabase().getDataTreeLastProcessedZxid();
-                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
-                    bufferedOutput.flush();
-
-                    LOG.info("Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
-                            + "send zxid of db as 0x{}, {} concurrent snapshots, " 
-                            + "snapshot was {} from throttle",
-                            Long.toHexString(peerLastZxid), 
-                            Long.toHexString(leaderLastZxid),
-                            Long.toHexString(zxidToSend), 
-                            snapshot.getConcurrentSnapshotNumber(),
-                            snapshot.isEssential() ? "exempt" : "not exempt");
-                    // Dump data to peer
-                    leader.zk.getZKDatabase().serializeSnapshot(oa);
-                    oa.writeString("BenWasHere", "signature");
+                    syncMode = "SNAP";
+                    long snapStartTime = Time.currentElapsedTime();
+                    RateLimitedOutputStream snapOutput =
+                            new RateLimitedOutputStream(bufferedOutput, snapTransferRate);
+                    if (snapResumable) {
+                        sendSnapshotImage(snapOutput, snapshot);
+                    } else {
+                        long zxidToSend = leader.zk.getZKDatabase().getDataTreeLastProcessedZxid();
+                        oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
+                        bufferedOutput.flush();
+
+                        LOG.info("Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                                + "send zxid of db as 0x{}, {} concurrent snapshots, " 
+                                + "snapshot was {} from throttle",
+                                Long.toHexString(peerLastZxid), 
+                                Long.toHexString(leaderLastZxid),
+                                Long.toHexString(zxidToSend), 
+                                snapshot.getConcurrentSnapshotNumber(),
+                                snapshot.isEssential() ? "exempt" : "not exempt");
+                        // Dump data to peer
+                        BufferedOutputStream snapBuffer = new BufferedOutputStream(snapOutput);
+                        BinaryOutputArchive snapOa = BinaryOutputArchive.getArchive(snapBuffer);
+                        leader.zk.getZKDatabase().serializeSnapshot(snapOa);
+                        snapOa.writeString("BenWasHere", "signature");
+                        snapBuffer.flush();
+                    }
                     bufferedOutput.flush();
+                    snapBytesSent = snapOutput.getBytesWritten();
+                    snapTransferTime = Time.currentElapsedTime() - snapStartTime;
+                    LOG.info("Sent {} bytes of snapshot to peer sid: {} in {} ms",
+                            snapBytesSent, getSid(), snapTransferTime);
                 } finally {
                     snapshot.close();
+                    releaseSnapImage();
                 }
             }
 
@@ -489,6 +581,7 @@ public void run() {
             	LOG.debug("Received NEWLEADER-ACK message from " + sid);   
             }
             leader.waitForNewLeaderAck(getSid(), qp.getZxid(), getLearnerType());
+            syncTime = Time.currentElapsedTime() - syncStartTime;
 
             syncLimitCheck.start();
             
@@ -539,6 +632,11 @@ public void run() {
                     syncLimitCheck.updateAck(qp.getZxid());
                     leader.processAck(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
                     break;
+                case Leader.CUMULATIVEACK:
+                    syncLimitCheck.updateCumulativeAck(qp.getZxid());
+                    leader.processCumulativeAck(this.sid, qp.getZxid(),
+                            sock.getLocalSocketAddress());
+                    break;
                 case Leader.PING:
                     // Process the touches
                     ByteArrayInputStream bis = new ByteArrayInputStream(qp
@@ -617,6 +715,7 @@ public void run() {
         } catch (SnapshotThrottleException e) {
             LOG.error("too many concurrent snapshots: " + e);
         } finally {
+            releaseSnapImage();
             LOG.warn("******* GOODBYE "
                     + (sock != null ? sock.getRemoteSocketAddress() : "<null>")
                     + " ********");
@@ -673,6 +772,14 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
         long currentZxid = peerLastZxid;
         boolean needSnap = true;
         boolean txnLogSyncEnabled = db.isTxnLogSyncEnabled();
+        // In case a snapshot is needed, rather than taking a new snapshot
+        // image, send the latest one along with the proposals committed
+        // since, if we still have them. It is picked before taking the log
+        // lock, which commits wait for.
+        LearnerSnapshotImage latestImage = null;
+        if (snapResumable) {
+            latestImage = leader.retainLearnerSnapshotImage();
+        }
         ReentrantReadWriteLock lock = db.getLogLock();
         ReadLock rl = lock.readLock();
         try {
@@ -745,7 +852,7 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
                 LOG.info("Using committedLog for peer sid: " +  getSid());
                 Iterator<Proposal> itr = db.getCommittedLog().iterator();
                 currentZxid = queueCommittedProposals(itr, peerLastZxid,
-                                                     null, maxCommittedLog);
+                                                     null, maxCommittedLog, true);
                 needSnap = false;
             } else if (peerLastZxid < minCommittedLog && txnLogSyncEnabled) {
                 // Use txnlog and committedLog to sync
@@ -759,12 +866,13 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
                 if (txnLogItr.hasNext()) {
                     LOG.info("Use txnlog and committedLog for peer sid: " +  getSid());
                     currentZxid = queueCommittedProposals(txnLogItr, peerLastZxid,
-                                                         minCommittedLog, maxCommittedLog);
+                                                         minCommittedLog, maxCommittedLog,
+                                                         false);
 
                     LOG.debug("Queueing committedLog 0x" + Long.toHexString(currentZxid));
                     Iterator<Proposal> committedLogItr = db.getCommittedLog().iterator();
                     currentZxid = queueCommittedProposals(committedLogItr, currentZxid,
-                                                         null, maxCommittedLog);
+                                                         null, maxCommittedLog, true);
                     needSnap = false;
                 }
                 // closing the resources
@@ -775,11 +883,29 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
             } else {
                 LOG.warn("Unhandled scenario for peer sid: " +  getSid());
             }
+
+            if (needSnap && latestImage != null) {
+                long queuedZxid = queueCommittedProposalsSince(db,
+                        latestImage.getZxid(), minCommittedLog, maxCommittedLog);
+                if (queuedZxid >= 0) {
+                    LOG.info("Sending snapshot image 0x{} and committed proposals"
+                            + " up to 0x{} to peer sid: {}",
+                            Long.toHexString(latestImage.getZxid()),
+                            Long.toHexString(queuedZxid), getSid());
+                    snapImage = latestImage;
+                    latestImage = null;
+                    currentZxid = queuedZxid;
+                }
+            }
             LOG.debug("Start forwarding 0x" + Long.toHexString(currentZxid) +
                       " for peer sid: " +  getSid());
             leaderLastZxid = leader.startForwarding(this, currentZxid);
         } finally {
             rl.unlock();
+            if (latestImage != null) {
+                // not used, may delete the image file
+                latestImage.release();
+            }
         }
 
         if (needOpPacket && !needSnap) {
@@ -793,6 +919,97 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
         return needSnap;
     }
 
+    /**
+     * Queue the proposals committed after the zxid of a snapshot image, from
+     * the committedLog or from the txnlog and the committedLog, without a
+     * DIFF as they follow the SNAP.
+     *
+     * @return the last zxid queued, or -1 if the proposals are no longer
+     *         available
+     */
+    private long queueCommittedProposalsSince(ZKDatabase db, long snapZxid,
+            long minCommittedLog, long maxCommittedLog) {
+        needOpPacket = false;
+        if (minCommittedLog <= snapZxid && snapZxid <= maxCommittedLog) {
+            return queueCommittedProposals(db.getCommittedLog().iterator(),
+                    snapZxid, null, maxCommittedLog, true);
+        }
+        if (snapZxid > minCommittedLog || !db.isTxnLogSyncEnabled()) {
+            return -1;
+        }
+        Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(snapZxid,
+                db.calculateTxnLogSizeLimit());
+        try {
+            if (!txnLogItr.hasNext()) {
+                return -1;
+            }
+            long queuedZxid = queueCommittedProposals(txnLogItr, snapZxid,
+                    minCommittedLog, maxCommittedLog, false);
+            return queueCommittedProposals(db.getCommittedLog().iterator(),
+                    queuedZxid, null, maxCommittedLog, true);
+        } finally {
+            if (txnLogItr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) txnLogItr).close();
+            }
+        }
+    }
+
+    /**
+     * Send the learner the snapshot image chosen by syncFollower or a new
+     * one, resuming the transfer of the image it has received part of.
+     */
+    private void sendSnapshotImage(RateLimitedOutputStream snapOutput,
+            LearnerSnapshot snapshot) throws IOException, InterruptedException {
+        if (snapImage == null) {
+            // the image must cover what was committed before startForwarding
+            snapImage = leader.getLearnerSnapshotImage(
+                    leader.zk.getZKDatabase().getDataTreeLastProcessedZxid());
+        }
+        long offset = 0;
+        if (snapImage.getZxid() == learnerSnapZxid
+                && learnerSnapOffset <= snapImage.getLength()) {
+            offset = learnerSnapOffset;
+        }
+        oa.writeRecord(new QuorumPacket(Leader.SNAP, snapImage.getZxid(),
+                snapImage.getHeader(offset), null), "packet");
+        bufferedOutput.flush();
+
+        LOG.info("Sending snapshot image 0x{} of {} bytes from offset {},"
+                + " peer has {} bytes of image 0x{}, {} concurrent snapshots,"
+                + " snapshot was {} from throttle",
+                Long.toHexString(snapImage.getZxid()), snapImage.getLength(),
+                offset, learnerSnapOffset, Long.toHexString(learnerSnapZxid),
+                snapshot.getConcurrentSnapshotNumber(),
+                snapshot.isEssential() ? "exempt" : "not exempt");
+        snapImage.send(BinaryOutputArchive.getArchive(snapOutput), snapOutput,
+                offset, snapChunkSize);
+    }
+
+    private void releaseSnapImage() {
+        if (snapImage != null) {
+            snapImage.release();
+            snapImage = null;
+        }
+    }
+
+    /**
+     * @return how the learner was synchronized: DIFF, TRUNC or SNAP, the
+     *         time it took until the learner acked NEWLEADER and, for a SNAP,
+     *         the bytes sent and the transfer rate
+     */
+    String getSyncInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sid:").append(getSid());
+        sb.append(" syncMode:").append(syncMode);
+        sb.append(" syncTimeMs:").append(syncTime);
+        if ("SNAP".equals(syncMode)) {
+            sb.append(" snapBytes:").append(snapBytesSent);
+            sb.append(" snapBytesPerSec:")
+                .append(snapBytesSent * 1000 / Math.max(1, snapTransferTime));
+        }
+        return sb.toString();
+    }
+
     /**
      * Queue committed proposals into packet queue. The range of packets which
      * is going to be queued are (peerLaxtZxid, maxZxid]
@@ -802,10 +1019,13 @@ public boolean syncFollower(long peerLastZxid, ZKDatabase db, Leader leader) {
      * @param maxZxid  max zxid of the proposal to queue, null if no limit
      * @param lastCommittedZxid when sending diff, we need to send lastCommittedZxid
      *        on the leader to follow Zab 1.0 protocol.
+     * @param fromCommittedLog whether the proposals are the ones kept in the
+     *        committedLog, whose serialized packets are shared by the learners
      * @return last zxid of the queued proposal
      */
     protected long queueCommittedProposals(Iterator<Proposal> itr,
-            long peerLastZxid, Long maxZxid, Long lastCommittedZxid) {
+            long peerLastZxid, Long maxZxid, Long lastCommittedZxid,
+            boolean fromCommittedLog) {
         boolean isPeerNewEpochZxid = (peerLastZxid & 0xffffffffL) == 0;
         long queuedZxid = peerLastZxid;
         // as we look through proposals, this variable keeps track of previous
@@ -876,7 +1096,11 @@ protected long queueCommittedProposals(Iterator<Proposal> itr,
 
             // Since this is already a committed proposal, we need to follow
             // it by a commit packet
-            queuePacket(propose.packet);
+            if (fromCommittedLog) {
+                queuePacket(propose.getSerializedPacket());
+            } else {
+                queuePacket(propose.packet);
+            }
             queueOpPacket(Leader.COMMIT, packetZxid);
             queuedZxid = packetZxid;
 
@@ -946,6 +1170,9 @@ public void ping() {
      * @param zxid
      */
     private void queueOpPacket(int type, long zxid) {
+        if (type == Leader.DIFF || type == Leader.TRUNC) {
+            syncMode = type == Leader.DIFF ? "DIFF" : "TRUNC";
+        }
         QuorumPacket packet = new QuorumPacket(type, zxid, null, null);
         queuePacket(packet);
     }
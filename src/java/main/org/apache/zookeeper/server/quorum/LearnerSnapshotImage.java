@@ -0,0 +1,314 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A snapshot of the leader's database, serialized to a file in the snapshot
+ * directory so that it can be sent to learners in chunks and resumed at an
+ * offset.
+ *
+ * A learner taking resumable snapshots advertises the zxid and the number
+ * of bytes of the image it received last, if it did not get all of it,
+ * after its LearnerInfo. The leader announces an image with a SNAP packet
+ * carrying the image's length, the offset the transfer starts at and the
+ * checksum of the whole image, followed by the rest of the image as buffers
+ * of at most zookeeper.leader.snapshotChunkSize bytes. The learner appends
+ * them to a partial image file, which it only loads once it is complete
+ * and its checksum matches.
+ *
+ * The leader keeps its latest image until a newer one is taken, so that a
+ * learner which lost its connection during a transfer resumes from where
+ * it stopped rather than from zero, and learners syncing at the same time
+ * share an image.
+ */
+class LearnerSnapshotImage {
+    private static final Logger LOG = LoggerFactory.getLogger(LearnerSnapshotImage.class);
+
+    /** Prefix of the image files of a leader */
+    static final String IMAGE_PREFIX = "learnersnapshot";
+    /** Prefix of the image files a learner has received part of */
+    static final String PARTIAL_PREFIX = "partialsnapshot";
+
+    private static final int HEADER_LENGTH = 24;
+
+    private final long zxid;
+    private final File file;
+    private final long length;
+    private final long checksum;
+
+    /** The leader and each learner the image is being sent to */
+    private int refCount = 1;
+
+    LearnerSnapshotImage(long zxid, File file, long length, long checksum) {
+        this.zxid = zxid;
+        this.file = file;
+        this.length = length;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Serialize the database to a new image file in the given directory.
+     * Images may be taken concurrently, so each gets a file of its own.
+     */
+    static LearnerSnapshotImage take(ZKDatabase db, File dir)
+            throws IOException, InterruptedException {
+        long zxid = db.getDataTreeLastProcessedZxid();
+        File file = File.createTempFile(
+                IMAGE_PREFIX + "." + Long.toHexString(zxid) + ".", "", dir);
+        CheckedOutputStream out = new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)), new Adler32());
+        boolean taken = false;
+        try {
+            OutputArchive oa = BinaryOutputArchive.getArchive(out);
+            db.serializeSnapshot(oa);
+            oa.writeString("BenWasHere", "signature");
+            out.flush();
+            taken = true;
+        } finally {
+            out.close();
+            if (!taken) {
+                delete(file);
+            }
+        }
+        LearnerSnapshotImage image = new LearnerSnapshotImage(zxid, file,
+                file.length(), out.getChecksum().getValue());
+        LOG.info("Took snapshot image {} of {} bytes for learners", file, image.length);
+        return image;
+    }
+
+    long getZxid() {
+        return zxid;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the data of the SNAP packet announcing the image
+     */
+    byte[] getHeader(long offset) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putLong(length);
+        header.putLong(offset);
+        header.putLong(checksum);
+        return header.array();
+    }
+
+    /**
+     * Write the image from the given offset on as buffers of at most
+     * chunkSize bytes, flushing each one.
+     */
+    void send(OutputArchive oa, OutputStream out, long offset, int chunkSize)
+            throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    throw new IOException("Cannot skip to offset " + offset
+                            + " of " + file);
+                }
+                skipped += n;
+            }
+            byte[] chunk = new byte[chunkSize];
+            long remaining = length - offset;
+            while (remaining > 0) {
+                int len = readFully(in, chunk, (int) Math.min(chunkSize, remaining));
+                if (len == chunkSize) {
+                    oa.writeBuffer(chunk, "chunk");
+                } else {
+                    byte[] last = new byte[len];
+                    System.arraycopy(chunk, 0, last, 0, len);
+                    oa.writeBuffer(last, "chunk");
+                }
+                out.flush();
+                remaining -= len;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Take a reference on the image for sending it.
+     *
+     * @return false if the image has been deleted already
+     */
+    synchronized boolean retain() {
+        if (refCount == 0) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
+
+    /**
+     * Drop a reference on the image, deleting its file with the last one.
+     */
+    synchronized void release() {
+        if (--refCount == 0) {
+            delete(file);
+        }
+    }
+
+    /**
+     * Receive the image announced by the given SNAP packet into a partial
+     * image file in dir, appending to the part received before if the
+     * transfer is resumed.
+     *
+     * @return the complete image file
+     */
+    static File receive(QuorumPacket snap, InputArchive ia, File dir)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(snap.getData());
+        long length = header.getLong();
+        long offset = header.getLong();
+        long checksum = header.getLong();
+        File file = new File(dir, PARTIAL_PREFIX + "." + Long.toHexString(snap.getZxid()));
+        for (File f : listFiles(dir, PARTIAL_PREFIX)) {
+            if (!f.equals(file)) {
+                delete(f);
+            }
+        }
+        if (offset > 0 && file.length() != offset) {
+            throw new IOException("Cannot resume snapshot transfer at offset "
+                    + offset + ", got " + file.length() + " bytes of " + file);
+        }
+        LOG.info("Receiving {} of {} bytes of snapshot image 0x{}",
+                length - offset, length, Long.toHexString(snap.getZxid()));
+        OutputStream out = new FileOutputStream(file, offset > 0);
+        try {
+            long received = offset;
+            while (received < length) {
+                byte[] chunk = ia.readBuffer("chunk");
+                // keep what was received in case the connection drops
+                out.write(chunk);
+                received += chunk.length;
+            }
+            if (received != length) {
+                throw new IOException("Received " + received
+                        + " bytes of a snapshot image of " + length);
+            }
+        } finally {
+            out.close();
+        }
+        if (computeChecksum(file) != checksum) {
+            delete(file);
+            throw new IOException("Checksum mismatch of snapshot image " + file);
+        }
+        return file;
+    }
+
+    /**
+     * @return the partial image file a learner has received part of, or null
+     */
+    static File findPartial(File dir) {
+        for (File f : listFiles(dir, PARTIAL_PREFIX)) {
+            try {
+                getZxid(f);
+                return f;
+            } catch (NumberFormatException e) {
+                delete(f);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the zxid of the image of a partial image file
+     */
+    static long getZxid(File partial) {
+        return Long.parseLong(partial.getName().substring(PARTIAL_PREFIX.length() + 1), 16);
+    }
+
+    /**
+     * Delete the image files left behind by a leader which did not shut down
+     * cleanly.
+     */
+    static void deleteImages(File dir) {
+        for (File f : listFiles(dir, IMAGE_PREFIX)) {
+            delete(f);
+        }
+    }
+
+    private static void delete(File f) {
+        if (!f.delete()) {
+            LOG.warn("Unable to delete {}", f);
+        }
+    }
+
+    private static File[] listFiles(File dir, final String prefix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(prefix + ".");
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private static long computeChecksum(File file) throws IOException {
+        CheckedInputStream in = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), new Adler32());
+        try {
+            byte[] buf = new byte[65536];
+            while (in.read(buf) >= 0) {
+                // just checksumming
+            }
+            return in.getChecksum().getValue();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buf, int len)
+            throws IOException {
+        int read = 0;
+        while (read < len) {
+            int n = in.read(buf, read, len - read);
+            if (n < 0) {
+                throw new IOException("Unexpected end of snapshot image");
+            }
+            read += n;
+        }
+        return read;
+    }
+}
@@ -107,6 +107,7 @@ protected void registerJMX() {
             LOG.warn("Failed to register with JMX", e);
             jmxDataTreeBean = null;
         }
+        registerRequestStagesJMX();
     }
 
     public void registerJMX(ZooKeeperServerBean serverBean,
@@ -134,6 +135,7 @@ public void registerJMX(ZooKeeperServerBean serverBean,
     @Override
     protected void unregisterJMX() {
         // unregister from JMX
+        unregisterRequestStagesJMX();
         try {
             if (jmxDataTreeBean != null) {
                 MBeanRegistry.getInstance().unregister(jmxDataTreeBean);
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batches the PROPOSAL and COMMIT packets the leader broadcasts to its
+ * forwarding followers. Each packet is serialized once into a shared buffer
+ * and every follower is handed the whole buffer, which its sender thread
+ * writes to the socket at once, instead of serializing and queueing each
+ * packet once per follower.
+ *
+ * While every follower still has packets queued, a batch grows until it
+ * holds zookeeper.leader.proposalBatchSize packets or
+ * zookeeper.leader.proposalBatchBytes bytes, a packet is added after the
+ * first one waited zookeeper.leader.proposalBatchDelayMicros, or the sender
+ * of a follower runs out of packets. When a follower is idle already,
+ * packets are handed out right away, so batching adds no latency while the
+ * followers keep up.
+ *
+ * Proposals are added with the leader lock held and commits with the commit
+ * lock held. Anything else queued to a forwarding follower must first
+ * {@link #flush()} the pending batch to keep the order the packets were sent
+ * in.
+ */
+public class ProposalBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(ProposalBatcher.class);
+
+    /** Default: 1, i.e. no batching */
+    public static final String BATCH_SIZE = "zookeeper.leader.proposalBatchSize";
+    /** Default: 65536 */
+    public static final String BATCH_BYTES = "zookeeper.leader.proposalBatchBytes";
+    /** Default: 1000 */
+    public static final String BATCH_DELAY = "zookeeper.leader.proposalBatchDelayMicros";
+
+    /**
+     * The serialized packets of a batch as queued to the learner handlers.
+     */
+    static class Batch extends QuorumPacket {
+        /** The packets as written by BinaryOutputArchive.writeRecord */
+        final byte[] bytes;
+        final List<QuorumPacket> packets;
+
+        Batch(byte[] bytes, List<QuorumPacket> packets) {
+            this.bytes = bytes;
+            this.packets = packets;
+        }
+
+        /**
+         * A batch of just the given packet, which has the type and zxid of
+         * that packet.
+         */
+        static Batch of(QuorumPacket qp) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                BinaryOutputArchive.getArchive(baos).writeRecord(qp, "packet");
+            } catch (IOException e) {
+                // cannot happen writing to memory
+                throw new RuntimeException(e);
+            }
+            Batch batch = new Batch(baos.toByteArray(),
+                    Collections.singletonList(qp));
+            batch.setType(qp.getType());
+            batch.setZxid(qp.getZxid());
+            return batch;
+        }
+    }
+
+    private final Leader leader;
+    private final int maxBatchSize;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayNanos;
+
+    private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private final BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+    private List<QuorumPacket> packets = new ArrayList<QuorumPacket>();
+    private long firstPacketNanos;
+    /** Lets idle senders skip the lock when there is nothing to flush */
+    private volatile boolean pending;
+
+    ProposalBatcher(Leader leader) {
+        this(leader, Integer.getInteger(BATCH_SIZE, 1),
+                Integer.getInteger(BATCH_BYTES, 65536),
+                Long.getLong(BATCH_DELAY, 1000));
+    }
+
+    ProposalBatcher(Leader leader, int maxBatchSize, int maxBatchBytes,
+            long maxBatchDelayMicros) {
+        this.leader = leader;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+        this.maxBatchDelayNanos = Math.max(0, maxBatchDelayMicros) * 1000;
+        if (isEnabled()) {
+            LOG.info("Proposal batching enabled, proposalBatchSize={}, "
+                    + "proposalBatchBytes={}, proposalBatchDelayMicros={}",
+                    this.maxBatchSize, this.maxBatchBytes, maxBatchDelayMicros);
+        }
+    }
+
+    boolean isEnabled() {
+        return maxBatchSize > 1;
+    }
+
+    /**
+     * Add a packet for all the forwarding followers to the current batch.
+     */
+    synchronized void add(QuorumPacket qp) {
+        try {
+            boa.writeRecord(qp, "packet");
+        } catch (IOException e) {
+            // cannot happen writing to memory
+            throw new RuntimeException(e);
+        }
+        packets.add(qp);
+        long now = System.nanoTime();
+        if (packets.size() == 1) {
+            firstPacketNanos = now;
+        }
+        if (packets.size() >= maxBatchSize
+                || baos.size() >= maxBatchBytes
+                || now - firstPacketNanos >= maxBatchDelayNanos
+                || leader.hasIdleForwardingFollower()) {
+            flush();
+        } else {
+            pending = true;
+        }
+    }
+
+    /**
+     * Queue the current batch, if any, to all the forwarding followers.
+     */
+    synchronized void flush() {
+        if (packets.isEmpty()) {
+            return;
+        }
+        Batch batch = new Batch(baos.toByteArray(), packets);
+        baos.reset();
+        packets = new ArrayList<QuorumPacket>();
+        pending = false;
+        leader.queueToForwardingFollowers(batch);
+    }
+
+    /**
+     * Called by the sender of a follower which ran out of packets.
+     */
+    void flushIfPending() {
+        if (pending) {
+            flush();
+        }
+    }
+}
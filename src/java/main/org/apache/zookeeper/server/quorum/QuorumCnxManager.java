@@ -37,6 +37,7 @@
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.zookeeper.common.BufferPool;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.slf4j.Logger;
@@ -142,12 +143,33 @@ public class QuorumCnxManager {
 
     static public class Message {
         Message(ByteBuffer buffer, long sid) {
+            this(buffer, sid, null);
+        }
+
+        /**
+         * @param pooled the buffer acquired from the buffer pool that
+         * <code>buffer</code> is a view of, if any
+         */
+        Message(ByteBuffer buffer, long sid, ByteBuffer pooled) {
             this.buffer = buffer;
             this.sid = sid;
+            this.pooled = pooled;
         }
 
         ByteBuffer buffer;
         long sid;
+        private ByteBuffer pooled;
+
+        /**
+         * Give the buffer of this message back to the buffer pool once the
+         * message has been processed. The buffer must not be used afterwards.
+         */
+        void release() {
+            if (pooled != null) {
+                BufferPool.HEAP.release(pooled);
+                pooled = null;
+            }
+        }
     }
 
     /*
@@ -910,12 +932,13 @@ public void run() {
                                         + length);
                     }
                     /**
-                     * Allocates a new ByteBuffer to receive the message
+                     * Gets a ByteBuffer to receive the message from the
+                     * buffer pool. The message is handed over as a slice
+                     * so that its capacity is the length of the message.
                      */
-                    byte[] msgArray = new byte[length];
-                    din.readFully(msgArray, 0, length);
-                    ByteBuffer message = ByteBuffer.wrap(msgArray);
-                    addToRecvQueue(new Message(message.duplicate(), sid));
+                    ByteBuffer pooled = BufferPool.HEAP.acquire(length);
+                    din.readFully(pooled.array(), pooled.arrayOffset(), length);
+                    addToRecvQueue(new Message(pooled.slice(), sid, pooled));
                 }
             } catch (Exception e) {
                 LOG.warn("Connection broken for id " + sid + ", my id = " + 
@@ -1012,7 +1035,7 @@ public void addToRecvQueue(Message msg) {
         synchronized(recvQLock) {
             if (recvQueue.remainingCapacity() == 0) {
                 try {
-                    recvQueue.remove();
+                    recvQueue.remove().release();
                 } catch (NoSuchElementException ne) {
                     // element could be removed by poll()
                      LOG.debug("Trying to remove from an empty " +
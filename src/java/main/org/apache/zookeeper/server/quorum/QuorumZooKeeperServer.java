@@ -162,6 +162,11 @@ protected void setLocalSessionFlag(Request si) {
         }
     }
 
+    @Override
+    protected boolean isLocalSession(long sessionId) {
+        return upgradeableSessionTracker.isLocalSession(sessionId);
+    }
+
     @Override
     public void dumpConf(PrintWriter pwriter) {
         super.dumpConf(pwriter);
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import org.apache.zookeeper.common.Time;
+
+/**
+ * An output stream which keeps track of the number of bytes written through
+ * it and, given a positive rate, blocks writers so that no more than that
+ * many bytes are written per second on average.
+ */
+class RateLimitedOutputStream extends FilterOutputStream {
+    private final long bytesPerSecond;
+    private final long startTime = Time.currentElapsedTime();
+    private long bytesWritten;
+
+    /**
+     * @param out the stream to write to
+     * @param bytesPerSecond the rate to limit writes to, or 0 for no limit
+     */
+    RateLimitedOutputStream(OutputStream out, long bytesPerSecond) {
+        super(out);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        bytesWritten++;
+        throttle();
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesWritten += len;
+        throttle();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void throttle() throws IOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long ahead = bytesWritten * 1000 / bytesPerSecond
+                - (Time.currentElapsedTime() - startTime);
+        if (ahead > 0) {
+            try {
+                Thread.sleep(ahead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling");
+            }
+        }
+    }
+}
@@ -83,6 +83,7 @@ protected void registerJMX() {
             LOG.warn("Failed to register with JMX", e);
             jmxDataTreeBean = null;
         }
+        registerRequestStagesJMX();
     }
 
     public void registerJMX(ZooKeeperServerBean serverBean, LocalPeerBean localPeerBean) {
@@ -99,6 +100,7 @@ public void registerJMX(ZooKeeperServerBean serverBean, LocalPeerBean localPeerB
     @Override
     protected void unregisterJMX() {
         // unregister from JMX
+        unregisterRequestStagesJMX();
         try {
             if (jmxDataTreeBean != null) {
                 MBeanRegistry.getInstance().unregister(jmxDataTreeBean);
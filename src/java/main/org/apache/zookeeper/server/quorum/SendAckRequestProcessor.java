@@ -28,17 +28,43 @@
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 
+/**
+ * Acknowledges the proposals a follower has logged. By default one ACK is
+ * sent per proposal. With zookeeper.cumulativeAck=true a single
+ * CUMULATIVEACK for the highest zxid is sent instead each time the log is
+ * synced. Since proposals are logged in order, it stands for every proposal
+ * up to that zxid. The leader must support CUMULATIVEACK, so it should only
+ * be enabled once all the servers of the ensemble do.
+ */
 public class SendAckRequestProcessor implements RequestProcessor, Flushable {
     private static final Logger LOG = LoggerFactory.getLogger(SendAckRequestProcessor.class);
 
+    /** Default: false */
+    public static final String CUMULATIVE_ACK = "zookeeper.cumulativeAck";
+
     Learner learner;
 
+    private final boolean cumulativeAck;
+
+    /** The highest zxid logged, or -1 if it has been acked already */
+    private long zxidToAck = -1;
+
     SendAckRequestProcessor(Learner peer) {
+        this(peer, Boolean.getBoolean(CUMULATIVE_ACK));
+    }
+
+    SendAckRequestProcessor(Learner peer, boolean cumulativeAck) {
         this.learner = peer;
+        this.cumulativeAck = cumulativeAck;
     }
 
     public void processRequest(Request si) {
         if(si.type != OpCode.sync){
+            if (cumulativeAck) {
+                // acked by the next flush, which follows the log sync
+                zxidToAck = si.getHdr().getZxid();
+                return;
+            }
             QuorumPacket qp = new QuorumPacket(Leader.ACK, si.getHdr().getZxid(), null,
                 null);
             try {
@@ -59,7 +85,13 @@ public void processRequest(Request si) {
 
     public void flush() throws IOException {
         try {
-            learner.writePacket(null, true);
+            QuorumPacket qp = null;
+            if (zxidToAck != -1) {
+                qp = new QuorumPacket(Leader.CUMULATIVEACK, zxidToAck, null,
+                        null);
+                zxidToAck = -1;
+            }
+            learner.writePacket(qp, true);
         } catch(IOException e) {
             LOG.warn("Closing connection to leader, exception during packet send", e);
             try {
@@ -23,6 +23,10 @@
 
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 
+/**
+ * Tracks the acks of the learners for each quorum verifier a proposal must
+ * get a quorum of. Acks may be added by several learner handlers at once.
+ */
 public class SyncedLearnerTracker {
 
     protected ArrayList<QuorumVerifierAcksetPair> qvAcksetPairs = 
@@ -33,7 +37,7 @@ public void addQuorumVerifier(QuorumVerifier qv) {
                 new HashSet<Long>(qv.getVotingMembers().size())));
     }
 
-    public boolean addAck(Long sid) {
+    public synchronized boolean addAck(Long sid) {
         boolean change = false;
         for (QuorumVerifierAcksetPair qvAckset : qvAcksetPairs) {
             if (qvAckset.getQuorumVerifier().getVotingMembers().containsKey(sid)) {
@@ -44,7 +48,7 @@ public boolean addAck(Long sid) {
         return change;
     }
 
-    public boolean hasAllQuorums() {
+    public synchronized boolean hasAllQuorums() {
         for (QuorumVerifierAcksetPair qvAckset : qvAcksetPairs) {
             if (!qvAckset.getQuorumVerifier().containsQuorum(qvAckset.getAckset()))
                 return false;
@@ -52,7 +56,7 @@ public boolean hasAllQuorums() {
         return true;
     }
         
-    public String ackSetsToString(){
+    public synchronized String ackSetsToString(){
         StringBuilder sb = new StringBuilder();
             
         for (QuorumVerifierAcksetPair qvAckset : qvAcksetPairs) {
@@ -25,6 +25,7 @@
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.txn.CloseSessionsTxn;
 import org.apache.zookeeper.txn.CreateContainerTxn;
 import org.apache.zookeeper.txn.CreateSessionTxn;
 import org.apache.zookeeper.txn.CreateTTLTxn;
@@ -65,6 +66,9 @@ public static Record deserializeTxn(byte txnBytes[], TxnHeader hdr)
             break;
         case OpCode.closeSession:
             return null;
+        case OpCode.closeSessions:
+            txn = new CloseSessionsTxn();
+            break;
         case OpCode.create:
         case OpCode.create2:
             txn = new CreateTxn();
@@ -139,13 +143,21 @@ public static void deserializeSnapshot(DataTree dt,InputArchive ia,
 
     public static void serializeSnapshot(DataTree dt,OutputArchive oa,
             Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree");
+    }
+
+    /**
+     * Serialize the sessions part of a snapshot, which precedes the tree.
+     */
+    public static void serializeSessions(OutputArchive oa,
+            Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<Long, Integer>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 
 }
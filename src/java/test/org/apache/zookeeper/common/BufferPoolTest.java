@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BufferPoolTest extends ZKTestCase {
+    @Test
+    public void testSizeClasses() {
+        Assert.assertEquals(0, BufferPool.sizeClass(1));
+        Assert.assertEquals(0, BufferPool.sizeClass(256));
+        Assert.assertEquals(1, BufferPool.sizeClass(257));
+        Assert.assertEquals(1, BufferPool.sizeClass(512));
+        Assert.assertEquals(2, BufferPool.sizeClass(513));
+        Assert.assertEquals(1024, BufferPool.classSize(2));
+    }
+
+    @Test
+    public void testAcquireAndReuse() {
+        BufferPool pool = new BufferPool(false, true, 4096, true);
+        ByteBuffer bb = pool.acquire(300);
+        Assert.assertEquals(0, bb.position());
+        Assert.assertEquals(300, bb.limit());
+        Assert.assertEquals(512, bb.capacity());
+        Assert.assertFalse(bb.isDirect());
+        Assert.assertEquals(512, pool.getOutstandingBytes());
+        Assert.assertEquals(1, pool.getMisses());
+
+        bb.put((byte) 1);
+        pool.release(bb);
+        Assert.assertEquals(0, pool.getOutstandingBytes());
+
+        ByteBuffer again = pool.acquire(400);
+        Assert.assertSame(bb, again);
+        Assert.assertEquals(0, again.position());
+        Assert.assertEquals(400, again.limit());
+        Assert.assertEquals(1, pool.getHits());
+        pool.release(again);
+    }
+
+    @Test
+    public void testDirect() {
+        BufferPool pool = new BufferPool(true, true, 4096, false);
+        ByteBuffer bb = pool.acquire(10);
+        Assert.assertTrue(bb.isDirect());
+        Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, bb.capacity());
+        pool.release(bb);
+    }
+
+    @Test
+    public void testLargeBuffersAreNotPooled() {
+        BufferPool pool = new BufferPool(false, true, 4096, false);
+        ByteBuffer bb = pool.acquire(5000);
+        Assert.assertEquals(5000, bb.capacity());
+        Assert.assertEquals(5000, pool.getOutstandingBytes());
+        pool.release(bb);
+        Assert.assertEquals(0, pool.getOutstandingBytes());
+        Assert.assertNotSame(bb, pool.acquire(5000));
+        Assert.assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    public void testDisabled() {
+        BufferPool pool = new BufferPool(false, false, 4096, true);
+        ByteBuffer bb = pool.acquire(300);
+        Assert.assertEquals(300, bb.capacity());
+        pool.release(bb);
+        Assert.assertNotSame(bb, pool.acquire(300));
+        Assert.assertEquals(0, pool.getMisses());
+        Assert.assertTrue(pool.getLeaks().isEmpty());
+    }
+
+    @Test
+    public void testLeakTracking() {
+        BufferPool pool = new BufferPool(false, true, 4096, true);
+        ByteBuffer bb = pool.acquire(100);
+        ByteBuffer leaked = pool.acquire(100);
+        Assert.assertEquals(2, pool.getLeaks().size());
+        pool.release(bb);
+        Assert.assertEquals(1, pool.getLeaks().size());
+        try {
+            pool.release(bb);
+            Assert.fail("released twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            pool.release(ByteBuffer.allocate(256));
+            Assert.fail("not acquired from the pool");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        pool.discard(leaked);
+        Assert.assertTrue(pool.getLeaks().isEmpty());
+        Assert.assertEquals(0, pool.getOutstandingBytes());
+    }
+
+    @Test
+    public void testBuffersMoveBetweenThreads() throws Exception {
+        final BufferPool pool = new BufferPool(false, true, 4096, false);
+        final int count = BufferPool.THREAD_CACHE_SIZE * 2;
+        final ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = pool.acquire(100);
+        }
+        // the first buffers fill this thread's cache, the rest go to the
+        // shared pool where other threads find them
+        for (ByteBuffer bb : buffers) {
+            pool.release(bb);
+        }
+        final AtomicReference<ByteBuffer> reused = new AtomicReference<ByteBuffer>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                reused.set(pool.acquire(100));
+            }
+        };
+        t.start();
+        t.join();
+        boolean found = false;
+        for (ByteBuffer bb : buffers) {
+            found |= bb == reused.get();
+        }
+        Assert.assertTrue(found);
+        Assert.assertEquals(1, pool.getHits());
+    }
+}
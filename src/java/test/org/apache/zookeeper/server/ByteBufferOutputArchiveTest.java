@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.CreateResponse;
+import org.apache.zookeeper.proto.GetACLResponse;
+import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ByteBufferOutputArchiveTest extends ZKTestCase {
+    private static final Stat STAT =
+        new Stat(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+
+    @Test
+    public void testMatchesBinaryOutputArchive() throws Exception {
+        List<String> children = new ArrayList<String>(Arrays.asList("a",
+                "\u00e9t\u00e9", "\u4e2d\u6587", "\ud83d\ude00", ""));
+        Record[] records = {
+            new ReplyHeader(12, 34L, 0),
+            new GetDataResponse(new byte[1000], STAT),
+            new GetDataResponse(null, STAT),
+            new GetChildren2Response(children, STAT),
+            new GetChildren2Response(null, STAT),
+            new GetACLResponse(Ids.CREATOR_ALL_ACL, STAT),
+            new CreateResponse(null),
+        };
+        for (Record r : records) {
+            byte[] expected = binary(r);
+            Assert.assertEquals(expected.length, ByteBufferOutputArchive.size(r));
+            ByteBuffer bb = ByteBuffer.allocate(expected.length);
+            new ByteBufferOutputArchive(bb).writeRecord(r, "r");
+            Assert.assertFalse(bb.hasRemaining());
+            Assert.assertArrayEquals(expected, bb.array());
+        }
+    }
+
+    @Test
+    public void testSerializeResponse() throws Exception {
+        ReplyHeader h = new ReplyHeader(7, 100L, 0);
+        GetDataResponse r = new GetDataResponse("data".getBytes(), STAT);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+        bos.writeInt(0, "len");
+        bos.writeRecord(h, "header");
+        bos.writeRecord(r, "response");
+        byte[] expected = baos.toByteArray();
+        ByteBuffer.wrap(expected).putInt(expected.length - 4);
+
+        ByteBuffer bb = ServerCnxn.serializeResponse(h, r, "response");
+        Assert.assertEquals(0, bb.position());
+        Assert.assertEquals(expected.length, bb.capacity());
+        Assert.assertArrayEquals(expected, bb.array());
+
+        bb = ServerCnxn.serializeResponse(h, null, null);
+        Assert.assertEquals(4 + ByteBufferOutputArchive.size(h), bb.remaining());
+        Assert.assertEquals(bb.remaining() - 4, bb.getInt(0));
+    }
+
+    private static byte[] binary(Record r) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(r, "r");
+        return baos.toByteArray();
+    }
+}
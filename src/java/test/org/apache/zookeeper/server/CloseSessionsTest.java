@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.SessionTrackerImpl.SessionImpl;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CloseSessionsTest extends ClientBase {
+
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(ZooKeeperServer.CLOSE_SESSIONS_BATCH_SIZE, "2");
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        System.clearProperty(ZooKeeperServer.CLOSE_SESSIONS_BATCH_SIZE);
+        super.tearDown();
+    }
+
+    /**
+     * Expiring three sessions with a batch size of two takes two
+     * transactions and removes every ephemeral those sessions owned, also
+     * after the transaction log is replayed.
+     */
+    @Test
+    public void testExpireSessionsTogether() throws Exception {
+        ZooKeeper observer = createClient();
+        ZooKeeperServer zks = getServer(serverFactory);
+
+        List<SessionImpl> sessions = new ArrayList<SessionImpl>();
+        for (int i = 0; i < 3; i++) {
+            ZooKeeper zk = createClient();
+            zk.create("/e" + i, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL);
+            sessions.add(new SessionImpl(zk.getSessionId(),
+                    zk.getSessionTimeout()));
+        }
+
+        long zxid = zks.getZxid();
+        zks.expire(sessions);
+
+        for (SessionImpl s : sessions) {
+            waitForSessionClosed(zks, s.getSessionId());
+        }
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(observer.exists("/e" + i, false));
+        }
+        Assert.assertEquals(zxid + 2, zks.getZxid());
+
+        // replaying the closeSessions transactions must not revive them
+        stopServer();
+        startServer();
+        zks = getServer(serverFactory);
+        for (SessionImpl s : sessions) {
+            Assert.assertFalse(zks.getZKDatabase().getSessionWithTimeOuts()
+                    .containsKey(s.getSessionId()));
+        }
+        observer = createClient();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(observer.exists("/e" + i, false));
+        }
+    }
+
+    private void waitForSessionClosed(ZooKeeperServer zks, long sessionId)
+            throws InterruptedException {
+        for (int i = 0; i < CONNECTION_TIMEOUT / 10; i++) {
+            if (!zks.getZKDatabase().getSessions().contains(sessionId)) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("session 0x" + Long.toHexString(sessionId)
+                + " was not closed");
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.metric.Histogram;
+import org.apache.zookeeper.test.ClientBase;
+
+/**
+ * Compares the NIO and Netty server connection factories. Not run as part
+ * of the tests:
+ *
+ * <pre>
+ * java -cp ... org.apache.zookeeper.server.CnxnFactoryBenchmark \
+ *     [connections] [payload bytes] [seconds] [read|write]
+ * </pre>
+ *
+ * Each connection loops over synchronous reads or writes of the payload to
+ * the same znode from its own thread. The benchmark reports the
+ * throughput, the latency percentiles, and the CPU time of the process per
+ * connection and per operation. The clients run in the same process and
+ * are the same for both factories, so the difference in CPU time is the
+ * server's.
+ */
+public class CnxnFactoryBenchmark {
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int payload = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        boolean write = args.length > 3 && args[3].equals("write");
+
+        System.out.printf("%d connections, %d byte %s, %d seconds per run%n",
+                connections, payload, write ? "writes" : "reads", seconds);
+        System.out.printf("%-24s %10s %10s %10s %10s %16s %12s%n", "factory",
+                "ops/s", "p50 (us)", "p99 (us)", "max (us)",
+                "cpu/cnxn (ms/s)", "cpu/op (us)");
+        Class<?>[] factories = { NIOServerCnxnFactory.class,
+                NettyServerCnxnFactory.class };
+        for (Class<?> factory : factories) {
+            // warm up, then measure
+            run(factory, connections, payload, 1, write);
+            run(factory, connections, payload, seconds, write);
+        }
+    }
+
+    private static void run(Class<?> factoryClass, int connections,
+            int payload, int seconds, boolean write) throws Exception {
+        System.setProperty(ServerCnxnFactory.ZOOKEEPER_SERVER_CNXN_FACTORY,
+                factoryClass.getName());
+        File dataDir = ClientBase.createTmpDir();
+        int port = PortAssignment.unique();
+        String hostPort = "127.0.0.1:" + port;
+        ServerCnxnFactory factory = ServerCnxnFactory.createFactory(port,
+                connections + 1);
+        ZooKeeperServer zks = new ZooKeeperServer(dataDir, dataDir, 3000);
+        factory.startup(zks);
+        ClientBase.waitForServerUp(hostPort, ClientBase.CONNECTION_TIMEOUT);
+
+        ZooKeeper[] clients = new ZooKeeper[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients[i] = connect(hostPort);
+            }
+            clients[0].create("/benchmark", new byte[payload],
+                    Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            measure(factoryClass, clients, seconds,
+                    write ? new byte[payload] : null);
+        } finally {
+            for (ZooKeeper zk : clients) {
+                if (zk != null) {
+                    zk.close();
+                }
+            }
+            factory.shutdown();
+            zks.getZKDatabase().close();
+            ClientBase.recursiveDelete(dataDir);
+        }
+    }
+
+    private static ZooKeeper connect(String hostPort) throws Exception {
+        ClientBase.CountdownWatcher watcher = new ClientBase.CountdownWatcher();
+        ZooKeeper zk = new ZooKeeper(hostPort, 30000, watcher);
+        watcher.waitForConnected(ClientBase.CONNECTION_TIMEOUT);
+        return zk;
+    }
+
+    private static void measure(Class<?> factoryClass,
+            ZooKeeper[] clients, int seconds, final byte[] data)
+            throws Exception {
+        final Histogram latency = new Histogram();
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            final ZooKeeper zk = clients[i];
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long n = 0;
+                        long now;
+                        while ((now = System.nanoTime()) < deadline) {
+                            if (data == null) {
+                                zk.getData("/benchmark", false, null);
+                            } else {
+                                zk.setData("/benchmark", data, -1);
+                            }
+                            latency.add((System.nanoTime() - now) / 1000);
+                            n++;
+                        }
+                        ops.addAndGet(n);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        long cpuBefore = processCpuTime();
+        long startNs = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - startNs) / 1e9;
+        long cpu = processCpuTime() - cpuBefore;
+        System.out.printf("%-24s %10.0f %10d %10d %10d %16.1f %12.1f%n",
+                factoryClass.getSimpleName(), ops.get() / elapsed,
+                latency.getPercentile(0.5), latency.getPercentile(0.99),
+                latency.getMax(),
+                cpuBefore < 0 ? -1 : cpu / 1e6 / elapsed / clients.length,
+                cpuBefore < 0 ? -1 : cpu / 1e3 / Math.max(1, ops.get()));
+    }
+
+    /**
+     * @return the CPU time used by this process in ns, or -1 if the JVM
+     * does not tell
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os)
+                .getProcessCpuTime();
+        }
+        return -1;
+    }
+}
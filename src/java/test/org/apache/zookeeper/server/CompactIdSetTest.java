@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactIdSetTest extends ZKTestCase {
+
+    @Test
+    public void testSparseIdsStayArray() {
+        CompactIdSet set = new CompactIdSet();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(set.add(i * 1000));
+        }
+        Assert.assertFalse(set.add(5000));
+        Assert.assertFalse(set.isBitmap());
+        Assert.assertEquals(100, set.size());
+        Assert.assertTrue(set.remove(5000));
+        Assert.assertFalse(set.contains(5000));
+        Assert.assertTrue(set.contains(6000));
+    }
+
+    @Test
+    public void testDenseIdsBecomeBitmap() {
+        CompactIdSet set = new CompactIdSet();
+        for (int i = 0; i < CompactIdSet.MIN_BITMAP_SIZE; i++) {
+            set.add(i);
+        }
+        Assert.assertFalse(set.isBitmap());
+        for (int i = CompactIdSet.MIN_BITMAP_SIZE; i < 1000; i++) {
+            set.add(i);
+        }
+        Assert.assertTrue(set.isBitmap());
+        Assert.assertEquals(1000, set.size());
+        Assert.assertFalse(set.add(10));
+        Assert.assertTrue(set.remove(10));
+        Assert.assertFalse(set.remove(10));
+        Assert.assertEquals(999, set.size());
+    }
+
+    @Test
+    public void testMatchesTreeSet() {
+        Random r = new Random(42);
+        for (int bound : new int[] { 50, 100000 }) {
+            CompactIdSet set = new CompactIdSet();
+            TreeSet<Integer> expected = new TreeSet<Integer>();
+            for (int i = 0; i < 5000; i++) {
+                int id = r.nextInt(bound);
+                if (r.nextInt(3) == 0) {
+                    Assert.assertEquals(expected.remove(id), set.remove(id));
+                } else {
+                    Assert.assertEquals(expected.add(id), set.add(id));
+                }
+                Assert.assertEquals(expected.size(), set.size());
+            }
+            BitSet toRemove = new BitSet();
+            for (int i = 0; i < bound; i += 3) {
+                toRemove.set(i);
+            }
+            int removed = 0;
+            for (int i = 0; i < bound; i += 3) {
+                if (expected.remove(i)) {
+                    removed++;
+                }
+            }
+            Assert.assertEquals(removed, set.removeAll(toRemove));
+
+            int[] ids = set.toArray();
+            Assert.assertEquals(expected.size(), ids.length);
+            int i = 0;
+            for (int id : expected) {
+                Assert.assertEquals(id, ids[i++]);
+                Assert.assertTrue(set.contains(id));
+            }
+        }
+    }
+}
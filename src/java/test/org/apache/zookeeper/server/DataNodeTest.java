@@ -19,6 +19,8 @@
 
 import static org.junit.Assert.*;
 
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 import org.junit.Test;
@@ -62,4 +64,55 @@ public void testGetChildrenReturnsImmutableEmptySet() {
             // do nothing
         }
     }
+
+    @Test
+    public void testChildrenAcrossArrayThreshold() {
+        DataNode dataNode = new DataNode();
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < ChildSet.MAX_ARRAY_SIZE * 3; i++) {
+            assertTrue(dataNode.addChild("c" + i));
+            assertFalse(dataNode.addChild("c" + i));
+            expected.add("c" + i);
+            assertEquals(expected, dataNode.getChildren());
+        }
+        for (int i = 0; i < ChildSet.MAX_ARRAY_SIZE * 3; i += 2) {
+            assertTrue(dataNode.removeChild("c" + i));
+            assertFalse(dataNode.removeChild("c" + i));
+            expected.remove("c" + i);
+            assertEquals(expected, dataNode.getChildren());
+        }
+        // shrinks back to an array
+        for (int i = 1; i < ChildSet.MAX_ARRAY_SIZE * 3; i += 2) {
+            assertTrue(dataNode.removeChild("c" + i));
+            expected.remove("c" + i);
+            assertEquals(expected, dataNode.getChildren());
+            assertTrue(dataNode.getChildren().containsAll(expected));
+        }
+        assertTrue(dataNode.getChildren().isEmpty());
+        assertTrue(dataNode.addChild("again"));
+        assertEquals(1, dataNode.getChildren().size());
+    }
+
+    @Test
+    public void testChildSetIteratorRemove() {
+        ChildSet set = new ChildSet();
+        for (int i = 0; i < 5; i++) {
+            set.add("c" + i);
+        }
+        Iterator<String> it = set.iterator();
+        while (it.hasNext()) {
+            String child = it.next();
+            if (!child.equals("c3")) {
+                it.remove();
+            }
+        }
+        assertEquals(1, set.size());
+        assertTrue(set.contains("c3"));
+        try {
+            set.iterator().remove();
+            fail("IllegalStateException is expected");
+        } catch (IllegalStateException e) {
+            // do nothing
+        }
+    }
 }
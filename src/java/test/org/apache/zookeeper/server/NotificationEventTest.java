@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NotificationEventTest extends ZKTestCase {
+
+    @Test
+    public void testPacketMatchesResponse() throws Exception {
+        NotificationEvent event = new NotificationEvent(
+                EventType.NodeDataChanged, "/foo/bar");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+        bos.writeInt(0, "len");
+        bos.writeRecord(new ReplyHeader(-1, -1L, 0), "header");
+        bos.writeRecord(event.getWrapper(), "notification");
+        byte[] expected = baos.toByteArray();
+        ByteBuffer.wrap(expected).putInt(expected.length - 4);
+
+        Assert.assertArrayEquals(expected, bytes(event.getPacket()));
+        Assert.assertArrayEquals(expected, bytes(
+                ServerCnxn.getNotificationBuffer(new WatchedEvent(
+                        EventType.NodeDataChanged, KeeperState.SyncConnected,
+                        "/foo/bar"))));
+    }
+
+    @Test
+    public void testPacketIsShared() {
+        NotificationEvent event = new NotificationEvent(
+                EventType.NodeDeleted, "/foo");
+        ByteBuffer first = ServerCnxn.getNotificationBuffer(event);
+        ByteBuffer second = ServerCnxn.getNotificationBuffer(event);
+        Assert.assertNotSame(first, second);
+        Assert.assertSame(first.array(), second.array());
+
+        // sending moves the position of one buffer only
+        first.position(first.limit());
+        Assert.assertEquals(0, second.position());
+    }
+
+    private static byte[] bytes(ByteBuffer bb) {
+        byte[] b = new byte[bb.remaining()];
+        bb.get(b);
+        return b;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OffHeapDataStoreTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(OffHeapDataStore.ENABLED);
+        System.clearProperty(OffHeapDataStore.MIN_SIZE);
+    }
+
+    @Test
+    public void testStoreReadRelease() throws Exception {
+        OffHeapDataStore store = new OffHeapDataStore(16, 64 * 1024, null);
+        Assert.assertEquals(0, store.store(null));
+        Assert.assertEquals(0, store.store(new byte[15]));
+        Assert.assertEquals(0, store.store(new byte[64 * 1024 + 1]));
+
+        long[] handles = new long[1000];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = store.store(data(16 + i * 7, i));
+            Assert.assertNotEquals(0, handles[i]);
+        }
+        long capacity = store.getCapacityBytes();
+        Assert.assertEquals(1000, store.getChunkCount());
+        for (int i = 0; i < handles.length; i++) {
+            Assert.assertEquals(16 + i * 7, OffHeapDataStore.length(handles[i]));
+            Assert.assertArrayEquals(data(16 + i * 7, i), store.read(handles[i]));
+        }
+        Assert.assertTrue(store.getAllocatedBytes() >= store.getDataBytes());
+        Assert.assertTrue(store.getCapacityBytes() >= store.getAllocatedBytes());
+
+        // freed chunks are reused for data of the same size
+        for (int i = 0; i < handles.length; i++) {
+            store.release(handles[i]);
+        }
+        Assert.assertEquals(0, store.getDataBytes());
+        Assert.assertEquals(0, store.getAllocatedBytes());
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = store.store(data(16 + i * 7, -i));
+        }
+        Assert.assertEquals(capacity, store.getCapacityBytes());
+        for (int i = 0; i < handles.length; i++) {
+            Assert.assertArrayEquals(data(16 + i * 7, -i), store.read(handles[i]));
+        }
+
+        store.clear();
+        Assert.assertEquals(0, store.getCapacityBytes());
+        Assert.assertEquals(0, store.getChunkCount());
+    }
+
+    @Test
+    public void testMappedSlabs() throws Exception {
+        File dir = ClientBase.createEmptyTestDir();
+        OffHeapDataStore store = new OffHeapDataStore(1, 4096, dir);
+        long handle = store.store(data(4096, 3));
+        Assert.assertArrayEquals(data(4096, 3), store.read(handle));
+        // the slab files are unlinked once mapped
+        Assert.assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testDataTreeOffHeap() throws Exception {
+        System.setProperty(OffHeapDataStore.ENABLED, "true");
+        System.setProperty(OffHeapDataStore.MIN_SIZE, "100");
+        DataTree dt = new DataTree();
+        OffHeapDataStore store = dt.getDataStore();
+        Assert.assertNotNull(store);
+
+        dt.createNode("/quota", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 0);
+        dt.createNode(Quotas.quotaZookeeper + "/quota", null,
+                Ids.OPEN_ACL_UNSAFE, 0, -1, 2, 0);
+        dt.createNode(Quotas.quotaPath("/quota"), "count=-1,bytes=-1".getBytes(),
+                Ids.OPEN_ACL_UNSAFE, 0, -1, 3, 0);
+        dt.createNode(Quotas.statPath("/quota"), "count=0,bytes=0".getBytes(),
+                Ids.OPEN_ACL_UNSAFE, 0, -1, 4, 0);
+        dt.createNode("/quota/big", data(1000, 1), Ids.OPEN_ACL_UNSAFE, 0, -1, 5, 0);
+        dt.createNode("/quota/small", data(10, 2), Ids.OPEN_ACL_UNSAFE, 0, -1, 6, 0);
+        Assert.assertEquals(1000, store.getDataBytes());
+
+        Stat stat = new Stat();
+        Assert.assertArrayEquals(data(1000, 1), dt.getData("/quota/big", stat, null));
+        Assert.assertEquals(1000, stat.getDataLength());
+        Assert.assertArrayEquals(data(10, 2), dt.getData("/quota/small", stat, null));
+        Assert.assertEquals("count=3,bytes=1010", new String(
+                dt.getData(Quotas.statPath("/quota"), stat, null)));
+
+        dt.setData("/quota/big", data(2000, 4), 1, 7, 0);
+        dt.setData("/quota/small", data(500, 5), 1, 8, 0);
+        Assert.assertEquals(2500, store.getDataBytes());
+        Assert.assertArrayEquals(data(2000, 4), dt.getData("/quota/big", stat, null));
+        Assert.assertEquals(2000, stat.getDataLength());
+        Assert.assertEquals("count=3,bytes=2500", new String(
+                dt.getData(Quotas.statPath("/quota"), stat, null)));
+
+        // snapshots hold the data itself
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+        DataTree loaded = new DataTree();
+        loaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "tree");
+        Assert.assertArrayEquals(data(2000, 4), loaded.getData("/quota/big", stat, null));
+        Assert.assertEquals(2500, loaded.getDataStore().getDataBytes());
+
+        // a deleted node keeps its data for whoever still holds it
+        DataNode big = dt.getNode("/quota/big");
+        dt.deleteNode("/quota/big", 9);
+        Assert.assertEquals(500, store.getDataBytes());
+        synchronized (big) {
+            Assert.assertArrayEquals(data(2000, 4), big.data);
+        }
+        Assert.assertEquals("count=2,bytes=500", new String(
+                dt.getData(Quotas.statPath("/quota"), stat, null)));
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) length;
+        return data;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.MultiTransactionRecord;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.apache.zookeeper.proto.GetDataRequest;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that preparing requests on the worker pool produces the same
+ * transactions, in the same order, as preparing them serially.
+ */
+public class ParallelPrepRequestTest extends ZKTestCase {
+    private static final long SESSION_ID = 1L;
+
+    private int cxid;
+
+    @Test
+    public void testSameTxnsAsSerial() throws Exception {
+        Result serial = run(0);
+        Result parallel = run(4);
+
+        Assert.assertEquals(serial.requests.size(), parallel.requests.size());
+        for (int i = 0; i < serial.requests.size(); i++) {
+            Request s = serial.requests.get(i);
+            Request p = parallel.requests.get(i);
+            String msg = "request " + i + " " + s;
+            Assert.assertEquals(msg, s.cxid, p.cxid);
+            Assert.assertEquals(msg, s.zxid, p.zxid);
+            Assert.assertEquals(msg, s.getHdr() == null, p.getHdr() == null);
+            if (s.getHdr() != null) {
+                Assert.assertEquals(msg, s.getHdr().getZxid(), p.getHdr().getZxid());
+                Assert.assertEquals(msg, s.getHdr().getType(), p.getHdr().getType());
+                Assert.assertEquals(msg, s.getTxn(), p.getTxn());
+            }
+            Assert.assertEquals(msg, s.getException() == null ? null : s.getException().code(),
+                    p.getException() == null ? null : p.getException().code());
+        }
+        Assert.assertEquals(serial.outstanding, parallel.outstanding);
+    }
+
+    @Test
+    public void testSubmissionOrderKept() throws Exception {
+        Result parallel = run(4);
+        for (int i = 0; i < parallel.requests.size(); i++) {
+            Assert.assertEquals(i, parallel.requests.get(i).cxid);
+        }
+    }
+
+    private static class Result {
+        final List<Request> requests;
+        final Map<String, Long> outstanding = new HashMap<String, Long>();
+
+        Result(List<Request> requests) {
+            this.requests = requests;
+        }
+    }
+
+    private Result run(int numWorkerThreads) throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        ClientBase.setupTestEnv();
+        ZooKeeperServer zks = new ZooKeeperServer(tmpDir, tmpDir, 3000);
+        zks.startdata();
+        zks.createSessionTracker();
+        zks.sessionTracker.addSession(SESSION_ID, 30000);
+        DataTree dt = zks.getZKDatabase().getDataTree();
+        dt.createNode("/a", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 0, 0, 0);
+        dt.createNode("/b", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 0, 0, 0);
+        dt.createNode("/b/x", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 0, 0, 0);
+
+        List<Request> requests = buildRequests();
+        final List<Request> emitted =
+            Collections.synchronizedList(new ArrayList<Request>());
+        final CountDownLatch latch = new CountDownLatch(requests.size());
+        RequestProcessor last = new RequestProcessor() {
+            @Override
+            public void processRequest(Request request) {
+                emitted.add(request);
+                latch.countDown();
+            }
+            @Override
+            public void shutdown() {
+            }
+        };
+
+        System.setProperty(PrepRequestProcessor.ZOOKEEPER_PREP_PROC_NUM_WORKER_THREADS,
+                Integer.toString(numWorkerThreads));
+        PrepRequestProcessor processor = new PrepRequestProcessor(zks, last);
+        try {
+            processor.start();
+            for (Request request : requests) {
+                processor.processRequest(request);
+            }
+            Assert.assertTrue("requests were not all processed",
+                    latch.await(30, TimeUnit.SECONDS));
+        } finally {
+            System.clearProperty(PrepRequestProcessor.ZOOKEEPER_PREP_PROC_NUM_WORKER_THREADS);
+            processor.shutdown();
+            processor.join(10000);
+            zks.shutdown();
+        }
+
+        Result result = new Result(new ArrayList<Request>(emitted));
+        for (ChangeRecord c : zks.outstandingChangesForPath.values()) {
+            result.outstanding.put(c.path, c.zxid);
+        }
+        return result;
+    }
+
+    private List<Request> buildRequests() throws IOException {
+        cxid = 0;
+        List<Request> requests = new ArrayList<Request>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(create("/a/n" + i, CreateMode.PERSISTENT));
+            requests.add(read("/a/n" + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            requests.add(setData("/a/n" + i, 0));
+            requests.add(setData("/b/x", -1));
+        }
+        for (int i = 0; i < 10; i++) {
+            // every other one fails with a bad version
+            requests.add(setData("/a/n" + i, i % 2));
+        }
+        for (int i = 0; i < 3; i++) {
+            requests.add(create("/a/s-", CreateMode.PERSISTENT_SEQUENTIAL));
+            requests.add(setData("/a/s-000000001" + i, -1));
+        }
+        requests.add(multi(Arrays.asList(
+                Op.setData("/b/x", new byte[1], -1),
+                Op.create("/b/y", new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT))));
+        for (int i = 0; i < 5; i++) {
+            requests.add(delete("/a/n" + i));
+            requests.add(delete("/a/n" + i));
+            requests.add(create("/a/n" + i + "/c", CreateMode.PERSISTENT));
+        }
+        requests.add(delete("/a"));
+        requests.add(create("/b/y/z", CreateMode.PERSISTENT));
+        requests.add(delete("/b/y"));
+        requests.add(setData("", -1));
+        requests.add(create("/c/d", CreateMode.PERSISTENT));
+        requests.add(create("/c", CreateMode.PERSISTENT));
+        requests.add(create("/c/d", CreateMode.PERSISTENT));
+        return requests;
+    }
+
+    private Request create(String path, CreateMode mode) throws IOException {
+        return request(new CreateRequest(path, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                mode.toFlag()), OpCode.create);
+    }
+
+    private Request setData(String path, int version) throws IOException {
+        return request(new SetDataRequest(path, new byte[4], version), OpCode.setData);
+    }
+
+    private Request delete(String path) throws IOException {
+        return request(new DeleteRequest(path, -1), OpCode.delete);
+    }
+
+    private Request read(String path) throws IOException {
+        return request(new GetDataRequest(path, false), OpCode.getData);
+    }
+
+    private Request multi(List<Op> ops) throws IOException {
+        return request(new MultiTransactionRecord(ops), OpCode.multi);
+    }
+
+    private Request request(Record record, int opCode) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+        record.serialize(boa, "request");
+        List<Id> ids = Arrays.asList(Ids.ANYONE_ID_UNSAFE);
+        return new Request(null, SESSION_ID, cxid++, opCode,
+                ByteBuffer.wrap(baos.toByteArray()), ids);
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.apache.zookeeper.test.ClientBase;
+
+/**
+ * Measures the throughput of the prep stage, serial and with a growing
+ * worker pool, under a mixed create/setData/delete load. Not run as part of
+ * the tests:
+ *
+ * <pre>
+ * java -cp ... org.apache.zookeeper.server.PrepRequestProcessorBenchmark \
+ *     [maxThreads] [nodes] [requests] [payload]
+ * </pre>
+ *
+ * Requests go round robin over the nodes, spread over 64 parents; each node
+ * is created, updated twice and deleted again. Prepared requests are applied
+ * to the data tree by a FinalRequestProcessor so outstanding changes drain
+ * as they would on a standalone server, without the transaction log.
+ */
+public class PrepRequestProcessorBenchmark {
+    private static final long SESSION_ID = 1L;
+    private static final int PARENTS = 64;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        int payload = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        System.out.printf("%d nodes, %d requests, %d byte payload%n",
+                nodes, requests, payload);
+        System.out.printf("%8s %12s %12s%n", "threads", "ops/s", "us/op");
+        // the first run warms up the JIT
+        run(0, nodes, requests, payload);
+        for (int threads = 0; threads <= maxThreads;
+                threads = threads == 0 ? 1 : threads * 2) {
+            long nanos = run(threads, nodes, requests, payload);
+            System.out.printf("%8d %12.0f %12.2f%n", threads,
+                    requests * 1e9 / nanos, nanos / 1e3 / requests);
+        }
+        System.exit(0);
+    }
+
+    private static long run(int threads, int nodes, int count, int payload)
+            throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        ZooKeeperServer zks = new ZooKeeperServer(tmpDir, tmpDir, 3000);
+        zks.startdata();
+        zks.createSessionTracker();
+        zks.sessionTracker.addSession(SESSION_ID, 60000);
+        DataTree dt = zks.getZKDatabase().getDataTree();
+        dt.createNode("/bench", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 0, 0, 0);
+        for (int i = 0; i < PARENTS; i++) {
+            dt.createNode("/bench/p" + i, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                    0, 0, 0, 0);
+        }
+
+        List<Request> requests = buildRequests(nodes, count, payload);
+        final CountDownLatch latch = new CountDownLatch(count);
+        final RequestProcessor finalProcessor = new FinalRequestProcessor(zks);
+        RequestProcessor counter = new RequestProcessor() {
+            @Override
+            public void processRequest(Request request)
+                    throws RequestProcessorException {
+                finalProcessor.processRequest(request);
+                latch.countDown();
+            }
+            @Override
+            public void shutdown() {
+            }
+        };
+
+        System.setProperty(
+                PrepRequestProcessor.ZOOKEEPER_PREP_PROC_NUM_WORKER_THREADS,
+                Integer.toString(threads));
+        PrepRequestProcessor processor = new PrepRequestProcessor(zks, counter);
+        processor.start();
+        long start = System.nanoTime();
+        for (Request request : requests) {
+            processor.processRequest(request);
+        }
+        if (!latch.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("requests were not all processed");
+        }
+        long nanos = System.nanoTime() - start;
+        processor.shutdown();
+        processor.join();
+        zks.shutdown();
+        return nanos;
+    }
+
+    private static List<Request> buildRequests(int nodes, int count,
+            int payload) throws IOException {
+        List<Id> ids = Arrays.asList(Ids.ANYONE_ID_UNSAFE);
+        byte[] data = new byte[payload];
+        int[] state = new int[nodes];
+        List<Request> requests = new ArrayList<Request>(count);
+        for (int i = 0; i < count; i++) {
+            int node = i % nodes;
+            String path = "/bench/p" + (node % PARENTS) + "/n" + node;
+            Record record;
+            int type;
+            switch (state[node]) {
+            case 0:
+                record = new CreateRequest(path, data, Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT.toFlag());
+                type = OpCode.create;
+                break;
+            case 3:
+                record = new DeleteRequest(path, -1);
+                type = OpCode.delete;
+                break;
+            default:
+                record = new SetDataRequest(path, data, -1);
+                type = OpCode.setData;
+                break;
+            }
+            state[node] = (state[node] + 1) % 4;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            record.serialize(BinaryOutputArchive.getArchive(baos), "request");
+            requests.add(new Request(null, SESSION_ID, i, type,
+                    ByteBuffer.wrap(baos.toByteArray()), ids));
+        }
+        return requests;
+    }
+}
@@ -32,7 +32,9 @@
 import org.apache.zookeeper.proto.SetDataRequest;
 import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
 import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CloseSessionsTxn;
 import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.SessionIdTxn;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -198,6 +200,35 @@ public void testInvalidPath() throws Exception {
         Assert.assertEquals(outcome.getException().code(), KeeperException.Code.BADARGUMENTS);
     }
 
+    /**
+     * A closeSessions request should carry every session in one txn and queue
+     * deletes for the ephemerals of those sessions only.
+     */
+    @Test
+    public void testCloseSessions() throws Exception {
+        DataTree dt = zks.getZKDatabase().dataTree;
+        dt.createNode("/e1", new byte[0], Ids.OPEN_ACL_UNSAFE, 1, 0, 0, 0);
+        dt.createNode("/e2", new byte[0], Ids.OPEN_ACL_UNSAFE, 2, 0, 0, 0);
+        dt.createNode("/e3", new byte[0], Ids.OPEN_ACL_UNSAFE, 3, 0, 0, 0);
+
+        List<SessionIdTxn> sessions = Arrays.asList(
+                new SessionIdTxn(1), new SessionIdTxn(2));
+        Request req = createRequest(new CloseSessionsTxn(sessions),
+                OpCode.closeSessions);
+
+        pLatch = new CountDownLatch(1);
+        processor = new PrepRequestProcessor(zks, new MyRequestProcessor());
+        processor.pRequest(req);
+        Assert.assertTrue("request hasn't been processed in chain",
+                pLatch.await(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(OpCode.closeSessions, outcome.getHdr().getType());
+        Assert.assertEquals(new CloseSessionsTxn(sessions), outcome.getTxn());
+        Assert.assertNull(zks.outstandingChangesForPath.get("/e1").stat);
+        Assert.assertNull(zks.outstandingChangesForPath.get("/e2").stat);
+        Assert.assertNull(zks.outstandingChangesForPath.get("/e3"));
+    }
+
     private class MyRequestProcessor implements RequestProcessor {
         @Override
         public void processRequest(Request request) {
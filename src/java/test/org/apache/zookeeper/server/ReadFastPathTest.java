@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadFastPathTest extends ClientBase {
+    private ZooKeeper zk;
+
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(ZooKeeperServer.READ_FAST_PATH, "true");
+        super.setUp();
+        zk = createClient();
+        zk.create("/fast", "0".getBytes(), Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        zk.close();
+        super.tearDown();
+        System.clearProperty(ZooKeeperServer.READ_FAST_PATH);
+    }
+
+    @Test
+    public void testReadsTakeFastPath() throws Exception {
+        long before = getServer(serverFactory).getFastPathReadCount();
+        zk.create("/fast/child", null, Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        Assert.assertArrayEquals("0".getBytes(),
+                zk.getData("/fast", false, null));
+        Assert.assertNotNull(zk.exists("/fast", false));
+        Assert.assertNull(zk.exists("/missing", false));
+        Assert.assertEquals(Collections.singletonList("child"),
+                zk.getChildren("/fast", false));
+        Stat stat = new Stat();
+        zk.getChildren("/fast", false, stat);
+        Assert.assertEquals(1, stat.getNumChildren());
+        Assert.assertEquals(before + 5,
+                getServer(serverFactory).getFastPathReadCount());
+    }
+
+    @Test
+    public void testWatchSetOnFastPath() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        zk.getData("/fast", new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getType() == Event.EventType.NodeDataChanged) {
+                    fired.countDown();
+                }
+            }
+        }, null);
+        zk.setData("/fast", "1".getBytes(), -1);
+        Assert.assertTrue(fired.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Reads queued behind writes of the same session must see them, and
+     * must be answered in order.
+     */
+    @Test
+    public void testReadsAfterWritesInOrder() throws Exception {
+        final int count = 200;
+        final List<String> seen =
+            Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(count);
+        DataCallback cb = new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    byte[] data, Stat stat) {
+                seen.add(ctx + "=" + new String(data));
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                zk.setData("/fast", Integer.toString(i).getBytes(), -1,
+                        null, null);
+            }
+            zk.getData("/fast", false, cb, Integer.toString(i - i % 2));
+        }
+        Assert.assertTrue(done.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < count; i++) {
+            String expected = Integer.toString(i - i % 2);
+            Assert.assertEquals(expected + "=" + expected, seen.get(i));
+        }
+    }
+
+    /**
+     * Reads are not answered on the fast path while a txn is applied.
+     */
+    @Test
+    public void testNoFastReadWhileApplyingTxn() throws Exception {
+        ZooKeeperServer zks = getServer(serverFactory);
+        long before = zks.getFastPathReadCount();
+        zks.fastReadGate.writeLock().lock();
+        try {
+            Assert.assertArrayEquals("0".getBytes(),
+                    zk.getData("/fast", false, null));
+            Assert.assertEquals(before, zks.getFastPathReadCount());
+        } finally {
+            zks.fastReadGate.writeLock().unlock();
+        }
+        // the connection may not be done with the previous read yet
+        for (int i = 0; i < 100 && zks.getFastPathReadCount() == before; i++) {
+            Assert.assertArrayEquals("0".getBytes(),
+                    zk.getData("/fast", false, null));
+        }
+        Assert.assertTrue(zks.getFastPathReadCount() > before);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.RequestStageStats.Stage;
+import org.apache.zookeeper.server.metric.Histogram;
+import org.junit.Test;
+
+public class RequestStageStatsTest extends ZKTestCase {
+    private static final long US = 1000;
+
+    private Request request(int type) {
+        return new Request(null, 1, 1, type, null, null);
+    }
+
+    @Test
+    public void testStages() {
+        RequestStageStats stats = new RequestStageStats();
+        Request r = request(OpCode.setData);
+        r.prepStartTime = 0;
+        r.prepEndTime = 10 * US;
+        r.syncStartTime = 10 * US;
+        r.syncEndTime = 40 * US;
+        r.proposeTime = 12 * US;
+        r.quorumAckTime = 45 * US;
+        r.commitProcQueueStartTime = 11 * US;
+        r.finalStartTime = 50 * US;
+        stats.record(r, 60 * US);
+
+        assertEquals(10, stats.getHistogram("setData", Stage.PREP).getMax());
+        assertEquals(30, stats.getHistogram("setData", Stage.SYNC).getMax());
+        assertEquals(33, stats.getHistogram("setData", Stage.PROPOSAL).getMax());
+        assertEquals(39, stats.getHistogram("setData", Stage.COMMIT).getMax());
+        assertEquals(10, stats.getHistogram("setData", Stage.FINAL).getMax());
+        assertEquals(60, stats.getHistogram("setData", Stage.TOTAL).getMax());
+        assertNull(stats.getHistogram("getData", Stage.TOTAL));
+    }
+
+    @Test
+    public void testSkippedStages() {
+        RequestStageStats stats = new RequestStageStats();
+        // a read on a follower only goes through the commit processor
+        Request r = request(OpCode.getData);
+        r.commitProcQueueStartTime = 5 * US;
+        r.finalStartTime = 8 * US;
+        stats.record(r, 9 * US);
+        stats.record(request(OpCode.getData), 10 * US);
+
+        Map<String, Histogram> stages = stats.getStageHistograms("getData");
+        assertEquals(Arrays.asList("commit", "final", "total"),
+                Arrays.asList(stages.keySet().toArray()));
+        assertEquals(1, stages.get("total").getCount());
+        assertEquals(4, stages.get("total").getMax());
+        assertEquals(0, stats.getHistogram("getData", Stage.PREP).getCount());
+
+        stats.reset();
+        assertEquals(Arrays.asList("getData"),
+                Arrays.asList(stats.getRequestTypes().toArray()));
+        assertEquals(0, stats.getStageHistograms("getData").size());
+    }
+}
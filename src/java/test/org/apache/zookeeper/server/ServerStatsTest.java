@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.common.Time;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ServerStatsTest extends ZKTestCase {
+
+    @Test
+    public void testLatency() {
+        ServerStats stats = new ServerStats(null);
+        long now = Time.currentElapsedTime();
+        // latencies are measured from the given create time up to now, so
+        // they are at least the given offsets
+        for (int i = 1; i <= 100; i++) {
+            stats.updateLatency(now - 1000 * i);
+        }
+        Assert.assertEquals(100, stats.getRequestLatency().getCount());
+        Assert.assertTrue(stats.getMinLatency() >= 1000);
+        Assert.assertTrue(stats.getMaxLatency() >= 100000);
+        long p50 = stats.getRequestLatency().getPercentile(0.5);
+        Assert.assertTrue("p50 " + p50, p50 >= 50000 && p50 < 60000);
+        Assert.assertTrue(stats.getRequestLatency().getPercentile(0.999)
+                <= stats.getMaxLatency());
+
+        stats.resetMaxLatency();
+        Assert.assertEquals(stats.getMinLatency(), stats.getMaxLatency());
+        Assert.assertEquals(100, stats.getRequestLatency().getCount());
+
+        stats.resetLatency();
+        Assert.assertEquals(0, stats.getMinLatency());
+        Assert.assertEquals(0, stats.getAvgLatency());
+        Assert.assertEquals(0, stats.getMaxLatency());
+    }
+
+    @Test
+    public void testPacketCounters() {
+        ServerStats stats = new ServerStats(null);
+        stats.incrementPacketsReceived();
+        stats.incrementPacketsReceived();
+        stats.incrementPacketsSent();
+        Assert.assertEquals(2, stats.getPacketsReceived());
+        Assert.assertEquals(1, stats.getPacketsSent());
+        stats.reset();
+        Assert.assertEquals(0, stats.getPacketsReceived());
+        Assert.assertEquals(0, stats.getPacketsSent());
+    }
+}
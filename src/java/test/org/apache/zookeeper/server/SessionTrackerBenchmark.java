@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.server.SessionTracker.Session;
+import org.apache.zookeeper.server.SessionTracker.SessionExpirer;
+
+/**
+ * Measures the throughput of touchSession with the default ExpiryQueue and
+ * with the TimerWheelExpiryQueue. Not run as part of the tests:
+ *
+ * <pre>
+ * java -cp ... org.apache.zookeeper.server.SessionTrackerBenchmark \
+ *     [threads] [sessions] [touches] [tickTime]
+ * </pre>
+ *
+ * The sessions are touched at random by the given number of threads. The
+ * tick time defaults to 10ms so that most touches move the session to a
+ * later expiration time; the expirer thread is not started.
+ */
+public class SessionTrackerBenchmark {
+    private static final int SESSION_TIMEOUT = 30000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int touches = args.length > 2 ? Integer.parseInt(args[2]) : 4000000;
+        int tickTime = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        System.out.printf("%d threads, %d sessions, %d touches, %dms ticks%n",
+                threads, sessions, touches, tickTime);
+        System.out.printf("%12s %12s %12s%n", "expiry", "ops/s", "ns/op");
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            for (boolean timerWheel : new boolean[] { false, true }) {
+                long nanos = run(timerWheel, threads, sessions, touches,
+                        tickTime);
+                if (round > 0) {
+                    System.out.printf("%12s %12.0f %12.1f%n",
+                            timerWheel ? "timer wheel" : "queue",
+                            touches * 1e9 / nanos, (double) nanos / touches);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static long run(boolean timerWheel, int threads, int sessions,
+            int touches, int tickTime) throws Exception {
+        System.setProperty(SessionTrackerImpl.SESSION_EXPIRY_TIMER_WHEEL,
+                Boolean.toString(timerWheel));
+        SessionExpirer expirer = new SessionExpirer() {
+            public void expire(Session session) {
+            }
+            public long getServerId() {
+                return 1;
+            }
+        };
+        final SessionTrackerImpl tracker = new SessionTrackerImpl(expirer,
+                new ConcurrentHashMap<Long, Integer>(), tickTime, 1, null);
+        final long[] ids = new long[sessions];
+        for (int i = 0; i < sessions; i++) {
+            ids[i] = tracker.createSession(SESSION_TIMEOUT);
+        }
+
+        final int perThread = touches / threads;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] touchers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            touchers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        long id = ids[random.nextInt(ids.length)];
+                        tracker.touchSession(id, SESSION_TIMEOUT);
+                    }
+                }
+            };
+            touchers[t].start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread t : touchers) {
+            t.join();
+        }
+        return System.nanoTime() - startTime;
+    }
+}
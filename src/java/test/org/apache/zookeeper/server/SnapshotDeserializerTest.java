@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotDeserializerTest extends ZKTestCase {
+    private DataTree dt;
+    private long zxid;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(SnapshotDeserializer.PIPELINED, "true");
+        dt = new DataTree();
+        for (int i = 0; i < 20; i++) {
+            create("/top" + i, 0);
+            for (int j = 0; j < 300; j++) {
+                create("/top" + i + "/child" + j, j % 3 == 0 ? 0x1000 + j : 0);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(SnapshotDeserializer.PIPELINED);
+    }
+
+    @Test
+    public void testPipelinedMatchesSerial() throws Exception {
+        byte[] snapshot = serialize(dt);
+        DataTree loaded = deserialize(snapshot);
+
+        Assert.assertEquals(dt.getNodeCount(), loaded.getNodeCount());
+        Assert.assertEquals(dt.getEphemeralsCount(), loaded.getEphemeralsCount());
+        Assert.assertEquals(dt.getSessions().size(), loaded.getSessions().size());
+        Assert.assertEquals(300, loaded.getNode("/top7").getChildren().size());
+
+        System.clearProperty(SnapshotDeserializer.PIPELINED);
+        DataTree serial = deserialize(snapshot);
+        Assert.assertArrayEquals(serialize(serial), serialize(loaded));
+    }
+
+    @Test
+    public void testMissingParentFails() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+        dt.serializeAcls(oa);
+        dt.serializeNodeOnly(oa, "");
+        dt.serializeNodeOnly(oa, "/top0");
+        for (int i = 0; i < 5000; i++) {
+            dt.serializeNodeOnly(oa, "/top0/child" + (i % 300));
+        }
+        // parent /top1 is left out
+        dt.serializeNodeOnly(oa, "/top1/child1");
+        dt.serializeEndMarker(oa);
+        try {
+            deserialize(baos.toByteArray());
+            Assert.fail("should not load a tree with a missing parent");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("/top1 "));
+        }
+    }
+
+    private void create(String path, long ephemeralOwner) throws Exception {
+        dt.createNode(path, path.getBytes(), Ids.OPEN_ACL_UNSAFE,
+                ephemeralOwner, -1, ++zxid, 0);
+    }
+
+    private static byte[] serialize(DataTree tree) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+        return baos.toByteArray();
+    }
+
+    private static DataTree deserialize(byte[] snapshot) throws IOException {
+        DataTree tree = new DataTree();
+        tree.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(snapshot)), "tree");
+        return tree;
+    }
+}
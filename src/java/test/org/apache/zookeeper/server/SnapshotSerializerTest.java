@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.server.SnapshotSerializer.PositionOutputStream;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotSerializerTest extends ZKTestCase {
+    private File tmpDir;
+    private DataTree dt;
+    private long zxid;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createEmptyTestDir();
+        dt = new DataTree();
+        for (int i = 0; i < 20; i++) {
+            create("/top" + i);
+            for (int j = 0; j < 50; j++) {
+                create("/top" + i + "/child" + j);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerialize() throws Exception {
+        SnapshotSerializer serializer = new SnapshotSerializer(4, 1024, false);
+        byte[] written = serialize(serializer, new File(tmpDir, "snap.1"));
+        Assert.assertArrayEquals(serialize(dt), written);
+    }
+
+    @Test
+    public void testIncrementalMatchesSerialize() throws Exception {
+        SnapshotSerializer serializer = new SnapshotSerializer(2, 1024 * 1024, true);
+        serialize(serializer, new File(tmpDir, "snap.1"));
+
+        dt.setData("/top3/child7", "changed".getBytes(), 1, ++zxid, 0);
+        dt.deleteNode("/top5/child0", ++zxid);
+        create("/top9/new");
+        create("/top20");
+
+        byte[] written = serialize(serializer, new File(tmpDir, "snap.2"));
+        Assert.assertArrayEquals(serialize(dt), written);
+
+        // nothing changed, everything is copied from the previous snapshot
+        written = serialize(serializer, new File(tmpDir, "snap.3"));
+        Assert.assertArrayEquals(serialize(dt), written);
+    }
+
+    @Test
+    public void testIncrementalWithoutPreviousFile() throws Exception {
+        SnapshotSerializer serializer = new SnapshotSerializer(0, 1024, true);
+        File first = new File(tmpDir, "snap.1");
+        serialize(serializer, first);
+        Assert.assertTrue(first.delete());
+
+        create("/top1/new");
+        byte[] written = serialize(serializer, new File(tmpDir, "snap.2"));
+        Assert.assertArrayEquals(serialize(dt), written);
+    }
+
+    private void create(String path) throws Exception {
+        dt.createNode(path, path.getBytes(), Ids.OPEN_ACL_UNSAFE, 0, -1,
+                ++zxid, 0);
+    }
+
+    private static byte[] serialize(DataTree tree) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+        return baos.toByteArray();
+    }
+
+    private byte[] serialize(SnapshotSerializer serializer, File file)
+            throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            PositionOutputStream out = new PositionOutputStream(fos);
+            OutputArchive oa = BinaryOutputArchive.getArchive(out);
+            serializer.serialize(dt, out, oa, file);
+        } finally {
+            fos.close();
+        }
+        serializer.snapshotWritten(file);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testTopLevelName() {
+        Assert.assertNull(DataTree.topLevelName(""));
+        Assert.assertNull(DataTree.topLevelName("/"));
+        Assert.assertEquals("a", DataTree.topLevelName("/a"));
+        Assert.assertEquals("a", DataTree.topLevelName("/a/b/c"));
+        Assert.assertEquals("zookeeper",
+                DataTree.topLevelName("/zookeeper/quota"));
+    }
+}
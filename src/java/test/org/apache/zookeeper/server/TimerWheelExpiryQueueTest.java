@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.common.Time;
+import org.junit.Test;
+
+public class TimerWheelExpiryQueueTest extends ZKTestCase {
+    private static final int INTERVAL = 10;
+
+    /**
+     * Turn the wheel until the given time, returning the time each element
+     * expired at.
+     */
+    private static Map<String, Long> pollUntil(ExpiryTracker<String> queue,
+            long until) throws InterruptedException {
+        Map<String, Long> expired = new HashMap<String, Long>();
+        while (Time.currentElapsedTime() < until) {
+            long waitTime = queue.getWaitTime();
+            if (waitTime > 0) {
+                Thread.sleep(waitTime);
+                continue;
+            }
+            for (String elem : queue.poll()) {
+                expired.put(elem, Time.currentElapsedTime());
+            }
+        }
+        return expired;
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        // a wheel of 4 slots only reaches 40ms ahead
+        TimerWheelExpiryQueue<String> queue =
+            new TimerWheelExpiryQueue<String>(INTERVAL, 4);
+        long near = queue.update("near", 15);
+        long far = queue.update("far", 100);
+        assertEquals(0, near % INTERVAL);
+        assertEquals(2, queue.getExpiryMap().size());
+        assertTrue(queue.getExpiryMap().get(far).contains("far"));
+
+        Map<String, Long> expired =
+            pollUntil(queue, Time.currentElapsedTime() + 300);
+        assertTrue(expired.get("near") >= near);
+        assertTrue(expired.get("far") >= far);
+        assertTrue(expired.get("near") < expired.get("far"));
+        assertEquals(0, queue.getExpiryMap().size());
+    }
+
+    @Test
+    public void testUpdateKeepsAlive() throws InterruptedException {
+        TimerWheelExpiryQueue<String> queue =
+            new TimerWheelExpiryQueue<String>(INTERVAL, 4);
+        long end = Time.currentElapsedTime() + 200;
+        while (Time.currentElapsedTime() < end) {
+            queue.update("alive", 60);
+            queue.update("far", 1000);
+            Set<String> expired = queue.poll();
+            assertFalse(expired.toString(), expired.contains("alive"));
+            assertFalse(expired.toString(), expired.contains("far"));
+            Thread.sleep(2);
+        }
+        Map<String, Long> expired =
+            pollUntil(queue, Time.currentElapsedTime() + 150);
+        assertTrue(expired.containsKey("alive"));
+        assertFalse(expired.containsKey("far"));
+    }
+
+    @Test
+    public void testShorterTimeout() throws InterruptedException {
+        TimerWheelExpiryQueue<String> queue =
+            new TimerWheelExpiryQueue<String>(INTERVAL);
+        queue.update("elem", 10000);
+        long expiryTime = queue.update("elem", 20);
+        Map<String, Long> expired =
+            pollUntil(queue, Time.currentElapsedTime() + 100);
+        assertTrue(expired.get("elem") >= expiryTime);
+    }
+
+    @Test
+    public void testRemove() throws InterruptedException {
+        TimerWheelExpiryQueue<String> queue =
+            new TimerWheelExpiryQueue<String>(INTERVAL);
+        long expiryTime = queue.update("elem", 20);
+        assertEquals(Long.valueOf(expiryTime), queue.remove("elem"));
+        assertNull(queue.remove("elem"));
+        assertEquals(0, queue.getExpiryMap().size());
+        assertTrue(pollUntil(queue, Time.currentElapsedTime() + 60).isEmpty());
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+
+/**
+ * Compares the throughput of the watch manager implementations under
+ * contention. Not run as part of the tests:
+ *
+ * <pre>
+ * java -cp ... org.apache.zookeeper.server.WatchManagerBenchmark \
+ *     [threads] [paths] [seconds]
+ * </pre>
+ *
+ * Each thread plays a connection and loops over one of three workloads:
+ * <ul>
+ * <li>add: set watches, dropping them all by closing the connection every
+ * 1000 watches</li>
+ * <li>trigger: set a watch and fire a watch on a random path</li>
+ * <li>remove: set a watch and remove a watch on a random path</li>
+ * </ul>
+ * It then reports the heap taken by 2000 connections each watching the same
+ * 100 paths.
+ */
+public class WatchManagerBenchmark {
+    private static final String[] WORKLOADS = { "add", "trigger", "remove" };
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int paths = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.printf("%d paths, %d seconds per run, ops/s%n", paths,
+                seconds);
+        System.out.printf("%-10s %8s", "workload", "threads");
+        Class<?>[] managers = { DefaultWatchManager.class,
+                StripedWatchManager.class, BitSetWatchManager.class };
+        for (Class<?> manager : managers) {
+            System.out.printf(" %22s", manager.getSimpleName());
+        }
+        System.out.println();
+
+        for (String workload : WORKLOADS) {
+            for (int threads = 1; threads <= maxThreads; threads *= 4) {
+                System.out.printf("%-10s %8d", workload, threads);
+                for (Class<?> manager : managers) {
+                    double opsPerSecond = run(
+                            (WatchManager) manager.newInstance(), workload,
+                            threads, paths, seconds);
+                    System.out.printf(" %22.0f", opsPerSecond);
+                }
+                System.out.println();
+            }
+        }
+
+        System.out.printf("%-19s", "heap (KB)");
+        for (Class<?> manager : managers) {
+            System.out.printf(" %22d", heapUsed(manager, 2000, 100) / 1024);
+        }
+        System.out.println();
+    }
+
+    private static long heapUsed(Class<?> managerClass, int connections,
+            int paths) throws Exception {
+        long before = usedMemory();
+        WatchManager manager = (WatchManager) managerClass.newInstance();
+        for (int c = 0; c < connections; c++) {
+            MockServerCnxn cnxn = new MockServerCnxn();
+            for (int p = 0; p < paths; p++) {
+                manager.addWatch("/benchmark/node-" + p, cnxn);
+            }
+        }
+        long used = usedMemory() - before;
+        // keep the manager reachable until measured
+        return manager.size() > 0 ? used : 0;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static double run(final WatchManager manager,
+            final String workload, int threads, final int paths, int seconds)
+            throws InterruptedException {
+        final String[] names = new String[paths];
+        for (int i = 0; i < paths; i++) {
+            names[i] = "/benchmark/node-" + i;
+        }
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(seconds) + 100000000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long sessionId = t;
+            final Random r = new Random(t);
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    MockServerCnxn cnxn = new MockServerCnxn() {
+                        @Override
+                        public void process(WatchedEvent event) {
+                        }
+
+                        @Override
+                        public long getSessionId() {
+                            return sessionId;
+                        }
+                    };
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        manager.addWatch(names[r.nextInt(paths)], cnxn);
+                        String other = names[r.nextInt(paths)];
+                        if (workload.equals("add")) {
+                            if (count % 1000 == 999) {
+                                manager.removeWatcher(cnxn);
+                            }
+                        } else if (workload.equals("trigger")) {
+                            manager.triggerWatch(other, EventType.NodeDataChanged);
+                        } else {
+                            manager.removeWatcher(other, cnxn);
+                        }
+                        count++;
+                    }
+                    ops.addAndGet(count);
+                }
+            };
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.get() / ((System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZKParameterized;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+@RunWith(Parameterized.class)
+@Parameterized.UseParametersRunnerFactory(ZKParameterized.RunnerFactory.class)
+public class WatchManagerTest extends ZKTestCase {
+    private final String watchManagerName;
+    private WatchManager manager;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+                {DefaultWatchManager.class.getName()},
+                {StripedWatchManager.class.getName()},
+                {BitSetWatchManager.class.getName()}});
+    }
+
+    public WatchManagerTest(String watchManagerName) {
+        this.watchManagerName = watchManagerName;
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty(WatchManagerFactory.ZOOKEEPER_WATCH_MANAGER_NAME,
+                watchManagerName);
+        try {
+            manager = WatchManagerFactory.createWatchManager();
+        } finally {
+            System.clearProperty(WatchManagerFactory.ZOOKEEPER_WATCH_MANAGER_NAME);
+        }
+        Assert.assertEquals(watchManagerName, manager.getClass().getName());
+    }
+
+    /**
+     * Watches of closed connections are removed in the background by the
+     * bitset manager, do it now.
+     */
+    private void cleanDeadWatchers() {
+        if (manager instanceof BitSetWatchManager) {
+            ((BitSetWatchManager) manager).cleanDeadWatchers();
+        }
+    }
+
+    static class CountingWatcher extends MockServerCnxn {
+        final long sessionId;
+        final AtomicInteger events = new AtomicInteger();
+
+        CountingWatcher(long sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public long getSessionId() {
+            return sessionId;
+        }
+    }
+
+    @Test
+    public void testAddTriggerRemove() {
+        CountingWatcher w1 = new CountingWatcher(1);
+        CountingWatcher w2 = new CountingWatcher(2);
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+        manager.addWatch("/b", w1);
+        Assert.assertEquals(3, manager.size());
+        Assert.assertTrue(manager.containsWatcher("/b", w1));
+        Assert.assertFalse(manager.containsWatcher("/b", w2));
+
+        Set<Watcher> suppress = new HashSet<Watcher>();
+        suppress.add(w2);
+        Set<Watcher> fired = manager.triggerWatch("/a",
+                EventType.NodeDataChanged, suppress);
+        Assert.assertEquals(2, fired.size());
+        Assert.assertEquals(1, w1.events.get());
+        Assert.assertEquals(0, w2.events.get());
+        Assert.assertNull(manager.triggerWatch("/a", EventType.NodeDataChanged));
+        Assert.assertEquals(1, manager.size());
+
+        Assert.assertFalse(manager.removeWatcher("/a", w1));
+        Assert.assertTrue(manager.removeWatcher("/b", w1));
+        Assert.assertFalse(manager.containsWatcher("/b", w1));
+        Assert.assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void testRemoveWatcher() {
+        CountingWatcher w1 = new CountingWatcher(1);
+        CountingWatcher w2 = new CountingWatcher(2);
+        for (int i = 0; i < 100; i++) {
+            manager.addWatch("/node" + i, w1);
+            manager.addWatch("/node" + i, w2);
+        }
+        Assert.assertEquals(200, manager.size());
+        manager.removeWatcher(w1);
+        cleanDeadWatchers();
+        Assert.assertEquals(100, manager.size());
+        Assert.assertFalse(manager.containsWatcher("/node5", w1));
+        Assert.assertTrue(manager.containsWatcher("/node5", w2));
+
+        WatchesSummary summary = manager.getWatchesSummary();
+        Assert.assertEquals(1, summary.getNumConnections());
+        Assert.assertEquals(100, summary.getNumPaths());
+        Assert.assertEquals(100, summary.getTotalWatches());
+        Assert.assertEquals(100, manager.getWatches().getPaths(2L).size());
+        Assert.assertNull(manager.getWatches().getPaths(1L));
+        Assert.assertEquals(1, manager.getWatchesByPath()
+                .getSessions("/node7").size());
+
+        StringWriter out = new StringWriter();
+        manager.dumpWatches(new PrintWriter(out), true);
+        Assert.assertTrue(out.toString().contains("/node7\n\t0x2\n"));
+    }
+
+    /**
+     * Hammer the manager from several threads and check that the by-path
+     * and by-watcher views agree once everything is cleaned up.
+     */
+    @Test
+    public void testConcurrentAddTriggerRemove() throws Exception {
+        final int threads = 8;
+        final CountingWatcher[] watchers = new CountingWatcher[16];
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i] = new CountingWatcher(i);
+        }
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random r = new Random(t);
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            String path = "/p" + r.nextInt(200);
+                            CountingWatcher w = watchers[r.nextInt(watchers.length)];
+                            switch (r.nextInt(4)) {
+                            case 0:
+                                manager.triggerWatch(path, EventType.NodeDeleted);
+                                break;
+                            case 1:
+                                manager.removeWatcher(path, w);
+                                break;
+                            default:
+                                manager.addWatch(path, w);
+                            }
+                            if (r.nextInt(1000) == 0) {
+                                manager.removeWatcher(w);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertEquals(Collections.emptyList(), errors);
+
+        cleanDeadWatchers();
+        Assert.assertEquals(manager.getWatchesSummary().getTotalWatches(),
+                manager.size());
+        int byPath = 0;
+        for (int i = 0; i < 200; i++) {
+            Set<Long> ids = manager.getWatchesByPath().getSessions("/p" + i);
+            byPath += ids == null ? 0 : ids.size();
+        }
+        Assert.assertEquals(manager.size(), byPath);
+
+        for (CountingWatcher w : watchers) {
+            manager.removeWatcher(w);
+        }
+        cleanDeadWatchers();
+        Assert.assertEquals(0, manager.size());
+        WatchesSummary summary = manager.getWatchesSummary();
+        Assert.assertEquals(0, summary.getNumPaths());
+        Assert.assertEquals(0, summary.getTotalWatches());
+    }
+
+    @Test
+    public void testDeadWatcherDoesNotFire() {
+        CountingWatcher w1 = new CountingWatcher(1);
+        CountingWatcher w2 = new CountingWatcher(2);
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+        manager.removeWatcher(w1);
+        Assert.assertFalse(manager.containsWatcher("/a", w1));
+
+        // a new connection may take the id of the closed one
+        cleanDeadWatchers();
+        CountingWatcher w3 = new CountingWatcher(3);
+        manager.addWatch("/b", w3);
+
+        Set<Watcher> fired = manager.triggerWatch("/a", EventType.NodeDeleted);
+        Assert.assertEquals(1, fired.size());
+        Assert.assertTrue(fired.contains(w2));
+        Assert.assertEquals(0, w1.events.get());
+        Assert.assertEquals(0, w3.events.get());
+        Assert.assertTrue(manager.containsWatcher("/b", w3));
+    }
+}
@@ -26,6 +26,10 @@
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.server.ServerStats;
 import org.apache.zookeeper.server.ZooKeeperServer;
 import org.apache.zookeeper.test.ClientBase;
@@ -163,6 +167,10 @@ public void testMonitor() throws IOException, InterruptedException {
                     new Field("avg_latency", Long.class),
                     new Field("max_latency", Long.class),
                     new Field("min_latency", Long.class),
+                    new Field("p50_latency", Long.class),
+                    new Field("p95_latency", Long.class),
+                    new Field("p99_latency", Long.class),
+                    new Field("p999_latency", Long.class),
                     new Field("packets_received", Long.class),
                     new Field("packets_sent", Long.class),
                     new Field("num_alive_connections", Integer.class),
@@ -225,6 +233,28 @@ public void testWatchesByPath() throws IOException, InterruptedException {
                     new Field("path_to_session_ids", Map.class));
     }
 
+    @Test
+    public void testRequestStages()
+            throws IOException, InterruptedException, KeeperException {
+        ZooKeeper zk = createClient();
+        try {
+            zk.create("/stages", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        } finally {
+            zk.close();
+        }
+        ZooKeeperServer zks = serverFactory.getZooKeeperServer();
+        Map<String, Object> result =
+            Commands.runCommand("stages", zks, new HashMap<String, String>()).toMap();
+        assertNull(result.get("error"));
+        Map<?, ?> create = (Map<?, ?>) result.get("create");
+        for (String stage : new String[] { "prep", "sync", "final", "total" }) {
+            Map<?, ?> latency = (Map<?, ?>) create.get(stage);
+            assertEquals("stage " + stage + ": " + create, 1L, latency.get("count"));
+            assertTrue(latency.containsKey("p99_us"));
+        }
+    }
+
     @Test
     public void testWatchSummary() throws IOException, InterruptedException {
         testCommand("watch_summary",
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.metric;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CounterTest extends ZKTestCase {
+
+    @Test
+    public void testAddAndReset() {
+        Counter c = new Counter();
+        Assert.assertEquals(0, c.get());
+        c.increment();
+        c.add(41);
+        Assert.assertEquals(42, c.get());
+        c.add(-2);
+        Assert.assertEquals(40, c.get());
+        c.reset();
+        Assert.assertEquals(0, c.get());
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        final Counter c = new Counter();
+        final int perThread = 100000;
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        c.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(threads.length * perThread, c.get());
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.metric;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest extends ZKTestCase {
+
+    @Test
+    public void testEmpty() {
+        Histogram h = new Histogram();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getMin());
+        Assert.assertEquals(0, h.getAvg());
+        Assert.assertEquals(0, h.getMax());
+        Assert.assertEquals(0, h.getPercentile(0.99));
+    }
+
+    @Test
+    public void testMinAvgMax() {
+        Histogram h = new Histogram();
+        h.add(5);
+        h.add(10);
+        h.add(15);
+        Assert.assertEquals(3, h.getCount());
+        Assert.assertEquals(5, h.getMin());
+        Assert.assertEquals(10, h.getAvg());
+        Assert.assertEquals(15, h.getMax());
+        Assert.assertEquals(30, h.getTotal());
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getMax());
+    }
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L,
+                Long.MAX_VALUE};
+        for (long v : values) {
+            int index = Histogram.bucketIndex(v);
+            Assert.assertTrue(v + " above bucket " + index,
+                    v <= Histogram.bucketUpperBound(index));
+            if (index > 0) {
+                Assert.assertTrue(v + " below bucket " + index,
+                        v > Histogram.bucketUpperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.add(i);
+        }
+        assertWithinError(500, h.getPercentile(0.5));
+        assertWithinError(950, h.getPercentile(0.95));
+        assertWithinError(990, h.getPercentile(0.99));
+        Assert.assertEquals(1000, h.getPercentile(1.0));
+    }
+
+    @Test
+    public void testMerge() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        a.add(1);
+        b.add(100);
+        b.add(3);
+        a.merge(b);
+        Assert.assertEquals(3, a.getCount());
+        Assert.assertEquals(1, a.getMin());
+        Assert.assertEquals(100, a.getMax());
+        Assert.assertEquals(104, a.getTotal());
+    }
+
+    private void assertWithinError(long expected, long actual) {
+        double error = Math.abs(actual - expected) / (double) expected;
+        Assert.assertTrue("expected " + expected + " got " + actual,
+                error <= 1.0 / Histogram.SUB_BUCKETS);
+    }
+}
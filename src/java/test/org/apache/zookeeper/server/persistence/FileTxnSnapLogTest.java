@@ -23,6 +23,7 @@
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.SetDataTxn;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.junit.Assert;
@@ -136,6 +137,41 @@ public void testGetTxnLogSyncElapsedTime() throws IOException {
         }
     }
 
+    @Test
+    public void testRestoreWithReadAhead() throws IOException {
+        File tmpDir = ClientBase.createEmptyTestDir();
+        FileTxnSnapLog fileTxnSnapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        FileTxnSnapLog.PlayBackListener listener = new FileTxnSnapLog.PlayBackListener() {
+            @Override
+            public void onTxnLoaded(TxnHeader hdr, Record rec) {
+                // empty by default
+            }
+        };
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_READ_AHEAD, "4");
+        try {
+            Assert.assertEquals(0L, fileTxnSnapLog.restore(new DataTree(),
+                    new ConcurrentHashMap<Long, Integer>(), listener));
+            for (int i = 1; i <= 100; i++) {
+                TxnHeader hdr = new TxnHeader(1, i, i, i, ZooDefs.OpCode.create);
+                Record txn = new CreateTxn("/node" + i, new byte[0],
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, false, i);
+                fileTxnSnapLog.append(new Request(0, 0, 0, hdr, txn, i));
+            }
+            fileTxnSnapLog.commit();
+
+            DataTree dt = new DataTree();
+            Assert.assertEquals(100L, fileTxnSnapLog.restore(dt,
+                    new ConcurrentHashMap<Long, Integer>(), listener));
+            Assert.assertNotNull(dt.getNode("/node100"));
+            Assert.assertEquals(100L, fileTxnSnapLog.getTxnReplayCount());
+            Assert.assertTrue(fileTxnSnapLog.getSnapLoadTime() >= 0);
+            Assert.assertTrue(fileTxnSnapLog.getTxnReplayTime() >= 0);
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_READ_AHEAD);
+            fileTxnSnapLog.close();
+        }
+    }
+
     private void attemptAutoCreateDb(File dataDir, File snapDir, Map<Long, Integer> sessions,
                                      String priorAutocreateDbValue, String autoCreateValue,
                                      long expectedValue) throws IOException {
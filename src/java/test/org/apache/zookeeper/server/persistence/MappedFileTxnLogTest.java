@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileTxnLogTest extends ZKTestCase {
+    private long preAllocSize;
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception {
+        preAllocSize = FileTxnLog.preAllocSize;
+        logDir = ClientBase.createEmptyTestDir();
+    }
+
+    @After
+    public void tearDown() {
+        FileTxnLog.setPreallocSize(preAllocSize);
+    }
+
+    @Test
+    public void testAdler32MatchesJdk() {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        Adler32 expected = new Adler32();
+        expected.update(data, 100, 12000);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        Assert.assertEquals(expected.getValue(),
+                MappedFileTxnLog.adler32(direct, 100, 12000));
+    }
+
+    @Test
+    public void testAppendIsReadableByFileTxnLog() throws Exception {
+        MappedFileTxnLog log = new MappedFileTxnLog(logDir);
+        for (int i = 1; i <= 100; i++) {
+            log.append(header(i), new SetDataTxn("/foo", new byte[i], i));
+            if (i == 50) {
+                log.commit();
+                log.rollLog();
+            }
+        }
+        log.commit();
+        log.close();
+
+        Assert.assertEquals(2, logDir.listFiles().length);
+        assertLogContains(1, 100);
+    }
+
+    @Test
+    public void testEntryLargerThanRegion() throws Exception {
+        FileTxnLog.setPreallocSize(4096);
+        MappedFileTxnLog log = new MappedFileTxnLog(logDir);
+        for (int i = 1; i <= 20; i++) {
+            log.append(header(i), new SetDataTxn("/foo", new byte[i * 1000], i));
+        }
+        log.commit();
+        log.close();
+
+        assertLogContains(1, 20);
+    }
+
+    private TxnHeader header(long zxid) {
+        return new TxnHeader(1, 1, zxid, 1, ZooDefs.OpCode.setData);
+    }
+
+    private void assertLogContains(long firstZxid, long lastZxid)
+            throws Exception {
+        FileTxnLog reader = new FileTxnLog(logDir);
+        TxnIterator itr = reader.read(firstZxid);
+        try {
+            for (long zxid = firstZxid; zxid <= lastZxid; zxid++) {
+                if (zxid != firstZxid) {
+                    Assert.assertTrue("missing zxid " + zxid, itr.next());
+                }
+                Assert.assertEquals(zxid, itr.getHeader().getZxid());
+                SetDataTxn txn = (SetDataTxn) itr.getTxn();
+                Assert.assertEquals(zxid, txn.getVersion());
+            }
+            Assert.assertFalse(itr.next());
+        } finally {
+            itr.close();
+        }
+        Assert.assertEquals(lastZxid, reader.getLastLoggedZxid());
+    }
+}
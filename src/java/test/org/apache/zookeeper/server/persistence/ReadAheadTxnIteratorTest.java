@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadAheadTxnIteratorTest extends ZKTestCase {
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = ClientBase.createEmptyTestDir();
+        FileTxnLog log = new FileTxnLog(logDir);
+        for (int i = 1; i <= 1000; i++) {
+            log.append(new TxnHeader(1, 1, i, 1, ZooDefs.OpCode.setData),
+                    new SetDataTxn("/foo", new byte[10], i));
+            if (i % 300 == 0) {
+                log.rollLog();
+            }
+        }
+        log.commit();
+        log.close();
+    }
+
+    @Test
+    public void testReadsAllTxnsInOrder() throws Exception {
+        TxnIterator itr = new ReadAheadTxnIterator(
+                new FileTxnLog(logDir).read(1), 8);
+        try {
+            for (long zxid = 1; zxid <= 1000; zxid++) {
+                if (zxid != 1) {
+                    Assert.assertTrue("missing zxid " + zxid, itr.next());
+                }
+                Assert.assertEquals(zxid, itr.getHeader().getZxid());
+                Assert.assertEquals(zxid, ((SetDataTxn) itr.getTxn()).getVersion());
+            }
+            Assert.assertFalse(itr.next());
+            Assert.assertNull(itr.getHeader());
+        } finally {
+            itr.close();
+        }
+    }
+
+    @Test
+    public void testCloseBeforeEnd() throws Exception {
+        TxnIterator itr = new ReadAheadTxnIterator(
+                new FileTxnLog(logDir).read(1), 1);
+        Assert.assertEquals(1L, itr.getHeader().getZxid());
+        Assert.assertTrue(itr.next());
+        itr.close();
+    }
+
+    @Test
+    public void testEmptyLog() throws Exception {
+        TxnIterator itr = new ReadAheadTxnIterator(
+                new FileTxnLog(ClientBase.createEmptyTestDir()).read(1), 8);
+        Assert.assertNull(itr.getHeader());
+        Assert.assertFalse(itr.next());
+        itr.close();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.ClientBase;
+
+/**
+ * Compares the size of snapshots and the throughput of writing and reading
+ * them for each snapshot codec. Not run as part of the tests:
+ *
+ * <pre>
+ * java -cp ... org.apache.zookeeper.server.persistence.SnapshotCodecBenchmark \
+ *     [nodes] [dataSize] [iterations]
+ * </pre>
+ *
+ * Node data is half text like, half random, so that it compresses roughly
+ * as well as typical configuration and metadata payloads.
+ */
+public class SnapshotCodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int dataSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        DataTree dt = createTree(nodes, dataSize);
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        System.out.printf("%d nodes, %d bytes of data each, %d iterations%n",
+                nodes, dataSize, iterations);
+        System.out.printf("%-8s %12s %8s %14s %14s%n", "codec", "size",
+                "ratio", "write MB/s", "read MB/s");
+
+        long rawSize = -1;
+        for (String codec : new String[] { SnapshotCompression.NONE,
+                GzipSnapshotCodec.NAME, LzSnapshotCodec.NAME }) {
+            System.setProperty(SnapshotCompression.COMPRESSION, codec);
+            File snapDir = ClientBase.createTmpDir();
+            File snap = new File(snapDir, "snapshot.1");
+            FileSnap fileSnap = new FileSnap(snapDir);
+
+            long writeNanos = Long.MAX_VALUE;
+            long readNanos = Long.MAX_VALUE;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                fileSnap.serialize(dt, sessions, snap);
+                writeNanos = Math.min(writeNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                fileSnap.deserialize(new DataTree(), new HashMap<Long, Integer>());
+                readNanos = Math.min(readNanos, System.nanoTime() - start);
+            }
+            long size = snap.length();
+            if (rawSize < 0) {
+                rawSize = size;
+            }
+            System.out.printf("%-8s %12d %8.2f %14.1f %14.1f%n", codec, size,
+                    (double) rawSize / size, mbPerSecond(rawSize, writeNanos),
+                    mbPerSecond(rawSize, readNanos));
+            ClientBase.recursiveDelete(snapDir);
+        }
+        System.clearProperty(SnapshotCompression.COMPRESSION);
+    }
+
+    /** Throughput in terms of the uncompressed snapshot size */
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    private static DataTree createTree(int nodes, int dataSize)
+            throws Exception {
+        DataTree dt = new DataTree();
+        Random r = new Random(1);
+        int perParent = 1000;
+        long zxid = 0;
+        for (int i = 0; i < nodes; i++) {
+            if (i % perParent == 0) {
+                dt.createNode("/p" + (i / perParent), new byte[0],
+                        Ids.OPEN_ACL_UNSAFE, 0, -1, ++zxid, 0);
+            }
+            String path = "/p" + (i / perParent) + "/node-" + i;
+            byte[] data = new byte[dataSize];
+            byte[] text = ("{\"path\":\"" + path + "\",\"host\":\"server-"
+                    + (i % 50) + ".example.com\",\"port\":2181}").getBytes();
+            for (int j = 0; j < dataSize / 2; j++) {
+                data[j] = text[j % text.length];
+            }
+            for (int j = dataSize / 2; j < dataSize; j++) {
+                data[j] = (byte) r.nextInt();
+            }
+            dt.createNode(path, data, Ids.OPEN_ACL_UNSAFE, 0, -1, ++zxid, 0);
+        }
+        return dt;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.SnapshotSerializer;
+import org.apache.zookeeper.server.persistence.SnapshotCompression.BlockInputStream;
+import org.apache.zookeeper.server.persistence.SnapshotCompression.BlockOutputStream;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotCompressionTest extends ZKTestCase {
+    private static final SnapshotCodec[] CODECS = {
+        new GzipSnapshotCodec(), new LzSnapshotCodec()
+    };
+
+    @After
+    public void tearDown() {
+        System.clearProperty(SnapshotCompression.COMPRESSION);
+        System.clearProperty(SnapshotSerializer.NUM_WORKER_THREADS);
+    }
+
+    @Test
+    public void testCodecRoundTrip() throws Exception {
+        Random r = new Random(42);
+        byte[] random = new byte[100000];
+        r.nextBytes(random);
+        byte[] text = new byte[100000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ("/zookeeper/node" + (i / 40)).charAt(i % 15);
+        }
+        byte[] zeros = new byte[70000];
+        byte[] tiny = { 1, 2, 3 };
+        for (SnapshotCodec codec : CODECS) {
+            for (byte[] data : new byte[][] { random, text, zeros, tiny, {} }) {
+                byte[] compressed = codec.compress(data, 0, data.length);
+                byte[] result = new byte[data.length];
+                codec.decompress(compressed, result);
+                Assert.assertArrayEquals(codec.getName(), data, result);
+            }
+            Assert.assertTrue(codec.compress(text, 0, text.length).length
+                    < text.length / 4);
+            // with an offset
+            byte[] compressed = codec.compress(text, 1000, 5000);
+            byte[] result = new byte[5000];
+            codec.decompress(compressed, result);
+            Assert.assertArrayEquals(Arrays.copyOfRange(text, 1000, 6000), result);
+        }
+    }
+
+    @Test
+    public void testLzDetectsWrongLength() throws Exception {
+        byte[] data = new byte[1000];
+        byte[] compressed = new LzSnapshotCodec().compress(data, 0, data.length);
+        try {
+            new LzSnapshotCodec().decompress(compressed, new byte[999]);
+            Assert.fail("should not decompress into a shorter block");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new LzSnapshotCodec().decompress(
+                    Arrays.copyOf(compressed, compressed.length - 1), data);
+            Assert.fail("should not decompress a truncated block");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBlockStreams() throws Exception {
+        byte[] data = new byte[SnapshotCompression.BLOCK_SIZE * 3 + 17];
+        new Random(7).nextBytes(data);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+        BlockOutputStream out = new BlockOutputStream(oa, new LzSnapshotCodec());
+        out.write(data, 0, 10);
+        out.write(data[10]);
+        out.write(data, 11, data.length - 11);
+        out.finish();
+        oa.writeLong(1234L, "trailer");
+
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray()));
+        BlockInputStream in = new BlockInputStream(ia, new LzSnapshotCodec());
+        byte[] result = new byte[data.length];
+        new DataInputStream(in).readFully(result, 0, 1000);
+        in.skipToEnd();
+        Assert.assertEquals(1234L, ia.readLong("trailer"));
+
+        ia = BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray()));
+        in = new BlockInputStream(ia, new LzSnapshotCodec());
+        new DataInputStream(in).readFully(result);
+        Assert.assertArrayEquals(data, result);
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        DataTree dt = createTree();
+        for (String codec : new String[] { "gzip", "lz",
+                LzSnapshotCodec.class.getName() }) {
+            System.setProperty(SnapshotCompression.COMPRESSION, codec);
+            assertRoundTrip(dt);
+            System.setProperty(SnapshotSerializer.NUM_WORKER_THREADS, "2");
+            assertRoundTrip(dt);
+            System.clearProperty(SnapshotSerializer.NUM_WORKER_THREADS);
+        }
+    }
+
+    @Test
+    public void testReadsUncompressedAndCompressed() throws Exception {
+        File snapDir = ClientBase.createEmptyTestDir();
+        DataTree dt = createTree();
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        sessions.put(1L, 3000);
+
+        new FileSnap(snapDir).serialize(dt, sessions, new File(snapDir, "snapshot.1"));
+        System.setProperty(SnapshotCompression.COMPRESSION, "gzip");
+        new FileSnap(snapDir).serialize(dt, sessions, new File(snapDir, "snapshot.2"));
+
+        // the setting does not matter when reading
+        System.setProperty(SnapshotCompression.COMPRESSION, "lz");
+        for (String name : new String[] { "snapshot.1", "snapshot.2" }) {
+            File snap = new File(snapDir, name);
+            Assert.assertTrue(Util.isValidSnapshot(snap));
+            DataTree loaded = new DataTree();
+            Map<Long, Integer> loadedSessions = new HashMap<Long, Integer>();
+            load(snap, loaded, loadedSessions);
+            Assert.assertEquals(dt.getNodeCount(), loaded.getNodeCount());
+            Assert.assertEquals(sessions, loadedSessions);
+        }
+        Assert.assertTrue(new File(snapDir, "snapshot.2").length()
+                < new File(snapDir, "snapshot.1").length() / 4);
+
+        // the most recent, compressed, snapshot is restored
+        DataTree restored = new DataTree();
+        Assert.assertEquals(2L, new FileSnap(snapDir).deserialize(restored,
+                new HashMap<Long, Integer>()));
+        Assert.assertEquals(dt.getNodeCount(), restored.getNodeCount());
+    }
+
+    private void assertRoundTrip(DataTree dt) throws Exception {
+        File snapDir = ClientBase.createEmptyTestDir();
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        sessions.put(5L, 1000);
+        File snap = new File(snapDir, "snapshot.10");
+        new FileSnap(snapDir).serialize(dt, sessions, snap);
+
+        DataTree loaded = new DataTree();
+        Map<Long, Integer> loadedSessions = new HashMap<Long, Integer>();
+        Assert.assertEquals(0x10, new FileSnap(snapDir).deserialize(loaded,
+                loadedSessions));
+        Assert.assertEquals(sessions, loadedSessions);
+        Assert.assertEquals(dt.getNodeCount(), loaded.getNodeCount());
+        Assert.assertArrayEquals(dt.getData("/n7/c3", new Stat(), null),
+                loaded.getData("/n7/c3", new Stat(), null));
+    }
+
+    private void load(File snap, DataTree dt, Map<Long, Integer> sessions)
+            throws IOException {
+        try (FileInputStream in = new FileInputStream(snap)) {
+            new FileSnap(null).deserialize(dt, sessions,
+                    BinaryInputArchive.getArchive(new BufferedInputStream(in)));
+        }
+    }
+
+    static DataTree createTree() throws Exception {
+        DataTree dt = new DataTree();
+        long zxid = 0;
+        for (int i = 0; i < 20; i++) {
+            dt.createNode("/n" + i, new byte[0], Ids.OPEN_ACL_UNSAFE, 0, -1,
+                    ++zxid, 0);
+            for (int j = 0; j < 100; j++) {
+                String path = "/n" + i + "/c" + j;
+                StringBuilder data = new StringBuilder();
+                while (data.length() < 1000) {
+                    data.append(path).append(" some data ");
+                }
+                dt.createNode(path, data.toString().getBytes(),
+                        Ids.OPEN_ACL_UNSAFE, 0, -1, ++zxid, 0);
+            }
+        }
+        return dt;
+    }
+}
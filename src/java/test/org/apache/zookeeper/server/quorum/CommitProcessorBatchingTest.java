@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.proto.GetDataRequest;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ServerStats;
+import org.apache.zookeeper.server.WorkerService;
+import org.apache.zookeeper.server.ZooKeeperServerListener;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs single rounds of the CommitProcessor main loop with bounded read and
+ * commit batches.
+ */
+public class CommitProcessorBatchingTest extends ZKTestCase {
+    private final List<Request> processed = new ArrayList<Request>();
+    private final List<String> failures = new ArrayList<String>();
+    private ServerStats stats;
+    private CommitProcessor processor;
+
+    @Before
+    public void setUp() {
+        stats = new ServerStats(null);
+        processor = new CommitProcessor(new RequestProcessor() {
+            public void processRequest(Request request) {
+                processed.add(request);
+            }
+            public void shutdown() {
+            }
+        }, "0", false, new ZooKeeperServerListener() {
+            @Override
+            public void notifyStopping(String threadName, int errorCode) {
+                failures.add(threadName);
+            }
+        }, stats);
+        processor.stopped = false;
+        processor.stoppedMainLoop = true;
+        // no worker threads, requests are run by the main loop
+        processor.workerPool = new WorkerService("CommitProcWork", 0, true);
+    }
+
+    private Request newRequest(Record rec, int type, long sessionId, int xid)
+            throws IOException {
+        ByteArrayOutputStream boas = new ByteArrayOutputStream();
+        rec.serialize(BinaryOutputArchive.getArchive(boas), "request");
+        return new Request(null, sessionId, xid, type,
+                ByteBuffer.wrap(boas.toByteArray()), new ArrayList<Id>());
+    }
+
+    private Request read(long sessionId, int xid) throws IOException {
+        return newRequest(new GetDataRequest("/foo", false), OpCode.getData,
+                sessionId, xid);
+    }
+
+    private Request write(long sessionId, int xid) throws IOException {
+        return newRequest(new SetDataRequest("/foo", new byte[0], -1),
+                OpCode.setData, sessionId, xid);
+    }
+
+    @Test
+    public void testRemoteCommitNotStarvedByReads() throws Exception {
+        processor.setBatchSizes(2, 1, false);
+        List<Request> reads = new ArrayList<Request>();
+        for (int i = 0; i < 5; i++) {
+            reads.add(read(1, i));
+            processor.processRequest(reads.get(i));
+        }
+        Request remote = write(2, 0);
+        processor.commit(remote);
+
+        processor.run();
+
+        Assert.assertEquals(3, processed.size());
+        Assert.assertSame(reads.get(0), processed.get(0));
+        Assert.assertSame(reads.get(1), processed.get(1));
+        Assert.assertSame(remote, processed.get(2));
+        Assert.assertEquals(3, processor.queuedRequests.size());
+        Assert.assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void testCommitWaitsForQueuedLocalWrite() throws Exception {
+        processor.setBatchSizes(2, 1, false);
+        List<Request> requests = new ArrayList<Request>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(read(1, i));
+        }
+        Request local = write(2, 0);
+        requests.add(local);
+        for (Request request : requests) {
+            processor.processRequest(request);
+        }
+        processor.commit(local);
+
+        // the commit belongs to a request that is still queued
+        processor.run();
+        Assert.assertEquals(2, processed.size());
+        Assert.assertEquals(1, processor.committedRequests.size());
+
+        processor.run();
+        Assert.assertEquals(4, processed.size());
+        Assert.assertSame(requests.get(2), processed.get(2));
+        Assert.assertSame(local, processed.get(3));
+        Assert.assertTrue(processor.committedRequests.isEmpty());
+        Assert.assertTrue(processor.pendingRequests.isEmpty());
+        Assert.assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void testCommitBatch() throws Exception {
+        processor.setBatchSizes(-1, 2, false);
+        for (int i = 0; i < 3; i++) {
+            processor.commit(write(2, i));
+        }
+
+        processor.run();
+        Assert.assertEquals(2, processed.size());
+        processor.run();
+        Assert.assertEquals(3, processed.size());
+
+        Assert.assertEquals(2, stats.getCommitProcCommitBatchSize().getCount());
+        Assert.assertEquals(2, stats.getCommitProcCommitBatchSize().getMax());
+        Assert.assertEquals(3, stats.getCommitWaitTime().getCount());
+        Assert.assertEquals(3, stats.getCommitProcWorkerTime().getCount());
+    }
+
+    @Test
+    public void testAdaptiveBatching() throws Exception {
+        processor.setBatchSizes(64, 8, true);
+        Assert.assertEquals(64, processor.getReadBatchSize());
+        Assert.assertEquals(1, processor.getCommitBatchSize());
+
+        // commits waiting much longer than reads favour commits
+        Request remote = write(2, 0);
+        processor.commit(remote);
+        remote.commitRecvTime -= 1000 * 1000 * 1000;
+        processor.processRequest(read(1, 0));
+        Thread.sleep(150);
+
+        processor.run();
+        Assert.assertEquals(32, processor.getReadBatchSize());
+        Assert.assertEquals(2, processor.getCommitBatchSize());
+        Assert.assertEquals(1, stats.getCommitProcQueueWaitTime().getCount());
+        Assert.assertTrue(failures.isEmpty());
+    }
+}
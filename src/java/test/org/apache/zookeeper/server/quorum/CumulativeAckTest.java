@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.test.ClientBase.CountdownWatcher;
+import org.apache.zookeeper.test.QuorumUtil;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Test;
+
+public class CumulativeAckTest extends ZKTestCase {
+
+    private static class MockLearner extends Learner {
+        final List<QuorumPacket> sent = new ArrayList<QuorumPacket>();
+        int flushes;
+
+        @Override
+        void writePacket(QuorumPacket pp, boolean flush) {
+            if (pp != null) {
+                sent.add(pp);
+            }
+            if (flush) {
+                flushes++;
+            }
+        }
+    }
+
+    private static Request request(int type, long zxid) {
+        Request r = new Request(null, 1, 1, type, null, null);
+        r.setHdr(new TxnHeader(1, 1, zxid, 0, type));
+        return r;
+    }
+
+    @Test
+    public void testOneAckPerFlush() throws Exception {
+        MockLearner learner = new MockLearner();
+        SendAckRequestProcessor p = new SendAckRequestProcessor(learner, true);
+        p.processRequest(request(OpCode.create, 1));
+        p.processRequest(request(OpCode.setData, 2));
+        p.processRequest(request(OpCode.delete, 3));
+        assertEquals(0, learner.sent.size());
+        p.flush();
+        assertEquals(1, learner.sent.size());
+        assertEquals(Leader.CUMULATIVEACK, learner.sent.get(0).getType());
+        assertEquals(3, learner.sent.get(0).getZxid());
+
+        // nothing new was logged, e.g. a sync passed through
+        p.processRequest(request(OpCode.sync, 0));
+        p.flush();
+        assertEquals(1, learner.sent.size());
+        assertEquals(2, learner.flushes);
+    }
+
+    @Test
+    public void testAckPerProposalByDefault() throws IOException {
+        MockLearner learner = new MockLearner();
+        SendAckRequestProcessor p = new SendAckRequestProcessor(learner, false);
+        p.processRequest(request(OpCode.create, 1));
+        p.processRequest(request(OpCode.setData, 2));
+        p.flush();
+        assertEquals(2, learner.sent.size());
+        assertEquals(Leader.ACK, learner.sent.get(0).getType());
+        assertEquals(2, learner.sent.get(1).getZxid());
+    }
+
+    private static void waitForNode(QuorumPeer peer, String path)
+            throws InterruptedException {
+        for (int i = 0; i < ClientBase.CONNECTION_TIMEOUT / 10; i++) {
+            if (peer.getActiveServer().getZKDatabase().getNode(path) != null) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail(path + " did not reach server " + peer.getId());
+    }
+
+    /**
+     * Writes commit on an ensemble whose followers only send cumulative acks.
+     */
+    @Test
+    public void testQuorumWithCumulativeAcks() throws Exception {
+        System.setProperty(SendAckRequestProcessor.CUMULATIVE_ACK, "true");
+        QuorumUtil qu = new QuorumUtil(1);
+        try {
+            qu.startAll();
+            int leader = qu.getLeaderServer();
+            CountdownWatcher watcher = new CountdownWatcher();
+            ZooKeeper zk = new ZooKeeper(
+                    qu.getConnectionStringForServer(leader),
+                    ClientBase.CONNECTION_TIMEOUT, watcher);
+            watcher.waitForConnected(ClientBase.CONNECTION_TIMEOUT);
+            for (int i = 0; i < 50; i++) {
+                zk.create("/node" + i, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT);
+            }
+            zk.close();
+
+            Leader l = qu.getPeer(leader).peer.leader;
+            assertNotNull(l);
+            assertTrue(l.outstandingProposals.isEmpty());
+            for (QuorumPeer follower : qu.getFollowerQuorumPeers()) {
+                waitForNode(follower, "/node49");
+            }
+        } finally {
+            System.clearProperty(SendAckRequestProcessor.CUMULATIVE_ACK);
+            qu.shutdownAll();
+        }
+    }
+}
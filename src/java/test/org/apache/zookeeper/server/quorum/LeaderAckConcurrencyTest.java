@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Acks from several learners are processed by Leader.processAck at once,
+ * the proposals must still be committed exactly once and in order.
+ */
+public class LeaderAckConcurrencyTest extends ZKTestCase {
+    private static final int NUM_PROPOSALS = 2000;
+
+    private File tmpDir;
+    private Leader leader;
+    private final List<Long> committed =
+            Collections.synchronizedList(new ArrayList<Long>());
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+        HashMap<Long, QuorumServer> peers = new HashMap<Long, QuorumServer>();
+        for (long sid = 0; sid < 3; sid++) {
+            peers.put(sid, new QuorumServer(sid,
+                    new InetSocketAddress("127.0.0.1", PortAssignment.unique()),
+                    new InetSocketAddress("127.0.0.1", PortAssignment.unique()),
+                    new InetSocketAddress("127.0.0.1", PortAssignment.unique())));
+        }
+        QuorumPeer peer = new QuorumPeer();
+        peer.tickTime = 2000;
+        peer.initLimit = 2;
+        peer.syncLimit = 2;
+        peer.setQuorumVerifier(new QuorumMaj(peers), false);
+        File version2 = new File(tmpDir, "version-2");
+        version2.mkdir();
+        ClientBase.createInitializeFile(tmpDir);
+        for (String name : new String[] { "currentEpoch", "acceptedEpoch" }) {
+            FileOutputStream fos = new FileOutputStream(new File(version2, name));
+            fos.write("0\n".getBytes());
+            fos.close();
+        }
+        FileTxnSnapLog logFactory = new FileTxnSnapLog(tmpDir, tmpDir);
+        peer.setTxnFactory(logFactory);
+        LeaderZooKeeperServer zk = new LeaderZooKeeperServer(logFactory,
+                peer, new ZKDatabase(logFactory));
+        zk.commitProcessor = new CommitProcessor(null, "0", false, null) {
+            @Override
+            public void commit(Request request) {
+                committed.add(request.zxid);
+            }
+        };
+        leader = new Leader(peer, zk);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (leader != null) {
+            leader.shutdown("end of test");
+        }
+        if (tmpDir != null) {
+            ClientBase.recursiveDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testConcurrentAcksCommitInOrder() throws Exception {
+        final long first = ZxidUtils.makeZxid(1, 1);
+        final long last = first + NUM_PROPOSALS - 1;
+        leader.lastCommitted = first - 1;
+        for (long zxid = first; zxid <= last; zxid++) {
+            Proposal p = new Proposal();
+            p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, null, null);
+            p.request = new Request(1, 1, OpCode.create,
+                    new TxnHeader(1, 1, zxid, 0, OpCode.create), null, zxid);
+            p.addQuorumVerifier(leader.self.getQuorumVerifier());
+            leader.outstandingProposals.put(zxid, p);
+            leader.lastProposed = zxid;
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> ackers = new ArrayList<Thread>();
+        for (long sid = 0; sid < 3; sid++) {
+            final long ackSid = sid;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long zxid = first; zxid <= last; zxid++) {
+                        leader.processAck(ackSid, zxid, null);
+                    }
+                }
+            };
+            t.start();
+            ackers.add(t);
+        }
+        start.countDown();
+        for (Thread t : ackers) {
+            t.join(30000);
+            Assert.assertFalse("acks not processed in time", t.isAlive());
+        }
+
+        Assert.assertTrue(leader.outstandingProposals.isEmpty());
+        Assert.assertEquals(last, leader.lastCommitted);
+        Assert.assertEquals(NUM_PROPOSALS, committed.size());
+        for (int i = 0; i < NUM_PROPOSALS; i++) {
+            Assert.assertEquals(first + i, (long) committed.get(i));
+        }
+    }
+}
@@ -20,6 +20,7 @@
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -32,11 +33,15 @@
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.TxnLogProposalIterator;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -316,6 +321,81 @@ public void testTxnLog() throws Exception {
 
     }
 
+    /**
+     * Proposals from the committedLog are queued in their serialized form,
+     * which the learners share, proposals read from the txnlog are not.
+     */
+    @Test
+    public void testCommittedLogPacketsShared() throws Exception {
+        long peerZxid;
+        db.txnLog.add(createProposal(2));
+        db.txnLog.add(createProposal(3));
+        db.txnLog.add(createProposal(5));
+
+        db.lastProcessedZxid = 6;
+        Proposal committed = createProposal(6);
+        db.committedLog.add(createProposal(5));
+        db.committedLog.add(committed);
+
+        // Peer zxid is in txnlog range
+        peerZxid = 3;
+        assertFalse(learnerHandler.syncFollower(peerZxid, db, leader));
+        queuedPacketMatches(new long[] { 5, 6 });
+        QuorumPacket shared = null;
+        for (QuorumPacket qp : learnerHandler.getQueuedPackets()) {
+            if (qp.getZxid() == 5) {
+                assertFalse(qp instanceof ProposalBatcher.Batch);
+            } else if (qp.getType() == Leader.PROPOSAL) {
+                assertTrue(qp instanceof ProposalBatcher.Batch);
+                shared = qp;
+            }
+        }
+        assertSame(committed.getSerializedPacket(), shared);
+        reset();
+
+        // Another peer within committedLog range gets the same packet
+        peerZxid = 5;
+        assertFalse(learnerHandler.syncFollower(peerZxid, db, leader));
+        assertOpType(Leader.DIFF, 6, 6);
+        // DIFF + 1 proposal + 1 commit
+        assertEquals(3, learnerHandler.getQueuedPackets().size());
+        Iterator<QuorumPacket> itr = learnerHandler.getQueuedPackets().iterator();
+        itr.next();
+        assertSame(shared, itr.next());
+        reset();
+    }
+
+    private static void addSetData(ZKDatabase db, long zxid) {
+        TxnHeader hdr = new TxnHeader(1, 1, zxid, 0, OpCode.setData);
+        SetDataTxn txn = new SetDataTxn("/node", new byte[1000], 1);
+        db.addCommittedProposal(new Request(0, 1, OpCode.setData, hdr, txn, zxid));
+    }
+
+    /**
+     * The packets serialized for learners count towards
+     * zookeeper.commitLogBytes.
+     */
+    @Test
+    public void testSerializedPacketsCountTowardsCommitLogBytes()
+            throws Exception {
+        System.setProperty(ZKDatabase.COMMIT_LOG_BYTES, "10000");
+        try {
+            ZKDatabase zkDb = new ZKDatabase(null);
+            for (int i = 1; i <= 5; i++) {
+                addSetData(zkDb, i);
+            }
+            assertEquals(5, zkDb.getCommittedLog().size());
+            for (Proposal p : zkDb.getCommittedLog()) {
+                p.getSerializedPacket();
+            }
+            addSetData(zkDb, 6);
+            // without the serialized packets all six would fit
+            assertTrue(zkDb.getCommittedLog().size() < 6);
+        } finally {
+            System.clearProperty(ZKDatabase.COMMIT_LOG_BYTES);
+        }
+    }
+
     /**
      * Test case verifying TxnLogProposalIterator closure.
      */
@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.test.ClientBase.CountdownWatcher;
+import org.apache.zookeeper.test.QuorumUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LearnerSnapshotImageTest extends ZKTestCase {
+    private static final int CHUNK_SIZE = 1000;
+
+    private File leaderDir;
+    private File learnerDir;
+
+    @Before
+    public void setUp() throws Exception {
+        leaderDir = ClientBase.createTmpDir();
+        learnerDir = ClientBase.createTmpDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ClientBase.recursiveDelete(leaderDir);
+        ClientBase.recursiveDelete(learnerDir);
+    }
+
+    private ZKDatabase createDatabase(File dir, int numNodes) throws Exception {
+        ZKDatabase db = new ZKDatabase(new FileTxnSnapLog(dir, dir));
+        for (int i = 0; i < numNodes; i++) {
+            db.getDataTree().createNode("/node" + i, ("data" + i).getBytes(),
+                    Ids.OPEN_ACL_UNSAFE, 0, 0, i + 1, Time.currentWallTime());
+        }
+        db.setlastProcessedZxid(numNodes);
+        return db;
+    }
+
+    private byte[] send(LearnerSnapshotImage image, long offset) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        image.send(BinaryOutputArchive.getArchive(baos), baos, offset, CHUNK_SIZE);
+        return baos.toByteArray();
+    }
+
+    private File receive(LearnerSnapshotImage image, long offset, byte[] chunks)
+            throws IOException {
+        QuorumPacket snap = new QuorumPacket(Leader.SNAP, image.getZxid(),
+                image.getHeader(offset), null);
+        return LearnerSnapshotImage.receive(snap, BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(chunks)), learnerDir);
+    }
+
+    private void assertLoads(File file, int numNodes) throws Exception {
+        ZKDatabase db = new ZKDatabase(new FileTxnSnapLog(learnerDir, learnerDir));
+        InputStream in = new FileInputStream(file);
+        try {
+            BinaryInputArchive ia = BinaryInputArchive.getArchive(in);
+            db.deserializeSnapshot(ia);
+            assertEquals("BenWasHere", ia.readString("signature"));
+        } finally {
+            in.close();
+        }
+        for (int i = 0; i < numNodes; i++) {
+            assertArrayEquals(("data" + i).getBytes(),
+                    db.getDataTree().getData("/node" + i, new Stat(), null));
+        }
+    }
+
+    /**
+     * A transfer which breaks off is resumed at the offset the learner got to.
+     */
+    @Test
+    public void testResumeTransfer() throws Exception {
+        LearnerSnapshotImage image = LearnerSnapshotImage.take(
+                createDatabase(leaderDir, 200), leaderDir);
+        assertEquals(200, image.getZxid());
+        assertTrue(image.getLength() > 4 * CHUNK_SIZE);
+
+        byte[] all = send(image, 0);
+        try {
+            receive(image, 0, Arrays.copyOf(all, all.length / 2));
+            fail("transfer should have broken off");
+        } catch (EOFException e) {
+            // expected
+        }
+        File partial = LearnerSnapshotImage.findPartial(learnerDir);
+        assertNotNull(partial);
+        assertEquals(200, LearnerSnapshotImage.getZxid(partial));
+        long offset = partial.length();
+        assertTrue(offset > 0 && offset < image.getLength());
+        assertEquals(0, offset % CHUNK_SIZE);
+
+        File file = receive(image, offset, send(image, offset));
+        assertEquals(image.getLength(), file.length());
+        assertLoads(file, 200);
+
+        image.release();
+        assertEquals(0, listImages(leaderDir).length);
+    }
+
+    /**
+     * A corrupted partial image is detected by its checksum and dropped.
+     */
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        LearnerSnapshotImage image = LearnerSnapshotImage.take(
+                createDatabase(leaderDir, 200), leaderDir);
+        byte[] all = send(image, 0);
+        try {
+            receive(image, 0, Arrays.copyOf(all, all.length / 2));
+            fail("transfer should have broken off");
+        } catch (EOFException e) {
+            // expected
+        }
+        File partial = LearnerSnapshotImage.findPartial(learnerDir);
+        RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+        try {
+            raf.seek(100);
+            raf.write(~raf.read());
+        } finally {
+            raf.close();
+        }
+        long offset = partial.length();
+        try {
+            receive(image, offset, send(image, offset));
+            fail("checksum should not match");
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+        assertNull(LearnerSnapshotImage.findPartial(learnerDir));
+        image.release();
+    }
+
+    /**
+     * The image is deleted once the leader and all the learners being sent
+     * it have released it.
+     */
+    @Test
+    public void testRelease() throws Exception {
+        LearnerSnapshotImage image = LearnerSnapshotImage.take(
+                createDatabase(leaderDir, 10), leaderDir);
+        assertTrue(image.retain());
+        image.release();
+        assertEquals(1, listImages(leaderDir).length);
+        image.release();
+        assertEquals(0, listImages(leaderDir).length);
+        assertFalse(image.retain());
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        RateLimitedOutputStream out = new RateLimitedOutputStream(
+                new ByteArrayOutputStream(), 100000);
+        long start = Time.currentElapsedTime();
+        for (int i = 0; i < 25; i++) {
+            out.write(new byte[1000]);
+        }
+        assertEquals(25000, out.getBytesWritten());
+        assertTrue(Time.currentElapsedTime() - start >= 200);
+    }
+
+    private void createNodes(QuorumUtil qu, String prefix, int count) throws Exception {
+        CountdownWatcher watcher = new CountdownWatcher();
+        ZooKeeper zk = new ZooKeeper(qu.getConnectionStringForServer(
+                qu.getLeaderServer()), ClientBase.CONNECTION_TIMEOUT, watcher);
+        watcher.waitForConnected(ClientBase.CONNECTION_TIMEOUT);
+        for (int i = 0; i < count; i++) {
+            zk.create(prefix + i, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        }
+        zk.close();
+    }
+
+    private static File[] listImages(File dir) {
+        return dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(LearnerSnapshotImage.IMAGE_PREFIX + ".");
+            }
+        });
+    }
+
+    private String getSyncInfo(QuorumUtil qu, long sid) {
+        for (LearnerHandler lh : qu.getLeaderQuorumPeer().leader.getLearners()) {
+            if (lh.getSid() == sid) {
+                return lh.getSyncInfo();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Learners which are too far behind for a DIFF get a snapshot image, the
+     * second one is sent the image taken for the first one and the
+     * proposals committed since.
+     */
+    @Test
+    public void testQuorumWithResumableSnapshots() throws Exception {
+        System.setProperty(Learner.RESUMABLE_SNAP_SYNC, "true");
+        System.setProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR, "-1");
+        QuorumUtil qu = new QuorumUtil(2);
+        try {
+            qu.startAll();
+            int leader = qu.getLeaderServer();
+            int first = leader % 5 + 1;
+            int second = first % 5 + 1;
+            qu.shutdown(first);
+            qu.shutdown(second);
+            createNodes(qu, "/a", ZKDatabase.commitLogCount + 100);
+
+            qu.restart(first);
+            String syncInfo = getSyncInfo(qu, first);
+            assertTrue(syncInfo, syncInfo.contains("syncMode:SNAP"));
+            File snapDir = qu.getLeaderQuorumPeer().getTxnFactory().getSnapDir();
+            File[] images = listImages(snapDir);
+            assertEquals(1, images.length);
+
+            createNodes(qu, "/b", 10);
+            qu.restart(second);
+            syncInfo = getSyncInfo(qu, second);
+            assertTrue(syncInfo, syncInfo.contains("syncMode:SNAP"));
+            assertArrayEquals(images, listImages(snapDir));
+
+            for (int id : new int[] { first, second }) {
+                ZKDatabase db = qu.getPeer(id).peer.getActiveServer().getZKDatabase();
+                long end = Time.currentElapsedTime() + ClientBase.CONNECTION_TIMEOUT;
+                while (db.getDataTree().getNode("/b9") == null && Time.currentElapsedTime() < end) {
+                    Thread.sleep(10);
+                }
+                assertNotNull(db.getDataTree().getNode("/a0"));
+                assertNotNull(db.getDataTree().getNode("/b9"));
+                assertNull(LearnerSnapshotImage.findPartial(
+                        qu.getPeer(id).peer.getTxnFactory().getSnapDir()));
+            }
+        } finally {
+            System.clearProperty(Learner.RESUMABLE_SNAP_SYNC);
+            System.clearProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR);
+            qu.shutdownAll();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ProposalBatcherTest extends ZKTestCase {
+    /** Long enough for no batch to time out during a test */
+    private static final long DELAY_MICROS = 3600L * 1000 * 1000;
+
+    private Leader leader;
+    private final List<ProposalBatcher.Batch> queued =
+        new ArrayList<ProposalBatcher.Batch>();
+
+    @Before
+    public void setUp() {
+        leader = mock(Leader.class);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                queued.add((ProposalBatcher.Batch) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(leader).queueToForwardingFollowers(any(QuorumPacket.class));
+    }
+
+    private static QuorumPacket proposal(long zxid) {
+        return new QuorumPacket(Leader.PROPOSAL, zxid, new byte[10], null);
+    }
+
+    private static void assertPackets(long[] zxids, ProposalBatcher.Batch batch)
+            throws Exception {
+        assertEquals(zxids.length, batch.packets.size());
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(batch.bytes));
+        for (int i = 0; i < zxids.length; i++) {
+            QuorumPacket qp = new QuorumPacket();
+            ia.readRecord(qp, "packet");
+            assertEquals(batch.packets.get(i).getType(), qp.getType());
+            assertEquals(zxids[i], batch.packets.get(i).getZxid());
+            assertEquals(zxids[i], qp.getZxid());
+        }
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        ProposalBatcher batcher = new ProposalBatcher(leader, 3, 65536,
+                DELAY_MICROS);
+        for (long zxid = 1; zxid <= 7; zxid++) {
+            batcher.add(proposal(zxid));
+        }
+        assertEquals(2, queued.size());
+        assertPackets(new long[] { 1, 2, 3 }, queued.get(0));
+        assertPackets(new long[] { 4, 5, 6 }, queued.get(1));
+
+        // a sender running out of packets takes the rest
+        batcher.flushIfPending();
+        assertEquals(3, queued.size());
+        assertPackets(new long[] { 7 }, queued.get(2));
+        batcher.flushIfPending();
+        assertEquals(3, queued.size());
+    }
+
+    @Test
+    public void testBatchBytes() throws Exception {
+        // a proposal takes more than 20 bytes serialized
+        ProposalBatcher batcher = new ProposalBatcher(leader, 100, 40,
+                DELAY_MICROS);
+        for (long zxid = 1; zxid <= 3; zxid++) {
+            batcher.add(proposal(zxid));
+        }
+        assertEquals(1, queued.size());
+        assertPackets(new long[] { 1, 2 }, queued.get(0));
+    }
+
+    @Test
+    public void testIdleFollower() throws Exception {
+        ProposalBatcher batcher = new ProposalBatcher(leader, 100, 65536,
+                DELAY_MICROS);
+        batcher.add(proposal(1));
+        batcher.add(new QuorumPacket(Leader.COMMIT, 1, null, null));
+        assertEquals(0, queued.size());
+
+        when(leader.hasIdleForwardingFollower()).thenReturn(true);
+        batcher.add(proposal(2));
+        assertEquals(1, queued.size());
+        assertPackets(new long[] { 1, 1, 2 }, queued.get(0));
+    }
+
+    @Test
+    public void testBatchDelay() throws Exception {
+        ProposalBatcher batcher = new ProposalBatcher(leader, 100, 65536, 0);
+        batcher.add(proposal(1));
+        batcher.add(proposal(2));
+        assertEquals(2, queued.size());
+    }
+}
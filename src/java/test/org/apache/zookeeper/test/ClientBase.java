@@ -525,9 +525,9 @@ protected void startServer() throws Exception {
         serverFactory = createNewServerInstance(serverFactory, hostPort,
                 maxCnxns);
         startServerInstance(tmpDir, serverFactory, hostPort);
-        // ensure that server and data bean are registered
+        // ensure that server, data and request stages beans are registered
         Set<ObjectName> children = JMXEnv.ensureParent("InMemoryDataTree",
-                "StandaloneServer_port");
+                "RequestStages", "StandaloneServer_port");
         // Remove beans which are related to zk client sessions. Strong
         // assertions cannot be done for these client sessions because
         // registeration of these beans with server will happen only on their
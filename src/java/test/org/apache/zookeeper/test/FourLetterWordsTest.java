@@ -168,6 +168,8 @@ public void testValidateStatOutput() throws Exception {
         Assert.assertTrue(Pattern.matches("^Mode: .*$", line));
         line = in.readLine();
         Assert.assertTrue(Pattern.matches("^Node count: \\d+$", line));
+        line = in.readLine();
+        Assert.assertTrue(Pattern.matches("^Latency p50/p95/p99/p999: \\d+/\\d+/\\d+/\\d+$", line));
 
         zk1.close();
         zk2.close();
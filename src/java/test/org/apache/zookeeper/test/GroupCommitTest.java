@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerStats;
+import org.apache.zookeeper.server.SyncRequestProcessor;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs writes through a standalone server with group commit enabled.
+ */
+public class GroupCommitTest extends ClientBase {
+
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(SyncRequestProcessor.GROUP_COMMIT, "true");
+        System.setProperty(SyncRequestProcessor.MAX_BATCH_SIZE, "50");
+        System.setProperty(SyncRequestProcessor.MAX_BATCH_DELAY, "2");
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(SyncRequestProcessor.GROUP_COMMIT);
+        System.clearProperty(SyncRequestProcessor.MAX_BATCH_SIZE);
+        System.clearProperty(SyncRequestProcessor.MAX_BATCH_DELAY);
+    }
+
+    @Test
+    public void testAsyncWritesAreCommittedInOrder() throws Exception {
+        final int count = 500;
+        ZooKeeper zk = createClient();
+        try {
+            final CountDownLatch latch = new CountDownLatch(count);
+            final AtomicInteger lastSeq = new AtomicInteger(-1);
+            final AtomicInteger outOfOrder = new AtomicInteger();
+            for (int i = 0; i < count; i++) {
+                final int seq = i;
+                zk.create("/gc-" + i, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT, new StringCallback() {
+                    public void processResult(int rc, String path,
+                            Object ctx, String name) {
+                        if (rc != Code.OK.intValue()
+                                || !lastSeq.compareAndSet(seq - 1, seq)) {
+                            outOfOrder.incrementAndGet();
+                        }
+                        latch.countDown();
+                    }
+                }, null);
+            }
+            Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(0, outOfOrder.get());
+
+            // reads queued behind the writes see all of them
+            Assert.assertEquals(count, zk.getChildren("/", false).size() - 1);
+
+            ServerStats stats = getServer(serverFactory).serverStats();
+            Assert.assertTrue(stats.getSyncBatchSize().getCount() > 0);
+            Assert.assertTrue(stats.getSyncBatchSize().getMax() <= 50);
+            Assert.assertTrue(stats.getSyncBatchSize().getTotal() >= count);
+        } finally {
+            zk.close();
+        }
+    }
+
+    /**
+     * Records how far each log file was forced, blocking the first force
+     * until released.
+     */
+    private static class BlockingFileTxnLog extends FileTxnLog {
+        final Map<FileOutputStream, Long> forced =
+            new IdentityHashMap<FileOutputStream, Long>();
+        final CountDownLatch forcing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile FileOutputStream firstForced;
+
+        BlockingFileTxnLog(File logDir) {
+            super(logDir);
+        }
+
+        @Override
+        protected void force(FileOutputStream log) throws IOException {
+            long position = log.getChannel().position();
+            if (firstForced == null) {
+                firstForced = log;
+                forcing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            super.force(log);
+            synchronized (forced) {
+                forced.put(log, position);
+            }
+        }
+
+        long forcedPosition(FileOutputStream log) {
+            synchronized (forced) {
+                Long position = forced.get(log);
+                return position == null ? -1 : position;
+            }
+        }
+    }
+
+    private static void append(FileTxnLog log, long zxid) throws IOException {
+        log.append(new TxnHeader(1, 1, zxid, 0, OpCode.setData),
+                new SetDataTxn("/gc", new byte[100], 1));
+    }
+
+    /**
+     * Entries appended to a log file while it is forced, before it is
+     * rolled over, are forced by the next commit.
+     */
+    @Test
+    public void testRollLogDuringSync() throws Exception {
+        final BlockingFileTxnLog log =
+            new BlockingFileTxnLog(ClientBase.createTmpDir());
+        try {
+            append(log, 1);
+            final AtomicInteger failures = new AtomicInteger();
+            Thread committer = new Thread() {
+                public void run() {
+                    try {
+                        log.commit();
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            committer.start();
+            Assert.assertTrue(log.forcing.await(30, TimeUnit.SECONDS));
+
+            // the next batch, spanning a roll over of the log
+            append(log, 2);
+            log.rollLog();
+            FileOutputStream first = log.firstForced;
+            long firstEnd = first.getChannel().position();
+            append(log, 3);
+            log.release.countDown();
+            committer.join(30000);
+            Assert.assertFalse(committer.isAlive());
+            Assert.assertEquals(0, failures.get());
+
+            // zxids 2 and 3 are acked after this
+            log.commit();
+            Assert.assertTrue("zxid 2 was not forced",
+                    log.forcedPosition(first) >= firstEnd);
+        } finally {
+            log.release.countDown();
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.List;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.common.BufferPool;
+import org.apache.zookeeper.common.Time;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs client requests with the buffer pool enabled and checks that every
+ * buffer acquired by the client and server is given back.
+ */
+public class PooledBuffersTest extends ClientBase {
+    static {
+        // each test class runs in its own JVM, and the pools are set up
+        // when first used
+        System.setProperty(BufferPool.ENABLED, "true");
+        System.setProperty(BufferPool.TRACK_LEAKS, "true");
+    }
+
+    @Test
+    public void testNoLeaks() throws Exception {
+        Assert.assertTrue(BufferPool.HEAP.isEnabled());
+        ZooKeeper zk = createClient();
+        try {
+            for (int i = 0; i < 50; i++) {
+                byte[] data = new byte[i * 100];
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) (i + j);
+                }
+                zk.create("/pooled" + i, data, Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT);
+            }
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 50; i++) {
+                    byte[] data = zk.getData("/pooled" + i, false, null);
+                    Assert.assertEquals(i * 100, data.length);
+                    for (int j = 0; j < data.length; j++) {
+                        Assert.assertEquals((byte) (i + j), data[j]);
+                    }
+                }
+            }
+        } finally {
+            zk.close();
+        }
+        Assert.assertTrue(BufferPool.HEAP.getHits() > 0);
+
+        long end = Time.currentElapsedTime() + CONNECTION_TIMEOUT;
+        List<Throwable> leaks = BufferPool.HEAP.getLeaks();
+        while (!leaks.isEmpty() && Time.currentElapsedTime() < end) {
+            Thread.sleep(100);
+            leaks = BufferPool.HEAP.getLeaks();
+        }
+        for (Throwable leak : leaks) {
+            LOG.error("Leaked buffer", leak);
+        }
+        Assert.assertEquals(0, leaks.size());
+        Assert.assertEquals(0, BufferPool.HEAP.getOutstandingBytes());
+    }
+}
@@ -26,10 +26,15 @@
 import org.apache.zookeeper.ZKTestCase;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.ServerCnxnFactory;
 import org.apache.zookeeper.server.SyncRequestProcessor;
+import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -80,4 +85,57 @@ public void testRestoreCommittedLog() throws Exception {
         Assert.assertTrue("log size != 0", (logsize != 0));
         zks.shutdown();
     }
+
+    private static void addSetData(ZKDatabase db, long zxid, int size) {
+        TxnHeader hdr = new TxnHeader(1, 1, zxid, 0, OpCode.setData);
+        SetDataTxn txn = new SetDataTxn("/node", new byte[size], 1);
+        db.addCommittedProposal(new Request(0, 1, OpCode.setData, hdr, txn, zxid));
+    }
+
+    /**
+     * The committed log keeps the latest proposals which fit into
+     * zookeeper.commitLogBytes.
+     */
+    @Test
+    public void testCommittedLogBytesLimit() throws Exception {
+        System.setProperty(ZKDatabase.COMMIT_LOG_BYTES, "10000");
+        try {
+            ZKDatabase db = new ZKDatabase(null);
+            for (int i = 1; i <= 50; i++) {
+                addSetData(db, i, 1000);
+            }
+            List<Proposal> committedLog = db.getCommittedLog();
+            int logsize = committedLog.size();
+            Assert.assertTrue("log size " + logsize, logsize > 1 && logsize < 10);
+            Assert.assertEquals(50, db.getmaxCommittedLog());
+            Assert.assertEquals(50 - logsize + 1, db.getminCommittedLog());
+            Assert.assertEquals(db.getminCommittedLog(),
+                    committedLog.get(0).packet.getZxid());
+
+            // a proposal larger than the limit is still kept
+            addSetData(db, 51, 20000);
+            Assert.assertEquals(1, db.getCommittedLog().size());
+            Assert.assertEquals(51, db.getminCommittedLog());
+            addSetData(db, 52, 10);
+            Assert.assertEquals(1, db.getCommittedLog().size());
+            Assert.assertEquals(52, db.getminCommittedLog());
+        } finally {
+            System.clearProperty(ZKDatabase.COMMIT_LOG_BYTES);
+        }
+    }
+
+    /**
+     * Without a size limit the committed log keeps commitLogCount proposals.
+     */
+    @Test
+    public void testCommittedLogCountLimit() throws Exception {
+        ZKDatabase db = new ZKDatabase(null);
+        for (int i = 1; i <= ZKDatabase.commitLogCount * 2; i++) {
+            addSetData(db, i, 10);
+        }
+        Assert.assertEquals(ZKDatabase.commitLogCount + 1,
+                db.getCommittedLog().size());
+        Assert.assertEquals(ZKDatabase.commitLogCount,
+                db.getminCommittedLog());
+    }
 }